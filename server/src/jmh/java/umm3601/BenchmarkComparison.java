@@ -0,0 +1,113 @@
+package umm3601;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares two sets of JMH results (as written by `./gradlew jmh`) and
+ * reports how much each benchmark has changed, e.g.,
+ * `./gradlew jmhCompare -Pbaseline=baseline.json`.
+ * <p>
+ * A benchmark has regressed if it got worse by more than the threshold
+ * (10% by default, or the third argument) and by more than the error
+ * margins of the two scores put together, so noise alone doesn't count.
+ * The exit status is 1 if anything regressed, so this can fail a build.
+ */
+public final class BenchmarkComparison {
+  private static final double DEFAULT_THRESHOLD = 0.10;
+  private static final double PERCENT = 100;
+  private static final int THRESHOLD_ARGUMENT = 2;
+
+  private BenchmarkComparison() {
+  }
+
+  /**
+   * Compare benchmark results.
+   *
+   * @param args the baseline results file, the new results file, and
+   *             (optionally) the fraction by which a benchmark has to get
+   *             worse to count as a regression
+   * @throws IOException if either results file can't be read
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < THRESHOLD_ARGUMENT) {
+      System.err.println("Usage: BenchmarkComparison <baseline.json> <results.json> [threshold]");
+      System.exit(2);
+    }
+    double threshold = args.length > THRESHOLD_ARGUMENT ? Double.parseDouble(args[THRESHOLD_ARGUMENT])
+      : DEFAULT_THRESHOLD;
+    Map<String, JsonNode> baseline = read(new File(args[0]));
+    Map<String, JsonNode> results = read(new File(args[1]));
+
+    int regressions = 0;
+    System.out.printf("%-80s %14s %14s %9s%n", "Benchmark", "Baseline", "Now", "Change");
+    for (Map.Entry<String, JsonNode> entry : results.entrySet()) {
+      JsonNode before = baseline.get(entry.getKey());
+      JsonNode after = entry.getValue();
+      JsonNode metric = after.get("primaryMetric");
+      String unit = metric.get("scoreUnit").asText();
+      if (before == null) {
+        System.out.printf("%-80s %14s %14.3f %9s  (new) %s%n", entry.getKey(), "", metric.get("score").asDouble(),
+          "", unit);
+        continue;
+      }
+      double oldScore = before.get("primaryMetric").get("score").asDouble();
+      double newScore = metric.get("score").asDouble();
+      double error = errorOf(before) + errorOf(after);
+      // Times per operation should go down, and throughputs up
+      boolean lowerIsBetter = !after.get("mode").asText().equals("thrpt");
+      double worse = lowerIsBetter ? newScore - oldScore : oldScore - newScore;
+      boolean regressed = worse > threshold * oldScore && worse > error;
+      if (regressed) {
+        regressions++;
+      }
+      System.out.printf("%-80s %14.3f %14.3f %+8.1f%%  %s%s%n", entry.getKey(), oldScore, newScore,
+        (newScore - oldScore) / oldScore * PERCENT, unit, regressed ? "  REGRESSION" : "");
+    }
+    for (String missing : baseline.keySet()) {
+      if (!results.containsKey(missing)) {
+        System.out.printf("%-80s (not run)%n", missing);
+      }
+    }
+
+    if (regressions > 0) {
+      System.out.println(regressions + " benchmark(s) regressed by more than " + threshold * PERCENT + "%");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Read a JMH results file into a map from the name and parameters of each
+   * benchmark to its result.
+   */
+  private static Map<String, JsonNode> read(File file) throws IOException {
+    Map<String, JsonNode> results = new LinkedHashMap<>();
+    for (JsonNode result : new ObjectMapper().readTree(file)) {
+      StringBuilder name = new StringBuilder(result.get("benchmark").asText());
+      JsonNode params = result.get("params");
+      if (params != null) {
+        Map<String, String> sorted = new TreeMap<>();
+        for (Iterator<Map.Entry<String, JsonNode>> fields = params.fields(); fields.hasNext();) {
+          Map.Entry<String, JsonNode> field = fields.next();
+          sorted.put(field.getKey(), field.getValue().asText());
+        }
+        name.append(sorted);
+      }
+      results.put(name.toString(), result);
+    }
+    return results;
+  }
+
+  private static double errorOf(JsonNode result) {
+    double error = result.get("primaryMetric").get("scoreError").asDouble();
+    // JMH reports NaN when there weren't enough iterations to tell
+    return Double.isNaN(error) ? 0 : error;
+  }
+}
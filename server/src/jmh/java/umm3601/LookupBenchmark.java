@@ -0,0 +1,73 @@
+package umm3601;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import umm3601.todo.Todo;
+import umm3601.todo.TodoDatabase;
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
+
+/**
+ * Measures single-item lookups by `_id` in both databases. Since these go
+ * through the primary key index, the time per lookup should stay flat as
+ * `size` grows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@SuppressWarnings({"VisibilityModifier"})
+public class LookupBenchmark {
+  private static final long SEED = 3601;
+
+  @Param({"1000", "100000", "1000000"})
+  public int size;
+
+  private TodoDatabase todoDatabase;
+  private UserDatabase userDatabase;
+  private String[] ids;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    todoDatabase = new TodoDatabase(SyntheticData.todos(size, SEED));
+    userDatabase = new UserDatabase(SyntheticData.users(size, SEED));
+    ids = new String[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = SyntheticData.id(i);
+    }
+
+    // Look the IDs up in a shuffled order so we aren't just walking memory
+    Random random = new Random(SEED);
+    for (int i = size - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      String tmp = ids[i];
+      ids[i] = ids[j];
+      ids[j] = tmp;
+    }
+  }
+
+  private String nextId() {
+    next = (next + 1) % ids.length;
+    return ids[next];
+  }
+
+  @Benchmark
+  public Todo getTodo() {
+    return todoDatabase.getTodo(nextId());
+  }
+
+  @Benchmark
+  public User getUser() {
+    return userDatabase.getUser(nextId());
+  }
+}
@@ -0,0 +1,96 @@
+package umm3601;
+
+import java.util.Random;
+
+import umm3601.todo.Todo;
+import umm3601.user.User;
+
+/**
+ * Generates reproducible, made-up todos and users for the benchmarks, with
+ * roughly the same shape as the data in `todos.json` and `users.json`.
+ */
+public final class SyntheticData {
+  private static final String[] OWNERS = {"Blanche", "Fry", "Barry", "Dawn", "Workman", "Roberta"};
+  private static final String[] CATEGORIES = {"homework", "groceries", "software design", "video games"};
+  private static final String[] WORDS = {
+    "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipisicing", "elit", "sed", "do",
+    "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua", "enim",
+    "ad", "minim", "veniam", "quis", "nostrud", "exercitation", "ullamco", "laboris", "nisi", "aliquip",
+    "ex", "ea", "commodo", "consequat", "duis", "aute", "irure", "in", "reprehenderit", "voluptate",
+    "velit", "esse", "cillum", "eu", "fugiat", "nulla", "pariatur", "excepteur", "sint", "occaecat",
+  };
+  private static final String[] COMPANIES = {"OHMNET", "NIQUENT", "IBM", "UMM", "FROLIX", "KIDGREASE"};
+  private static final int MIN_WORDS = 8;
+  private static final int MAX_WORDS = 24;
+  private static final int MIN_AGE = 18;
+  private static final int MAX_AGE = 80;
+
+  private SyntheticData() {
+  }
+
+  /**
+   * Make up an `_id` for the `i`th record, in the same format as the real ones.
+   *
+   * @param i the index of the record
+   * @return a 24 digit hexadecimal ID
+   */
+  public static String id(int i) {
+    return String.format("%024x", i);
+  }
+
+  /**
+   * Generate the given number of todos.
+   *
+   * @param count the number of todos
+   * @param seed  the seed for the random number generator
+   * @return an array of made-up todos
+   */
+  public static Todo[] todos(int count, long seed) {
+    Random random = new Random(seed);
+    Todo[] todos = new Todo[count];
+    for (int i = 0; i < count; i++) {
+      Todo todo = new Todo();
+      todo._id = id(i);
+      todo.owner = OWNERS[random.nextInt(OWNERS.length)];
+      todo.category = CATEGORIES[random.nextInt(CATEGORIES.length)];
+      todo.status = random.nextBoolean();
+      todo.body = sentence(random);
+      todos[i] = todo;
+    }
+    return todos;
+  }
+
+  /**
+   * Generate the given number of users.
+   *
+   * @param count the number of users
+   * @param seed  the seed for the random number generator
+   * @return an array of made-up users
+   */
+  public static User[] users(int count, long seed) {
+    Random random = new Random(seed);
+    User[] users = new User[count];
+    for (int i = 0; i < count; i++) {
+      User user = new User();
+      user._id = id(i);
+      user.name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+      user.age = MIN_AGE + random.nextInt(MAX_AGE - MIN_AGE);
+      user.company = COMPANIES[random.nextInt(COMPANIES.length)];
+      user.email = user.name.replace(' ', '.') + "@" + user.company.toLowerCase() + ".com";
+      users[i] = user;
+    }
+    return users;
+  }
+
+  private static String sentence(Random random) {
+    int length = MIN_WORDS + random.nextInt(MAX_WORDS - MIN_WORDS);
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      if (i > 0) {
+        builder.append(' ');
+      }
+      builder.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return builder.append('.').toString();
+  }
+}
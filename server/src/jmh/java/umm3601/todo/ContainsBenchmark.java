@@ -0,0 +1,64 @@
+package umm3601.todo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import umm3601.SyntheticData;
+
+/**
+ * Compares `contains` queries answered with the trigram index against the
+ * plain `String.contains` scan over every todo that we used to do.
+ * <p>
+ * The 10M todo data set needs a large heap, e.g.,
+ * `./gradlew jmh -Pjmh.jvmArgs=-Xmx16g`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@SuppressWarnings({"VisibilityModifier"})
+public class ContainsBenchmark {
+  private static final long SEED = 3601;
+
+  @Param({"10000", "1000000", "10000000"})
+  public int size;
+
+  // A rare phrase, a common word, and two words that must both appear
+  @Param({"fugiat nulla", "lorem", "magna,velit"})
+  public String contains;
+
+  private Todo[] todos;
+  private TodoDatabase database;
+  private String[] values;
+  private Map<String, List<String>> queryParams;
+
+  @Setup
+  public void setUp() {
+    todos = SyntheticData.todos(size, SEED);
+    database = new TodoDatabase(todos);
+    values = contains.split(",");
+    queryParams = Map.of("contains", Arrays.asList(values));
+  }
+
+  @Benchmark
+  public Todo[] indexed() {
+    return database.listTodos(queryParams);
+  }
+
+  @Benchmark
+  public Todo[] scan() {
+    return Arrays.stream(todos)
+      .filter(todo -> Arrays.stream(values).allMatch(todo.body::contains))
+      .toArray(Todo[]::new);
+  }
+}
@@ -0,0 +1,72 @@
+package umm3601.todo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import umm3601.ParallelScan;
+import umm3601.SyntheticData;
+
+/**
+ * Measures how `contains` queries that the trigram index can't narrow down
+ * scale with the number of threads scanning the todos. Compare the scores
+ * for `threads=1` (a sequential scan) with the rest; the speedup levels off
+ * at the number of cores.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@SuppressWarnings({"VisibilityModifier"})
+public class ParallelScanBenchmark {
+  private static final long SEED = 3601;
+
+  @Param({"1000000"})
+  public int size;
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  // Too short for the trigram index, so every todo has to be checked, and
+  // a word in most todos, so the index barely narrows things down
+  @Param({"um", "lorem"})
+  public String contains;
+
+  private TodoDatabase database;
+  private ParallelScan scan;
+  private TodoQuery all;
+  private TodoQuery firstPage;
+
+  @Setup
+  public void setUp() {
+    database = new TodoDatabase(SyntheticData.todos(size, SEED));
+    scan = new ParallelScan(threads);
+    database.setParallelScan(scan);
+    all = TodoQuery.fromParams(Map.of("contains", List.of(contains)));
+    firstPage = TodoQuery.fromParams(Map.of("contains", List.of(contains), "limit", List.of("20")));
+  }
+
+  @TearDown
+  public void tearDown() {
+    scan.close();
+  }
+
+  @Benchmark
+  public Todo[] allMatches() {
+    return database.listTodos(all);
+  }
+
+  @Benchmark
+  public Todo[] firstPage() {
+    return database.listTodos(firstPage);
+  }
+}
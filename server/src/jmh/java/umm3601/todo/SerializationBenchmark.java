@@ -0,0 +1,72 @@
+package umm3601.todo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.SyntheticData;
+
+/**
+ * Measures turning todos into the JSON the controllers send: a whole list
+ * serialized at once (as `ctx.json` does), and single todos either
+ * serialized for each request or taken from the database's preserialized
+ * copies (as `getTodo` does with preserialization turned on).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@SuppressWarnings({"VisibilityModifier"})
+public class SerializationBenchmark {
+  private static final long SEED = 3601;
+  private static final int DATABASE_SIZE = 100_000;
+
+  // How many todos are in each response
+  @Param({"20", "1000"})
+  public int count;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private TodoDatabase database;
+  private Todo[] page;
+
+  @Setup
+  public void setUp() {
+    database = new TodoDatabase(SyntheticData.todos(DATABASE_SIZE, SEED));
+    page = new Todo[count];
+    for (int i = 0; i < count; i++) {
+      page[i] = database.getTodo(SyntheticData.id(i));
+    }
+  }
+
+  @Benchmark
+  public byte[] serializeList() throws JsonProcessingException {
+    return mapper.writeValueAsBytes(page);
+  }
+
+  @Benchmark
+  public long serializeEach() throws JsonProcessingException {
+    long bytes = 0;
+    for (Todo todo : page) {
+      bytes += mapper.writeValueAsBytes(todo).length;
+    }
+    return bytes;
+  }
+
+  @Benchmark
+  public long preserializedEach() {
+    long bytes = 0;
+    for (Todo todo : page) {
+      bytes += database.getTodoJson(todo._id).length;
+    }
+    return bytes;
+  }
+}
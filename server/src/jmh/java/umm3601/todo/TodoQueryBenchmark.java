@@ -0,0 +1,71 @@
+package umm3601.todo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import umm3601.SyntheticData;
+
+/**
+ * Measures `listTodos` (and `groupTodos`) for each of the shapes of query
+ * the todo list page makes, at several sizes. The query is parsed once up
+ * front, so this is just the time in the database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@SuppressWarnings({"VisibilityModifier"})
+public class TodoQueryBenchmark {
+  private static final long SEED = 3601;
+
+  @Param({"1000", "100000", "1000000"})
+  public int size;
+
+  @Param({"owner", "owner+category+status", "contains", "orderBy+limit", "contains+orderBy+limit"})
+  public String shape;
+
+  private TodoDatabase database;
+  private TodoQuery query;
+
+  @Setup
+  public void setUp() {
+    database = new TodoDatabase(SyntheticData.todos(size, SEED));
+    query = TodoQuery.fromParams(queryParams(shape));
+  }
+
+  private static Map<String, List<String>> queryParams(String shape) {
+    switch (shape) {
+      case "owner":
+        return Map.of("owner", List.of("Fry"));
+      case "owner+category+status":
+        return Map.of("owner", List.of("Fry"), "category", List.of("homework"), "status", List.of("complete"));
+      case "contains":
+        return Map.of("contains", List.of("fugiat nulla"));
+      case "orderBy+limit":
+        return Map.of("orderBy", List.of("body"), "limit", List.of("20"));
+      case "contains+orderBy+limit":
+        return Map.of("contains", List.of("magna"), "orderBy", List.of("owner"), "limit", List.of("20"));
+      default:
+        throw new IllegalArgumentException("Unknown query shape " + shape);
+    }
+  }
+
+  @Benchmark
+  public Todo[] listTodos() {
+    return database.listTodos(query);
+  }
+
+  @Benchmark
+  public List<TodoGroup> groupTodos() {
+    return database.groupTodos("category", query);
+  }
+}
@@ -0,0 +1,88 @@
+package umm3601.todo;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import umm3601.SyntheticData;
+
+/**
+ * Measures single writes through a `TodoStore` (with no log), at several
+ * sizes. A write only adds to the delta of changes on top of the indexes,
+ * so its time shouldn't grow with the number of todos. The merges into new
+ * indexes that the delta sets off run in the background, but on a machine
+ * with few cores they take time away from the writes, so they can be turned
+ * off to measure the writes alone. `rebuild` is what every write used to
+ * cost: building a new database from all the todos.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@SuppressWarnings({"VisibilityModifier"})
+public class TodoWriteBenchmark {
+  private static final long SEED = 3601;
+
+  @Param({"10000", "100000", "1000000"})
+  public int size;
+
+  // "background" merges as the server does, and "none" never merges
+  @Param({"background", "none"})
+  public String merges;
+
+  private TodoDatabase database;
+  private TodoStore store;
+  private String[] ids;
+  private Random random;
+  private TodoChanges update;
+  private TodoChanges todo;
+
+  @Setup
+  public void setUp() {
+    Todo[] todos = SyntheticData.todos(size, SEED);
+    ids = new String[todos.length];
+    for (int i = 0; i < todos.length; i++) {
+      ids[i] = todos[i]._id;
+    }
+    database = new TodoDatabase(todos);
+    random = new Random(SEED);
+    update = TodoChanges.fromJson("{\"owner\": \"Zed\", \"status\": true}");
+    todo = TodoChanges.fromTodoJson(
+      "{\"owner\": \"Zed\", \"status\": false, \"body\": \"Some text\", \"category\": \"chores\"}");
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpStore() {
+    store = "none".equals(merges) ? new TodoStore(database, Integer.MAX_VALUE) : new TodoStore(database);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDownStore() {
+    // Don't let a merge carry on into the next iteration
+    store.awaitMerge();
+  }
+
+  @Benchmark
+  public Todo update() {
+    return store.update(ids[random.nextInt(ids.length)], update);
+  }
+
+  @Benchmark
+  public Todo add() {
+    return store.add(todo);
+  }
+
+  @Benchmark
+  public TodoDatabase rebuild() {
+    return new TodoDatabase(database.allTodos());
+  }
+}
@@ -0,0 +1,71 @@
+package umm3601.user;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import umm3601.SyntheticData;
+
+/**
+ * Measures `listUsers` (and `groupUsers`) for each of the shapes of query
+ * the user list page makes, at several sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@SuppressWarnings({"VisibilityModifier"})
+public class UserQueryBenchmark {
+  private static final long SEED = 3601;
+
+  @Param({"1000", "100000", "1000000"})
+  public int size;
+
+  @Param({"company", "age", "minAge+maxAge", "company+minAge", "limit"})
+  public String shape;
+
+  private UserDatabase database;
+  private Map<String, List<String>> queryParams;
+
+  @Setup
+  public void setUp() {
+    database = new UserDatabase(SyntheticData.users(size, SEED));
+    switch (shape) {
+      case "company":
+        queryParams = Map.of("company", List.of("OHMNET"));
+        break;
+      case "age":
+        queryParams = Map.of("age", List.of("25"));
+        break;
+      case "minAge+maxAge":
+        queryParams = Map.of("minAge", List.of("30"), "maxAge", List.of("39"));
+        break;
+      case "company+minAge":
+        queryParams = Map.of("company", List.of("OHMNET"), "minAge", List.of("60"));
+        break;
+      case "limit":
+        queryParams = Map.of("limit", List.of("20"));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown query shape " + shape);
+    }
+  }
+
+  @Benchmark
+  public User[] listUsers() {
+    return database.listUsers(queryParams);
+  }
+
+  @Benchmark
+  public List<UserGroup> groupUsers() {
+    return database.groupUsers("age", queryParams);
+  }
+}
@@ -0,0 +1,308 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import io.javalin.Javalin;
+import umm3601.todo.TodoDatabase;
+import umm3601.todo.TodoStore;
+import umm3601.user.UserDatabase;
+
+/**
+ * Drives the real server, with all its routes, at a steady rate of requests
+ * and reports the throughput and latency percentiles, e.g.,
+ * `./gradlew loadTest -Pargs="--todos=1000000 --rate=2000 --mix=list:50,get:40,users:10"`.
+ * <p>
+ * The server runs in this process on a free port, with synthetic users and
+ * todos, so the test needs nothing but this machine. Requests are sent on a
+ * fixed schedule (an "open" load), and each one's latency is measured from
+ * when it was due to be sent rather than when it was actually sent; a
+ * server that falls behind the rate is charged for the time requests spent
+ * waiting, instead of the test quietly slowing down to match it.
+ * <p>
+ * Options (all `--name=value`):
+ * <ul>
+ * <li>`todos`, `users`: how many of each to generate (100000 and 10000)</li>
+ * <li>`rate`: requests per second to send (1000)</li>
+ * <li>`duration`, `warmup`: seconds to measure for, after seconds of
+ * unmeasured warm up (30 and 10)</li>
+ * <li>`mix`: the kinds of request to send and their relative weights
+ * (list:50,get:40,users:10), where `list` is `/api/todos` with one of
+ * several queries, `get` is `/api/todos/{id}`, and `users` is
+ * `/api/users` with one of several queries</li>
+ * <li>`connections`: how many requests can be in flight at once (64)</li>
+ * <li>`seed`: the seed for the data and the requests (3601)</li>
+ * <li>`executor`, `active`, `queued`, `wait`: how the server runs requests
+ * (see `RequestExecution`), how many it handles at once and lets wait, and
+ * for how many milliseconds (platform, 4 per core, 256 and 1000)</li>
+ * </ul>
+ */
+public final class LoadTest {
+  private static final Map<String, String> DEFAULTS = Map.ofEntries(
+    Map.entry("todos", "100000"),
+    Map.entry("users", "10000"),
+    Map.entry("rate", "1000"),
+    Map.entry("duration", "30"),
+    Map.entry("warmup", "10"),
+    Map.entry("mix", "list:50,get:40,users:10"),
+    Map.entry("connections", "64"),
+    Map.entry("seed", "3601"),
+    Map.entry("executor", RequestExecution.PLATFORM),
+    Map.entry("active",
+      Integer.toString(Runtime.getRuntime().availableProcessors() * Server.DEFAULT_ACTIVE_REQUESTS_PER_CORE)),
+    Map.entry("queued", Integer.toString(Server.DEFAULT_MAX_QUEUED_REQUESTS)),
+    Map.entry("wait", Long.toString(Server.DEFAULT_REQUEST_QUEUE_TIMEOUT_MS)));
+  private static final String[] TODO_QUERIES = {
+    "owner=Fry",
+    "category=homework&status=complete",
+    "contains=fugiat%20nulla",
+    "orderBy=body&limit=20",
+    "owner=Barry&orderBy=category&limit=50",
+    "contains=in&limit=20",
+  };
+  private static final String[] USER_QUERIES = {
+    "company=OHMNET",
+    "age=25",
+    "minAge=30&maxAge=39&limit=20",
+    "company=IBM&minAge=60",
+  };
+  // Latencies are recorded in microseconds, up to an hour, to 3 significant
+  // digits
+  private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+  private static final int SIGNIFICANT_DIGITS = 3;
+  private static final double MICROS_PER_MILLI = 1000;
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double P50 = 50;
+  private static final double P99 = 99;
+  private static final double P999 = 99.9;
+  private static final int HTTP_ERRORS = 400;
+  private static final int HTTP_UNAVAILABLE = 503;
+  // What `send` returns when there's no response at all
+  private static final int NO_RESPONSE = -1;
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+  private final Map<String, String> options;
+  private final List<String> kinds = new ArrayList<>();
+  // The cumulative weights of `kinds`, for picking one at random
+  private final List<Integer> weights = new ArrayList<>();
+  private final Map<String, Histogram> latencies = new LinkedHashMap<>();
+  private final Map<String, LongAdder> errors = new HashMap<>();
+  // The 503s, which are also counted as errors
+  private final Map<String, LongAdder> unavailable = new HashMap<>();
+  private final int todoCount;
+  private final int userCount;
+  private HttpClient client;
+  private String baseUrl;
+
+  private LoadTest(Map<String, String> options) {
+    this.options = options;
+    this.todoCount = Integer.parseInt(options.get("todos"));
+    this.userCount = Integer.parseInt(options.get("users"));
+    int total = 0;
+    for (String part : options.get("mix").split(",")) {
+      String[] kindAndWeight = part.split(":");
+      String kind = kindAndWeight[0].trim();
+      if (!kind.equals("list") && !kind.equals("get") && !kind.equals("users")) {
+        throw new IllegalArgumentException("Unknown kind of request '" + kind + "' in the mix");
+      }
+      total += kindAndWeight.length > 1 ? Integer.parseInt(kindAndWeight[1].trim()) : 1;
+      kinds.add(kind);
+      weights.add(total);
+      latencies.put(kind, new ConcurrentHistogram(MAX_LATENCY_MICROS, SIGNIFICANT_DIGITS));
+      errors.put(kind, new LongAdder());
+      unavailable.put(kind, new LongAdder());
+    }
+  }
+
+  /**
+   * Run a load test.
+   *
+   * @param args the options, each as `--name=value`
+   * @throws InterruptedException if interrupted while waiting for requests
+   */
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String> options = new HashMap<>(DEFAULTS);
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0 || !DEFAULTS.containsKey(arg.substring(2, equals))) {
+        System.err.println("Unknown option " + arg + "; the options are " + DEFAULTS.keySet());
+        System.exit(2);
+      }
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    new LoadTest(options).run();
+  }
+
+  private void run() throws InterruptedException {
+    long seed = Long.parseLong(options.get("seed"));
+    long start = System.nanoTime();
+    UserDatabase users = new UserDatabase(SyntheticData.users(userCount, seed));
+    TodoDatabase todos = new TodoDatabase(SyntheticData.todos(todoCount, seed));
+    System.out.printf("Generated %d users and %d todos in %.1f s%n", userCount, todoCount,
+      (System.nanoTime() - start) / NANOS_PER_SECOND);
+
+    RequestExecution execution = new RequestExecution(options.get("executor"),
+      Integer.parseInt(options.get("active")), Integer.parseInt(options.get("queued")),
+      Long.parseLong(options.get("wait")));
+    Javalin server = Server.startServer(0, execution, Server.userController(users),
+      Server.todoController(new TodoStore(todos)));
+    // After starting, so it says if virtual threads fell back to platform ones
+    System.out.println("Running requests on " + execution);
+    int connections = Integer.parseInt(options.get("connections"));
+    ExecutorService workers = Executors.newFixedThreadPool(connections);
+    try {
+      baseUrl = "http://localhost:" + server.port();
+      client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+      double rate = Double.parseDouble(options.get("rate"));
+
+      System.out.printf("Warming up for %s s at %.0f requests/s...%n", options.get("warmup"), rate);
+      drive(workers, connections, rate, Long.parseLong(options.get("warmup")), new Random(seed), false);
+      System.out.printf("Measuring for %s s at %.0f requests/s...%n", options.get("duration"), rate);
+      long elapsed = drive(workers, connections, rate, Long.parseLong(options.get("duration")),
+        new Random(seed + 1), true);
+      report(rate, elapsed);
+    } finally {
+      workers.shutdownNow();
+      server.stop();
+    }
+  }
+
+  /**
+   * Send requests at the given rate for the given time, and wait for them
+   * all to finish.
+   *
+   * @return how long it took, in nanoseconds
+   */
+  private long drive(ExecutorService workers, int connections, double rate, long seconds, Random random,
+    boolean record) throws InterruptedException {
+    long count = Math.round(rate * seconds);
+    double interval = NANOS_PER_SECOND / rate;
+    // Pick all the requests up front, so choosing them isn't timed
+    String[] kindOf = new String[(int) count];
+    String[] uris = new String[(int) count];
+    for (int i = 0; i < count; i++) {
+      kindOf[i] = pickKind(random);
+      uris[i] = pickUri(kindOf[i], random);
+    }
+
+    long start = System.nanoTime();
+    AtomicLong next = new AtomicLong();
+    List<Future<?>> running = new ArrayList<>();
+    for (int c = 0; c < connections; c++) {
+      running.add(workers.submit(() -> {
+        for (long i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+          long due = start + (long) (i * interval);
+          long wait = due - System.nanoTime();
+          if (wait > 0) {
+            LockSupport.parkNanos(wait);
+          }
+          int status = send(uris[(int) i]);
+          long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due);
+          if (record) {
+            latencies.get(kindOf[(int) i]).recordValue(Math.min(latency, MAX_LATENCY_MICROS));
+            if (status == NO_RESPONSE || status >= HTTP_ERRORS) {
+              errors.get(kindOf[(int) i]).increment();
+            }
+            if (status == HTTP_UNAVAILABLE) {
+              unavailable.get(kindOf[(int) i]).increment();
+            }
+          }
+        }
+      }));
+    }
+    for (Future<?> worker : running) {
+      try {
+        worker.get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("A load test worker failed", e.getCause());
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Send a request and wait for the response.
+   *
+   * @return the response's status code, or `NO_RESPONSE` if the request
+   *         failed (e.g., the connection was closed)
+   */
+  private int send(String uri) {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + uri)).timeout(REQUEST_TIMEOUT).GET().build();
+    try {
+      return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    } catch (IOException e) {
+      return NO_RESPONSE;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return NO_RESPONSE;
+    }
+  }
+
+  private String pickKind(Random random) {
+    int total = weights.get(weights.size() - 1);
+    int pick = random.nextInt(total);
+    for (int i = 0; i < kinds.size(); i++) {
+      if (pick < weights.get(i)) {
+        return kinds.get(i);
+      }
+    }
+    return kinds.get(kinds.size() - 1);
+  }
+
+  private String pickUri(String kind, Random random) {
+    switch (kind) {
+      case "list":
+        return "/api/todos?" + TODO_QUERIES[random.nextInt(TODO_QUERIES.length)];
+      case "get":
+        return "/api/todos/" + SyntheticData.id(random.nextInt(todoCount));
+      default:
+        return "/api/users?" + USER_QUERIES[random.nextInt(USER_QUERIES.length)];
+    }
+  }
+
+  private void report(double rate, long elapsed) {
+    Histogram all = new Histogram(MAX_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+    long failed = 0;
+    long rejected = 0;
+    System.out.printf("%n%-8s %10s %8s %8s %10s %10s %10s %10s%n", "", "requests", "errors", "503s", "p50 ms",
+      "p99 ms", "p99.9 ms", "max ms");
+    for (Map.Entry<String, Histogram> entry : latencies.entrySet()) {
+      printRow(entry.getKey(), entry.getValue(), errors.get(entry.getKey()).sum(),
+        unavailable.get(entry.getKey()).sum());
+      all.add(entry.getValue());
+      failed += errors.get(entry.getKey()).sum();
+      rejected += unavailable.get(entry.getKey()).sum();
+    }
+    printRow("all", all, failed, rejected);
+    System.out.printf("%nTarget %.0f requests/s, achieved %.0f requests/s%n", rate,
+      all.getTotalCount() / (elapsed / NANOS_PER_SECOND));
+  }
+
+  private static void printRow(String name, Histogram histogram, long failed, long rejected) {
+    System.out.printf("%-8s %10d %8d %8d %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getTotalCount(), failed,
+      rejected,
+      histogram.getValueAtPercentile(P50) / MICROS_PER_MILLI, histogram.getValueAtPercentile(P99) / MICROS_PER_MILLI,
+      histogram.getValueAtPercentile(P999) / MICROS_PER_MILLI, histogram.getMaxValue() / MICROS_PER_MILLI);
+  }
+}
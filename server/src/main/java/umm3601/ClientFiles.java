@@ -0,0 +1,312 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import io.javalin.Javalin;
+import io.javalin.compression.LeveledGzipStream;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+
+/**
+ * The client's static files, prepared once at startup so that serving them
+ * takes no work beyond copying a file, and browsers ask for them as little
+ * as possible.
+ * <p>
+ * The scripts, stylesheets and other files the pages use get a hash of
+ * their contents in their names (e.g., `/javascript/todos.1a2b3c4d5e.js`),
+ * and the pages are rewritten to use those names. A file with a hashed name
+ * never changes, so browsers can keep it for good (`immutable`). The pages
+ * keep their names, so browsers check back for them each time (`no-cache`),
+ * which costs just a 304 if they haven't changed; a changed script reaches
+ * browsers through the page's new name for it.
+ * <p>
+ * Each file is also written compressed next to the original, as `.gz` and
+ * (when the server has brotli) `.br`, unless that doesn't make it smaller,
+ * and requests get the smallest one they accept. Each of those encodings is
+ * different bytes, so each has its own strong ETag.
+ */
+public final class ClientFiles {
+  private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+  private static final String REVALIDATE = "no-cache";
+  private static final String PAGE_EXTENSION = ".html";
+  private static final String INDEX_PAGE = "/index.html";
+  private static final int HASH_HEX_DIGITS = 10;
+  private static final int GZIP_LEVEL = 9;
+  private static final int BROTLI_LEVEL = 11;
+  private static final String GZIP = "gzip";
+  private static final String BROTLI = "br";
+  private static final String BROTLI_STREAM_CLASS = "io.javalin.compression.LeveledBrotliStream";
+
+  // Each file by the path it's served at
+  private final Map<String, ClientFile> files;
+
+  private ClientFiles(Map<String, ClientFile> files) {
+    this.files = files;
+  }
+
+  /**
+   * Write the prepared copy of the client's files, replacing whatever was
+   * there before.
+   *
+   * @param source the client's files
+   * @param target where to write the prepared copy
+   * @param brotli whether to write brotli copies as well as gzip ones,
+   *               which needs the jvm-brotli library
+   * @return the prepared files, ready to add to a server
+   * @throws IOException if the files can't be read or written
+   */
+  public static ClientFiles prepare(Path source, Path target, boolean brotli) throws IOException {
+    List<String> paths;
+    try (Stream<Path> walk = Files.walk(source)) {
+      paths = walk.filter(Files::isRegularFile)
+        .map(file -> "/" + source.relativize(file).toString().replace('\\', '/'))
+        .sorted()
+        .collect(Collectors.toList());
+    }
+    deleteRecursively(target);
+
+    // Everything but the pages first, so the pages can use their new names
+    Map<String, String> renamed = new LinkedHashMap<>();
+    Map<String, byte[]> contents = new LinkedHashMap<>();
+    for (String path : paths) {
+      if (!path.endsWith(PAGE_EXTENSION)) {
+        byte[] bytes = Files.readAllBytes(source.resolve(path.substring(1)));
+        renamed.put(path, withHash(path, bytes));
+        contents.put(path, bytes);
+      }
+    }
+    for (String path : paths) {
+      if (path.endsWith(PAGE_EXTENSION)) {
+        String page = Files.readString(source.resolve(path.substring(1)));
+        for (Map.Entry<String, String> entry : renamed.entrySet()) {
+          page = page.replace("\"" + entry.getKey() + "\"", "\"" + entry.getValue() + "\"");
+        }
+        renamed.put(path, path);
+        contents.put(path, page.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+    Map<String, ClientFile> files = new LinkedHashMap<>();
+    for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      String path = renamed.get(entry.getKey());
+      ClientFile file = write(target.resolve(path.substring(1)), path, entry.getValue(), brotli);
+      files.put(path, file);
+      if (path.equals(INDEX_PAGE)) {
+        files.put("/", file);
+      }
+    }
+    return new ClientFiles(files);
+  }
+
+  private static void deleteRecursively(Path directory) throws IOException {
+    if (!Files.exists(directory)) {
+      return;
+    }
+    List<Path> paths;
+    try (Stream<Path> walk = Files.walk(directory)) {
+      paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+    }
+    for (Path path : paths) {
+      Files.delete(path);
+    }
+  }
+
+  /**
+   * Put a hash of a file's contents in its name, before the extension.
+   */
+  private static String withHash(String path, byte[] bytes) {
+    String hash = hex(sha256(bytes)).substring(0, HASH_HEX_DIGITS);
+    int slash = path.lastIndexOf('/');
+    int dot = path.lastIndexOf('.');
+    return dot > slash ? path.substring(0, dot) + "." + hash + path.substring(dot) : path + "." + hash;
+  }
+
+  /**
+   * Write a file and its compressed copies.
+   */
+  private static ClientFile write(Path file, String path, byte[] bytes, boolean brotli) throws IOException {
+    Files.createDirectories(file.getParent());
+    Files.write(file, bytes);
+    String hash = hex(sha256(bytes)).substring(0, HASH_HEX_DIGITS);
+
+    // In order of preference: the smallest first
+    List<Variant> variants = new ArrayList<>();
+    if (brotli) {
+      addCompressed(variants, file, BROTLI, ".br", bytes, hash);
+    }
+    addCompressed(variants, file, GZIP, ".gz", bytes, hash);
+    variants.add(new Variant(null, file, "\"" + hash + "\""));
+
+    String extension = path.substring(path.lastIndexOf('.') + 1);
+    String contentType = ContentType.Companion.getMimeTypeByExtension(extension);
+    return new ClientFile(contentType == null ? ContentType.OCTET_STREAM : contentType,
+      path.endsWith(PAGE_EXTENSION) ? REVALIDATE : IMMUTABLE, variants);
+  }
+
+  private static void addCompressed(List<Variant> variants, Path file, String encoding, String suffix, byte[] bytes,
+    String hash) throws IOException {
+    Path compressed = file.resolveSibling(file.getFileName() + suffix);
+    try (OutputStream output = Files.newOutputStream(compressed);
+      OutputStream compressing = BROTLI.equals(encoding)
+        ? brotliStream(output) : new LeveledGzipStream(output, GZIP_LEVEL)) {
+      compressing.write(bytes);
+    }
+    if (Files.size(compressed) < bytes.length) {
+      variants.add(new Variant(encoding, compressed, "\"" + hash + "-" + encoding + "\""));
+    } else {
+      // Not worth it; the original is sent instead
+      Files.delete(compressed);
+    }
+  }
+
+  /**
+   * Make Javalin's brotli stream, which is found by reflection since it
+   * needs the jvm-brotli library (which the server only has sometimes) to
+   * even be compiled against.
+   */
+  private static OutputStream brotliStream(OutputStream output) throws IOException {
+    try {
+      return (OutputStream) Class.forName(BROTLI_STREAM_CLASS).getConstructor(OutputStream.class, int.class)
+        .newInstance(output, BROTLI_LEVEL);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      throw new IOException("Couldn't make a brotli stream", e);
+    }
+  }
+
+  private static byte[] sha256(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      // Every JDK has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * The paths the files are served at: each page at its own path (and the
+   * index page at "/" too), and everything else at its hashed path.
+   *
+   * @return the paths
+   */
+  public Set<String> paths() {
+    return Collections.unmodifiableSet(files.keySet());
+  }
+
+  /**
+   * Add a route to a server for each of the files.
+   *
+   * @param server the server
+   */
+  public void addRoutes(Javalin server) {
+    files.forEach((path, file) -> server.get(path, ctx -> serve(ctx, file)));
+  }
+
+  private static void serve(Context ctx, ClientFile file) throws IOException {
+    Variant variant = file.variantFor(ctx.header(Header.ACCEPT_ENCODING));
+    ctx.header(Header.CACHE_CONTROL, file.cacheControl);
+    ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+    if (ETags.notModified(ctx, variant.etag)) {
+      return;
+    }
+    ctx.header(Header.ETAG, variant.etag);
+    // Javalin leaves responses that already have an encoding alone
+    if (variant.encoding != null) {
+      ctx.header(Header.CONTENT_ENCODING, variant.encoding);
+    }
+    ctx.contentType(file.contentType);
+    ctx.result(Files.newInputStream(variant.path));
+  }
+
+  /**
+   * Whether an `Accept-Encoding` header accepts an encoding (ignoring
+   * preferences, apart from a q of 0 ruling it out).
+   *
+   * @param acceptEncoding the header, which may be null
+   * @param encoding       the encoding
+   * @return true if it's accepted
+   */
+  static boolean accepts(String acceptEncoding, String encoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if (name.equalsIgnoreCase(encoding) || name.equals("*")) {
+        for (int i = 1; i < parts.length; i++) {
+          String parameter = parts[i].trim();
+          if (parameter.startsWith("q=") && Double.parseDouble(parameter.substring(2)) == 0) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A prepared file, with its encodings.
+   */
+  private static final class ClientFile {
+    private final String contentType;
+    private final String cacheControl;
+    private final List<Variant> variants;
+
+    ClientFile(String contentType, String cacheControl, List<Variant> variants) {
+      this.contentType = contentType;
+      this.cacheControl = cacheControl;
+      this.variants = variants;
+    }
+
+    Variant variantFor(String acceptEncoding) {
+      // The last variant isn't encoded, so every client accepts it
+      int last = variants.size() - 1;
+      for (Variant variant : variants.subList(0, last)) {
+        if (accepts(acceptEncoding, variant.encoding)) {
+          return variant;
+        }
+      }
+      return variants.get(last);
+    }
+  }
+
+  /**
+   * One encoding of a file, and where it was written.
+   */
+  private static final class Variant {
+    private final String encoding;
+    private final Path path;
+    private final String etag;
+
+    Variant(String encoding, Path path, String etag) {
+      this.encoding = encoding;
+      this.path = path;
+      this.etag = etag;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package umm3601;
+
+/**
+ * How a controller answers requests for its records, beyond the records
+ * themselves. The defaults are the simplest way: lists are collected and
+ * serialized all at once, nothing is cached, and single records are
+ * serialized for every request.
+ *
+ * @param <T> the type of the records
+ */
+public final class ControllerOptions<T> {
+  private boolean streaming;
+  private QueryCache<T> cache;
+  private boolean preserialized;
+
+  /**
+   * Stream lists of records to the response as they're found, instead of
+   * collecting and serializing them all at once.
+   *
+   * @param enabled whether to stream lists of records
+   * @return these options
+   */
+  public ControllerOptions<T> withStreaming(boolean enabled) {
+    streaming = enabled;
+    return this;
+  }
+
+  /**
+   * Cache the results of listing records.
+   *
+   * @param queryCache the cache for lists of records, or null to not cache
+   *                   them
+   * @return these options
+   */
+  public ControllerOptions<T> withCache(QueryCache<T> queryCache) {
+    cache = queryCache;
+    return this;
+  }
+
+  /**
+   * Send single records as JSON kept by the database (serialized the first
+   * time each is asked for) instead of serializing them for every request.
+   *
+   * @param enabled whether to send preserialized records
+   * @return these options
+   */
+  public ControllerOptions<T> withPreserialized(boolean enabled) {
+    preserialized = enabled;
+    return this;
+  }
+
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  /** The cache for lists of records, or null if they aren't cached. */
+  public QueryCache<T> getCache() {
+    return cache;
+  }
+
+  public boolean isPreserialized() {
+    return preserialized;
+  }
+}
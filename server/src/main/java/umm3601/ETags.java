@@ -0,0 +1,161 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BooleanSupplier;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Entity tags for API responses, so clients that poll the same URL can be
+ * told nothing has changed (with an empty 304 response) instead of being
+ * sent the same body again.
+ * <p>
+ * A response only depends on the version of the data and on what was asked
+ * for, so its tag is computed from just those. That means the tag is known
+ * before running the query, and a request whose `If-None-Match` matches it
+ * can be answered without running the query or serializing anything.
+ * <p>
+ * The tags are weak: the same tag stands for the response however it's
+ * encoded (gzip, brotli or not at all), which is only the same
+ * representation in meaning, not byte for byte. Caches tell the encodings
+ * apart by the `Vary: Accept-Encoding` the server adds to API responses.
+ */
+public final class ETags {
+  private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+  private static final long FNV_PRIME = 0x100000001B3L;
+  private static final int BYTE_MASK = 0xFF;
+  private static final String WEAK_PREFIX = "W/";
+
+  private ETags() {
+  }
+
+  /**
+   * Get the tag for a list of records from a query.
+   *
+   * @param dataVersion the version of the data the query runs against
+   * @param queryParams the query parameters
+   * @return the (weak) tag, including its quotes
+   */
+  public static String forQuery(long dataVersion, Map<String, List<String>> queryParams) {
+    // Sort the parameters so their order doesn't matter, and hash the
+    // length of everything along with it so different queries can't run
+    // together into the same bytes
+    long hash = FNV_OFFSET_BASIS;
+    for (Map.Entry<String, List<String>> param : new TreeMap<>(queryParams).entrySet()) {
+      hash = hash(hash, param.getKey());
+      hash = hash(hash, Integer.toString(param.getValue().size()));
+      for (String value : param.getValue()) {
+        hash = hash(hash, value);
+      }
+    }
+    return tag(dataVersion, hash);
+  }
+
+  /**
+   * Get the tag for a single record.
+   *
+   * @param dataVersion the version of the data the record comes from
+   * @param id          the ID of the record
+   * @return the (weak) tag, including its quotes
+   */
+  public static String forRecord(long dataVersion, String id) {
+    return tag(dataVersion, hash(FNV_OFFSET_BASIS, id));
+  }
+
+  private static String tag(long dataVersion, long hash) {
+    return WEAK_PREFIX + "\"" + Long.toHexString(dataVersion) + "-" + Long.toHexString(hash) + "\"";
+  }
+
+  /**
+   * Add the length and UTF-8 bytes of a string to a 64-bit FNV-1a hash.
+   */
+  private static long hash(long hash, String value) {
+    byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    hash = (hash ^ bytes.length) * FNV_PRIME;
+    for (byte b : bytes) {
+      hash = (hash ^ (b & BYTE_MASK)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * If the request's `If-None-Match` says the client already has the
+   * response with the given tag, respond with 304 Not Modified. Otherwise
+   * the caller should respond as usual, setting the `ETag` header if it
+   * succeeds.
+   *
+   * @param ctx  a Javalin HTTP context
+   * @param etag the tag of the response
+   * @return true if the response is a 304, so there's nothing more to do
+   */
+  public static boolean notModified(Context ctx, String etag) {
+    return notModified(ctx, etag, () -> true);
+  }
+
+  /**
+   * Respond with 304 Not Modified as `notModified(ctx, etag)` does, for a
+   * resource that may not exist, like a single record. `If-None-Match: *`
+   * matches any version of the resource, but only if there is one, so it
+   * only counts once `exists` says so; a missing record is still a 404.
+   * A listed tag is only ever handed out for a record that exists (in that
+   * version of the data), so it doesn't need the lookup.
+   *
+   * @param ctx    a Javalin HTTP context
+   * @param etag   the tag of the response
+   * @param exists whether the resource exists, only asked for `*`
+   * @return true if the response is a 304, so there's nothing more to do
+   */
+  public static boolean notModified(Context ctx, String etag, BooleanSupplier exists) {
+    String ifNoneMatch = ctx.header(Header.IF_NONE_MATCH);
+    if (matches(ifNoneMatch, etag) || matchesAny(ifNoneMatch) && exists.getAsBoolean()) {
+      ctx.header(Header.ETAG, etag);
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Whether an `If-None-Match` header matches the given tag. As the HTTP
+   * spec requires for `If-None-Match`, this ignores whether tags are weak.
+   *
+   * @param ifNoneMatch the header, which may be null
+   * @param etag        the tag to look for
+   * @return true if the header lists the tag
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    String opaqueTag = opaque(etag);
+    for (String candidate : ifNoneMatch.split(",")) {
+      if (opaque(candidate.trim()).equals(opaqueTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the quoted part of a tag, without the prefix that makes it weak.
+   */
+  private static String opaque(String etag) {
+    return etag.startsWith(WEAK_PREFIX) ? etag.substring(WEAK_PREFIX.length()) : etag;
+  }
+
+  /**
+   * Whether an `If-None-Match` header is `*`, which matches any version of
+   * the resource.
+   *
+   * @param ifNoneMatch the header, which may be null
+   * @return true if the header is `*`
+   */
+  static boolean matchesAny(String ifNoneMatch) {
+    return ifNoneMatch != null && ifNoneMatch.trim().equals("*");
+  }
+}
@@ -0,0 +1,281 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Loads a (potentially very large) JSON array of records, parsing it in
+ * parallel.
+ * <p>
+ * The input is read as a stream, and a light-weight scanner splits it into
+ * chunks of whole array elements as it goes. Each chunk is handed to a pool
+ * of threads that parse them with Jackson while the scanner keeps reading, so
+ * parsing is spread across all the cores and only a bounded number of chunks
+ * are held in memory at once. The records come back in their original order.
+ *
+ * @param <T> the type of the records in the array
+ */
+public final class JsonArrayLoader<T> {
+  private static final Logger LOGGER = LoggerFactory.getLogger(JsonArrayLoader.class);
+
+  private static final int DEFAULT_CHUNK_BYTES = 1_048_576;
+  private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 2;
+  private static final int BUFFER_BYTES = 65_536;
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double BYTES_PER_MEGABYTE = 1_048_576;
+
+  private final Class<T> type;
+  private final ObjectReader reader;
+  private final int chunkBytes;
+  private final int threads;
+
+  /**
+   * Make a loader for arrays of the given type, using one thread per core.
+   *
+   * @param type the type of the records in the array
+   */
+  public JsonArrayLoader(Class<T> type) {
+    this(type, DEFAULT_CHUNK_BYTES, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Make a loader for arrays of the given type.
+   *
+   * @param type       the type of the records in the array
+   * @param chunkBytes roughly how many bytes of JSON to parse in each chunk
+   * @param threads    how many threads to parse chunks with
+   */
+  public JsonArrayLoader(Class<T> type, int chunkBytes, int threads) {
+    this.type = type;
+    this.reader = new ObjectMapper().readerFor(arrayType(type));
+    this.chunkBytes = chunkBytes;
+    this.threads = threads;
+  }
+
+  private static Class<?> arrayType(Class<?> type) {
+    return Array.newInstance(type, 0).getClass();
+  }
+
+  /**
+   * Load all the records in the JSON array read from the given stream. The
+   * stream is closed afterwards.
+   *
+   * @param input       the stream to read the JSON array from
+   * @param description what's being loaded (e.g., the file name), for the log
+   * @return the records, in the order they appear in the array
+   * @throws IOException if the stream can't be read or isn't a JSON array
+   */
+  public T[] load(InputStream input, String description) throws IOException {
+    long startTime = System.nanoTime();
+    CountingInputStream counted = new CountingInputStream(input);
+    T[] result;
+    try (counted) {
+      if (threads == 1) {
+        // With only one thread, splitting the input up is pure overhead
+        result = reader.readValue(counted);
+      } else {
+        result = loadInParallel(new Chunker(counted), description);
+      }
+    }
+
+    double seconds = (System.nanoTime() - startTime) / NANOS_PER_SECOND;
+    double megabytes = counted.count / BYTES_PER_MEGABYTE;
+    LOGGER.info(String.format("Loaded %d records (%.1f MB) from %s in %.3f s: %.1f MB/s, %.0f records/s",
+      result.length, megabytes, description, seconds, megabytes / seconds, result.length / seconds));
+    return result;
+  }
+
+  private T[] loadInParallel(Chunker chunker, String description) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    Semaphore inFlight = new Semaphore(threads * CHUNKS_IN_FLIGHT_PER_THREAD);
+    List<Future<T[]>> chunks = new ArrayList<>();
+    try {
+      byte[] chunk;
+      while ((chunk = chunker.nextChunk()) != null) {
+        byte[] json = chunk;
+        inFlight.acquire();
+        chunks.add(pool.submit(() -> {
+          try {
+            return reader.<T[]>readValue(json);
+          } finally {
+            inFlight.release();
+          }
+        }));
+      }
+
+      List<T> records = new ArrayList<>();
+      for (Future<T[]> future : chunks) {
+        for (T record : future.get()) {
+          records.add(record);
+        }
+      }
+      @SuppressWarnings("unchecked")
+      T[] result = records.toArray((T[]) Array.newInstance(type, records.size()));
+      return result;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading " + description, e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to parse " + description, e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Keeps track of how many bytes have been read, for the log.
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream(InputStream input) {
+      super(input);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      int read = super.read(bytes, offset, length);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+  }
+
+  /**
+   * Splits a JSON array into chunks, each of which is itself a JSON array
+   * holding some of the original elements. It only tracks nesting depth and
+   * whether it's inside a string, which is all it takes to find the commas
+   * between the top-level elements.
+   */
+  private final class Chunker {
+    private final InputStream input;
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    private int position;
+    private int limit;
+    private boolean started;
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    private boolean finished;
+
+    Chunker(InputStream input) {
+      this.input = input;
+    }
+
+    /**
+     * Read more input into the buffer.
+     *
+     * @return false if there's no more input
+     */
+    private boolean fill() throws IOException {
+      int count = input.read(buffer);
+      if (count < 0) {
+        return false;
+      }
+      position = 0;
+      limit = count;
+      return true;
+    }
+
+    /**
+     * Get the next chunk, or null if the whole array has been read.
+     */
+    byte[] nextChunk() throws IOException {
+      if (finished) {
+        return null;
+      }
+      if (!started) {
+        started = true;
+        if (!skipToArrayStart()) {
+          throw new IOException("Expected a JSON array");
+        }
+      }
+
+      ByteArrayOutputStream chunk = new ByteArrayOutputStream(chunkBytes + BUFFER_BYTES);
+      chunk.write('[');
+      while (position < limit || fill()) {
+        // Scan as far as we can through the buffer, and then copy
+        // everything we scanned over into the chunk in one go
+        int runStart = position;
+        while (position < limit) {
+          byte b = buffer[position];
+          if (inString) {
+            if (escaped) {
+              escaped = false;
+            } else if (b == '\\') {
+              escaped = true;
+            } else if (b == '"') {
+              inString = false;
+            }
+          } else if (b == '"') {
+            inString = true;
+          } else if (b == '{' || b == '[') {
+            depth++;
+          } else if (b == '}' || b == ']') {
+            depth--;
+            if (depth == 0) {
+              // That's the end of the whole array
+              chunk.write(buffer, runStart, position - runStart);
+              position++;
+              finished = true;
+              chunk.write(']');
+              return chunk.toByteArray();
+            }
+          } else if (b == ',' && depth == 1 && chunk.size() + position - runStart >= chunkBytes) {
+            // A comma between two elements, and this chunk is big enough,
+            // so end the chunk here and leave out the comma
+            chunk.write(buffer, runStart, position - runStart);
+            position++;
+            chunk.write(']');
+            return chunk.toByteArray();
+          }
+          position++;
+        }
+        chunk.write(buffer, runStart, position - runStart);
+      }
+      throw new IOException("Unexpected end of input inside the JSON array");
+    }
+
+    /**
+     * Skip any whitespace before the opening `[` of the array.
+     *
+     * @return true if the input starts with an array
+     */
+    private boolean skipToArrayStart() throws IOException {
+      while (position < limit || fill()) {
+        byte b = buffer[position++];
+        if (!Character.isWhitespace(b)) {
+          depth = 1;
+          return b == '[';
+        }
+      }
+      return false;
+    }
+  }
+}
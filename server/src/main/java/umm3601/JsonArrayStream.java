@@ -0,0 +1,111 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+
+/**
+ * Writes a JSON array straight to the response output stream one element at
+ * a time, so a large response never has to be built up in memory first.
+ * <p>
+ * Pass this to one of the databases' `forEach...` methods and then call
+ * `finish()`. Nothing is written to the response until the first element (or
+ * `finish()`), so if the query is rejected before any results are produced
+ * the usual error response can still be sent.
+ *
+ * @param <T> the type of the elements of the array
+ */
+public final class JsonArrayStream<T> implements Consumer<T> {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final Context ctx;
+  private final ObjectWriter writer;
+  // Headers to set once we know the response isn't going to be an error
+  private final Map<String, String> headers = new LinkedHashMap<>();
+  private JsonGenerator generator;
+  private long count;
+
+  /**
+   * Prepare to stream an array of the given type as the response to `ctx`.
+   *
+   * @param ctx  a Javalin HTTP context
+   * @param type the type of the elements of the array
+   */
+  public JsonArrayStream(Context ctx, Class<T> type) {
+    this.ctx = ctx;
+    // By default Jackson flushes after every value, which would turn each
+    // element into its own tiny write to the network
+    this.writer = OBJECT_MAPPER.writerFor(type).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+  }
+
+  /**
+   * Set a header on the response when the array starts being written,
+   * rather than now, so it isn't sent if the query fails first.
+   *
+   * @param name  the name of the header
+   * @param value its value
+   * @return this stream
+   */
+  public JsonArrayStream<T> withHeader(String name, String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  private void start() throws IOException {
+    if (generator == null) {
+      ctx.contentType(ContentType.APPLICATION_JSON);
+      headers.forEach(ctx::header);
+      generator = OBJECT_MAPPER.getFactory().createGenerator(ctx.outputStream());
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      generator.writeStartArray();
+    }
+  }
+
+  /**
+   * Write the next element of the array.
+   *
+   * @param element the element to write
+   */
+  @Override
+  public void accept(T element) {
+    try {
+      start();
+      writer.writeValue(generator, element);
+      count++;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Get how many elements have been written so far.
+   *
+   * @return the number of elements
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Close the array and flush everything that's left to the response.
+   */
+  public void finish() {
+    try {
+      start();
+      generator.writeEndArray();
+      generator.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
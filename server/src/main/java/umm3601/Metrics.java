@@ -0,0 +1,310 @@
+package umm3601;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counts the server's requests, and how long they took and how big their
+ * responses were, per route, and reports them (along with gauges for the
+ * data and the JVM) in the Prometheus text format.
+ * <p>
+ * Recording a request only reads a concurrent map and bumps `LongAdder`s,
+ * so threads handling requests at the same time hardly ever contend.
+ * Everything is added up when the metrics are scraped instead.
+ * <p>
+ * For the routes whose query parameters are tracked, each request also
+ * counts towards its "shape": the sorted names of the known parameters it
+ * used (e.g., `limit,owner`), regardless of their values. This shows which
+ * kinds of query are worth indexing or caching, without a label for every
+ * value a client ever sent.
+ */
+public final class Metrics {
+  /** The content type of `render`'s output. */
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  // The upper bounds of the latency histograms' buckets, in seconds
+  static final double[] LATENCY_BUCKETS = {
+    0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+  };
+  // The upper bounds of the response size histograms' buckets, in bytes
+  static final double[] SIZE_BUCKETS = {
+    100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000, 100_000_000
+  };
+  private static final double MILLIS_PER_SECOND = 1000;
+  private static final String NO_PARAMETERS = "none";
+
+  // Keyed on the method and route, e.g., "GET /api/todos/{id}"
+  private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+  // The known query parameters of each tracked route, by method and route
+  private final Map<String, Set<String>> queryParameters = new ConcurrentHashMap<>();
+  // Keyed on the metric name, in the order they were first registered
+  private final Map<String, Family> families = new ConcurrentHashMap<>();
+  private final List<String> familyOrder = new ArrayList<>();
+
+  /**
+   * Make a set of metrics with only the JVM gauges registered.
+   */
+  public Metrics() {
+    gauge("jvm_memory_heap_used_bytes", "", "Heap memory in use",
+      () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    gauge("jvm_memory_heap_committed_bytes", "", "Heap memory committed by the JVM",
+      () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted());
+    gauge("jvm_memory_heap_max_bytes", "", "The most heap memory the JVM will use, or -1 if there's no limit",
+      () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax());
+    gauge("jvm_memory_nonheap_used_bytes", "", "Non-heap memory (e.g., metaspace and code cache) in use",
+      () -> ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage().getUsed());
+    gauge("jvm_threads_live", "", "Live threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      String labels = label("gc", collector.getName());
+      counter("jvm_gc_collections_total", labels, "Garbage collections", collector::getCollectionCount);
+      counter("jvm_gc_collection_seconds_total", labels, "Time spent in garbage collections",
+        () -> collector.getCollectionTime() / MILLIS_PER_SECOND);
+    }
+  }
+
+  /**
+   * Register a gauge, whose value is read whenever the metrics are scraped.
+   *
+   * @param name   the metric's name
+   * @param labels the labels telling this gauge apart from the others with
+   *               the same name, e.g., from `label`, or "" for none
+   * @param help   what the metric measures
+   * @param value  how to get the current value
+   */
+  public void gauge(String name, String labels, String help, DoubleSupplier value) {
+    register(name, "gauge", labels, help, value);
+  }
+
+  /**
+   * Register a counter that's kept somewhere else (e.g., a cache's hits),
+   * whose value is read whenever the metrics are scraped.
+   *
+   * @param name   the metric's name, which should end in `_total`
+   * @param labels the labels telling this counter apart from the others with
+   *               the same name, e.g., from `label`, or "" for none
+   * @param help   what the metric counts
+   * @param value  how to get the current count
+   */
+  public void counter(String name, String labels, String help, DoubleSupplier value) {
+    register(name, "counter", labels, help, value);
+  }
+
+  private synchronized void register(String name, String type, String labels, String help, DoubleSupplier value) {
+    Family family = families.get(name);
+    if (family == null) {
+      family = new Family(type, help);
+      families.put(name, family);
+      familyOrder.add(name);
+    }
+    // Registering the same labels again replaces the old value, e.g., when
+    // a controller is rebuilt
+    family.values.put(labels, value);
+  }
+
+  /**
+   * Count the shapes of the queries made to a route; see the class comment.
+   *
+   * @param method     the HTTP method, e.g., "GET"
+   * @param route      the route, as it was registered
+   * @param parameters the names of the query parameters the route knows
+   *                   about; any others are left out of the shapes
+   */
+  public void trackQueryShapes(String method, String route, Set<String> parameters) {
+    queryParameters.put(method + " " + route, Set.copyOf(parameters));
+  }
+
+  /**
+   * Record a request that has been handled.
+   *
+   * @param method        the HTTP method, e.g., "GET"
+   * @param route         the route that handled it, as it was registered
+   *                      (not the path, which could be anything)
+   * @param queryParams   the names of the query parameters it had
+   * @param status        the status code of the response
+   * @param millis        how long it took to handle, in milliseconds
+   * @param responseBytes how big the response was, or -1 if that's not known
+   */
+  public void recordRequest(String method, String route, Collection<String> queryParams, int status,
+    double millis, long responseBytes) {
+    String key = method + " " + route;
+    RouteMetrics metrics = routes.get(key);
+    if (metrics == null) {
+      metrics = routes.computeIfAbsent(key, k -> new RouteMetrics(method, route));
+    }
+    metrics.statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+    metrics.latency.record(millis / MILLIS_PER_SECOND);
+    if (responseBytes >= 0) {
+      metrics.size.record(responseBytes);
+    }
+    Set<String> known = queryParameters.get(key);
+    if (known != null) {
+      metrics.shapes.computeIfAbsent(shape(queryParams, known), s -> new LongAdder()).increment();
+    }
+  }
+
+  private static String shape(Collection<String> queryParams, Set<String> known) {
+    Set<String> used = new TreeSet<>();
+    for (String name : queryParams) {
+      if (known.contains(name)) {
+        used.add(name);
+      }
+    }
+    return used.isEmpty() ? NO_PARAMETERS : String.join(",", used);
+  }
+
+  /**
+   * Make a label to pass to `gauge` or `counter`.
+   *
+   * @param name  the label's name
+   * @param value the label's value
+   * @return the label, e.g., `dataset="todos"`
+   */
+  public static String label(String name, String value) {
+    return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+  }
+
+  /**
+   * Write out all the metrics in the Prometheus text format.
+   *
+   * @return the metrics
+   */
+  public String render() {
+    StringBuilder out = new StringBuilder();
+    List<RouteMetrics> sorted = new ArrayList<>(routes.values());
+    sorted.sort((a, b) -> a.labels.compareTo(b.labels));
+
+    header(out, "http_requests_total", "counter", "Requests handled, by route and status");
+    for (RouteMetrics route : sorted) {
+      new TreeMap<>(route.statuses).forEach((status, count) -> sample(out, "http_requests_total",
+        route.labels + "," + label("status", Integer.toString(status)), count.sum()));
+    }
+    header(out, "http_request_duration_seconds", "histogram", "How long requests took to handle, by route");
+    for (RouteMetrics route : sorted) {
+      route.latency.render(out, "http_request_duration_seconds", route.labels);
+    }
+    header(out, "http_response_size_bytes", "histogram", "How big the responses were, by route");
+    for (RouteMetrics route : sorted) {
+      route.size.render(out, "http_response_size_bytes", route.labels);
+    }
+    header(out, "http_query_shapes_total", "counter",
+      "Requests by the query parameters they used (ignoring their values), by route");
+    for (RouteMetrics route : sorted) {
+      new TreeMap<>(route.shapes).forEach((shape, count) -> sample(out, "http_query_shapes_total",
+        route.labels + "," + label("parameters", shape), count.sum()));
+    }
+
+    List<String> names;
+    synchronized (this) {
+      names = new ArrayList<>(familyOrder);
+    }
+    for (String name : names) {
+      Family family = families.get(name);
+      header(out, name, family.type, family.help);
+      family.values.forEach((labels, value) -> sample(out, name, labels, value.getAsDouble()));
+    }
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, double value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(format(value)).append('\n');
+  }
+
+  private static String format(double value) {
+    if (value == Double.POSITIVE_INFINITY) {
+      return "+Inf";
+    }
+    return value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE
+      ? Long.toString((long) value)
+      : Double.toString(value);
+  }
+
+  /**
+   * The metrics for one method and route.
+   */
+  private static final class RouteMetrics {
+    private final String labels;
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final Histogram latency = new Histogram(LATENCY_BUCKETS);
+    private final Histogram size = new Histogram(SIZE_BUCKETS);
+    private final Map<String, LongAdder> shapes = new ConcurrentHashMap<>();
+
+    RouteMetrics(String method, String route) {
+      this.labels = label("method", method) + "," + label("route", route);
+    }
+  }
+
+  /**
+   * A histogram with fixed buckets, each counted by its own `LongAdder`.
+   */
+  static final class Histogram {
+    private final double[] bounds;
+    // One more than the bounds, for the values above the last one
+    private final LongAdder[] counts;
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram(double[] bounds) {
+      this.bounds = bounds;
+      this.counts = new LongAdder[bounds.length + 1];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = new LongAdder();
+      }
+    }
+
+    void record(double value) {
+      int bucket = 0;
+      while (bucket < bounds.length && value > bounds[bucket]) {
+        bucket++;
+      }
+      counts[bucket].increment();
+      sum.add(value);
+    }
+
+    void render(StringBuilder out, String name, String labels) {
+      // Prometheus buckets are cumulative
+      long cumulative = 0;
+      for (int i = 0; i < counts.length; i++) {
+        cumulative += counts[i].sum();
+        double bound = i < bounds.length ? bounds[i] : Double.POSITIVE_INFINITY;
+        sample(out, name + "_bucket", labels + "," + label("le", format(bound)), cumulative);
+      }
+      sample(out, name + "_sum", labels, sum.sum());
+      sample(out, name + "_count", labels, cumulative);
+    }
+  }
+
+  /**
+   * The gauges or counters registered under one name.
+   */
+  private static final class Family {
+    private final String type;
+    private final String help;
+    // Keyed on the labels, in order
+    private final Map<String, DoubleSupplier> values = new ConcurrentSkipListMap<>();
+
+    Family(String type, String help) {
+      this.type = type;
+      this.help = help;
+    }
+  }
+}
@@ -0,0 +1,344 @@
+package umm3601;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * A compact, read-only list of strings, stored back to back as UTF-8 in
+ * chunks of bytes.
+ * <p>
+ * Compared to an array of `String`s this saves the object header, the
+ * separate byte array, and the reference for every string, and keeps the
+ * text of neighbouring strings next to each other in memory, so scanning
+ * through all of them (e.g., to check which contain some text) is a simple
+ * sequential loop over a few big arrays.
+ * <p>
+ * No string is split between chunks, and a chunk is only bigger than
+ * `CHUNK_BYTES` when it holds a single string that big, so the total size
+ * isn't limited by the biggest array the JVM can allocate, and growing the
+ * list never copies more than one chunk.
+ */
+public final class PackedStrings {
+  private static final int INITIAL_BYTES = 1024;
+  private static final int CHUNK_BYTES = 1_048_576;
+  private static final int HASH_MULTIPLIER = 31;
+  private static final long LOW_INT_MASK = 0xFFFF_FFFFL;
+  // For `contains`, which checks a `long` worth of bytes at a time:
+  // each byte is 1, or just has its high bit set
+  private static final long ONES = 0x0101_0101_0101_0101L;
+  private static final long HIGH_BITS = 0x8080_8080_8080_8080L;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int BYTE_SHIFT = 3;
+  private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final byte[][] chunks;
+  // The `i`th string starts in chunk `locations[i] >>> 32` at offset
+  // `(int) locations[i]`, and ends where the next one starts (or at the end
+  // of its chunk, if the next one is in another chunk)
+  private final long[] locations;
+  private final BitSet nulls;
+
+  private PackedStrings(byte[][] chunks, long[] locations, BitSet nulls) {
+    this.chunks = chunks;
+    this.locations = locations;
+    this.nulls = nulls;
+  }
+
+  /**
+   * Pack the given strings.
+   *
+   * @param count    how many strings there are
+   * @param stringAt gets the string at each position (which may be null)
+   * @return the packed strings
+   */
+  public static PackedStrings of(int count, IntFunction<String> stringAt) {
+    return of(count, stringAt, CHUNK_BYTES);
+  }
+
+  /**
+   * Pack the given strings into chunks of the given size, e.g., to test
+   * strings that don't fit in the first chunk without writing a megabyte of
+   * them.
+   */
+  static PackedStrings of(int count, IntFunction<String> stringAt, int chunkBytes) {
+    List<byte[]> chunks = new ArrayList<>();
+    byte[] chunk = new byte[Math.min(INITIAL_BYTES, chunkBytes)];
+    long[] locations = new long[count + 1];
+    BitSet nulls = new BitSet();
+    int length = 0;
+    for (int i = 0; i < count; i++) {
+      String value = stringAt.apply(i);
+      if (value == null) {
+        nulls.set(i);
+        locations[i] = location(chunks.size(), length);
+        continue;
+      }
+      byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+      if (length + encoded.length > chunk.length) {
+        if (length + encoded.length <= chunkBytes) {
+          chunk = Arrays.copyOf(chunk, Math.min(chunkBytes, Math.max(chunk.length * 2, length + encoded.length)));
+        } else {
+          chunks.add(Arrays.copyOf(chunk, length));
+          chunk = new byte[Math.max(chunkBytes, encoded.length)];
+          length = 0;
+        }
+      }
+      locations[i] = location(chunks.size(), length);
+      System.arraycopy(encoded, 0, chunk, length, encoded.length);
+      length += encoded.length;
+    }
+    locations[count] = location(chunks.size(), length);
+    chunks.add(Arrays.copyOf(chunk, length));
+    return new PackedStrings(chunks.toArray(new byte[0][]), locations, nulls);
+  }
+
+  private static long location(int chunk, int offset) {
+    return (long) chunk << Integer.SIZE | offset;
+  }
+
+  public int size() {
+    return locations.length - 1;
+  }
+
+  /**
+   * How many bytes of UTF-8 the strings take up altogether.
+   *
+   * @return the number of bytes
+   */
+  public long byteCount() {
+    long count = 0;
+    for (byte[] chunk : chunks) {
+      count += chunk.length;
+    }
+    return count;
+  }
+
+  /**
+   * Get the string at the given position.
+   *
+   * @param position the position of the string
+   * @return the string, which may be null
+   */
+  public String get(int position) {
+    if (nulls.get(position)) {
+      return null;
+    }
+    int start = start(position);
+    return new String(chunk(position), start, end(position) - start, StandardCharsets.UTF_8);
+  }
+
+  public boolean isNull(int position) {
+    return nulls.get(position);
+  }
+
+  /**
+   * The chunk holding the UTF-8 bytes of the string at the given position,
+   * for code (like an index build) that needs to loop over them directly.
+   * Don't modify it.
+   *
+   * @param position the position of the string
+   * @return the chunk
+   */
+  public byte[] chunk(int position) {
+    return chunks[(int) (locations[position] >>> Integer.SIZE)];
+  }
+
+  /**
+   * Where the UTF-8 bytes of the string at the given position start in the
+   * array returned by `chunk`.
+   *
+   * @param position the position of the string
+   * @return the offset of the first byte
+   */
+  public int start(int position) {
+    return (int) (locations[position] & LOW_INT_MASK);
+  }
+
+  /**
+   * Where the UTF-8 bytes of the string at the given position end in the
+   * array returned by `chunk`.
+   *
+   * @param position the position of the string
+   * @return the offset just past the last byte
+   */
+  public int end(int position) {
+    long next = locations[position + 1];
+    if (next >>> Integer.SIZE == locations[position] >>> Integer.SIZE) {
+      return (int) (next & LOW_INT_MASK);
+    }
+    return chunk(position).length;
+  }
+
+  /**
+   * Whether the string at the given position contains the given UTF-8
+   * bytes. Since UTF-8 never encodes one character as part of another, this
+   * is the same as checking whether the string contains the text those bytes
+   * encode, without ever having to decode the string.
+   * <p>
+   * Rather than trying every starting point in turn, this reads the string
+   * eight bytes at a time, and finds in one go which of the eight starting
+   * points have the right first byte and the right last byte. Only those
+   * (usually none) are compared in full, which keeps up with
+   * `String.contains` even though that has a vectorized intrinsic to help.
+   *
+   * @param position the position of the string
+   * @param value    the UTF-8 bytes to look for
+   * @return true if the string isn't null and contains `value`
+   */
+  public boolean contains(int position, byte[] value) {
+    if (nulls.get(position)) {
+      return false;
+    }
+    if (value.length == 0) {
+      return true;
+    }
+    byte[] chunk = chunk(position);
+    int start = start(position);
+    int end = end(position);
+    // The last eight starting points, which may overlap ones already checked
+    int lastBlock = end - value.length - Long.BYTES + 1;
+    if (lastBlock < start) {
+      // Too short to read a whole `long` at every starting point
+      for (int i = start; i + value.length <= end; i++) {
+        if (matchesAt(chunk, i, value)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long first = ONES * (value[0] & BYTE_MASK);
+    long last = ONES * (value[value.length - 1] & BYTE_MASK);
+    for (int block = start;; block = Math.min(block + Long.BYTES, lastBlock)) {
+      // A zero byte where both the first and last bytes match
+      long differences = ((long) LONGS.get(chunk, block) ^ first)
+        | ((long) LONGS.get(chunk, block + value.length - 1) ^ last);
+      // Sets the high bit of each zero byte, and maybe some of the bytes
+      // after one, which `matchesAt` rules out
+      long candidates = (differences - ONES) & ~differences & HIGH_BITS;
+      while (candidates != 0) {
+        if (matchesAt(chunk, block + (Long.numberOfTrailingZeros(candidates) >>> BYTE_SHIFT), value)) {
+          return true;
+        }
+        candidates &= candidates - 1;
+      }
+      if (block == lastBlock) {
+        return false;
+      }
+    }
+  }
+
+  private static boolean matchesAt(byte[] chunk, int start, byte[] value) {
+    for (int i = 0; i < value.length; i++) {
+      if (chunk[start + i] != value[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether the string at the given position is exactly the given UTF-8
+   * bytes.
+   *
+   * @param position the position of the string
+   * @param value    the UTF-8 bytes to compare with
+   * @return true if the string isn't null and is equal to `value`
+   */
+  public boolean equals(int position, byte[] value) {
+    int start = start(position);
+    return !nulls.get(position)
+      && end(position) - start == value.length
+      && Arrays.equals(chunk(position), start, start + value.length, value, 0, value.length);
+  }
+
+  /**
+   * Whether the strings at the given two positions are equal.
+   *
+   * @param position the position of one string
+   * @param other    the position of the other
+   * @return true if they're equal (or both null)
+   */
+  public boolean equals(int position, int other) {
+    if (nulls.get(position) || nulls.get(other)) {
+      return nulls.get(position) && nulls.get(other);
+    }
+    return Arrays.equals(chunk(position), start(position), end(position), chunk(other), start(other), end(other));
+  }
+
+  /**
+   * Hash the string at the given position. This is the same as `hash` of
+   * its UTF-8 bytes.
+   *
+   * @param position the position of the string
+   * @return the hash code
+   */
+  public int hash(int position) {
+    return hash(chunk(position), start(position), end(position));
+  }
+
+  /**
+   * Hash some UTF-8 bytes.
+   *
+   * @param value the bytes
+   * @return the hash code
+   */
+  public static int hash(byte[] value) {
+    return hash(value, 0, value.length);
+  }
+
+  private static int hash(byte[] value, int from, int to) {
+    int hash = 1;
+    for (int i = from; i < to; i++) {
+      hash = HASH_MULTIPLIER * hash + value[i];
+    }
+    return hash;
+  }
+
+  /**
+   * Write the strings to a snapshot.
+   *
+   * @param output the snapshot to write to
+   * @throws IOException if the snapshot can't be written
+   */
+  public void write(SnapshotWriter output) throws IOException {
+    output.writeInt(chunks.length);
+    for (byte[] chunk : chunks) {
+      output.writeByteArray(chunk);
+    }
+    output.writeLongArray(locations);
+    output.writeLongArray(nulls.toLongArray());
+  }
+
+  /**
+   * Read strings written to a snapshot by `write`.
+   *
+   * @param input the snapshot to read from
+   * @return the strings
+   * @throws IOException if the snapshot can't be read
+   */
+  public static PackedStrings read(SnapshotReader input) throws IOException {
+    int count = input.readInt();
+    if (count < 1) {
+      throw new IOException("Corrupt packed strings in snapshot");
+    }
+    byte[][] chunks = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      chunks[i] = input.readByteArray();
+    }
+    long[] locations = input.readLongArray();
+    BitSet nulls = BitSet.valueOf(input.readLongArray());
+    // The end of the last string is the end of the last chunk
+    if (locations.length == 0 || locations[locations.length - 1] != location(count - 1, chunks[count - 1].length)) {
+      throw new IOException("Corrupt packed strings in snapshot");
+    }
+    return new PackedStrings(chunks, locations, nulls);
+  }
+}
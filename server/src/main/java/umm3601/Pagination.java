@@ -0,0 +1,257 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.GoneResponse;
+
+/**
+ * Helpers for paging through the results of the list endpoints.
+ * <p>
+ * A page is chosen with the `limit`, `offset`, and `cursor` query parameters.
+ * `offset` skips that many matching records, while `cursor` is an opaque
+ * token (from the `X-Next-Cursor` header of the previous page) that says
+ * where in the scan order the previous page stopped. Resuming from a cursor
+ * jumps straight to that point in the scan instead of finding and skipping
+ * all the earlier matches again, so it's the cheap way to walk through a
+ * large result.
+ * <p>
+ * A point in the scan order only means the same thing for as long as the
+ * data doesn't change, so each cursor also carries the version of the data
+ * it was made from. A cursor from an older version would silently skip or
+ * repeat records, so it's turned away with a 410 (Gone) instead, and the
+ * client has to start again from the first page.
+ */
+public final class Pagination {
+  /** The response header holding the cursor for the next page, if there is one. */
+  public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+  private static final char SEPARATOR = ':';
+
+  private Pagination() {
+  }
+
+  /**
+   * Parse the `limit` query parameter.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the requested limit, or `Integer.MAX_VALUE` if there isn't one
+   */
+  public static int parseLimit(Map<String, List<String>> queryParams) {
+    return parseCount(queryParams, "limit", Integer.MAX_VALUE);
+  }
+
+  /**
+   * Parse the `offset` query parameter.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the requested offset, or 0 if there isn't one
+   */
+  public static int parseOffset(Map<String, List<String>> queryParams) {
+    return parseCount(queryParams, "offset", 0);
+  }
+
+  private static int parseCount(Map<String, List<String>> queryParams, String name, int defaultValue) {
+    if (!queryParams.containsKey(name)) {
+      return defaultValue;
+    }
+    String text = queryParams.get(name).get(0);
+    int count;
+    try {
+      count = Integer.parseInt(text);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified " + name + " '" + text + "' can't be parsed to an integer");
+    }
+    if (count < 0) {
+      throw new BadRequestResponse("Specified " + name + " '" + text + "' can't be negative");
+    }
+    return count;
+  }
+
+  /**
+   * Parse the `cursor` query parameter.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param scanOrder   the name of the order the query is scanned in; the
+   *                    cursor must have come from a query with the same order
+   * @return the cursor, or `Cursor.NONE` to start from the beginning if
+   *         there is no cursor
+   * @throws BadRequestResponse if the cursor isn't one of ours, or is for a
+   *                            different scan order
+   */
+  public static Cursor parseCursor(Map<String, List<String>> queryParams, String scanOrder) {
+    if (!queryParams.containsKey("cursor")) {
+      return Cursor.NONE;
+    }
+    String cursor = queryParams.get("cursor").get(0);
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      int startSplit = decoded.lastIndexOf(SEPARATOR);
+      int versionSplit = startSplit > 0 ? decoded.lastIndexOf(SEPARATOR, startSplit - 1) : -1;
+      if (versionSplit >= 0 && decoded.substring(0, versionSplit).equals(scanOrder)) {
+        long version = Long.parseLong(decoded.substring(versionSplit + 1, startSplit));
+        int start = Integer.parseInt(decoded.substring(startSplit + 1));
+        if (start >= 0) {
+          return new Cursor(cursor, version, start);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      // Handled below, along with cursors that decode but don't fit
+    }
+    throw new BadRequestResponse("Specified cursor '" + cursor + "' is not valid for this query");
+  }
+
+  /**
+   * Make the opaque cursor for resuming a scan at the given point.
+   *
+   * @param scanOrder the name of the order the query is scanned in
+   * @param version   the version of the data that was scanned
+   * @param start     the point in the scan order to resume from
+   * @return a URL-safe cursor
+   */
+  public static String cursor(String scanOrder, long version, int start) {
+    String plain = scanOrder + SEPARATOR + version + SEPARATOR + start;
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * A parsed `cursor` query parameter: where to resume a scan, and the
+   * version of the data that point belongs to.
+   */
+  public static final class Cursor {
+    /** No cursor, to start from the beginning of any version of the data. */
+    public static final Cursor NONE = new Cursor(null, 0, 0);
+
+    private final String text;
+    private final long version;
+    private final int start;
+
+    private Cursor(String text, long version, int start) {
+      this.text = text;
+      this.version = version;
+      this.start = start;
+    }
+
+    /**
+     * Get where in the scan order to resume.
+     *
+     * @return the point to start from, or 0 if there is no cursor
+     */
+    public int getStart() {
+      return start;
+    }
+
+    /**
+     * Check that the cursor came from the version of the data about to be
+     * scanned.
+     *
+     * @param currentVersion the version of the data
+     * @throws GoneResponse if the cursor is from another version
+     */
+    public void checkVersion(long currentVersion) {
+      if (text != null && version != currentVersion) {
+        throw new GoneResponse("Specified cursor '" + text
+          + "' is from an older version of the data; start again from the first page");
+      }
+    }
+  }
+
+  /**
+   * Collects one page of results from a scan, skipping the first `offset`
+   * matches and stopping after `limit`, while keeping track of where in the
+   * scan order the page ended.
+   * <p>
+   * The scan only stops once it has found one match past the end of the
+   * page, so a page that happens to end with the last match doesn't send
+   * the client on to an empty page. A page with a limit of 0 never has a
+   * next page, since it wouldn't get any further through the scan.
+   *
+   * @param <T> the type of the records being paged
+   */
+  public static final class Page<T> {
+    private final int offset;
+    private final int limit;
+    private final Consumer<T> action;
+    private int skipped;
+    private int accepted;
+    private int next;
+    private boolean more;
+
+    /**
+     * Start a page.
+     *
+     * @param offset the number of matches to skip
+     * @param limit  the maximum number of matches to pass on
+     * @param start  the point in the scan order the scan starts from
+     * @param action what to do with each match on the page
+     */
+    public Page(int offset, int limit, int start, Consumer<T> action) {
+      this.offset = offset;
+      this.limit = limit;
+      this.next = start;
+      this.action = action;
+    }
+
+    /**
+     * Whether the page already has `limit` records and there's at least one
+     * more match after them, so the scan can stop.
+     *
+     * @return true if no more records are needed
+     */
+    public boolean isFull() {
+      return more;
+    }
+
+    /**
+     * Offer the next match from the scan.
+     *
+     * @param record   the matching record
+     * @param scanPoint where in the scan order the record is
+     */
+    public void offer(T record, int scanPoint) {
+      if (skipped < offset) {
+        skipped++;
+      } else if (accepted < limit) {
+        action.accept(record);
+        accepted++;
+        next = scanPoint + 1;
+      } else {
+        more = true;
+      }
+    }
+
+    /**
+     * Get how many matches were skipped because of the offset.
+     *
+     * @return the number skipped
+     */
+    public int getSkipped() {
+      return skipped;
+    }
+
+    /**
+     * Get how many matches were passed on to the action.
+     *
+     * @return the number passed on
+     */
+    public int getAccepted() {
+      return accepted;
+    }
+
+    /**
+     * Get the cursor for the page after this one.
+     *
+     * @param scanOrder the name of the order the query is scanned in
+     * @param version   the version of the data that was scanned
+     * @return the cursor, or null if the scan ran out of matches before it
+     *         got past the end of this page (so there are no more pages)
+     */
+    public String nextCursor(String scanOrder, long version) {
+      return more && limit > 0 ? cursor(scanOrder, version, next) : null;
+    }
+  }
+}
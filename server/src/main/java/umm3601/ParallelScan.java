@@ -0,0 +1,186 @@
+package umm3601;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Scans a range of records for those matching a predicate, splitting big
+ * ranges into chunks that are checked in parallel on a pool of its own.
+ * <p>
+ * The matches are still handed over one at a time, in order, on the thread
+ * that called `scan`, so the caller sees exactly what a sequential scan
+ * would have found and doesn't need to be thread safe (only the predicate
+ * does). Only a few chunks per thread are in flight at once, and the caller
+ * can stop the scan whenever it has all it needs (e.g., a full page), so a
+ * query with a small limit doesn't check much more than it would have
+ * sequentially.
+ * <p>
+ * Ranges smaller than the threshold are always scanned sequentially, since
+ * handing them to other threads costs more than it saves.
+ */
+public final class ParallelScan implements AutoCloseable {
+  /** A scan that never uses other threads. */
+  public static final ParallelScan SEQUENTIAL = new ParallelScan(1);
+
+  private static final int DEFAULT_THRESHOLD = 65_536;
+  private static final int DEFAULT_CHUNK_SIZE = 16_384;
+  private static final int FIRST_CHUNK_SIZE = 512;
+  private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 2;
+  // How many matches to make room for in each chunk before growing
+  private static final int INITIAL_MATCHES = 32;
+
+  // The pool that checks the chunks, or null to always scan sequentially
+  private final ForkJoinPool pool;
+  private final int threshold;
+  private final int chunkSize;
+
+  /**
+   * Make a scan that uses the given number of threads, with the default
+   * threshold and chunk size.
+   *
+   * @param threads the number of threads to check chunks with; 1 means
+   *                always scan sequentially
+   */
+  public ParallelScan(int threads) {
+    this(threads, DEFAULT_THRESHOLD, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Make a scan.
+   *
+   * @param threads   the number of threads to check chunks with; 1 means
+   *                  always scan sequentially
+   * @param threshold the smallest range to scan in parallel
+   * @param chunkSize how many records each chunk has (at most)
+   */
+  public ParallelScan(int threads, int threshold, int chunkSize) {
+    this.pool = threads > 1 ? new ForkJoinPool(threads, ParallelScan::newThread, null, false) : null;
+    this.threshold = threshold;
+    this.chunkSize = chunkSize;
+  }
+
+  private static ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+    thread.setName("parallel-scan-" + thread.getPoolIndex());
+    return thread;
+  }
+
+  /**
+   * Get the scan shared by everything that doesn't ask for one of its own,
+   * which uses one thread per core.
+   *
+   * @return the shared scan
+   */
+  public static ParallelScan shared() {
+    return Shared.INSTANCE;
+  }
+
+  /**
+   * How many threads the scan uses.
+   *
+   * @return the number of threads
+   */
+  public int getThreads() {
+    return pool == null ? 1 : pool.getParallelism();
+  }
+
+  /**
+   * Pass each of the records in a range that match a predicate to an
+   * action, in order, until `done` says to stop.
+   *
+   * @param from    the first record in the range
+   * @param to      the end of the range (exclusive)
+   * @param matches whether a record matches; this may be called from
+   *                several threads at once, and for records after the
+   *                point where the scan stops
+   * @param action  what to do with each matching record
+   * @param done    whether to stop, checked before the scan starts and after
+   *                each matching record
+   */
+  public void scan(int from, int to, IntPredicate matches, IntConsumer action, BooleanSupplier done) {
+    if (pool == null || to - from < threshold) {
+      for (int i = from; i < to && !done.getAsBoolean(); i++) {
+        if (matches.test(i)) {
+          action.accept(i);
+        }
+      }
+      return;
+    }
+
+    int window = pool.getParallelism() * CHUNKS_IN_FLIGHT_PER_THREAD;
+    Deque<ForkJoinTask<int[]>> inFlight = new ArrayDeque<>(window);
+    // The chunks start small and double up to `chunkSize`, so a caller that
+    // only wants the first few matches gets them without waiting for big
+    // chunks to be checked
+    int size = Math.min(chunkSize, FIRST_CHUNK_SIZE);
+    int next = from;
+    try {
+      while (next < to && inFlight.size() < window) {
+        int end = (int) Math.min(to, (long) next + size);
+        inFlight.add(submit(next, end, matches));
+        next = end;
+        size = Math.min(chunkSize, size * 2);
+      }
+      while (!inFlight.isEmpty() && !done.getAsBoolean()) {
+        int[] found = inFlight.poll().join();
+        if (next < to) {
+          int end = (int) Math.min(to, (long) next + size);
+          inFlight.add(submit(next, end, matches));
+          next = end;
+          size = Math.min(chunkSize, size * 2);
+        }
+        for (int i = 0; i < found.length; i++) {
+          action.accept(found[i]);
+          if (i + 1 < found.length && done.getAsBoolean()) {
+            return;
+          }
+        }
+      }
+    } finally {
+      // Don't leave the pool checking chunks nobody wants
+      for (ForkJoinTask<int[]> task : inFlight) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  private ForkJoinTask<int[]> submit(int from, int to, IntPredicate matches) {
+    return pool.submit(() -> {
+      int[] found = new int[Math.min(to - from, INITIAL_MATCHES)];
+      int count = 0;
+      for (int i = from; i < to; i++) {
+        if (matches.test(i)) {
+          if (count == found.length) {
+            found = Arrays.copyOf(found, Math.min(to - from, found.length * 2));
+          }
+          found[count++] = i;
+        }
+      }
+      return Arrays.copyOf(found, count);
+    });
+  }
+
+  /**
+   * Stop the scan's threads. It can't scan big ranges after this.
+   */
+  @Override
+  public void close() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Holds the shared scan, so its threads aren't started until it's used.
+   */
+  private static final class Shared {
+    private static final ParallelScan INSTANCE = new ParallelScan(Runtime.getRuntime().availableProcessors());
+  }
+}
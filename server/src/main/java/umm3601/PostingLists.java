@@ -0,0 +1,137 @@
+package umm3601;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Helpers for building and combining "posting lists", i.e., sorted arrays of
+ * the positions of the records in a "database" that share some key.
+ * <p>
+ * The databases use these as secondary indexes so that a query on an indexed
+ * field only has to look at the records with the requested value instead of
+ * scanning every record.
+ */
+public final class PostingLists {
+  // When one list is at least this many times longer than the other, it's
+  // cheaper to search the long list than to walk it
+  private static final int GALLOP_RATIO = 8;
+
+  private PostingLists() {
+  }
+
+  /**
+   * Build a posting list for every distinct key among `count` records.
+   *
+   * @param count the number of records to index
+   * @param keyAt the key of the record at a given position
+   * @return a map from each key to the (ascending) positions of the records
+   *         with that key
+   */
+  public static Map<String, int[]> build(int count, IntFunction<String> keyAt) {
+    // First count how many records have each key so that every posting
+    // list can be allocated at exactly the right size.
+    Map<String, int[]> sizes = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      sizes.computeIfAbsent(keyAt.apply(i), k -> new int[1])[0]++;
+    }
+
+    Map<String, int[]> lists = new HashMap<>();
+    for (Map.Entry<String, int[]> entry : sizes.entrySet()) {
+      lists.put(entry.getKey(), new int[entry.getValue()[0]]);
+      // Reuse the size array as the fill cursor for the second pass
+      entry.getValue()[0] = 0;
+    }
+    for (int i = 0; i < count; i++) {
+      String key = keyAt.apply(i);
+      lists.get(key)[sizes.get(key)[0]++] = i;
+    }
+    return lists;
+  }
+
+  /**
+   * Get the positions that appear in both of the given posting lists.
+   *
+   * @param first  an ascending array of positions
+   * @param second another ascending array of positions
+   * @return the ascending array of positions in both lists
+   */
+  public static int[] intersect(int[] first, int[] second) {
+    if (first.length * GALLOP_RATIO < second.length) {
+      return gallopingIntersect(first, second);
+    } else if (second.length * GALLOP_RATIO < first.length) {
+      return gallopingIntersect(second, first);
+    }
+
+    int[] result = new int[Math.min(first.length, second.length)];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < first.length && j < second.length) {
+      if (first[i] < second[j]) {
+        i++;
+      } else if (first[i] > second[j]) {
+        j++;
+      } else {
+        result[count++] = first[i];
+        i++;
+        j++;
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Intersect a short posting list with a much longer one by looking each
+   * position of the short list up in the long one, using an exponential
+   * search forward from the last match so the total cost is about
+   * O(short * log(long / short)) rather than O(short + long).
+   */
+  private static int[] gallopingIntersect(int[] shorter, int[] longer) {
+    int[] result = new int[shorter.length];
+    int count = 0;
+    int low = 0;
+    for (int position : shorter) {
+      // Find a range (low, high] of `longer` that must contain `position`
+      // if it is there at all, and then binary search that range
+      int step = 1;
+      int high = low;
+      while (high < longer.length && longer[high] < position) {
+        low = high;
+        high += step;
+        step *= 2;
+      }
+      int found = Arrays.binarySearch(longer, low, Math.min(high + 1, longer.length), position);
+      if (found >= 0) {
+        result[count++] = position;
+        low = found + 1;
+      } else {
+        low = -found - 1;
+      }
+      if (low >= longer.length) {
+        break;
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Get the positions that appear in every one of the given posting lists.
+   * The lists are intersected smallest first, so the cost is bounded by the
+   * size of the most selective list rather than the size of the database.
+   *
+   * @param lists one or more ascending arrays of positions
+   * @return the ascending array of positions in all the lists
+   */
+  public static int[] intersectAll(int[]... lists) {
+    int[][] bySize = lists.clone();
+    Arrays.sort(bySize, Comparator.comparingInt(list -> list.length));
+    int[] result = bySize[0];
+    for (int i = 1; i < bySize.length && result.length > 0; i++) {
+      result = intersect(result, bySize[i]);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,258 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A bounded cache of query results, for the list endpoints.
+ * <p>
+ * Entries are keyed on the (normalized) query parameters, and weighed by the
+ * number of records in the result, so one huge result counts for as much as
+ * many small ones. When the total weight goes over the limit the least
+ * recently used entries are evicted. Each entry also belongs to a version of
+ * the data; as soon as the cache is asked about a newer version, every
+ * entry is thrown away, so a change to the data can never be hidden by a
+ * stale result. Versions only go up, so a request that's still working on
+ * an older version (one that started before a write) just bypasses the
+ * cache, rather than throwing away the results for the newer one.
+ *
+ * @param <T> the type of the records in the results
+ */
+public final class QueryCache<T> {
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final long maxWeight;
+  // In access order, so the first entry is the least recently used
+  private final LinkedHashMap<Map<String, List<String>>, Result<T>> entries =
+    new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+  private long weight;
+  private long version;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Make an empty cache.
+   *
+   * @param maxWeight the most records the cached results may hold in total
+   */
+  public QueryCache(long maxWeight) {
+    this.maxWeight = maxWeight;
+  }
+
+  /**
+   * Turn the query parameters into a key that doesn't depend on the order
+   * the parameters were given in, or on the map they came in.
+   */
+  private static Map<String, List<String>> normalize(Map<String, List<String>> queryParams) {
+    Map<String, List<String>> key = new TreeMap<>();
+    queryParams.forEach((name, values) -> key.put(name, List.copyOf(values)));
+    return key;
+  }
+
+  private static long weigh(Result<?> result) {
+    // Count the entry itself too, so even empty results have some weight
+    return result.getRecords().size() + 1L;
+  }
+
+  /**
+   * Make sure the cache only holds results for the latest version of the
+   * data it has been asked about, throwing everything away if the given
+   * version is newer.
+   *
+   * @return whether the given version is the one the cache holds
+   */
+  private boolean checkVersion(long dataVersion) {
+    if (dataVersion > version) {
+      entries.clear();
+      weight = 0;
+      version = dataVersion;
+    }
+    return dataVersion == version;
+  }
+
+  /**
+   * Look up the result of a query.
+   *
+   * @param queryParams the query parameters
+   * @param dataVersion the version of the data the query is for
+   * @return the cached result, or null if there isn't one (which is always
+   *         the case for an older version than the cache holds)
+   */
+  public synchronized Result<T> get(Map<String, List<String>> queryParams, long dataVersion) {
+    Result<T> result = checkVersion(dataVersion) ? entries.get(normalize(queryParams)) : null;
+    if (result == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return result;
+  }
+
+  /**
+   * Add the result of a query, evicting the least recently used results if
+   * there isn't room for it. Results heavier than the whole cache, or from
+   * an older version of the data than it holds, aren't added at all.
+   *
+   * @param queryParams the query parameters
+   * @param dataVersion the version of the data the result came from
+   * @param result      the result
+   */
+  public synchronized void put(Map<String, List<String>> queryParams, long dataVersion, Result<T> result) {
+    long resultWeight = weigh(result);
+    if (!checkVersion(dataVersion) || resultWeight > maxWeight) {
+      return;
+    }
+    Result<T> replaced = entries.put(normalize(queryParams), result);
+    weight += resultWeight - (replaced == null ? 0 : weigh(replaced));
+    Iterator<Result<T>> leastRecentlyUsed = entries.values().iterator();
+    while (weight > maxWeight) {
+      weight -= weigh(leastRecentlyUsed.next());
+      leastRecentlyUsed.remove();
+      evictions.increment();
+    }
+  }
+
+  /**
+   * Make a consumer that passes records on to `action` while also recording
+   * them, so the result of a query can be cached without holding up a
+   * streaming response. It stops recording (but keeps passing records on)
+   * once the result is too heavy to cache.
+   *
+   * @param action what to do with each record
+   * @return the recorder
+   */
+  public Recorder<T> recorder(Consumer<T> action) {
+    return new Recorder<>(action, maxWeight);
+  }
+
+  /**
+   * Get the cache's counters, e.g., to decide how big it should be.
+   *
+   * @return the current statistics
+   */
+  public synchronized Stats getStats() {
+    return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size(), weight, maxWeight);
+  }
+
+  /**
+   * The records in one page of a query result, along with the cursor for
+   * the next page.
+   *
+   * @param <T> the type of the records
+   */
+  public static final class Result<T> {
+    private final List<T> records;
+    private final String nextCursor;
+
+    public Result(List<T> records, String nextCursor) {
+      this.records = Collections.unmodifiableList(records);
+      this.nextCursor = nextCursor;
+    }
+
+    public List<T> getRecords() {
+      return records;
+    }
+
+    /**
+     * Get the cursor for the next page.
+     *
+     * @return the cursor, or null if there are no more pages
+     */
+    public String getNextCursor() {
+      return nextCursor;
+    }
+  }
+
+  /**
+   * Passes records on while recording them; see `QueryCache.recorder`.
+   *
+   * @param <T> the type of the records
+   */
+  public static final class Recorder<T> implements Consumer<T> {
+    private final Consumer<T> action;
+    private final long maxRecords;
+    private List<T> records = new ArrayList<>();
+
+    private Recorder(Consumer<T> action, long maxRecords) {
+      this.action = action;
+      this.maxRecords = maxRecords;
+    }
+
+    @Override
+    public void accept(T record) {
+      action.accept(record);
+      if (records != null) {
+        records.add(record);
+        if (records.size() >= maxRecords) {
+          // Too many to cache, so stop holding on to them
+          records = null;
+        }
+      }
+    }
+
+    /**
+     * Get the recorded result.
+     *
+     * @param nextCursor the cursor for the next page
+     * @return the result, or null if it was too big to record
+     */
+    public Result<T> result(String nextCursor) {
+      return records == null ? null : new Result<>(records, nextCursor);
+    }
+  }
+
+  /**
+   * A snapshot of the cache's counters.
+   */
+  public static final class Stats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int entries;
+    private final long weight;
+    private final long maxWeight;
+
+    Stats(long hits, long misses, long evictions, int entries, long weight, long maxWeight) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.entries = entries;
+      this.weight = weight;
+      this.maxWeight = maxWeight;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public long getEvictions() {
+      return evictions;
+    }
+
+    public int getEntries() {
+      return entries;
+    }
+
+    public long getWeight() {
+      return weight;
+    }
+
+    public long getMaxWeight() {
+      return maxWeight;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * What each stage of one query did: how many rows it was given, how many
+ * it kept, and how long it took. This is what `explain=true` returns, and
+ * what the slow query log writes for the queries it samples.
+ * <p>
+ * Queries that aren't traced are given null instead of a trace, so all
+ * they pay for is a null check per stage.
+ */
+public final class QueryTrace {
+  private final List<Stage> stages = new ArrayList<>();
+
+  /**
+   * Add a stage, after the ones added so far.
+   *
+   * @param name    what the stage did, e.g., "owner" for the owner index
+   * @param rowsIn  how many rows the stage was given
+   * @param rowsOut how many of them it passed on
+   * @param nanos   how long it took
+   */
+  public void addStage(String name, long rowsIn, long rowsOut, long nanos) {
+    stages.add(new Stage(name, rowsIn, rowsOut, nanos));
+  }
+
+  public List<Stage> getStages() {
+    return Collections.unmodifiableList(stages);
+  }
+
+  /**
+   * One stage of a query.
+   */
+  public static final class Stage {
+    private final String name;
+    private final long rowsIn;
+    private final long rowsOut;
+    private final long nanos;
+
+    Stage(String name, long rowsIn, long rowsOut, long nanos) {
+      this.name = name;
+      this.rowsIn = rowsIn;
+      this.rowsOut = rowsOut;
+      this.nanos = nanos;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getRowsIn() {
+      return rowsIn;
+    }
+
+    public long getRowsOut() {
+      return rowsOut;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+  }
+
+  /**
+   * Counts the rows a predicate is asked about and the ones it passes, for
+   * a stage that filters rows. It can be called from several threads at
+   * once (e.g., by a `ParallelScan`).
+   */
+  public static final class CountingPredicate implements IntPredicate {
+    private final IntPredicate predicate;
+    private final LongAdder rowsIn = new LongAdder();
+    private final LongAdder rowsOut = new LongAdder();
+
+    public CountingPredicate(IntPredicate predicate) {
+      this.predicate = predicate;
+    }
+
+    @Override
+    public boolean test(int row) {
+      rowsIn.increment();
+      if (predicate.test(row)) {
+        rowsOut.increment();
+        return true;
+      }
+      return false;
+    }
+
+    public long getRowsIn() {
+      return rowsIn.sum();
+    }
+
+    public long getRowsOut() {
+      return rowsOut.sum();
+    }
+  }
+
+  /**
+   * Passes things on to an action, adding up how long the action took, for
+   * a stage that hands rows on (e.g., to a response being streamed). Only
+   * one thread may use it.
+   *
+   * @param <T> the type of the things passed on
+   */
+  public static final class TimedConsumer<T> implements Consumer<T> {
+    private final Consumer<T> action;
+    private long nanos;
+
+    public TimedConsumer(Consumer<T> action) {
+      this.action = action;
+    }
+
+    @Override
+    public void accept(T value) {
+      long start = System.nanoTime();
+      action.accept(value);
+      nanos += System.nanoTime() - start;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+  }
+}
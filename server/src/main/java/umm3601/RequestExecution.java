@@ -0,0 +1,268 @@
+package umm3601;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.http.Handler;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * How the server runs requests: on which threads, and how many at once.
+ * <p>
+ * The threads come from one of three places:
+ * <ul>
+ * <li>"platform": a bounded pool of ordinary threads, with room for the
+ * requests that may be handled or waiting at once, plus Jetty's own
+ * acceptor and selector threads, and a bounded queue of work waiting for
+ * one of those threads</li>
+ * <li>"virtual": a new virtual thread for each task, when the JDK has them
+ * (21 and up); they're found by reflection, so the server still builds and
+ * runs on older JDKs, which fall back to "platform" (and say so in
+ * `toString`)</li>
+ * <li>"jetty": Javalin's stock pool of up to 250 threads</li>
+ * </ul>
+ * Whatever the threads, `limit` caps how many requests are handled at once.
+ * A request that finds them all busy waits for one to finish, but only if
+ * fewer than the queue limit are already waiting, and only for so long;
+ * otherwise it gets a 503 straight away. An overloaded server then turns
+ * away the requests it can't get to quickly, instead of queueing them
+ * until every request is slow.
+ * <p>
+ * That only works if requests get as far as `limit`, which needs a thread.
+ * Jetty's stock pool queues work without any bound when all its threads
+ * are busy, so requests would wait there instead, for as long as it takes.
+ * The platform pool's queue holds no more than the requests allowed to
+ * wait; past that Jetty closes new connections at once, which a client
+ * can retry just like a 503.
+ */
+public final class RequestExecution {
+  public static final String PLATFORM = "platform";
+  public static final String VIRTUAL = "virtual";
+  public static final String JETTY = "jetty";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RequestExecution.class);
+  // Threads for Jetty's acceptors and selectors, on top of those for the
+  // requests
+  private static final int JETTY_THREADS = 16;
+  // How many threads a pool keeps even when idle
+  private static final int MIN_THREADS = 8;
+  // Without a limit on requests, how many threads to allow for them per core
+  private static final int THREADS_PER_CORE = 8;
+  private static final int IDLE_TIMEOUT_MILLIS = 60_000;
+  private static final String RETRY_AFTER_SECONDS = "1";
+
+  private final String mode;
+  // What `threadPool` actually used, which differs from the mode when
+  // virtual threads fall back to platform ones
+  private String threads;
+  private final int maxActive;
+  private final int maxQueued;
+  private final long queueTimeoutMillis;
+  private final Semaphore active;
+  private final AtomicInteger queued = new AtomicInteger();
+  // Makes the executor for virtual threads, or returns null if there are none
+  private final Supplier<ExecutorService> virtualThreads;
+
+  /**
+   * Choose how to run requests.
+   *
+   * @param mode               `PLATFORM`, `VIRTUAL` or `JETTY`
+   * @param maxActive          how many requests may be handled at once, or 0
+   *                           for no limit
+   * @param maxQueued          how many more may wait for one of those to
+   *                           finish
+   * @param queueTimeoutMillis how long they may wait
+   * @throws IllegalArgumentException if the mode is unknown
+   */
+  public RequestExecution(String mode, int maxActive, int maxQueued, long queueTimeoutMillis) {
+    this(mode, maxActive, maxQueued, queueTimeoutMillis, RequestExecution::virtualThreadExecutor);
+  }
+
+  /**
+   * Choose how to run requests, with virtual threads from somewhere else,
+   * e.g., to try the "virtual" mode with and without them on any JDK.
+   *
+   * @param mode               `PLATFORM`, `VIRTUAL` or `JETTY`
+   * @param maxActive          how many requests may be handled at once, or 0
+   *                           for no limit
+   * @param maxQueued          how many more may wait for one of those to
+   *                           finish
+   * @param queueTimeoutMillis how long they may wait
+   * @param virtualThreads     makes an executor that starts a thread for
+   *                           each task, or returns null if there are no
+   *                           virtual threads
+   */
+  RequestExecution(String mode, int maxActive, int maxQueued, long queueTimeoutMillis,
+    Supplier<ExecutorService> virtualThreads) {
+    if (!PLATFORM.equals(mode) && !VIRTUAL.equals(mode) && !JETTY.equals(mode)) {
+      throw new IllegalArgumentException("Unknown request executor '" + mode + "'; use "
+        + PLATFORM + ", " + VIRTUAL + " or " + JETTY);
+    }
+    this.mode = mode;
+    this.threads = mode;
+    this.maxActive = maxActive;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.active = maxActive > 0 ? new Semaphore(maxActive) : null;
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   * Make the pool for Jetty to run requests on.
+   *
+   * @return the pool, or null for Javalin's stock pool
+   */
+  public ThreadPool threadPool() {
+    if (VIRTUAL.equals(mode)) {
+      ExecutorService executor = virtualThreads.get();
+      if (executor != null) {
+        return new VirtualThreadPool(executor);
+      }
+      LOGGER.warn("Virtual threads need JDK 21 or later; using a pool of platform threads instead");
+      threads = PLATFORM + " (falling back from " + VIRTUAL + ")";
+    } else if (JETTY.equals(mode)) {
+      return null;
+    }
+    if (maxActive <= 0) {
+      int maxThreads = Runtime.getRuntime().availableProcessors() * THREADS_PER_CORE + JETTY_THREADS;
+      QueuedThreadPool pool = new QueuedThreadPool(maxThreads, MIN_THREADS, IDLE_TIMEOUT_MILLIS);
+      pool.setName("requests");
+      return pool;
+    }
+    // Requests that are waiting for a turn hold a thread too. Jetty's own
+    // tasks share the queue, so it always has some room for them.
+    int maxThreads = maxActive + maxQueued + JETTY_THREADS;
+    QueuedThreadPool pool = new QueuedThreadPool(maxThreads, Math.min(MIN_THREADS, maxThreads), IDLE_TIMEOUT_MILLIS,
+      new BlockingArrayQueue<>(maxQueued + JETTY_THREADS));
+    pool.setName("requests");
+    return pool;
+  }
+
+  /**
+   * Get an executor that starts a virtual thread for each task, if this
+   * JDK has them.
+   *
+   * @return the executor, or null if there are no virtual threads
+   */
+  static ExecutorService virtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      // Before JDK 21 the method is missing, or (as a preview) refuses to run
+      return null;
+    }
+  }
+
+  /**
+   * Wrap a handler so it counts towards the limit on requests handled at
+   * once.
+   *
+   * @param handler the handler
+   * @return the limited handler
+   */
+  public Handler limit(Handler handler) {
+    if (active == null) {
+      return handler;
+    }
+    return ctx -> {
+      if (!acquire()) {
+        ctx.header(Header.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        throw new ServiceUnavailableResponse("The server is too busy; try again shortly");
+      }
+      try {
+        handler.handle(ctx);
+      } finally {
+        active.release();
+      }
+    };
+  }
+
+  /**
+   * Wait for a turn to handle a request, if there's room in the queue.
+   *
+   * @return whether the request got a turn
+   */
+  private boolean acquire() throws InterruptedException {
+    if (active.tryAcquire()) {
+      return true;
+    }
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      return false;
+    }
+    try {
+      return active.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+    } finally {
+      queued.decrementAndGet();
+    }
+  }
+
+  /**
+   * Describe the settings, for the log. Once `threadPool` has been called
+   * this names the threads actually used, e.g., when virtual threads fell
+   * back to platform ones.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    return threads + " threads, " + (active == null ? "no limit on requests"
+      : "up to " + maxActive + " requests at once and " + maxQueued + " waiting up to " + queueTimeoutMillis + " ms");
+  }
+
+  /**
+   * Runs each of Jetty's tasks on its own virtual thread.
+   */
+  private static final class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+    private final ExecutorService executor;
+
+    VirtualThreadPool(ExecutorService executor) {
+      this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      executor.execute(task);
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    // There's no pool of threads, so none are ever idle, and it never runs
+    // low on them
+    @Override
+    public int getThreads() {
+      return 1;
+    }
+
+    @Override
+    public int getIdleThreads() {
+      return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+      return false;
+    }
+
+    @Override
+    protected void doStop() {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package umm3601;
+
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * The serialized JSON of each record in a database, by position, so a
+ * request for a single record can be answered by copying bytes instead of
+ * running Jackson again.
+ * <p>
+ * Each record is serialized the first time it's asked for, so only the
+ * records that are actually requested take up any extra memory. The bytes
+ * are shared between requests, so don't modify them.
+ *
+ * @param <T> the type of the records
+ */
+public final class SerializedRecords<T> {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final ObjectWriter writer;
+  private final IntFunction<T> recordAt;
+  // Null for the records that haven't been serialized yet. An atomic array
+  // makes sure other threads see the whole of each array once it's stored.
+  private final AtomicReferenceArray<byte[]> json;
+
+  /**
+   * Prepare to serialize records.
+   *
+   * @param type     the type of the records
+   * @param size     how many records there are
+   * @param recordAt gets the record at each position
+   */
+  public SerializedRecords(Class<T> type, int size, IntFunction<T> recordAt) {
+    this.writer = OBJECT_MAPPER.writerFor(type);
+    this.recordAt = recordAt;
+    this.json = new AtomicReferenceArray<>(size);
+  }
+
+  /**
+   * Get the JSON of the record at the given position.
+   *
+   * @param position the position of the record
+   * @return the record serialized as UTF-8 JSON
+   */
+  public byte[] get(int position) {
+    byte[] bytes = json.get(position);
+    if (bytes == null) {
+      // If two threads get here at once they'll both produce the same
+      // bytes, so it doesn't matter which one is kept
+      try {
+        bytes = writer.writeValueAsBytes(recordAt.apply(position));
+      } catch (JsonProcessingException e) {
+        throw new UncheckedIOException(e);
+      }
+      json.set(position, bytes);
+    }
+    return bytes;
+  }
+}
@@ -1,12 +1,33 @@
 package umm3601;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongConsumer;
+
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.javalin.Javalin;
+import io.javalin.compression.Brotli;
+import io.javalin.compression.CompressionStrategy;
+import io.javalin.compression.Gzip;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.Header;
 import io.javalin.plugin.bundled.RouteOverviewPlugin;
-import io.javalin.http.staticfiles.Location;
+import umm3601.user.User;
 import umm3601.user.UserDatabase;
+import umm3601.todo.Todo;
 import umm3601.todo.TodoDatabase;
+import umm3601.todo.TodoStore;
 import umm3601.user.UserController;
 import umm3601.todo.TodoController;
 
@@ -14,27 +35,215 @@ public class Server {
 
   private static final int PORT_NUMBER = 4567;
   public static final String CLIENT_DIRECTORY = "../client";
+  // Where the client's files are prepared for serving (see `ClientFiles`)
+  public static final String CLIENT_BUILD_DIRECTORY = "build/client";
   public static final String USER_DATA_FILE = "/users.json";
   public static final String TODO_DATA_FILE = "/todos.json";
+  // Environment variables that, if set, give paths to JSON files on disk to
+  // load instead of the bundled resources above
+  public static final String USER_DATA_PATH_VARIABLE = "USER_DATA_PATH";
+  public static final String TODO_DATA_PATH_VARIABLE = "TODO_DATA_PATH";
+  // Environment variable giving the directory to keep binary snapshots of
+  // the databases in, so later startups can skip parsing the JSON and
+  // rebuilding the indexes
+  public static final String SNAPSHOT_DIRECTORY_VARIABLE = "SNAPSHOT_DIRECTORY";
+  public static final String DEFAULT_SNAPSHOT_DIRECTORY = "build/snapshots";
+  // Environment variables configuring where changes to the todos are kept.
+  // DATA_DIRECTORY holds the write-ahead log of changes, and the copy of all
+  // the todos the log is compacted into when it gets too big (which is
+  // loaded instead of the original data from then on). Each batch of
+  // changes is fsynced unless WAL_SYNC is "false", and a writer waits
+  // WAL_COMMIT_DELAY_MS for others to share its batch (and fsync) with.
+  public static final String DATA_DIRECTORY_VARIABLE = "DATA_DIRECTORY";
+  public static final String DEFAULT_DATA_DIRECTORY = "build/data";
+  public static final String WAL_SYNC_VARIABLE = "WAL_SYNC";
+  public static final String WAL_COMMIT_DELAY_VARIABLE = "WAL_COMMIT_DELAY_MS";
+  // Environment variables configuring the slow query log. List queries
+  // taking at least SLOW_QUERY_MS are logged, and QUERY_TRACE_SAMPLE_PERCENT
+  // percent of them are traced, so the log can say which stage was slow.
+  public static final String SLOW_QUERY_VARIABLE = "SLOW_QUERY_MS";
+  public static final String QUERY_TRACE_SAMPLE_VARIABLE = "QUERY_TRACE_SAMPLE_PERCENT";
+  public static final long DEFAULT_SLOW_QUERY_MS = 500;
+  public static final long DEFAULT_QUERY_TRACE_SAMPLE_PERCENT = 1;
+  private static final double PERCENT = 100;
+  // Environment variables configuring how requests are run (see
+  // `RequestExecution`). REQUEST_EXECUTOR is "platform" (the default),
+  // "virtual" or "jetty"; at most MAX_ACTIVE_REQUESTS API requests are
+  // handled at once, and at most MAX_QUEUED_REQUESTS more wait up to
+  // REQUEST_QUEUE_TIMEOUT_MS for their turn before getting a 503.
+  public static final String REQUEST_EXECUTOR_VARIABLE = "REQUEST_EXECUTOR";
+  public static final String MAX_ACTIVE_REQUESTS_VARIABLE = "MAX_ACTIVE_REQUESTS";
+  public static final String MAX_QUEUED_REQUESTS_VARIABLE = "MAX_QUEUED_REQUESTS";
+  public static final String REQUEST_QUEUE_TIMEOUT_VARIABLE = "REQUEST_QUEUE_TIMEOUT_MS";
+  // Requests are mostly CPU bound, but some time goes to writing responses
+  // to slow clients, so allow a few per core
+  public static final int DEFAULT_ACTIVE_REQUESTS_PER_CORE = 4;
+  public static final int DEFAULT_MAX_QUEUED_REQUESTS = 256;
+  public static final long DEFAULT_REQUEST_QUEUE_TIMEOUT_MS = 1000;
+  // Compact the log once it reaches 64 MB
+  private static final long WAL_COMPACTION_BYTES = 67_108_864;
+  // Environment variables configuring compression of responses.
+  // COMPRESSION is "gzip" (the default), "brotli" (brotli for clients that
+  // accept it, and gzip for the rest) or "none"; brotli needs the jvm-brotli
+  // library on the classpath. COMPRESSION_MIN_SIZE is the size in bytes
+  // below which responses are sent uncompressed.
+  public static final String COMPRESSION_VARIABLE = "COMPRESSION";
+  public static final String COMPRESSION_MIN_SIZE_VARIABLE = "COMPRESSION_MIN_SIZE";
+  // Anything smaller than about one network packet gains nothing from
+  // compression, but still pays for it
+  public static final int DEFAULT_COMPRESSION_MIN_SIZE = 1500;
+  private static final int GZIP_LEVEL = 6;
+  private static final int BROTLI_LEVEL = 4;
+  private static final String BROTLI_CLASS = "com.nixxcode.jvmbrotli.common.BrotliLoader";
+  private static final Logger LOGGER = LoggerFactory.getLogger(Server.class);
+  // Stream lists of users/todos straight to the response instead of
+  // building the whole JSON array in memory first
+  private static final boolean STREAM_RESPONSES = true;
+  // Send single users/todos as JSON kept by the databases instead of
+  // serializing them again for every request
+  private static final boolean PRESERIALIZE_RECORDS = true;
+  // The most users/todos to keep in each cache of query results
+  private static final long QUERY_CACHE_RECORDS = 100_000;
+  private static final QueryCache<User> USER_QUERY_CACHE = new QueryCache<>(QUERY_CACHE_RECORDS);
+  private static final QueryCache<Todo> TODO_QUERY_CACHE = new QueryCache<>(QUERY_CACHE_RECORDS);
+  // Request counts, latencies and response sizes by route, and gauges for
+  // the data and the JVM, served at /metrics
+  private static final Metrics METRICS = new Metrics();
+  private static final String RECORD_REQUEST_ATTRIBUTE = "umm3601.recordRequest";
+  // The query parameters whose use is counted (see `Metrics`), by route
+  private static final Set<String> TODO_QUERY_PARAMETERS =
+    Set.of("category", "owner", "contains", "status", "orderBy", "limit", "offset", "cursor");
+  private static final Set<String> USER_QUERY_PARAMETERS =
+    Set.of("age", "minAge", "maxAge", "company", "limit", "offset", "cursor");
   private static UserDatabase userDatabase;
   private static TodoDatabase todoDatabase;
 
+  static {
+    METRICS.trackQueryShapes("GET", "/api/todos", TODO_QUERY_PARAMETERS);
+    METRICS.trackQueryShapes("GET", "/api/todos/_groups", TODO_QUERY_PARAMETERS);
+    METRICS.trackQueryShapes("GET", "/api/users", USER_QUERY_PARAMETERS);
+    METRICS.trackQueryShapes("GET", "/api/users/_groups", USER_QUERY_PARAMETERS);
+    cacheMetrics("users", USER_QUERY_CACHE);
+    cacheMetrics("todos", TODO_QUERY_CACHE);
+  }
+
   public static void main(String[] args) {
 
     // Initialize dependencies
     UserController userController = buildUserController();
     TodoController todoController = buildTodoController();
 
+    startServer(PORT_NUMBER, requestExecution(), userController, todoController);
+  }
+
+  /**
+   * Work out how to run requests from the `REQUEST_EXECUTOR`,
+   * `MAX_ACTIVE_REQUESTS`, `MAX_QUEUED_REQUESTS` and
+   * `REQUEST_QUEUE_TIMEOUT_MS` environment variables.
+   */
+  private static RequestExecution requestExecution() {
+    return new RequestExecution(
+      System.getenv().getOrDefault(REQUEST_EXECUTOR_VARIABLE, RequestExecution.PLATFORM),
+      (int) longFromEnvironment(MAX_ACTIVE_REQUESTS_VARIABLE,
+        (long) Runtime.getRuntime().availableProcessors() * DEFAULT_ACTIVE_REQUESTS_PER_CORE),
+      (int) longFromEnvironment(MAX_QUEUED_REQUESTS_VARIABLE, DEFAULT_MAX_QUEUED_REQUESTS),
+      longFromEnvironment(REQUEST_QUEUE_TIMEOUT_VARIABLE, DEFAULT_REQUEST_QUEUE_TIMEOUT_MS));
+  }
+
+  /**
+   * Make a controller for the given users, set up the same way as the
+   * server's own, e.g., for a load test with synthetic data.
+   *
+   * @param database the users
+   * @return the controller
+   */
+  public static UserController userController(UserDatabase database) {
+    METRICS.gauge("umm3601_records", Metrics.label("dataset", "users"), "Records in each dataset", database::size);
+    return new UserController(database, new ControllerOptions<User>()
+      .withStreaming(STREAM_RESPONSES)
+      .withCache(USER_QUERY_CACHE)
+      .withPreserialized(PRESERIALIZE_RECORDS));
+  }
+
+  /**
+   * Make a controller for the given todos, set up the same way as the
+   * server's own, e.g., for a load test with synthetic data.
+   *
+   * @param store the todos
+   * @return the controller
+   */
+  public static TodoController todoController(TodoStore store) {
+    METRICS.gauge("umm3601_records", Metrics.label("dataset", "todos"), "Records in each dataset",
+      () -> store.current().size());
+    TodoController controller = new TodoController(store, new ControllerOptions<Todo>()
+      .withStreaming(STREAM_RESPONSES)
+      .withCache(TODO_QUERY_CACHE)
+      .withPreserialized(PRESERIALIZE_RECORDS));
+    controller.setSlowQueryLog(new SlowQueryLog(longFromEnvironment(SLOW_QUERY_VARIABLE, DEFAULT_SLOW_QUERY_MS),
+      longFromEnvironment(QUERY_TRACE_SAMPLE_VARIABLE, DEFAULT_QUERY_TRACE_SAMPLE_PERCENT) / PERCENT));
+    return controller;
+  }
+
+  /**
+   * Start the server, with all its routes, serving the given controllers.
+   *
+   * @param port           the port to listen on, or 0 for any free port
+   *                       (see `Javalin.port()`)
+   * @param execution      how to run the requests
+   * @param userController the controller for the user endpoints
+   * @param todoController the controller for the todo endpoints
+   * @return the running server
+   * @throws UncheckedIOException if the client's files can't be prepared
+   */
+  public static Javalin startServer(int port, RequestExecution execution, UserController userController,
+    TodoController todoController) {
+    ThreadPool threadPool = execution.threadPool();
+    LOGGER.info("Running requests on " + execution);
+    CompressionStrategy compression = compressionStrategy();
+    // The client's static files, like HTML and JavaScript, compressed ahead
+    // of time and with long-lived names for the files the pages use
+    ClientFiles clientFiles;
+    try {
+      clientFiles = ClientFiles.prepare(Paths.get(CLIENT_DIRECTORY), Paths.get(CLIENT_BUILD_DIRECTORY),
+        compression.getBrotli() != null);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Couldn't prepare the client's files in " + CLIENT_BUILD_DIRECTORY, e);
+    }
     Javalin server = Javalin.create(config -> {
-      // This tells the server where to look for static files,
-      // like HTML and JavaScript.
-      config.staticFiles.add(CLIENT_DIRECTORY, Location.EXTERNAL);
+      if (threadPool != null) {
+        config.jetty.server(() -> new org.eclipse.jetty.server.Server(threadPool));
+      }
+      // Compress responses (including streamed ones) that are big enough
+      // to be worth it
+      config.compression.custom(compression);
       // This adds a Javalin plugin that will list all of the
       // routes/endpoints that we add below on a page reachable
       // via the "/api" path.
       config.plugins.register(new RouteOverviewPlugin("/api"));
-      // The next line starts the server listening on port 4567.
-    }).start(PORT_NUMBER);
+      // Record every request once it's been handled. The response may not
+      // have been sent yet (e.g., the end of a compressed one), so the
+      // recording waits for Jetty's request log, below, to know its size.
+      config.requestLogger.http((ctx, millis) -> {
+        String method = ctx.method().name();
+        String route = routeOf(ctx, clientFiles);
+        Set<String> queryParams = ctx.queryParamMap().keySet();
+        int status = ctx.statusCode();
+        ctx.req().setAttribute(RECORD_REQUEST_ATTRIBUTE, (LongConsumer) responseBytes ->
+          METRICS.recordRequest(method, route, queryParams, status, millis, responseBytes));
+      });
+    });
+    server.jettyServer().server().setRequestLog((request, response) -> {
+      Object record = request.getAttribute(RECORD_REQUEST_ATTRIBUTE);
+      if (record != null) {
+        ((LongConsumer) record).accept(response.getHttpChannel().getBytesWritten());
+      }
+    });
+    // This starts the server listening on the port (4567 when run from
+    // `main`).
+    server.start(port);
+
+    // The client's pages, and the files they use
+    clientFiles.addRoutes(server);
 
     // Simple example route
     server.get("/hello", ctx -> ctx.result("Hello World"));
@@ -43,19 +252,81 @@ public class Server {
     server.get("/users", ctx -> ctx.redirect("/users.html"));
     server.get("/todos", ctx -> ctx.redirect("/todos.html"));
 
-    // API endpoints
+    // API endpoints, each counting towards the limit on requests handled at
+    // once
+
+    // Whether a response is compressed depends on the Accept-Encoding it's
+    // for, so caches mustn't hand one encoding to a client that asked for
+    // another (the weak ETag is the same for every encoding)
+    if (compression != CompressionStrategy.NONE) {
+      server.before("/api/*", ctx -> ctx.header(Header.VARY, Header.ACCEPT_ENCODING));
+    }
+
+    // Count users by company or age, filtered using query parameters
+    server.get("/api/users/_groups", execution.limit(userController::getUserGroups));
 
     // Get specific user
-    server.get("/api/users/{id}", userController::getUser);
+    server.get("/api/users/{id}", execution.limit(userController::getUser));
 
     // List users, filtered using query parameters
-    server.get("/api/users", userController::getUsers);
+    server.get("/api/users", execution.limit(userController::getUsers));
+
+    // Count todos by owner, category, or status, filtered using query parameters
+    server.get("/api/todos/_groups", execution.limit(todoController::getTodoGroups));
 
     // Get specific todo
-    server.get("/api/todos/{id}", todoController::getTodo);
+    server.get("/api/todos/{id}", execution.limit(todoController::getTodo));
+
+    // List todos, filtered using query parameters (or, with `explain=true`,
+    // say what each stage of the query did)
+    server.get("/api/todos", execution.limit(todoController::getTodos));
+
+    // Add a new todo
+    server.post("/api/todos", execution.limit(todoController::addTodo));
+
+    // Add many new todos at once, from a JSON array or newline-delimited JSON
+    server.post("/api/todos/_bulk", execution.limit(todoController::addTodos));
+
+    // Replace or change a todo
+    server.put("/api/todos/{id}", execution.limit(todoController::replaceTodo));
+    server.patch("/api/todos/{id}", execution.limit(todoController::updateTodo));
 
-    // List todos, filtered using query parameters
-    server.get("/api/todos", todoController::getTodos);
+    // Delete a todo
+    server.delete("/api/todos/{id}", execution.limit(todoController::deleteTodo));
+
+    // Hit/miss/eviction counters for the query result caches
+    server.get("/api/cache", ctx -> ctx.json(Map.of(
+      "users", USER_QUERY_CACHE.getStats(),
+      "todos", TODO_QUERY_CACHE.getStats())));
+
+    // Metrics for Prometheus to scrape
+    server.get("/metrics", ctx -> ctx.contentType(Metrics.CONTENT_TYPE).result(METRICS.render()));
+
+    return server;
+  }
+
+  private static void cacheMetrics(String name, QueryCache<?> cache) {
+    String labels = Metrics.label("cache", name);
+    METRICS.counter("umm3601_query_cache_hits_total", labels, "Query cache hits", () -> cache.getStats().getHits());
+    METRICS.counter("umm3601_query_cache_misses_total", labels, "Query cache misses",
+      () -> cache.getStats().getMisses());
+    METRICS.counter("umm3601_query_cache_evictions_total", labels, "Query cache evictions",
+      () -> cache.getStats().getEvictions());
+    METRICS.gauge("umm3601_query_cache_records", labels, "Records held by each query cache",
+      () -> cache.getStats().getWeight());
+  }
+
+  /**
+   * The route that handled a request, as it was registered, or "other" for
+   * the client's files and paths with no route. (The client's files are
+   * renamed whenever they change, so each would otherwise be a new route.)
+   */
+  private static String routeOf(Context ctx, ClientFiles clientFiles) {
+    // Requests that no endpoint handled never got past the before handlers
+    if (ctx.handlerType() == HandlerType.BEFORE || clientFiles.paths().contains(ctx.endpointHandlerPath())) {
+      return "other";
+    }
+    return ctx.endpointHandlerPath();
   }
 
   /***
@@ -70,8 +341,23 @@ public class Server {
     UserController userController = null;
 
     try {
-      userDatabase = new UserDatabase(USER_DATA_FILE);
-      userController = new UserController(userDatabase);
+      long startTime = System.nanoTime();
+      String userDataPath = System.getenv(USER_DATA_PATH_VARIABLE);
+      if (userDataPath == null) {
+        userDatabase = Snapshots.load(snapshotPath("users", USER_DATA_FILE),
+          Snapshots.lastModified(Server.class.getResource(USER_DATA_FILE)),
+          () -> new UserDatabase(USER_DATA_FILE), UserDatabase::readSnapshot, UserDatabase::writeSnapshot);
+      } else {
+        Path path = Paths.get(userDataPath);
+        userDatabase = Snapshots.load(snapshotPath("users", path.toAbsolutePath().toString()),
+          Snapshots.lastModified(path),
+          () -> new UserDatabase(path), UserDatabase::readSnapshot, UserDatabase::writeSnapshot);
+      }
+      METRICS.gauge("umm3601_load_seconds", Metrics.label("dataset", "users"),
+        "How long each dataset took to load at startup", loadSeconds(startTime));
+      LOGGER.info("User database with " + userDatabase.size() + " users ready in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms (including indexes)");
+      userController = userController(userDatabase);
     } catch (IOException e) {
       System.err.println("The server failed to load the user data; shutting down.");
       e.printStackTrace(System.err);
@@ -87,8 +373,36 @@ public class Server {
     TodoController todoController = null;
 
     try {
-      todoDatabase = new TodoDatabase(TODO_DATA_FILE);
-      todoController = new TodoController(todoDatabase);
+      long startTime = System.nanoTime();
+      Path dataDirectory = Paths.get(System.getenv().getOrDefault(DATA_DIRECTORY_VARIABLE, DEFAULT_DATA_DIRECTORY));
+      Path compactedTodos = dataDirectory.resolve("todos.json");
+      String todoDataPath = System.getenv(TODO_DATA_PATH_VARIABLE);
+      if (Files.exists(compactedTodos)) {
+        // Changes to the todos have been compacted into a newer copy of them
+        todoDatabase = loadTodos(compactedTodos);
+      } else if (todoDataPath == null) {
+        todoDatabase = Snapshots.load(snapshotPath("todos", TODO_DATA_FILE),
+          Snapshots.lastModified(Server.class.getResource(TODO_DATA_FILE)),
+          () -> new TodoDatabase(TODO_DATA_FILE), TodoDatabase::readSnapshot, TodoDatabase::writeSnapshot);
+      } else {
+        todoDatabase = loadTodos(Paths.get(todoDataPath));
+      }
+      // Replay the changes made since then
+      TodoStore todoStore = TodoStore.open(todoDatabase, dataDirectory.resolve("todos.wal"),
+        !"false".equals(System.getenv(WAL_SYNC_VARIABLE)),
+        longFromEnvironment(WAL_COMMIT_DELAY_VARIABLE, 0), compactedTodos, WAL_COMPACTION_BYTES);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          todoStore.close();
+        } catch (IOException e) {
+          LOGGER.warn("Couldn't close the todo log", e);
+        }
+      }));
+      METRICS.gauge("umm3601_load_seconds", Metrics.label("dataset", "todos"),
+        "How long each dataset took to load at startup", loadSeconds(startTime));
+      LOGGER.info("Todo database with " + todoStore.current().size() + " todos ready in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms (including indexes)");
+      todoController = todoController(todoStore);
     } catch (IOException e) {
       System.err.println("The server failed to load the todo data; shutting down.");
       e.printStackTrace(System.err);
@@ -99,4 +413,72 @@ public class Server {
 
     return todoController;
   }
+
+  /**
+   * Work out how to compress responses from the `COMPRESSION` and
+   * `COMPRESSION_MIN_SIZE` environment variables.
+   */
+  private static CompressionStrategy compressionStrategy() {
+    String compression = System.getenv(COMPRESSION_VARIABLE);
+    if ("none".equals(compression)) {
+      return CompressionStrategy.NONE;
+    }
+    CompressionStrategy strategy;
+    if ("brotli".equals(compression) && brotliAvailable()) {
+      strategy = new CompressionStrategy(new Brotli(BROTLI_LEVEL), new Gzip(GZIP_LEVEL));
+    } else {
+      if (compression != null && !"gzip".equals(compression)) {
+        LOGGER.warn("Using gzip compression instead of unavailable or unknown compression '" + compression + "'");
+      }
+      strategy = new CompressionStrategy(null, new Gzip(GZIP_LEVEL));
+    }
+
+    strategy.setMinSizeForCompression(
+      (int) longFromEnvironment(COMPRESSION_MIN_SIZE_VARIABLE, DEFAULT_COMPRESSION_MIN_SIZE));
+    return strategy;
+  }
+
+  /**
+   * Whether the jvm-brotli library is on the classpath; Javalin refuses to
+   * start if brotli is asked for without it.
+   */
+  private static boolean brotliAvailable() {
+    try {
+      Class.forName(BROTLI_CLASS);
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  private static DoubleSupplier loadSeconds(long startTime) {
+    double seconds = (System.nanoTime() - startTime) / (double) TimeUnit.SECONDS.toNanos(1);
+    return () -> seconds;
+  }
+
+  private static TodoDatabase loadTodos(Path path) throws IOException {
+    return Snapshots.load(snapshotPath("todos", path.toAbsolutePath().toString()), Snapshots.lastModified(path),
+      () -> new TodoDatabase(path), TodoDatabase::readSnapshot, TodoDatabase::writeSnapshot);
+  }
+
+  /**
+   * Get a number from an environment variable, or the default if it isn't
+   * set (or isn't a number).
+   */
+  private static long longFromEnvironment(String name, long defaultValue) {
+    String value = System.getenv(name);
+    if (value != null) {
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Ignoring " + name + " '" + value + "', which isn't a number");
+      }
+    }
+    return defaultValue;
+  }
+
+  private static Path snapshotPath(String name, String source) {
+    String directory = System.getenv(SNAPSHOT_DIRECTORY_VARIABLE);
+    return Snapshots.pathFor(Paths.get(directory == null ? DEFAULT_SNAPSHOT_DIRECTORY : directory), name, source);
+  }
 }
@@ -0,0 +1,96 @@
+package umm3601;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Logs queries that took longer than a threshold, one JSON object per line,
+ * e.g., `{"route":"/api/todos","query":{"contains":["ipsum"]},"millis":812,
+ * "rows":4301,"stages":[...]}`.
+ * <p>
+ * Every query is timed, which costs next to nothing, but only a sample of
+ * them are traced (see `QueryTrace`), since a trace counts every row each
+ * stage looks at. A slow query that was sampled is logged with its stages;
+ * the rest are logged with just their time and number of rows.
+ */
+public final class SlowQueryLog {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SlowQueryLog.class);
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final long thresholdNanos;
+  private final double sampleRate;
+  private final Consumer<String> sink;
+
+  /**
+   * Make a log that writes to the `umm3601.SlowQueryLog` logger.
+   *
+   * @param thresholdMillis how long a query must take to be logged
+   * @param sampleRate      the fraction of queries to trace, from 0 to 1
+   */
+  public SlowQueryLog(long thresholdMillis, double sampleRate) {
+    this(thresholdMillis, sampleRate, LOGGER::warn);
+  }
+
+  /**
+   * Make a log.
+   *
+   * @param thresholdMillis how long a query must take to be logged
+   * @param sampleRate      the fraction of queries to trace, from 0 to 1
+   * @param sink            where to write each line
+   */
+  public SlowQueryLog(long thresholdMillis, double sampleRate, Consumer<String> sink) {
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.sampleRate = sampleRate;
+    this.sink = sink;
+  }
+
+  /**
+   * Decide whether to trace a query that's about to run.
+   *
+   * @return a trace for the query, or null if it isn't in the sample
+   */
+  public QueryTrace sample() {
+    return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate ? new QueryTrace() : null;
+  }
+
+  /**
+   * Log a query if it was slow.
+   *
+   * @param route       the route the query was made to
+   * @param queryParams the query parameters
+   * @param nanos       how long the query took
+   * @param rows        how many rows it returned
+   * @param trace       the query's trace, or null if it wasn't traced
+   * @return whether the query was logged
+   */
+  public boolean record(String route, Map<String, List<String>> queryParams, long nanos, long rows,
+    QueryTrace trace) {
+    if (nanos < thresholdNanos) {
+      return false;
+    }
+    Map<String, Object> entry = new LinkedHashMap<>();
+    entry.put("route", route);
+    entry.put("query", queryParams);
+    entry.put("millis", TimeUnit.NANOSECONDS.toMillis(nanos));
+    entry.put("rows", rows);
+    if (trace != null) {
+      entry.put("stages", trace.getStages());
+    }
+    try {
+      sink.accept(OBJECT_MAPPER.writeValueAsString(entry));
+    } catch (JsonProcessingException e) {
+      LOGGER.warn("Couldn't log a slow query to " + route, e);
+    }
+    return true;
+  }
+}
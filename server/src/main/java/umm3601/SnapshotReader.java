@@ -0,0 +1,195 @@
+package umm3601;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads a binary snapshot written by a `SnapshotWriter`.
+ * <p>
+ * The file is memory-mapped rather than read through a stream, so the OS
+ * pages it straight in from its cache and big arrays like posting lists are
+ * copied out with a single bulk `get`. A mapping can't be larger than 2 GB,
+ * so bigger snapshots are mapped a window at a time.
+ */
+public final class SnapshotReader implements Closeable {
+  private static final long DEFAULT_WINDOW_BYTES = 1_073_741_824;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final long size;
+  private final long windowBytes;
+  private MappedByteBuffer window;
+  private long windowStart;
+
+  /**
+   * Open a snapshot for reading.
+   *
+   * @param path   the snapshot file
+   * @param format the format the snapshot was written with
+   * @throws IOException if the file can't be read, or isn't a snapshot in
+   *                     the given format
+   */
+  public SnapshotReader(Path path, int format) throws IOException {
+    this(path, format, DEFAULT_WINDOW_BYTES);
+  }
+
+  SnapshotReader(Path path, int format, long windowBytes) throws IOException {
+    this.path = path;
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.size = channel.size();
+    this.windowBytes = windowBytes;
+    try {
+      map(0);
+      if (size < Long.BYTES + Integer.BYTES || readLong() != SnapshotWriter.MAGIC || readInt() != format) {
+        throw new IOException(path + " is not a snapshot in the expected format");
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private void map(long position) throws IOException {
+    windowStart = position;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowBytes, size - position));
+  }
+
+  /**
+   * Make sure the next `bytes` bytes are in the current window, moving the
+   * window along if they aren't.
+   */
+  private void require(int bytes) throws IOException {
+    if (window.remaining() < bytes) {
+      long position = windowStart + window.position();
+      if (size - position < bytes) {
+        throw new IOException("Unexpected end of snapshot " + path);
+      }
+      map(position);
+    }
+  }
+
+  public int readInt() throws IOException {
+    require(Integer.BYTES);
+    return window.getInt();
+  }
+
+  public long readLong() throws IOException {
+    require(Long.BYTES);
+    return window.getLong();
+  }
+
+  public boolean readBoolean() throws IOException {
+    require(1);
+    return window.get() != 0;
+  }
+
+  /**
+   * Read a string written by `SnapshotWriter.writeString`.
+   *
+   * @return the string, which may be null
+   * @throws IOException if the snapshot can't be read
+   */
+  public String readString() throws IOException {
+    int length = readInt();
+    if (length < 0) {
+      return null;
+    }
+    return new String(readBytes(length), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Read an array of bytes written by `SnapshotWriter.writeByteArray`.
+   *
+   * @return the array
+   * @throws IOException if the snapshot can't be read
+   */
+  public byte[] readByteArray() throws IOException {
+    return readBytes(readInt());
+  }
+
+  private byte[] readBytes(int length) throws IOException {
+    checkLength(length, 1);
+    byte[] bytes = new byte[length];
+    for (int done = 0; done < length;) {
+      require(1);
+      int count = Math.min(length - done, window.remaining());
+      window.get(bytes, done, count);
+      done += count;
+    }
+    return bytes;
+  }
+
+  /**
+   * Read an array of longs written by `SnapshotWriter.writeLongArray`.
+   *
+   * @return the array
+   * @throws IOException if the snapshot can't be read
+   */
+  public long[] readLongArray() throws IOException {
+    int length = readInt();
+    checkLength(length, Long.BYTES);
+    long[] values = new long[length];
+    for (int i = 0; i < length; i++) {
+      values[i] = readLong();
+    }
+    return values;
+  }
+
+  /**
+   * Make sure an array length read from the snapshot is plausible before
+   * allocating the array, so a corrupt snapshot fails cleanly.
+   */
+  private void checkLength(int length, int elementBytes) throws IOException {
+    if (length < 0 || (long) length * elementBytes > size) {
+      throw new IOException("Corrupt array length " + length + " in snapshot " + path);
+    }
+  }
+
+  /**
+   * Read an array of ints written by `SnapshotWriter.writeIntArray`.
+   *
+   * @return the array
+   * @throws IOException if the snapshot can't be read
+   */
+  public int[] readIntArray() throws IOException {
+    int length = readInt();
+    checkLength(length, Integer.BYTES);
+    int[] values = new int[length];
+    for (int done = 0; done < length;) {
+      require(Integer.BYTES);
+      int count = Math.min(length - done, window.remaining() / Integer.BYTES);
+      window.asIntBuffer().get(values, done, count);
+      window.position(window.position() + count * Integer.BYTES);
+      done += count;
+    }
+    return values;
+  }
+
+  /**
+   * Read a map of posting lists written by `SnapshotWriter.writePostingLists`.
+   *
+   * @return the map
+   * @throws IOException if the snapshot can't be read
+   */
+  public Map<String, int[]> readPostingLists() throws IOException {
+    int count = readInt();
+    Map<String, int[]> postingLists = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      String key = readString();
+      postingLists.put(key, readIntArray());
+    }
+    return postingLists;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
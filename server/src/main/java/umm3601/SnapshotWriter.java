@@ -0,0 +1,184 @@
+package umm3601;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Writes a binary snapshot of a database, to be read back with a
+ * `SnapshotReader`.
+ * <p>
+ * The snapshot is written to a temporary file next to `path`, and only
+ * moved into place by `commit()`, so a crash part way through never leaves
+ * behind a half-written snapshot that looks newer than the JSON it came from.
+ */
+public final class SnapshotWriter implements Closeable {
+  /** The first eight bytes of every snapshot file. */
+  static final long MAGIC = 0x554D4D3336303153L; // "UMM3601S"
+
+  private static final int BUFFER_BYTES = 65_536;
+
+  private final Path path;
+  private final Path temporary;
+  private final FileChannel channel;
+  // Values are staged here and written to the channel a buffer at a time
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+  private boolean committed;
+
+  /**
+   * Start writing a snapshot.
+   *
+   * @param path   where the finished snapshot should end up
+   * @param format identifies the kind (and version) of data in the snapshot;
+   *               the reader must ask for the same format
+   * @throws IOException if the file can't be created
+   */
+  public SnapshotWriter(Path path, int format) throws IOException {
+    this.path = path.toAbsolutePath();
+    Files.createDirectories(this.path.getParent());
+    this.temporary = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+    this.channel = FileChannel.open(temporary,
+      StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    writeLong(MAGIC);
+    writeInt(format);
+  }
+
+  /**
+   * Make sure there's room for at least `bytes` more bytes in the buffer.
+   */
+  private void reserve(int bytes) throws IOException {
+    if (buffer.remaining() < bytes) {
+      flush();
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  public void writeInt(int value) throws IOException {
+    reserve(Integer.BYTES);
+    buffer.putInt(value);
+  }
+
+  public void writeLong(long value) throws IOException {
+    reserve(Long.BYTES);
+    buffer.putLong(value);
+  }
+
+  public void writeBoolean(boolean value) throws IOException {
+    reserve(1);
+    buffer.put(value ? (byte) 1 : (byte) 0);
+  }
+
+  /**
+   * Write a string (which may be null) as its length in UTF-8 bytes followed
+   * by the bytes themselves. Unlike `DataOutputStream.writeUTF` there's no
+   * 64 KB limit on the length.
+   *
+   * @param value the string to write
+   * @throws IOException if the snapshot can't be written
+   */
+  public void writeString(String value) throws IOException {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    writeByteArray(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Write an array of bytes as its length followed by the bytes.
+   *
+   * @param values the bytes to write
+   * @throws IOException if the snapshot can't be written
+   */
+  public void writeByteArray(byte[] values) throws IOException {
+    writeInt(values.length);
+    for (int done = 0; done < values.length;) {
+      reserve(1);
+      int count = Math.min(values.length - done, buffer.remaining());
+      buffer.put(values, done, count);
+      done += count;
+    }
+  }
+
+  /**
+   * Write an array of longs as its length followed by the values.
+   *
+   * @param values the values to write
+   * @throws IOException if the snapshot can't be written
+   */
+  public void writeLongArray(long[] values) throws IOException {
+    writeInt(values.length);
+    for (long value : values) {
+      writeLong(value);
+    }
+  }
+
+  /**
+   * Write an array of ints as its length followed by the values.
+   *
+   * @param values the values to write
+   * @throws IOException if the snapshot can't be written
+   */
+  public void writeIntArray(int[] values) throws IOException {
+    writeInt(values.length);
+    for (int done = 0; done < values.length;) {
+      reserve(Integer.BYTES);
+      // Copy as many values as will fit in one go
+      int count = Math.min(values.length - done, buffer.remaining() / Integer.BYTES);
+      buffer.asIntBuffer().put(values, done, count);
+      buffer.position(buffer.position() + count * Integer.BYTES);
+      done += count;
+    }
+  }
+
+  /**
+   * Write a map of posting lists (e.g., an index from owner to positions).
+   *
+   * @param postingLists the map to write
+   * @throws IOException if the snapshot can't be written
+   */
+  public void writePostingLists(Map<String, int[]> postingLists) throws IOException {
+    writeInt(postingLists.size());
+    for (Map.Entry<String, int[]> entry : postingLists.entrySet()) {
+      writeString(entry.getKey());
+      writeIntArray(entry.getValue());
+    }
+  }
+
+  /**
+   * Finish the snapshot and move it into place, replacing any older one.
+   *
+   * @throws IOException if the snapshot can't be written or moved
+   */
+  public void commit() throws IOException {
+    flush();
+    channel.close();
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    committed = true;
+  }
+
+  /**
+   * Close the snapshot, throwing it away if it was never committed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (!committed) {
+      channel.close();
+      Files.deleteIfExists(temporary);
+    }
+  }
+}
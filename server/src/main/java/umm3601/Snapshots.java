@@ -0,0 +1,152 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads a database from a binary snapshot when there's an up-to-date one,
+ * and from its JSON source (writing a fresh snapshot afterwards) when there
+ * isn't.
+ * <p>
+ * Parsing the JSON is only part of the startup cost; building the indexes
+ * takes much longer for large data sets. A snapshot holds the records along
+ * with their prebuilt indexes, so a warm restart just maps it back in.
+ */
+public final class Snapshots {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Snapshots.class);
+
+  private Snapshots() {
+  }
+
+  /**
+   * Loads a database from its JSON source.
+   *
+   * @param <T> the type of database
+   */
+  public interface Source<T> {
+    T load() throws IOException;
+  }
+
+  /**
+   * Reads a database from a snapshot.
+   *
+   * @param <T> the type of database
+   */
+  public interface Reader<T> {
+    T read(Path snapshot) throws IOException;
+  }
+
+  /**
+   * Writes a database to a snapshot.
+   *
+   * @param <T> the type of database
+   */
+  public interface Writer<T> {
+    void write(T database, Path snapshot) throws IOException;
+  }
+
+  /**
+   * Load a database, from the snapshot if it's newer than the source and
+   * from the source otherwise. After loading from the source a new snapshot
+   * is written for next time. A snapshot that can't be read or written is
+   * logged and otherwise ignored, since the source is always there to fall
+   * back on.
+   *
+   * @param <T>            the type of database
+   * @param snapshot       where the snapshot is (or should be) kept
+   * @param sourceModified when the source was last modified, in milliseconds
+   *                       since the epoch
+   * @param source         loads the database from its source
+   * @param reader         reads the database from a snapshot
+   * @param writer         writes the database to a snapshot
+   * @return the database
+   * @throws IOException if the source can't be loaded
+   */
+  public static <T> T load(Path snapshot, long sourceModified, Source<T> source, Reader<T> reader, Writer<T> writer)
+    throws IOException {
+    if (isFresh(snapshot, sourceModified)) {
+      long startTime = System.nanoTime();
+      try {
+        T database = reader.read(snapshot);
+        LOGGER.info("Loaded snapshot " + snapshot + " in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+        return database;
+      } catch (IOException | RuntimeException e) {
+        LOGGER.warn("Couldn't read snapshot " + snapshot + "; loading from the source instead", e);
+      }
+    }
+
+    T database = source.load();
+    try {
+      writer.write(database, snapshot);
+      LOGGER.info("Wrote snapshot " + snapshot);
+    } catch (IOException e) {
+      LOGGER.warn("Couldn't write snapshot " + snapshot, e);
+    }
+    return database;
+  }
+
+  /**
+   * Whether there's a snapshot that was written after the source was last
+   * modified.
+   *
+   * @param snapshot       the snapshot file
+   * @param sourceModified when the source was last modified, in milliseconds
+   *                       since the epoch
+   * @return true if the snapshot exists and is newer than the source
+   * @throws IOException if the snapshot's modification time can't be read
+   */
+  public static boolean isFresh(Path snapshot, long sourceModified) throws IOException {
+    return Files.exists(snapshot) && Files.getLastModifiedTime(snapshot).toMillis() > sourceModified;
+  }
+
+  /**
+   * When a resource (e.g., a data file bundled with the server) was last
+   * modified.
+   *
+   * @param resource the resource, or null if there isn't one
+   * @return the modification time in milliseconds since the epoch, or
+   *         `Long.MAX_VALUE` if it isn't known, so that no snapshot is
+   *         ever considered newer
+   * @throws IOException if the resource can't be opened
+   */
+  public static long lastModified(URL resource) throws IOException {
+    if (resource == null) {
+      return Long.MAX_VALUE;
+    }
+    long modified = resource.openConnection().getLastModified();
+    return modified > 0 ? modified : Long.MAX_VALUE;
+  }
+
+  /**
+   * When a file (e.g., a data file on disk) was last modified.
+   *
+   * @param file the file
+   * @return the modification time in milliseconds since the epoch, or
+   *         `Long.MAX_VALUE` if the file doesn't exist
+   * @throws IOException if the modification time can't be read
+   */
+  public static long lastModified(Path file) throws IOException {
+    return Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : Long.MAX_VALUE;
+  }
+
+  /**
+   * Get the path for the snapshot of the data loaded from `source` in the
+   * given directory. Each source gets its own snapshot, so switching between
+   * data files never loads the snapshot of the wrong one.
+   *
+   * @param directory the directory holding the snapshots
+   * @param name      what kind of data it is (e.g., "todos")
+   * @param source    where the data is loaded from
+   * @return the path of the snapshot
+   */
+  public static Path pathFor(Path directory, String name, String source) {
+    return directory.resolve(name + "-" + Integer.toHexString(source.hashCode()) + ".snapshot");
+  }
+}
@@ -0,0 +1,296 @@
+package umm3601;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of changes to a database, so changes survive a restart
+ * without rewriting all the data every time something changes.
+ * <p>
+ * Records are appended in batches, with a single write and (optionally) a
+ * single fsync for the whole batch. Callers that group concurrent changes
+ * into one batch ("group commit") therefore pay for one fsync per batch
+ * rather than one per change.
+ * <p>
+ * Each batch is written as one frame: its length and a CRC-32 of its
+ * contents, followed by the number of records and each record with its
+ * length. A crash in the middle of an append can only leave a torn batch at
+ * the very end of the log; opening the log finds the first batch that's
+ * incomplete or fails its checksum and cuts the log off there. A batch is
+ * therefore replayed whole or not at all, never just its first few records.
+ */
+public final class WriteAheadLog implements Closeable {
+  /** The first four bytes of every log file. */
+  static final int MAGIC = 0x57414C32; // "WAL2"
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteAheadLog.class);
+  private static final int HEADER_BYTES = Integer.BYTES;
+  private static final int FRAME_BYTES = 2 * Integer.BYTES;
+
+  private final Path path;
+  // Replaced by a new file when the start of the log is dropped
+  private FileChannel channel;
+  private final boolean sync;
+  private long size;
+  private long batches;
+
+  private WriteAheadLog(Path path, FileChannel channel, boolean sync, long size) {
+    this.path = path;
+    this.channel = channel;
+    this.sync = sync;
+    this.size = size;
+  }
+
+  /**
+   * Open a log, creating it if it doesn't exist, and pass each of the
+   * records already in it to `replay`, in order.
+   *
+   * @param path   the log file
+   * @param sync   whether each batch must be forced to the disk (with
+   *               fsync) before `append` returns; without this a crash of
+   *               the machine (though not just of the server) can lose the
+   *               most recent changes
+   * @param replay what to do with each record already in the log
+   * @return the log, ready to append to
+   * @throws IOException if the log can't be opened, or isn't a log
+   */
+  public static WriteAheadLog open(Path path, boolean sync, Consumer<byte[]> replay) throws IOException {
+    path = path.toAbsolutePath();
+    Files.createDirectories(path.getParent());
+    FileChannel channel = FileChannel.open(path,
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      long size;
+      if (channel.size() == 0) {
+        size = writeHeader(channel);
+      } else {
+        size = replay(path, channel, replay);
+      }
+      channel.position(size);
+      return new WriteAheadLog(path, channel, sync, size);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static long writeHeader(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC);
+    header.flip();
+    channel.truncate(0);
+    channel.write(header, 0);
+    channel.force(true);
+    return HEADER_BYTES;
+  }
+
+  /**
+   * Read the batches in the log, cutting off any torn batch at the end.
+   *
+   * @return the length of the valid part of the log
+   */
+  private static long replay(Path path, FileChannel channel, Consumer<byte[]> replay) throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+    if (input.readInt() != MAGIC) {
+      throw new IOException(path + " isn't a write-ahead log");
+    }
+    long valid = HEADER_BYTES;
+    long records = 0;
+    CRC32 crc = new CRC32();
+    while (true) {
+      List<byte[]> batch;
+      int length;
+      try {
+        length = input.readInt();
+        int checksum = input.readInt();
+        if (length < Integer.BYTES || length > channel.size() - valid - FRAME_BYTES) {
+          break;
+        }
+        byte[] contents = new byte[length];
+        input.readFully(contents);
+        crc.reset();
+        crc.update(contents);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        batch = readBatch(ByteBuffer.wrap(contents));
+      } catch (EOFException e) {
+        break;
+      }
+      if (batch == null) {
+        break;
+      }
+      batch.forEach(replay);
+      valid += FRAME_BYTES + length;
+      records += batch.size();
+    }
+
+    if (valid < channel.size()) {
+      LOGGER.warn("Dropping " + (channel.size() - valid) + " bytes of incomplete or corrupt batches from the end of "
+        + path);
+      channel.truncate(valid);
+      channel.force(true);
+    }
+    LOGGER.info("Replayed " + records + " records from " + path);
+    return valid;
+  }
+
+  /**
+   * Split the contents of a batch's frame into its records.
+   *
+   * @return the records, or null if they don't fit the frame
+   */
+  private static List<byte[]> readBatch(ByteBuffer contents) {
+    int count = contents.getInt();
+    if (count < 0 || count > contents.remaining() / Integer.BYTES) {
+      return null;
+    }
+    List<byte[]> batch = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      if (contents.remaining() < Integer.BYTES) {
+        return null;
+      }
+      int length = contents.getInt();
+      if (length < 0 || length > contents.remaining()) {
+        return null;
+      }
+      byte[] record = new byte[length];
+      contents.get(record);
+      batch.add(record);
+    }
+    return contents.hasRemaining() ? null : batch;
+  }
+
+  /**
+   * Append a batch of records to the log. Once this returns the records
+   * will be replayed the next time the log is opened (even after a crash,
+   * if the log syncs), all together: a crash part way through leaves none
+   * of them in the log.
+   *
+   * @param records the records to append
+   * @throws IOException if the records can't be written
+   */
+  public synchronized void append(List<byte[]> records) throws IOException {
+    int length = Integer.BYTES;
+    for (byte[] record : records) {
+      length += Integer.BYTES + record.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(FRAME_BYTES + length);
+    buffer.putInt(length).putInt(0).putInt(records.size());
+    for (byte[] record : records) {
+      buffer.putInt(record.length).put(record);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), FRAME_BYTES, length);
+    buffer.putInt(Integer.BYTES, (int) crc.getValue());
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      if (sync) {
+        channel.force(false);
+      }
+    } catch (IOException e) {
+      // Don't leave part of the batch behind for later batches to follow
+      channel.truncate(size);
+      channel.position(size);
+      throw e;
+    }
+    size += FRAME_BYTES + length;
+    batches++;
+  }
+
+  /**
+   * Throw away the records before a point in the log, e.g., once they've
+   * been folded into a new copy of the whole database, and keep the ones
+   * appended since. Those are copied into a new log file, which is forced
+   * to the disk and then moved over this one, so a crash part way through
+   * leaves either the whole old log or the new one. Appends wait while the
+   * records after `position` are copied, but not for anything else.
+   *
+   * @param position where the records to keep start, which must be what
+   *                 `size` was at some point since the log was opened (or
+   *                 since the last time this was called)
+   * @throws IOException if the new log can't be written
+   */
+  public synchronized void dropBefore(long position) throws IOException {
+    if (position < HEADER_BYTES || position > size) {
+      throw new IllegalArgumentException("Position " + position + " isn't in " + path);
+    }
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    FileChannel rotated = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+      StandardOpenOption.WRITE);
+    long kept = size - position;
+    try {
+      rotated.position(writeHeader(rotated));
+      for (long copied = 0; copied < kept;) {
+        copied += channel.transferTo(position + copied, kept - copied, rotated);
+      }
+      rotated.force(true);
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException e) {
+      rotated.close();
+      throw e;
+    }
+    channel.close();
+    channel = rotated;
+    size = HEADER_BYTES + kept;
+    channel.position(size);
+  }
+
+  /**
+   * Whether there are no records in the log.
+   *
+   * @return true if the log is empty
+   */
+  public synchronized boolean isEmpty() {
+    return size == HEADER_BYTES;
+  }
+
+  /**
+   * How big the log is.
+   *
+   * @return the length of the log file in bytes
+   */
+  public synchronized long size() {
+    return size;
+  }
+
+  /**
+   * How many batches have been appended since the log was opened.
+   *
+   * @return the number of batches
+   */
+  public synchronized long batches() {
+    return batches;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (channel.isOpen()) {
+      channel.force(true);
+      channel.close();
+    }
+  }
+}
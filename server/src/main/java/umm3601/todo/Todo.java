@@ -1,5 +1,7 @@
 package umm3601.todo;
 
+import java.util.Objects;
+
 /// An individual todo object.
 @SuppressWarnings({"VisibilityModifier"})
 public class Todo {
@@ -25,4 +27,24 @@ public class Todo {
   public boolean getStatus() {
     return status;
   }
+
+  // Todos are handed out as fresh copies from the database's columns, so
+  // two todos are the same if all their attributes are
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof Todo)) {
+      return false;
+    }
+    Todo todo = (Todo) other;
+    return Objects.equals(_id, todo._id)
+      && Objects.equals(owner, todo.owner)
+      && status == todo.status
+      && Objects.equals(body, todo.body)
+      && Objects.equals(category, todo.category);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(_id, owner, status, body, category);
+  }
 }
@@ -0,0 +1,192 @@
+package umm3601.todo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * The todos in the body of a bulk import request, each either checked and
+ * ready to add or with the reason it can't be.
+ * <p>
+ * The body is either a JSON array of todos or newline-delimited JSON (one
+ * todo per line), and is parsed as a stream, so the whole body is never held
+ * as one string. As records are parsed they're handed off in batches to the
+ * common fork/join pool to be checked while the parsing carries on.
+ * <p>
+ * A record that isn't a valid todo only fails itself. In newline-delimited
+ * JSON that includes a line that isn't JSON at all; in an array, though,
+ * there's no telling where the next record starts after a syntax error, so
+ * that fails the whole request (before anything has been added).
+ */
+public final class TodoBulkImport {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  // How many records to check in each task
+  private static final int BATCH_RECORDS = 1024;
+
+  // For each record, the checked todo, or null if it's invalid
+  private final List<TodoChanges> todos = new ArrayList<>();
+  // For each record, why it's invalid, or null if it isn't
+  private final List<String> errors = new ArrayList<>();
+
+  private TodoBulkImport() {
+  }
+
+  /**
+   * Read and check the todos in a bulk import request body.
+   *
+   * @param input the request body, which is closed afterwards
+   * @return the todos
+   * @throws IOException         if the body can't be read
+   * @throws BadRequestResponse  if the body is a JSON array with a syntax
+   *                             error in it, or isn't an array of objects
+   */
+  public static TodoBulkImport read(InputStream input) throws IOException {
+    TodoBulkImport bulk = new TodoBulkImport();
+    try (BufferedInputStream buffered = new BufferedInputStream(input)) {
+      List<CompletableFuture<Batch>> batches = new ArrayList<>();
+      Batch batch = new Batch();
+      if (startsWithArray(buffered)) {
+        JsonParser parser = OBJECT_MAPPER.getFactory().createParser(buffered);
+        try {
+          parser.nextToken();
+          while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() == null) {
+              throw new BadRequestResponse("The request body ends in the middle of the array");
+            }
+            batch = bulk.add(batches, batch, OBJECT_MAPPER.readTree(parser), null);
+          }
+        } catch (JsonProcessingException e) {
+          throw new BadRequestResponse("The request body isn't a valid JSON array: " + e.getOriginalMessage());
+        }
+      } else {
+        BufferedReader lines = new BufferedReader(new InputStreamReader(buffered, StandardCharsets.UTF_8));
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+          if (line.isBlank()) {
+            continue;
+          }
+          try {
+            batch = bulk.add(batches, batch, OBJECT_MAPPER.readTree(line), null);
+          } catch (JsonProcessingException e) {
+            batch = bulk.add(batches, batch, null, "The record isn't valid JSON");
+          }
+        }
+      }
+      bulk.submit(batches, batch);
+
+      for (CompletableFuture<Batch> checked : batches) {
+        Batch done = checked.join();
+        bulk.todos.addAll(done.todos);
+        bulk.errors.addAll(done.errors);
+      }
+    }
+    return bulk;
+  }
+
+  /**
+   * Skip any whitespace at the start of the input, and see whether what
+   * follows is a JSON array.
+   */
+  private static boolean startsWithArray(BufferedInputStream input) throws IOException {
+    while (true) {
+      input.mark(1);
+      int next = input.read();
+      if (next == -1) {
+        return false;
+      }
+      if (!Character.isWhitespace(next)) {
+        input.reset();
+        return next == '[';
+      }
+    }
+  }
+
+  /**
+   * Add a record (or the reason it couldn't be parsed) to the current
+   * batch, sending the batch off to be checked once it's full.
+   *
+   * @return the batch to add the next record to
+   */
+  private Batch add(List<CompletableFuture<Batch>> batches, Batch batch, JsonNode node, String error) {
+    batch.nodes.add(node);
+    batch.errors.add(error);
+    if (batch.nodes.size() < BATCH_RECORDS) {
+      return batch;
+    }
+    submit(batches, batch);
+    return new Batch();
+  }
+
+  private void submit(List<CompletableFuture<Batch>> batches, Batch batch) {
+    if (!batch.nodes.isEmpty()) {
+      batches.add(CompletableFuture.supplyAsync(batch::check));
+    }
+  }
+
+  /**
+   * How many records there were.
+   *
+   * @return the number of records
+   */
+  public int size() {
+    return todos.size();
+  }
+
+  /**
+   * Get a record, once checked.
+   *
+   * @param index the position of the record in the body
+   * @return the todo, or null if the record isn't a valid todo
+   */
+  public TodoChanges getTodo(int index) {
+    return todos.get(index);
+  }
+
+  /**
+   * Get the reason a record isn't a valid todo.
+   *
+   * @param index the position of the record in the body
+   * @return the reason, or null if the record is valid
+   */
+  public String getError(int index) {
+    return errors.get(index);
+  }
+
+  /**
+   * Some consecutive records, and the outcome of checking them.
+   */
+  private static final class Batch {
+    private final List<JsonNode> nodes = new ArrayList<>(BATCH_RECORDS);
+    private final List<String> errors = new ArrayList<>(BATCH_RECORDS);
+    private final List<TodoChanges> todos = new ArrayList<>(BATCH_RECORDS);
+
+    Batch check() {
+      for (int i = 0; i < nodes.size(); i++) {
+        TodoChanges todo = null;
+        if (errors.get(i) == null) {
+          try {
+            todo = TodoChanges.fromTodoNode(nodes.get(i));
+          } catch (BadRequestResponse e) {
+            errors.set(i, e.getMessage());
+          }
+        }
+        todos.add(todo);
+      }
+      nodes.clear();
+      return this;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * The parsed and validated form of the JSON body of a request to create or
+ * change a todo.
+ * <p>
+ * As with `TodoQuery`, everything is checked before the database is touched,
+ * so a bad request never leaves a todo half changed.
+ */
+public final class TodoChanges {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private String owner;
+  private Boolean status;
+  private String body;
+  private String category;
+
+  private TodoChanges() {
+  }
+
+  /**
+   * Parse the body of a request that gives a whole todo (to create it or
+   * replace it), so every attribute except `_id` is required.
+   *
+   * @param json the body of the request
+   * @return the parsed todo attributes
+   * @throws BadRequestResponse if the body isn't a valid todo
+   */
+  public static TodoChanges fromTodoJson(String json) {
+    return fromTodoNode(parse(json));
+  }
+
+  /**
+   * Check a whole todo that's already been parsed, e.g., one of the records
+   * in a bulk import.
+   *
+   * @param node the parsed todo
+   * @return the todo attributes
+   * @throws BadRequestResponse if the node isn't a valid todo
+   */
+  static TodoChanges fromTodoNode(JsonNode node) {
+    TodoChanges changes = fromNode(node);
+    if (changes.owner == null || changes.status == null || changes.body == null || changes.category == null) {
+      throw new BadRequestResponse("A todo needs an owner, status, body, and category");
+    }
+    return changes;
+  }
+
+  /**
+   * Parse the body of a request that gives just the attributes to change.
+   *
+   * @param json the body of the request
+   * @return the parsed changes
+   * @throws BadRequestResponse if the body isn't a valid set of changes
+   */
+  public static TodoChanges fromJson(String json) {
+    return fromNode(parse(json));
+  }
+
+  private static JsonNode parse(String json) {
+    try {
+      return OBJECT_MAPPER.readTree(json == null ? "" : json);
+    } catch (IOException e) {
+      throw new BadRequestResponse("The request body isn't valid JSON");
+    }
+  }
+
+  private static TodoChanges fromNode(JsonNode node) {
+    if (node == null || !node.isObject()) {
+      throw new BadRequestResponse("The request body must be a JSON object");
+    }
+
+    TodoChanges changes = new TodoChanges();
+    for (Iterator<Map.Entry<String, JsonNode>> fields = node.fields(); fields.hasNext();) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      JsonNode value = field.getValue();
+      switch (field.getKey()) {
+        case "owner":
+          changes.owner = parseText(field.getKey(), value);
+          break;
+        case "body":
+          changes.body = parseText(field.getKey(), value);
+          break;
+        case "category":
+          changes.category = parseText(field.getKey(), value);
+          break;
+        case "status":
+          if (!value.isBoolean()) {
+            throw new BadRequestResponse("The todo status must be true or false");
+          }
+          changes.status = value.booleanValue();
+          break;
+        case "_id":
+          throw new BadRequestResponse("A todo's _id can't be set or changed");
+        default:
+          throw new BadRequestResponse("Todos have no attribute '" + field.getKey() + "'");
+      }
+    }
+    return changes;
+  }
+
+  private static String parseText(String name, JsonNode value) {
+    if (!value.isTextual() || value.textValue().isBlank()) {
+      throw new BadRequestResponse("The todo " + name + " must be a non-empty string");
+    }
+    return value.textValue();
+  }
+
+  /**
+   * Set the attributes given in these changes on a todo, leaving the rest
+   * as they are.
+   *
+   * @param todo the todo to change
+   */
+  public void applyTo(Todo todo) {
+    if (owner != null) {
+      todo.owner = owner;
+    }
+    if (status != null) {
+      todo.status = status;
+    }
+    if (body != null) {
+      todo.body = body;
+    }
+    if (category != null) {
+      todo.category = category;
+    }
+  }
+}
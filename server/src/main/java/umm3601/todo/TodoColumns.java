@@ -0,0 +1,472 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import umm3601.PackedStrings;
+import umm3601.SnapshotReader;
+import umm3601.SnapshotWriter;
+
+/**
+ * Column-oriented storage for the todos in a `TodoDatabase`.
+ * <p>
+ * Instead of one object per todo, each attribute is kept in its own compact
+ * column, indexed by the todo's position:
+ * <ul>
+ * <li>`owner` and `category` have very few distinct values, so each is
+ * dictionary-encoded as an int code into a small array of the distinct
+ * values;</li>
+ * <li>`status` is a single bit in a `BitSet`;</li>
+ * <li>`_id` and `body` are packed back to back as UTF-8 in `PackedStrings`.</li>
+ * </ul>
+ * This takes a fraction of the memory of an array of `Todo`s, and lets
+ * filters run as loops over primitive arrays. `Todo` objects are only made
+ * (by `get`) for the todos that are actually returned.
+ */
+public final class TodoColumns {
+  private static final int NOT_FOUND = -1;
+  // How many slots the ID table has per todo (rounded to a power of two)
+  private static final int ID_TABLE_SCALE = 4;
+  // The keys for grouping by status, indexed by the status as 0 or 1
+  private static final String[] STATUS_VALUES = {"incomplete", "complete"};
+
+  private final int size;
+  private final PackedStrings ids;
+  private final String[] ownerValues;
+  private final int[] ownerCodes;
+  private final String[] categoryValues;
+  private final int[] categoryCodes;
+  private final BitSet status;
+  private final PackedStrings bodies;
+  // Open-addressing hash table from the hash of each `_id` to the position
+  // (plus one, so that 0 means empty) of the first todo with that `_id`
+  private final int[] idTable;
+
+  /**
+   * Store the given todos in columns.
+   *
+   * @param todos the todos, in order
+   */
+  public TodoColumns(Todo[] todos) {
+    size = todos.length;
+    ids = PackedStrings.of(size, i -> todos[i]._id);
+    bodies = PackedStrings.of(size, i -> todos[i].body);
+
+    Map<String, Integer> owners = new HashMap<>();
+    Map<String, Integer> categories = new HashMap<>();
+    ownerCodes = new int[size];
+    categoryCodes = new int[size];
+    status = new BitSet(size);
+    for (int i = 0; i < size; i++) {
+      ownerCodes[i] = owners.computeIfAbsent(todos[i].owner, k -> owners.size());
+      categoryCodes[i] = categories.computeIfAbsent(todos[i].category, k -> categories.size());
+      status.set(i, todos[i].status);
+    }
+    ownerValues = dictionary(owners);
+    categoryValues = dictionary(categories);
+
+    idTable = buildIdTable();
+  }
+
+  private TodoColumns(PackedStrings ids, String[] ownerValues, int[] ownerCodes, String[] categoryValues,
+    int[] categoryCodes, BitSet status, PackedStrings bodies) {
+    this.size = ids.size();
+    this.ids = ids;
+    this.ownerValues = ownerValues;
+    this.ownerCodes = ownerCodes;
+    this.categoryValues = categoryValues;
+    this.categoryCodes = categoryCodes;
+    this.status = status;
+    this.bodies = bodies;
+    this.idTable = buildIdTable();
+  }
+
+  /**
+   * Turn a map from each distinct value to its code into an array of the
+   * values, indexed by code.
+   */
+  private static String[] dictionary(Map<String, Integer> codes) {
+    String[] values = new String[codes.size()];
+    codes.forEach((value, code) -> values[code] = value);
+    return values;
+  }
+
+  private int[] buildIdTable() {
+    // Keep the table at most half full, so probe sequences stay short
+    int[] table = new int[Integer.highestOneBit(Math.max(1, size)) * ID_TABLE_SCALE];
+    for (int position = 0; position < size; position++) {
+      if (ids.isNull(position)) {
+        continue;
+      }
+      int slot = spread(ids.hash(position)) & (table.length - 1);
+      while (table[slot] != 0 && !ids.equals(table[slot] - 1, position)) {
+        slot = (slot + 1) & (table.length - 1);
+      }
+      if (table[slot] == 0) {
+        // Keep the first todo with a given ID, as the old linear scan did
+        table[slot] = position + 1;
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Mix the high bits of a hash into the low bits used to pick a slot.
+   */
+  private static int spread(int hash) {
+    return hash ^ (hash >>> (Integer.SIZE / 2));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Make a `Todo` object for the todo at the given position.
+   *
+   * @param position the position of the todo
+   * @return a new `Todo` with the todo's attributes
+   */
+  public Todo get(int position) {
+    Todo todo = new Todo();
+    todo._id = ids.get(position);
+    todo.owner = ownerValues[ownerCodes[position]];
+    todo.status = status.get(position);
+    todo.body = bodies.get(position);
+    todo.category = categoryValues[categoryCodes[position]];
+    return todo;
+  }
+
+  /**
+   * Find the position of the first todo with the given `_id`.
+   *
+   * @param id the ID to look for
+   * @return the position, or -1 if no todo has that ID
+   */
+  public int positionOf(String id) {
+    byte[] encoded = id.getBytes(StandardCharsets.UTF_8);
+    for (int slot = spread(PackedStrings.hash(encoded)) & (idTable.length - 1); idTable[slot] != 0;
+      slot = (slot + 1) & (idTable.length - 1)) {
+      if (ids.equals(idTable[slot] - 1, encoded)) {
+        return idTable[slot] - 1;
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  public boolean getStatus(int position) {
+    return status.get(position);
+  }
+
+  /**
+   * Whether the body of the todo at the given position contains the given
+   * UTF-8 bytes.
+   *
+   * @param position the position of the todo
+   * @param value    the UTF-8 bytes to look for
+   * @return true if the body contains them
+   */
+  public boolean bodyContains(int position, byte[] value) {
+    return bodies.contains(position, value);
+  }
+
+  public PackedStrings getBodies() {
+    return bodies;
+  }
+
+  /**
+   * Build posting lists from each owner to the (ascending) positions of the
+   * todos with that owner.
+   *
+   * @return the posting lists
+   */
+  public Map<String, int[]> ownerPostingLists() {
+    return postingLists(ownerValues, ownerCodes);
+  }
+
+  /**
+   * Build posting lists from each category to the (ascending) positions of
+   * the todos in that category.
+   *
+   * @return the posting lists
+   */
+  public Map<String, int[]> categoryPostingLists() {
+    return postingLists(categoryValues, categoryCodes);
+  }
+
+  private static Map<String, int[]> postingLists(String[] values, int[] codes) {
+    int[][] lists = new int[values.length][];
+    int[] counts = new int[values.length];
+    for (int code : codes) {
+      counts[code]++;
+    }
+    for (int code = 0; code < values.length; code++) {
+      lists[code] = new int[counts[code]];
+      counts[code] = 0;
+    }
+    for (int position = 0; position < codes.length; position++) {
+      int code = codes[position];
+      lists[code][counts[code]++] = position;
+    }
+
+    Map<String, int[]> postingLists = new HashMap<>();
+    for (int code = 0; code < values.length; code++) {
+      postingLists.put(values[code], lists[code]);
+    }
+    return postingLists;
+  }
+
+  /**
+   * Count the todos at the given positions by their value of an attribute,
+   * and how many of each are complete. This only reads the code and status
+   * columns, so no `Todo`s are made.
+   *
+   * @param attribute one of "owner", "category", or "status"
+   * @param positions the positions of the todos to count
+   * @return the groups with at least one todo, in order of their keys
+   */
+  public List<TodoGroup> group(String attribute, IntStream positions) {
+    String[] values;
+    int[] codes;
+    switch (attribute) {
+      case "owner":
+        values = ownerValues;
+        codes = ownerCodes;
+        break;
+      case "category":
+        values = categoryValues;
+        codes = categoryCodes;
+        break;
+      default:
+        // The code for a status is just 0 for incomplete or 1 for complete
+        values = STATUS_VALUES;
+        codes = null;
+        break;
+    }
+    int[] counts = new int[values.length];
+    int[] complete = new int[values.length];
+    positions.forEach(position -> {
+      boolean done = status.get(position);
+      int code = codes == null ? (done ? 1 : 0) : codes[position];
+      counts[code]++;
+      if (done) {
+        complete[code]++;
+      }
+    });
+
+    List<TodoGroup> groups = new ArrayList<>();
+    for (int code = 0; code < values.length; code++) {
+      if (counts[code] > 0) {
+        groups.add(new TodoGroup(values[code], counts[code], complete[code]));
+      }
+    }
+    groups.sort(Comparator.comparing(TodoGroup::getKey, Comparator.nullsFirst(Comparator.naturalOrder())));
+    return Collections.unmodifiableList(groups);
+  }
+
+  /**
+   * Get the key of the group that `group` counts a single todo in.
+   *
+   * @param todo      the todo
+   * @param attribute one of "owner", "category", or "status"
+   * @return the key
+   */
+  static String groupKey(Todo todo, String attribute) {
+    switch (attribute) {
+      case "owner":
+        return todo.owner;
+      case "category":
+        return todo.category;
+      default:
+        return STATUS_VALUES[todo.status ? 1 : 0];
+    }
+  }
+
+  /**
+   * Compare todos by the given attribute the same way `sortOrder` does
+   * (leaving ties to the caller), for todos that aren't in the columns.
+   *
+   * @param attribute one of `TodoQuery.SORT_ATTRIBUTES`
+   * @return the comparator
+   */
+  static Comparator<Todo> attributeOrder(String attribute) {
+    Comparator<String> strings = Comparator.nullsFirst(Comparator.naturalOrder());
+    switch (attribute) {
+      case "owner":
+        return Comparator.comparing(todo -> todo.owner, strings);
+      case "category":
+        return Comparator.comparing(todo -> todo.category, strings);
+      case "status":
+        return (a, b) -> Boolean.compare(a.status, b.status);
+      default:
+        return Comparator.comparing(todo -> todo.body, strings);
+    }
+  }
+
+  /**
+   * Compare the todo at a position with another todo by the given
+   * attribute, as `attributeOrder` does, without making a `Todo` for it.
+   *
+   * @param position  the position of the todo in the columns
+   * @param attribute one of `TodoQuery.SORT_ATTRIBUTES`
+   * @param todo      the todo to compare it with
+   * @return a negative number, zero, or a positive number as the todo at the
+   *         position sorts before, with, or after the other todo
+   */
+  int compare(int position, String attribute, Todo todo) {
+    Comparator<String> strings = Comparator.nullsFirst(Comparator.naturalOrder());
+    switch (attribute) {
+      case "owner":
+        return strings.compare(ownerValues[ownerCodes[position]], todo.owner);
+      case "category":
+        return strings.compare(categoryValues[categoryCodes[position]], todo.category);
+      case "status":
+        return Boolean.compare(status.get(position), todo.status);
+      default:
+        return strings.compare(bodies.get(position), todo.body);
+    }
+  }
+
+  /**
+   * Get the positions of all the todos sorted by the given attribute.
+   * Todos that are equal on that attribute stay in position order.
+   *
+   * @param attribute one of `TodoQuery.SORT_ATTRIBUTES`
+   * @return the positions in sorted order
+   */
+  public int[] sortOrder(String attribute) {
+    switch (attribute) {
+      case "owner":
+        return sortByCode(ownerValues, ownerCodes);
+      case "category":
+        return sortByCode(categoryValues, categoryCodes);
+      case "status":
+        return sortByStatus();
+      default:
+        return sortByBody();
+    }
+  }
+
+  private int[] sortByStatus() {
+    // Incomplete (false) todos sort before complete (true) ones
+    int[] order = new int[size];
+    int next = 0;
+    for (int position = status.nextClearBit(0); position < size; position = status.nextClearBit(position + 1)) {
+      order[next++] = position;
+    }
+    for (int position = status.nextSetBit(0); position >= 0; position = status.nextSetBit(position + 1)) {
+      order[next++] = position;
+    }
+    return order;
+  }
+
+  /**
+   * Sort by a dictionary-encoded column. Only the (few) distinct values
+   * need to be compared; the todos themselves are then put in order with a
+   * counting sort on their codes, which is stable.
+   */
+  private int[] sortByCode(String[] values, int[] codes) {
+    Integer[] sortedCodes = new Integer[values.length];
+    for (int code = 0; code < values.length; code++) {
+      sortedCodes[code] = code;
+    }
+    Arrays.sort(sortedCodes, Comparator.comparing(code -> values[code],
+      Comparator.nullsFirst(Comparator.naturalOrder())));
+    int[] starts = new int[values.length];
+    int[] counts = new int[values.length];
+    for (int code : codes) {
+      counts[code]++;
+    }
+    int start = 0;
+    for (int code : sortedCodes) {
+      starts[code] = start;
+      start += counts[code];
+    }
+
+    int[] order = new int[size];
+    for (int position = 0; position < size; position++) {
+      order[starts[codes[position]]++] = position;
+    }
+    return order;
+  }
+
+  private int[] sortByBody() {
+    // Compare the decoded bodies so the order is exactly `String` order
+    String[] decoded = new String[size];
+    Integer[] sorted = new Integer[size];
+    for (int position = 0; position < size; position++) {
+      decoded[position] = bodies.get(position);
+      sorted[position] = position;
+    }
+    // Sorting boxed positions is stable
+    Arrays.sort(sorted, Comparator.comparing(position -> decoded[position],
+      Comparator.nullsFirst(Comparator.naturalOrder())));
+
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = sorted[i];
+    }
+    return order;
+  }
+
+  /**
+   * Write the columns to a snapshot.
+   *
+   * @param output the snapshot to write to
+   * @throws IOException if the snapshot can't be written
+   */
+  public void write(SnapshotWriter output) throws IOException {
+    ids.write(output);
+    writeDictionary(output, ownerValues);
+    output.writeIntArray(ownerCodes);
+    writeDictionary(output, categoryValues);
+    output.writeIntArray(categoryCodes);
+    output.writeLongArray(status.toLongArray());
+    bodies.write(output);
+  }
+
+  private static void writeDictionary(SnapshotWriter output, String[] values) throws IOException {
+    output.writeInt(values.length);
+    for (String value : values) {
+      output.writeString(value);
+    }
+  }
+
+  /**
+   * Read columns written to a snapshot by `write`.
+   *
+   * @param input the snapshot to read from
+   * @return the columns
+   * @throws IOException if the snapshot can't be read
+   */
+  public static TodoColumns read(SnapshotReader input) throws IOException {
+    PackedStrings ids = PackedStrings.read(input);
+    String[] ownerValues = readDictionary(input);
+    int[] ownerCodes = input.readIntArray();
+    String[] categoryValues = readDictionary(input);
+    int[] categoryCodes = input.readIntArray();
+    BitSet status = BitSet.valueOf(input.readLongArray());
+    PackedStrings bodies = PackedStrings.read(input);
+    if (ownerCodes.length != ids.size() || categoryCodes.length != ids.size() || bodies.size() != ids.size()) {
+      throw new IOException("Columns of different lengths in snapshot");
+    }
+    return new TodoColumns(ids, ownerValues, ownerCodes, categoryValues, categoryCodes, status, bodies);
+  }
+
+  private static String[] readDictionary(SnapshotReader input) throws IOException {
+    String[] values = new String[input.readInt()];
+    for (int code = 0; code < values.length; code++) {
+      values[code] = input.readString();
+    }
+    return values;
+  }
+}
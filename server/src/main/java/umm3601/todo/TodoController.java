@@ -1,28 +1,174 @@
 package umm3601.todo;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import umm3601.ControllerOptions;
+import umm3601.ETags;
+import umm3601.JsonArrayStream;
+import umm3601.Pagination;
+import umm3601.QueryCache;
+import umm3601.QueryTrace;
+import umm3601.SlowQueryLog;
 
 /**
  * Controller that manages requests for todos.
  */
 public class TodoController {
-  private TodoDatabase database;
+  private TodoStore store;
+  private boolean streaming;
+  private QueryCache<Todo> cache;
+  private boolean preserialized;
+  private SlowQueryLog slowQueries;
 
   /*
    * Construct a controller for the todos.
    */
   public TodoController(TodoDatabase database) {
-    this.database = database;
+    this(database, new ControllerOptions<>());
+  }
+
+  /**
+   * Construct a controller for the todos that answers requests as the
+   * options say (streaming lists, caching them, and so on).
+   *
+   * @param database the `TodoDatabase` containing todo data
+   * @param options  how to answer requests
+   */
+  public TodoController(TodoDatabase database, ControllerOptions<Todo> options) {
+    this(new TodoStore(database), options);
+  }
+
+  /**
+   * Construct a controller for the todos that can also change them.
+   *
+   * @param store   the `TodoStore` holding the current todos
+   * @param options how to answer requests
+   */
+  public TodoController(TodoStore store, ControllerOptions<Todo> options) {
+    this.store = store;
+    this.streaming = options.isStreaming();
+    this.cache = options.getCache();
+    this.preserialized = options.isPreserialized();
+  }
+
+  /**
+   * Log the list queries that take too long, tracing a sample of them.
+   *
+   * @param log the slow query log, or null to not log slow queries
+   */
+  public void setSlowQueryLog(SlowQueryLog log) {
+    this.slowQueries = log;
   }
 
   /*
    * Produce a JSON response with a list of all the todo entries in the "database".
+   * With `explain=true` the response is what each stage of the query did
+   * instead (see `explainTodos`).
    */
   public void getTodos(Context ctx) {
-    Todo[] todos = database.listTodos(ctx.queryParamMap());
-    ctx.json(todos);
+    long startTime = System.nanoTime();
+    // Use the same version of the todos for the whole request, even if
+    // they're changed while it's running
+    TodoDatabase database = store.current();
+    Map<String, List<String>> queryParams = ctx.queryParamMap();
+    if ("true".equals(ctx.queryParam("explain"))) {
+      explainTodos(ctx, database, queryParams);
+      return;
+    }
+    long version = database.getVersion();
+    // The response only depends on the data and the query, so if the client
+    // already has the response for this version there's nothing to do
+    String etag = ETags.forQuery(version, queryParams);
+    if (ETags.notModified(ctx, etag)) {
+      return;
+    }
+    QueryCache.Result<Todo> cached = cache == null ? null : cache.get(queryParams, version);
+    if (cached != null) {
+      respond(ctx, etag, cached.getRecords(), cached.getNextCursor());
+      logIfSlow(queryParams, startTime, cached.getRecords().size(), null);
+      return;
+    }
+
+    // Parse the query first so that bad requests fail before we
+    // start writing the response
+    TodoQuery query = TodoQuery.fromParams(queryParams);
+    QueryTrace trace = slowQueries == null ? null : slowQueries.sample();
+    long rows;
+    if (streaming && query.getLimit() == Integer.MAX_VALUE) {
+      // Without a limit there's never a next page, so we can send the
+      // todos as soon as they're found
+      JsonArrayStream<Todo> stream = new JsonArrayStream<>(ctx, Todo.class).withHeader(Header.ETAG, etag);
+      if (cache == null) {
+        database.forEachTodo(query, stream, trace);
+        stream.finish();
+      } else {
+        QueryCache.Recorder<Todo> recorder = cache.recorder(stream);
+        database.forEachTodo(query, recorder, trace);
+        stream.finish();
+        QueryCache.Result<Todo> result = recorder.result(null);
+        if (result != null) {
+          cache.put(queryParams, version, result);
+        }
+      }
+      rows = stream.getCount();
+    } else {
+      // The next page cursor has to go in a header, before the body,
+      // so collect the page first
+      List<Todo> todos = new ArrayList<>();
+      String nextCursor = database.forEachTodo(query, todos::add, trace);
+      if (cache != null) {
+        cache.put(queryParams, version, new QueryCache.Result<>(todos, nextCursor));
+      }
+      respond(ctx, etag, todos, nextCursor);
+      rows = todos.size();
+    }
+    logIfSlow(queryParams, startTime, rows, trace);
+  }
+
+  private void logIfSlow(Map<String, List<String>> queryParams, long startTime, long rows, QueryTrace trace) {
+    if (slowQueries != null) {
+      slowQueries.record("/api/todos", queryParams, System.nanoTime() - startTime, rows, trace);
+    }
+  }
+
+  /**
+   * Run a query and respond with what each of its stages did (see
+   * `TodoDatabase.forEachTodo`), rather than the todos it found. The cache
+   * is skipped, so the query is always run.
+   */
+  private static void explainTodos(Context ctx, TodoDatabase database, Map<String, List<String>> queryParams) {
+    long startTime = System.nanoTime();
+    TodoQuery query = TodoQuery.fromParams(queryParams);
+    QueryTrace trace = new QueryTrace();
+    long[] rows = new long[1];
+    String nextCursor = database.forEachTodo(query, todo -> rows[0]++, trace);
+    Map<String, Object> explanation = new LinkedHashMap<>();
+    explanation.put("query", queryParams);
+    explanation.put("version", database.getVersion());
+    explanation.put("rows", rows[0]);
+    explanation.put("nextCursor", nextCursor);
+    explanation.put("nanos", System.nanoTime() - startTime);
+    explanation.put("stages", trace.getStages());
+    ctx.json(explanation);
+  }
+
+  private static void respond(Context ctx, String etag, List<Todo> todos, String nextCursor) {
+    ctx.header(Header.ETAG, etag);
+    if (nextCursor != null) {
+      ctx.header(Pagination.NEXT_CURSOR_HEADER, nextCursor);
+    }
+    ctx.json(todos.toArray(new Todo[0]));
   }
 
   /**
@@ -31,14 +177,149 @@ public class TodoController {
    * @param ctx a Javalin HTTP context
    */
   public void getTodo(Context ctx) {
+    TodoDatabase database = store.current();
     String id = ctx.pathParam("id");
-    System.out.println(id);
-    Todo todo = database.getTodo(id);
-    if (todo != null) {
-      ctx.json(todo);
-      ctx.status(HttpStatus.OK);
+    String etag = ETags.forRecord(database.getVersion(), id);
+    if (ETags.notModified(ctx, etag, () -> database.getTodo(id) != null)) {
+      return;
+    }
+    if (preserialized) {
+      // Just copy the bytes; there's no object to build or serialize
+      byte[] json = database.getTodoJson(id);
+      if (json != null) {
+        ctx.contentType(ContentType.APPLICATION_JSON);
+        ctx.header(Header.ETAG, etag);
+        ctx.result(json);
+        ctx.status(HttpStatus.OK);
+        return;
+      }
     } else {
+      Todo todo = database.getTodo(id);
+      if (todo != null) {
+        ctx.header(Header.ETAG, etag);
+        ctx.json(todo);
+        ctx.status(HttpStatus.OK);
+        return;
+      }
+    }
+    throw new NotFoundResponse("No todo with id " + id + " was found.");
+  }
+
+  /**
+   * Get the number of todos (and how many of them are complete) for each
+   * owner, category, or status, as given by the `by` parameter. The todos
+   * can be filtered with the same parameters as for `getTodos`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodoGroups(Context ctx) {
+    TodoDatabase database = store.current();
+    Map<String, List<String>> queryParams = ctx.queryParamMap();
+    String etag = ETags.forQuery(database.getVersion(), queryParams);
+    if (ETags.notModified(ctx, etag)) {
+      return;
+    }
+    List<TodoGroup> groups = database.groupTodos(groupBy(ctx), TodoQuery.fromParams(queryParams));
+    ctx.header(Header.ETAG, etag);
+    ctx.json(groups);
+    ctx.status(HttpStatus.OK);
+  }
+
+  private static String groupBy(Context ctx) {
+    String attribute = ctx.queryParam("by");
+    if (attribute == null) {
+      throw new BadRequestResponse("Specify what to group by with the 'by' parameter");
+    }
+    return attribute;
+  }
+
+  /**
+   * Add a new todo, given as JSON in the body of the request, and respond
+   * with its new `_id`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void addTodo(Context ctx) {
+    Todo todo = store.add(TodoChanges.fromTodoJson(ctx.body()));
+    ctx.json(Map.of("id", todo._id));
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * Add many new todos at once, given in the body of the request as either a
+   * JSON array or newline-delimited JSON (one todo per line). The valid todos
+   * are all added together, and the response gives, for each record in
+   * order, either its new `_id` or why it wasn't added.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the request body can't be read
+   */
+  public void addTodos(Context ctx) throws IOException {
+    TodoBulkImport bulk = TodoBulkImport.read(ctx.bodyInputStream());
+    List<TodoChanges> valid = new ArrayList<>();
+    for (int i = 0; i < bulk.size(); i++) {
+      if (bulk.getTodo(i) != null) {
+        valid.add(bulk.getTodo(i));
+      }
+    }
+    Iterator<Todo> added = store.addAll(valid).iterator();
+
+    List<Map<String, String>> results = new ArrayList<>(bulk.size());
+    for (int i = 0; i < bulk.size(); i++) {
+      if (bulk.getTodo(i) != null) {
+        results.add(Map.of("id", added.next()._id));
+      } else {
+        results.add(Map.of("error", bulk.getError(i)));
+      }
+    }
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("added", valid.size());
+    response.put("failed", bulk.size() - valid.size());
+    response.put("results", results);
+    ctx.json(response);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Replace all the attributes of the todo specified by the `id` parameter
+   * with those given as JSON in the body of the request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void replaceTodo(Context ctx) {
+    respondWithChanged(ctx, TodoChanges.fromTodoJson(ctx.body()));
+  }
+
+  /**
+   * Change just the attributes of the todo specified by the `id` parameter
+   * that are given as JSON in the body of the request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updateTodo(Context ctx) {
+    respondWithChanged(ctx, TodoChanges.fromJson(ctx.body()));
+  }
+
+  private void respondWithChanged(Context ctx, TodoChanges changes) {
+    String id = ctx.pathParam("id");
+    Todo todo = store.update(id, changes);
+    if (todo == null) {
+      throw new NotFoundResponse("No todo with id " + id + " was found.");
+    }
+    ctx.json(todo);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Delete the todo specified by the `id` parameter.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void deleteTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    if (!store.delete(id)) {
       throw new NotFoundResponse("No todo with id " + id + " was found.");
     }
+    ctx.status(HttpStatus.NO_CONTENT);
   }
 }
@@ -1,134 +1,690 @@
 package umm3601.todo;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.BadRequestResponse;
+import umm3601.JsonArrayLoader;
+import umm3601.Pagination;
+import umm3601.ParallelScan;
+import umm3601.PostingLists;
+import umm3601.QueryTrace;
+import umm3601.SerializedRecords;
+import umm3601.SnapshotReader;
+import umm3601.SnapshotWriter;
 
 /*
  * A fake "database" of the todo's loaded from file
  */
 public class TodoDatabase {
-  private Todo[] allTodos;
+  private static final int[] NO_POSITIONS = new int[0];
+  // Where `version`s come from. Starting from the clock means versions
+  // aren't reused when the server restarts, either.
+  private static final AtomicLong VERSIONS = new AtomicLong(System.currentTimeMillis());
+  // Identifies the layout of todo snapshots; change it whenever that changes
+  private static final int SNAPSHOT_FORMAT = 0x70D0_0003;
+  // Databases with fewer todos than this build their indexes one at a time,
+  // since it's quicker than handing them to other threads
+  private static final int PARALLEL_INDEX_TODOS = 10_000;
+
+  /** The attributes that todos can be grouped by with `groupTodos`. */
+  static final Set<String> GROUP_ATTRIBUTES = Set.of("owner", "category", "status");
+
+  // The todos themselves, stored column by column
+  private TodoColumns columns;
+  // Secondary indexes from each owner/category to the (ascending)
+  // positions of the todos with that owner/category
+  private Map<String, int[]> ownerIndex;
+  private Map<String, int[]> categoryIndex;
+  // Positions of the complete and incomplete todos
+  private int[] completeIndex;
+  private int[] incompleteIndex;
+  // Full-text index used to narrow down the todos for `contains` queries
+  private TrigramIndex bodyIndex;
+  // For each attribute we can sort by, the positions of the todos in
+  // sorted order, and the inverse of that (the rank of each position)
+  private Map<String, int[]> sortOrders;
+  private Map<String, int[]> sortRanks;
+  // The counts of all the todos grouped by each of `GROUP_ATTRIBUTES`
+  private Map<String, List<TodoGroup>> groups;
+  // The JSON of each todo, serialized when it's first asked for
+  private SerializedRecords<Todo> serializedTodos;
+  // Checks the todos for `contains` strings when there's no index to narrow
+  // them down enough
+  private ParallelScan parallelScan = ParallelScan.shared();
+  // The todos changed since the columns and indexes were built, or null if
+  // there aren't any
+  private TodoDelta delta;
+  // Identifies this version of the data; see `getVersion`
+  private final long version = VERSIONS.incrementAndGet();
 
   public TodoDatabase(String todoDataFilename) throws IOException {
-    InputStreamReader reader = new InputStreamReader(getClass().getResourceAsStream(todoDataFilename));
-    ObjectMapper objectMapper = new ObjectMapper();
-    allTodos = objectMapper.readValue(reader, Todo[].class);
+    this(loadTodos(todoDataFilename));
   }
 
-  public int size() {
-    return allTodos.length;
+  /**
+   * Construct a database directly from an array of todos, e.g., for
+   * benchmarks that need synthetic data sets of various sizes. The todos
+   * are copied into columns, so the array isn't kept.
+   *
+   * @param todos the todos that make up the "database"
+   */
+  public TodoDatabase(Todo[] todos) {
+    columns = new TodoColumns(todos);
+    if (columns.size() < PARALLEL_INDEX_TODOS) {
+      bodyIndex = new TrigramIndex(columns.getBodies());
+      sortOrders = new HashMap<>();
+      for (String attribute : TodoQuery.SORT_ATTRIBUTES) {
+        sortOrders.put(attribute, columns.sortOrder(attribute));
+      }
+    } else {
+      // The body index and each sort order only read the columns, so build
+      // them all at once on the common fork/join pool
+      ForkJoinTask<TrigramIndex> body = ForkJoinTask.adapt(() -> new TrigramIndex(columns.getBodies())).fork();
+      sortOrders = TodoQuery.SORT_ATTRIBUTES.parallelStream()
+        .collect(Collectors.toMap(attribute -> attribute, columns::sortOrder));
+      bodyIndex = body.join();
+    }
+    buildDerivedIndexes();
   }
 
-  public Todo[] listTodos(Map<String, List<String>> queryParams) {
-    Todo[] filteredTodos = allTodos;
+  /**
+   * Used by `readSnapshot`, which fills in the columns and indexes itself.
+   */
+  private TodoDatabase() {
+  }
+
+  /**
+   * Used by `withChanges`, which shares the columns and indexes of the base
+   * database and adds a delta of changes on top.
+   */
+  private TodoDatabase(TodoDatabase base, TodoDelta delta) {
+    columns = base.columns;
+    ownerIndex = base.ownerIndex;
+    categoryIndex = base.categoryIndex;
+    completeIndex = base.completeIndex;
+    incompleteIndex = base.incompleteIndex;
+    bodyIndex = base.bodyIndex;
+    sortOrders = base.sortOrders;
+    sortRanks = base.sortRanks;
+    groups = base.groups;
+    serializedTodos = base.serializedTodos;
+    parallelScan = base.parallelScan;
+    this.delta = delta;
+  }
+
+  /**
+   * Build the indexes that are cheap to derive from the columns and the
+   * other indexes, and so aren't worth storing in a snapshot.
+   */
+  private void buildDerivedIndexes() {
+    serializedTodos = new SerializedRecords<>(Todo.class, columns.size(), columns::get);
+    ownerIndex = columns.ownerPostingLists();
+    categoryIndex = columns.categoryPostingLists();
 
-    // Filter the todos by category
-    if (queryParams.containsKey("category")) {
-      String category = queryParams.get("category").get(0);
-      filteredTodos = filterTodosByCategory(filteredTodos, category);
+    // Status sorts incomplete todos first, so its sort order is just the
+    // incomplete todos followed by the complete ones
+    int[] byStatus = sortOrders.get("status");
+    int incompleteCount = 0;
+    while (incompleteCount < byStatus.length && !columns.getStatus(byStatus[incompleteCount])) {
+      incompleteCount++;
     }
+    incompleteIndex = Arrays.copyOfRange(byStatus, 0, incompleteCount);
+    completeIndex = Arrays.copyOfRange(byStatus, incompleteCount, byStatus.length);
 
-    // Filter the todos by owner
-    if (queryParams.containsKey("owner")) {
-      String owner = queryParams.get("owner").get(0);
-      filteredTodos = filterTodosByOwner(filteredTodos, owner);
+    // Todos are never changed in place, so the counts for the whole
+    // database only need working out once
+    groups = new HashMap<>();
+    for (String attribute : GROUP_ATTRIBUTES) {
+      groups.put(attribute, columns.group(attribute, IntStream.range(0, columns.size())));
     }
 
-    // Filter todos by if they contain a given substring
-    if (queryParams.containsKey("contains")) {
-      for (String contained : queryParams.get("contains")) {
-        filteredTodos = filterTodosByContainment(filteredTodos, contained);
+    sortRanks = new HashMap<>();
+    for (Map.Entry<String, int[]> entry : sortOrders.entrySet()) {
+      int[] order = entry.getValue();
+      int[] rank = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        rank[order[i]] = i;
       }
+      sortRanks.put(entry.getKey(), rank);
     }
+  }
 
-    // Filter status if it is set
-    if (queryParams.containsKey("status")) {
-      String status = queryParams.get("status").get(0);
-      boolean statusBool = false;
-      if (status.equals("complete")) {
-        statusBool = true;
-      } else if (status.equals("incomplete")) {
-        statusBool = false;
-      } else {
-        throw new BadRequestResponse("Specified status '" + status + "' is not 'complete' or 'incomplete'");
-      }
+  /**
+   * Construct a database from a JSON file on disk, rather than one bundled
+   * with the server as a resource.
+   *
+   * @param todoDataPath the path to the JSON file of todos
+   * @throws IOException if the file can't be read
+   */
+  public TodoDatabase(Path todoDataPath) throws IOException {
+    this(new JsonArrayLoader<>(Todo.class).load(Files.newInputStream(todoDataPath), todoDataPath.toString()));
+  }
 
-      filteredTodos = filterTodosByCompleteness(filteredTodos, statusBool);
+  private static Todo[] loadTodos(String todoDataFilename) throws IOException {
+    InputStream input = TodoDatabase.class.getResourceAsStream(todoDataFilename);
+    if (input == null) {
+      throw new FileNotFoundException("No resource named " + todoDataFilename);
     }
+    return new JsonArrayLoader<>(Todo.class).load(input, todoDataFilename);
+  }
 
-    // Sort the todos based on the requested parameter
-    if (queryParams.containsKey("orderBy")) {
-      String attrib = queryParams.get("orderBy").get(0);
-      filteredTodos = sortTodosByAttribute(filteredTodos, attrib);
+  /**
+   * Write the todos, along with their indexes, to a binary snapshot that
+   * `readSnapshot` can load much faster than parsing the JSON and
+   * rebuilding the indexes. The columns are written as they are, so the
+   * snapshot is about as compact as the database is in memory.
+   *
+   * @param snapshot where to write the snapshot
+   * @throws IOException if the snapshot can't be written
+   */
+  public void writeSnapshot(Path snapshot) throws IOException {
+    if (delta != null) {
+      merged().writeSnapshot(snapshot);
+      return;
     }
+    try (SnapshotWriter output = new SnapshotWriter(snapshot, SNAPSHOT_FORMAT)) {
+      columns.write(output);
+      bodyIndex.write(output);
+      output.writePostingLists(sortOrders);
+      output.commit();
+    }
+  }
 
-    // Truncate response if limit is set
-    if (queryParams.containsKey("limit")) {
-      String limitText = queryParams.get("limit").get(0);
-      try {
-        int limit = Integer.parseInt(limitText);
-        filteredTodos = Arrays.copyOfRange(filteredTodos, 0, limit);
-      } catch (NumberFormatException e) {
-        throw new BadRequestResponse("Specified limit '" + limitText + "' can't be parsed to an integer");
+  /**
+   * Load a database from a snapshot written by `writeSnapshot`.
+   *
+   * @param snapshot the snapshot file
+   * @return the database
+   * @throws IOException if the snapshot can't be read, or was written in a
+   *                     different format
+   */
+  public static TodoDatabase readSnapshot(Path snapshot) throws IOException {
+    try (SnapshotReader input = new SnapshotReader(snapshot, SNAPSHOT_FORMAT)) {
+      TodoDatabase database = new TodoDatabase();
+      database.columns = TodoColumns.read(input);
+      database.bodyIndex = TrigramIndex.read(input);
+      database.sortOrders = input.readPostingLists();
+      if (!database.sortOrders.keySet().equals(TodoQuery.SORT_ATTRIBUTES)) {
+        throw new IOException("Snapshot " + snapshot + " doesn't have the expected sort orders");
       }
+      database.buildDerivedIndexes();
+      return database;
     }
+  }
+
+  /**
+   * Use a different scan (e.g., one with a particular number of threads)
+   * from the shared one. Set it before the database is used by more than
+   * one thread.
+   *
+   * @param scan the scan to use
+   */
+  public void setParallelScan(ParallelScan scan) {
+    this.parallelScan = scan;
+  }
 
-    return filteredTodos;
+  /**
+   * Get the version of the data in this database. Every database gets its
+   * own version, so anything derived from the data (like cached query
+   * results) can check whether it still matches.
+   *
+   * @return the version
+   */
+  public long getVersion() {
+    return version;
   }
 
-  public Todo getTodo(String id) {
-    return Arrays.stream(allTodos).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+  public int size() {
+    return delta == null ? columns.size() : delta.todoCount();
+  }
+
+  /**
+   * Make a new database with some todos changed, which shares this one's
+   * columns and indexes and keeps the changes in a `TodoDelta` on top of
+   * them. This only takes time for the changes (and those already in the
+   * delta), however many todos there are; `merged` builds new columns and
+   * indexes with the changes in them.
+   *
+   * @param changes the new state of each changed todo by ID, or null for
+   *                those that were deleted; none of the todos may be changed
+   *                afterwards
+   * @return the new database, with a new version
+   */
+  TodoDatabase withChanges(Map<String, Todo> changes) {
+    TodoDelta base = delta == null ? new TodoDelta(columns, sortOrders) : delta;
+    return new TodoDatabase(this, base.with(changes));
+  }
+
+  /**
+   * How much this database has changed since its columns and indexes were
+   * built (see `TodoDelta.size`).
+   *
+   * @return the size of the delta, or 0 if there isn't one
+   */
+  int deltaSize() {
+    return delta == null ? 0 : delta.size();
+  }
+
+  /**
+   * Build a database with the same todos, and with any changes merged into
+   * its columns and indexes.
+   *
+   * @return the new database, with a new version
+   */
+  TodoDatabase merged() {
+    TodoDatabase merged = new TodoDatabase(allTodos());
+    merged.parallelScan = parallelScan;
+    return merged;
+  }
+
+  public Todo[] listTodos(Map<String, List<String>> queryParams) {
+    return listTodos(TodoQuery.fromParams(queryParams));
+  }
+
+  /**
+   * Get an array of all the todos satisfying the given query.
+   *
+   * @param query the parsed query
+   * @return an array of all the todos matching the query
+   */
+  public Todo[] listTodos(TodoQuery query) {
+    List<Todo> matches = new ArrayList<>();
+    forEachTodo(query, matches::add);
+    return matches.toArray(new Todo[0]);
+  }
+
+  /**
+   * Pass each of the todos satisfying the given query to `action`, in order,
+   * as they are found. This lets callers (like a streaming response) handle
+   * large results without ever holding all of them at once.
+   * <p>
+   * The indexes on category, owner, status, and the body trigrams pick out
+   * the candidate todos, and the exact `contains` check is done against each
+   * candidate in a single pass. Sorted queries use the precomputed sort
+   * orders rather than comparing todos, and only keep the matches up to the
+   * end of the requested page. A `cursor` in the query lets the scan start
+   * where the previous page left off.
+   * <p>
+   * Todos changed since the indexes were built (see `withChanges`) are
+   * checked against the query one by one, and merged into the scan in
+   * order.
+   * <p>
+   * When the `contains` check has many todos to get through (because the
+   * strings are too short for the trigram index, or too common to narrow
+   * things down much), it's done in parallel by a `ParallelScan`, which
+   * still hands the matches over in order.
+   *
+   * @param query  the parsed query
+   * @param action what to do with each matching todo
+   * @return the cursor for the next page of results, or null if there are
+   *         no more results
+   */
+  public String forEachTodo(TodoQuery query, Consumer<Todo> action) {
+    return forEachTodo(query, action, null);
+  }
+
+  /**
+   * Pass each of the todos satisfying the given query to `action`, as
+   * `forEachTodo(query, action)` does, while adding what each stage of the
+   * query did to a trace: the index lookup for each filter, intersecting
+   * their results, checking the todos changed since the indexes were built
+   * (the "delta", if there are any), the `contains` check (or just the
+   * "scan" when there's nothing to check), sorting the candidates, and the
+   * "limit" that skips the offset and passes the page on. The time of the
+   * limit stage is the time spent in `action`, which isn't counted in the
+   * scan's.
+   *
+   * @param query  the parsed query
+   * @param action what to do with each matching todo
+   * @param trace  the trace to add the stages to, or null to not trace the
+   *               query
+   * @return the cursor for the next page of results, or null if there are
+   *         no more results
+   * @throws io.javalin.http.GoneResponse if the query's cursor is from
+   *                                      another version of the data
+   */
+  public String forEachTodo(TodoQuery query, Consumer<Todo> action, QueryTrace trace) {
+    query.getCursor().checkVersion(version);
+    int[] candidates = candidatePositions(query, trace);
+    IntPredicate predicate = visible(residualPredicate(query));
+    QueryTrace.CountingPredicate counter = null;
+    QueryTrace.TimedConsumer<Todo> output = null;
+    if (trace != null) {
+      counter = new QueryTrace.CountingPredicate(predicate);
+      predicate = counter;
+      output = new QueryTrace.TimedConsumer<>(action);
+    }
+    Pagination.Page<Todo> page = new Pagination.Page<>(query.getOffset(), query.getLimit(), query.getStart(),
+      output == null ? action : output);
+    long deltaStart = now(trace);
+    TodoDelta.Merge merge = delta == null ? new TodoDelta.Merge(page, query.getStart()) : delta.merge(query, page);
+    if (trace != null && delta != null) {
+      trace.addStage("delta", merge.getRowsIn(), merge.getRowsOut(), System.nanoTime() - deltaStart);
+    }
+    int start = merge.getBaseStart();
+    String scanStage = query.getContains().isEmpty() ? "scan" : "contains";
+    long scanStart = now(trace);
+
+    if (query.getOrderBy() == null || candidates == null) {
+      scan(query, start, candidates, predicate, merge);
+      if (trace != null) {
+        trace.addStage(scanStage, counter.getRowsIn(), counter.getRowsOut(),
+          System.nanoTime() - scanStart - output.getNanos());
+      }
+    } else {
+      // Sort the (hopefully few) matching candidates by their rank in the
+      // sort order, keeping only the smallest ranks we need for this page
+      int[] rank = sortRanks.get(query.getOrderBy());
+      int[] matchingRanks = new int[candidates.length];
+      int matchCount = 0;
+      for (int position : candidates) {
+        if (rank[position] >= start && predicate.test(position)) {
+          matchingRanks[matchCount++] = rank[position];
+        }
+      }
+      long sortStart = now(trace);
+      int needed = (int) Math.min((long) query.getOffset() + query.getLimit() + 1, Integer.MAX_VALUE);
+      int[] smallestRanks = smallest(matchingRanks, matchCount, needed);
+      if (trace != null) {
+        trace.addStage(scanStage, counter.getRowsIn(), counter.getRowsOut(), sortStart - scanStart);
+        trace.addStage("sort", matchCount, smallestRanks.length, System.nanoTime() - sortStart);
+      }
+      int[] order = sortOrders.get(query.getOrderBy());
+      for (int r : smallestRanks) {
+        merge.offer(columns.get(order[r]), r);
+      }
+    }
+    merge.finish();
+    if (trace != null) {
+      trace.addStage("limit", page.getSkipped() + page.getAccepted(), page.getAccepted(), output.getNanos());
+    }
+    return page.nextCursor(query.getScanOrder(), version);
+  }
+
+  /**
+   * Offer the todos matching the predicate to the page, in the scan order,
+   * until it's full, for all but sorted queries with candidates.
+   */
+  private void scan(TodoQuery query, int start, int[] candidates, IntPredicate predicate, TodoDelta.Merge merge) {
+    // Only the `contains` strings are worth checking in parallel
+    ParallelScan scanner = query.getContains().isEmpty() ? ParallelScan.SEQUENTIAL : parallelScan;
+
+    if (query.getOrderBy() == null) {
+      // Scan in the order the todos were loaded, where the scan order is
+      // just the position
+      if (candidates == null) {
+        scanner.scan(start, columns.size(), predicate,
+          position -> merge.offer(columns.get(position), position), merge::isFull);
+      } else {
+        scanner.scan(lowerBound(candidates, start), candidates.length, i -> predicate.test(candidates[i]),
+          i -> merge.offer(columns.get(candidates[i]), candidates[i]), merge::isFull);
+      }
+    } else {
+      // For sorted queries the scan order is the rank in the sort order.
+      // Nothing narrowed the candidates down, so walk all the todos in
+      // sorted order and stop as soon as the page is full
+      int[] order = sortOrders.get(query.getOrderBy());
+      scanner.scan(start, order.length, r -> predicate.test(order[r]),
+        r -> merge.offer(columns.get(order[r]), r), merge::isFull);
+    }
   }
 
   /**
-   * Get an array of all the todos having the target completeness status.
+   * Leave out the base todos that the delta has hidden.
    */
-  public Todo[] filterTodosByCompleteness(Todo[] todos, boolean completeness) {
-    return Arrays.stream(todos).filter(x -> (x.status == completeness)).toArray(Todo[]::new);
+  private IntPredicate visible(IntPredicate predicate) {
+    if (delta == null) {
+      return predicate;
+    }
+    return position -> !delta.isHidden(position) && predicate.test(position);
   }
 
   /**
-   * Get an array of all the todos containing the given string.
+   * The time, if the query is being traced.
    */
-  public Todo[] filterTodosByContainment(Todo[] todos, String value) {
-    return Arrays.stream(todos).filter(x -> (x.body.contains(value))).toArray(Todo[]::new);
+  private static long now(QueryTrace trace) {
+    return trace == null ? 0 : System.nanoTime();
   }
 
   /**
-   * Sort the array of todos by the given attribute
+   * Count the todos satisfying the given query, grouped by their value of an
+   * attribute. The filters are applied just as for `forEachTodo`, but any
+   * sorting or paging is ignored.
+   * <p>
+   * Without filters the counts come straight from those kept for the whole
+   * database. Otherwise the indexes pick out the candidates as usual, and
+   * only their positions are counted, from the columns.
+   *
+   * @param attribute one of `GROUP_ATTRIBUTES`
+   * @param query     the parsed query
+   * @return the groups with at least one matching todo, in order of their
+   *         keys
+   * @throws BadRequestResponse if todos can't be grouped by the attribute
    */
-  public Todo[] sortTodosByAttribute(Todo[] todos, String attrib) {
-    if (attrib.equals("category")) {
-      return Arrays.stream(todos).sorted(Comparator.comparing(Todo::getCategory)).toArray(Todo[]::new);
-    } else if (attrib.equals("owner")) {
-      return Arrays.stream(todos).sorted(Comparator.comparing(Todo::getOwner)).toArray(Todo[]::new);
-    } else if (attrib.equals("body")) {
-      return Arrays.stream(todos).sorted(Comparator.comparing(Todo::getBody)).toArray(Todo[]::new);
-    } else if (attrib.equals("status")) {
-      return Arrays.stream(todos).sorted(Comparator.comparing(Todo::getStatus)).toArray(Todo[]::new);
+  public List<TodoGroup> groupTodos(String attribute, TodoQuery query) {
+    if (!GROUP_ATTRIBUTES.contains(attribute)) {
+      throw new BadRequestResponse("Cannot group by attribute '" + attribute + "'");
+    }
+    int[] candidates = candidatePositions(query, null);
+    IntPredicate predicate = residualPredicate(query);
+    List<TodoGroup> counted;
+    if (candidates == null && query.getContains().isEmpty()) {
+      counted = groups.get(attribute);
     } else {
-      throw new BadRequestResponse("Cannot sort by attribute '" + attrib + "'");
+      IntStream positions = candidates == null ? IntStream.range(0, columns.size()) : Arrays.stream(candidates);
+      counted = columns.group(attribute, positions.filter(predicate));
+    }
+    if (delta == null) {
+      return counted;
+    }
+    return delta.regroup(attribute, counted,
+      position -> (candidates == null || Arrays.binarySearch(candidates, position) >= 0) && predicate.test(position),
+      query);
+  }
+
+  /**
+   * Get the index of the first value in the ascending array that is at
+   * least `value`.
+   */
+  private static int lowerBound(int[] values, int value) {
+    int found = Arrays.binarySearch(values, value);
+    return found >= 0 ? found : -found - 1;
+  }
+
+  /**
+   * Get the `k` smallest of the first `count` values, in ascending order.
+   * This keeps a bounded max-heap of the smallest values seen so far, so it
+   * takes O(count log k) time instead of sorting all `count` values.
+   */
+  private static int[] smallest(int[] values, int count, int k) {
+    if (k >= count) {
+      int[] all = Arrays.copyOf(values, count);
+      Arrays.sort(all);
+      return all;
+    }
+
+    int[] heap = new int[k];
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+      int value = values[i];
+      if (size < k) {
+        // Add the value at the bottom of the heap and sift it up
+        int child = size++;
+        while (child > 0 && heap[(child - 1) / 2] < value) {
+          heap[child] = heap[(child - 1) / 2];
+          child = (child - 1) / 2;
+        }
+        heap[child] = value;
+      } else if (k > 0 && value < heap[0]) {
+        // Replace the largest value at the top of the heap and sift it down
+        int parent = 0;
+        while (2 * parent + 1 < k) {
+          int child = 2 * parent + 1;
+          if (child + 1 < k && heap[child + 1] > heap[child]) {
+            child++;
+          }
+          if (heap[child] <= value) {
+            break;
+          }
+          heap[parent] = heap[child];
+          parent = child;
+        }
+        heap[parent] = value;
+      }
     }
+    Arrays.sort(heap);
+    return heap;
   }
 
   /**
-   * Get an array of all the todos having the target owner.
+   * Get the positions of the todos that match all the indexed
+   * filters (category, owner, and status) in the query, and that might match
+   * its `contains` strings according to the trigram index.
+   *
+   * @return the ascending array of matching positions, or null if the query
+   *         doesn't use any of the indexed filters
    */
-  public Todo[] filterTodosByOwner(Todo[] todos, String owner) {
-    return Arrays.stream(todos).filter(x -> (x.owner.equals(owner))).toArray(Todo[]::new);
+  private int[] candidatePositions(TodoQuery query, QueryTrace trace) {
+    List<int[]> postingLists = new ArrayList<>();
+    if (query.getCategory() != null) {
+      long start = now(trace);
+      postingLists.add(categoryIndex.getOrDefault(query.getCategory(), NO_POSITIONS));
+      addIndexStage(trace, "category", postingLists, start);
+    }
+    if (query.getOwner() != null) {
+      long start = now(trace);
+      postingLists.add(ownerIndex.getOrDefault(query.getOwner(), NO_POSITIONS));
+      addIndexStage(trace, "owner", postingLists, start);
+    }
+    if (query.getStatus() != null) {
+      long start = now(trace);
+      postingLists.add(query.getStatus() ? completeIndex : incompleteIndex);
+      addIndexStage(trace, "status", postingLists, start);
+    }
+    for (String contained : query.getContains()) {
+      long start = now(trace);
+      int[] bodyCandidates = bodyIndex.candidates(contained);
+      if (bodyCandidates != null) {
+        postingLists.add(bodyCandidates);
+        addIndexStage(trace, "contains index", postingLists, start);
+      }
+    }
+    if (postingLists.isEmpty()) {
+      return null;
+    }
+    long start = now(trace);
+    int[] candidates = PostingLists.intersectAll(postingLists.toArray(new int[0][]));
+    if (trace != null) {
+      long rowsIn = 0;
+      for (int[] postingList : postingLists) {
+        rowsIn += postingList.length;
+      }
+      trace.addStage("intersect", rowsIn, candidates.length, System.nanoTime() - start);
+    }
+    return candidates;
+  }
+
+  /**
+   * Add the lookup of the last of the posting lists to the trace, if there
+   * is one; the lookup is given all the todos.
+   */
+  private void addIndexStage(QueryTrace trace, String name, List<int[]> postingLists, long start) {
+    if (trace != null) {
+      trace.addStage(name, columns.size(), postingLists.get(postingLists.size() - 1).length,
+        System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Combine the filters that aren't answered exactly by an index (the
+   * `contains` strings) into a single predicate that is checked once per
+   * candidate. The strings are encoded once up front and looked for in the
+   * packed UTF-8 bodies, so no body is ever decoded just to check it.
+   */
+  private IntPredicate residualPredicate(TodoQuery query) {
+    byte[][] contains = new byte[query.getContains().size()][];
+    for (int i = 0; i < contains.length; i++) {
+      contains[i] = query.getContains().get(i).getBytes(StandardCharsets.UTF_8);
+    }
+    return position -> {
+      for (byte[] contained : contains) {
+        if (!columns.bodyContains(position, contained)) {
+          return false;
+        }
+      }
+      return true;
+    };
+  }
+
+  public Todo getTodo(String id) {
+    int changed = delta == null ? -1 : delta.indexOf(id);
+    if (changed >= 0) {
+      return delta.get(changed);
+    }
+    int position = basePosition(id);
+    return position < 0 ? null : columns.get(position);
   }
 
   /**
-   * Get an array of all the todos having the target category.
+   * Find the position of the (first) base todo with the given ID, unless
+   * the delta has hidden it.
+   *
+   * @param id the ID to look for
+   * @return the position, or -1 if there's no such todo in the base
    */
-  public Todo[] filterTodosByCategory(Todo[] todos, String category) {
-    return Arrays.stream(todos).filter(x -> (x.category.equals(category))).toArray(Todo[]::new);
+  private int basePosition(String id) {
+    int position = columns.positionOf(id);
+    return position >= 0 && delta != null && delta.isHidden(position) ? -1 : position;
+  }
+
+  /**
+   * Make new `Todo` objects for all the todos, in position order, e.g., to
+   * build a changed copy of the database from.
+   *
+   * @return the todos
+   */
+  Todo[] allTodos() {
+    if (delta != null) {
+      return delta.allTodos();
+    }
+    Todo[] todos = new Todo[columns.size()];
+    for (int position = 0; position < todos.length; position++) {
+      todos[position] = columns.get(position);
+    }
+    return todos;
+  }
+
+  /**
+   * Get the JSON of the single todo with the given ID, e.g., to send it
+   * without having to serialize it again.
+   *
+   * @param id the ID of the desired todo
+   * @return the todo as UTF-8 JSON (which mustn't be modified), or null if
+   *         there is no todo with that ID
+   */
+  public byte[] getTodoJson(String id) {
+    int changed = delta == null ? -1 : delta.indexOf(id);
+    if (changed >= 0) {
+      return delta.getJson(changed);
+    }
+    int position = basePosition(id);
+    return position < 0 ? null : serializedTodos.get(position);
   }
 }
@@ -0,0 +1,542 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+import umm3601.Pagination;
+import umm3601.SerializedRecords;
+
+/**
+ * The todos that have changed since a `TodoDatabase`'s columns and indexes
+ * were built, so that a change doesn't have to rebuild them.
+ * <p>
+ * The base todos that were deleted or replaced are hidden, by position, and
+ * the todos that were added or replaced are kept here as plain `Todo`s. Each
+ * has a key that says where it goes in the natural order: a replaced todo
+ * keeps the position of the one it replaced, and added todos come after all
+ * the base todos, in the order they were added. Merging the two in key order
+ * gives the same todos, in the same order, as rebuilding the database would.
+ * <p>
+ * Each todo here also knows its insert rank in each sort order: how many
+ * base todos sort before it, by the attribute and then the key. Its place in
+ * the merged sort order is its insert rank plus the number of todos here that
+ * sort before it, and a base todo's is its rank plus the number of todos here
+ * inserted at or before it, which is how scans of the base and of the changes
+ * are merged into one scan order that cursors can point into.
+ * <p>
+ * A delta is immutable. `with` makes a new one in time that depends on the
+ * size of the delta (and the log of the size of the base), but not on the
+ * size of the base itself, which is the point: the store merges a delta into
+ * a new base in the background once it gets big.
+ */
+final class TodoDelta {
+  private static final int[] NO_POSITIONS = new int[0];
+
+  private final TodoColumns base;
+  // The base's sort orders, for working out insert ranks
+  private final Map<String, int[]> baseOrders;
+  // The keys of the todos added since the base was built, shared by all the
+  // deltas over the same base
+  private final AddedKeys addedKeys;
+  // Ascending positions of the base todos that were deleted or replaced
+  private final int[] hidden;
+  // The added and replaced todos, and their keys, in key order
+  private final Change[] changes;
+  private final int[] keys;
+  // The JSON of each changed todo, serialized when it's first asked for
+  private final SerializedRecords<Todo> serializedChanges;
+  // The changes in each scan order, worked out when they're first scanned
+  private final Map<String, Scan> scans = new ConcurrentHashMap<>();
+
+  /**
+   * Make an empty delta over the given base.
+   *
+   * @param base       the base todos
+   * @param baseOrders the positions of the base todos in each sort order
+   */
+  TodoDelta(TodoColumns base, Map<String, int[]> baseOrders) {
+    this(base, baseOrders, new AddedKeys(base.size()), NO_POSITIONS, new Change[0]);
+  }
+
+  private TodoDelta(TodoColumns base, Map<String, int[]> baseOrders, AddedKeys addedKeys, int[] hidden,
+    Change[] changes) {
+    this.base = base;
+    this.baseOrders = baseOrders;
+    this.addedKeys = addedKeys;
+    this.hidden = hidden;
+    this.changes = changes;
+    this.keys = new int[changes.length];
+    for (int i = 0; i < changes.length; i++) {
+      keys[i] = changes[i].key;
+    }
+    this.serializedChanges = new SerializedRecords<>(Todo.class, changes.length, i -> changes[i].todo);
+  }
+
+  /**
+   * Get the key of the todo with the given ID: its position if it's one of
+   * the base todos, or else the key it was given when it was first added.
+   *
+   * @param id     the ID
+   * @param assign whether to give it a new key if it doesn't have one
+   * @return the key, or -1 if it doesn't have one
+   */
+  private int keyOf(String id, boolean assign) {
+    int position = base.positionOf(id);
+    if (position >= 0) {
+      return position;
+    }
+    if (assign) {
+      return addedKeys.assign(id);
+    }
+    Integer key = addedKeys.keys.get(id);
+    return key == null ? -1 : key;
+  }
+
+  /**
+   * Make a new delta with more changes on top of this one. This takes time
+   * for the changes, and to copy this delta's arrays, but no more.
+   *
+   * @param changed the new state of each changed todo by ID, or null for
+   *                those that were deleted; none of the todos may be changed
+   *                afterwards
+   * @return the new delta
+   */
+  TodoDelta with(Map<String, Todo> changed) {
+    // The new state of each changed todo by key
+    TreeMap<Integer, Todo> batch = new TreeMap<>();
+    for (Map.Entry<String, Todo> entry : changed.entrySet()) {
+      int key = keyOf(entry.getKey(), entry.getValue() != null);
+      if (key >= 0) {
+        batch.put(key, entry.getValue());
+      }
+    }
+
+    // Merge the batch into the changes, both in key order
+    Change[] merged = new Change[changes.length + batch.size()];
+    int count = 0;
+    int next = 0;
+    for (Map.Entry<Integer, Todo> entry : batch.entrySet()) {
+      int key = entry.getKey();
+      while (next < changes.length && changes[next].key < key) {
+        merged[count++] = changes[next++];
+      }
+      if (next < changes.length && changes[next].key == key) {
+        // Replaced or deleted
+        next++;
+      }
+      Todo todo = entry.getValue();
+      if (todo != null) {
+        merged[count++] = new Change(key, todo, insertRanks(todo, key));
+      }
+    }
+    while (next < changes.length) {
+      merged[count++] = changes[next++];
+    }
+
+    // Any change at all to a base todo hides it
+    int[] newlyHidden = batch.headMap(base.size()).keySet().stream().mapToInt(Integer::intValue).toArray();
+    return new TodoDelta(base, baseOrders, addedKeys, union(hidden, newlyHidden), Arrays.copyOf(merged, count));
+  }
+
+  /**
+   * Merge two ascending arrays into one, without duplicates.
+   */
+  private static int[] union(int[] a, int[] b) {
+    if (b.length == 0) {
+      return a;
+    }
+    int[] union = new int[a.length + b.length];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length || j < b.length) {
+      int value = j == b.length || i < a.length && a[i] <= b[j] ? a[i++] : b[j++];
+      if (count == 0 || union[count - 1] != value) {
+        union[count++] = value;
+      }
+    }
+    return Arrays.copyOf(union, count);
+  }
+
+  /**
+   * Work out how many base todos sort before a changed one in each sort
+   * order, with a binary search of each.
+   */
+  private Map<String, Integer> insertRanks(Todo todo, int key) {
+    Map<String, Integer> ranks = new HashMap<>();
+    for (Map.Entry<String, int[]> entry : baseOrders.entrySet()) {
+      String attribute = entry.getKey();
+      int[] positions = entry.getValue();
+      int low = 0;
+      int high = positions.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        int compared = base.compare(positions[middle], attribute, todo);
+        if (compared < 0 || compared == 0 && positions[middle] < key) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      ranks.put(attribute, low);
+    }
+    return ranks;
+  }
+
+  /**
+   * How much has changed: the number of hidden base todos plus the number
+   * of todos here. The bigger it is, the more work every query does on top
+   * of using the base's indexes.
+   *
+   * @return the size of the delta
+   */
+  int size() {
+    return hidden.length + changes.length;
+  }
+
+  /**
+   * Count the todos in the base with the changes applied.
+   *
+   * @return the number of todos
+   */
+  int todoCount() {
+    return base.size() - hidden.length + changes.length;
+  }
+
+  /**
+   * Check whether a base todo was deleted or replaced.
+   *
+   * @param position the position of the base todo
+   * @return true if it's hidden
+   */
+  boolean isHidden(int position) {
+    return hidden.length > 0 && Arrays.binarySearch(hidden, position) >= 0;
+  }
+
+  /**
+   * Find the changed todo with the given ID.
+   *
+   * @param id the ID
+   * @return its index, for `get` and `getJson`, or -1 if it hasn't changed
+   */
+  int indexOf(String id) {
+    int key = keyOf(id, false);
+    int index = key < 0 ? -1 : Arrays.binarySearch(keys, key);
+    return index < 0 ? -1 : index;
+  }
+
+  Todo get(int index) {
+    return copyOf(changes[index].todo);
+  }
+
+  byte[] getJson(int index) {
+    return serializedChanges.get(index);
+  }
+
+  /**
+   * Make new `Todo` objects for all the todos, base and changed, in the
+   * natural order.
+   *
+   * @return the todos
+   */
+  Todo[] allTodos() {
+    Todo[] todos = new Todo[todoCount()];
+    int count = 0;
+    int next = 0;
+    for (int position = 0; position < base.size(); position++) {
+      while (next < changes.length && changes[next].key <= position) {
+        todos[count++] = get(next++);
+      }
+      if (!isHidden(position)) {
+        todos[count++] = base.get(position);
+      }
+    }
+    while (next < changes.length) {
+      todos[count++] = get(next++);
+    }
+    return todos;
+  }
+
+  /**
+   * Correct the groups counted from the base's indexes: take off the hidden
+   * base todos that were counted, and add the changed todos that match.
+   *
+   * @param attribute   one of `TodoDatabase.GROUP_ATTRIBUTES`
+   * @param counted     the groups counted from the base
+   * @param baseMatches whether the base todo at a position was counted
+   * @param query       the query the groups are for
+   * @return the corrected groups with at least one todo, in order of their
+   *         keys
+   */
+  List<TodoGroup> regroup(String attribute, List<TodoGroup> counted, IntPredicate baseMatches, TodoQuery query) {
+    // The count and the number complete for each key
+    Map<String, int[]> counts = new TreeMap<>(Comparator.nullsFirst(Comparator.naturalOrder()));
+    for (TodoGroup group : counted) {
+      counts.put(group.getKey(), new int[] {group.getCount(), group.getComplete()});
+    }
+    for (int position : hidden) {
+      if (baseMatches.test(position)) {
+        count(counts, base.get(position), attribute, -1);
+      }
+    }
+    for (Change change : changes) {
+      if (query.matches(change.todo)) {
+        count(counts, change.todo, attribute, 1);
+      }
+    }
+
+    List<TodoGroup> groups = new ArrayList<>();
+    for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+      int[] count = entry.getValue();
+      if (count[0] > 0) {
+        groups.add(new TodoGroup(entry.getKey(), count[0], count[1]));
+      }
+    }
+    return Collections.unmodifiableList(groups);
+  }
+
+  private static void count(Map<String, int[]> counts, Todo todo, String attribute, int change) {
+    int[] count = counts.computeIfAbsent(TodoColumns.groupKey(todo, attribute), key -> new int[2]);
+    count[0] += change;
+    if (todo.status) {
+      count[1] += change;
+    }
+  }
+
+  /**
+   * Start merging the changed todos that match a query into a page of its
+   * results, where the base todos are offered to the merge in their scan
+   * order.
+   *
+   * @param query the query
+   * @param page  the page of results
+   * @return the merge
+   */
+  Merge merge(TodoQuery query, Pagination.Page<Todo> page) {
+    Scan scan = scans.computeIfAbsent(query.getScanOrder(), scanOrder -> scan(query.getOrderBy()));
+    return new Merge(scan, query, page);
+  }
+
+  /**
+   * Put the changed todos in the scan order for the given attribute, and
+   * work out where each goes in the merged scan order.
+   */
+  private Scan scan(String orderBy) {
+    if (orderBy == null) {
+      return new Scan(changes, keys, null);
+    }
+    Change[] sorted = changes.clone();
+    Comparator<Todo> order = TodoColumns.attributeOrder(orderBy);
+    Arrays.sort(sorted, (a, b) -> {
+      int compared = order.compare(a.todo, b.todo);
+      return compared != 0 ? compared : Integer.compare(a.key, b.key);
+    });
+    int[] insertRanks = new int[sorted.length];
+    int[] points = new int[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      insertRanks[i] = sorted[i].insertRanks.get(orderBy);
+      points[i] = insertRanks[i] + i;
+    }
+    return new Scan(sorted, points, insertRanks);
+  }
+
+  private static Todo copyOf(Todo todo) {
+    Todo copy = new Todo();
+    copy._id = todo._id;
+    copy.owner = todo.owner;
+    copy.status = todo.status;
+    copy.body = todo.body;
+    copy.category = todo.category;
+    return copy;
+  }
+
+  /**
+   * Count the values in the ascending array that are less than `value`.
+   */
+  private static int countBelow(int[] values, int value) {
+    int low = 0;
+    int high = values.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (values[middle] < value) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * The keys given to the todos added since a base was built. Once an ID
+   * has a key it keeps it, even if the todo is deleted and added again, so
+   * every delta over the base agrees on it, and looking up the key of an
+   * ID in a delta is just a binary search.
+   */
+  private static final class AddedKeys {
+    private final Map<String, Integer> keys = new ConcurrentHashMap<>();
+    private final AtomicInteger next;
+
+    AddedKeys(int first) {
+      next = new AtomicInteger(first);
+    }
+
+    int assign(String id) {
+      return keys.computeIfAbsent(id, added -> next.getAndIncrement());
+    }
+  }
+
+  /**
+   * An added or replaced todo, with its key and its insert rank in each
+   * sort order.
+   */
+  private static final class Change {
+    private final int key;
+    private final Todo todo;
+    private final Map<String, Integer> insertRanks;
+
+    Change(int key, Todo todo, Map<String, Integer> insertRanks) {
+      this.key = key;
+      this.todo = todo;
+      this.insertRanks = insertRanks;
+    }
+  }
+
+  /**
+   * The changed todos in one scan order, with their points in the merged
+   * scan order.
+   */
+  private static final class Scan {
+    private static final Scan NONE = new Scan(new Change[0], NO_POSITIONS, null);
+
+    private final Change[] changes;
+    private final int[] points;
+    // The insert rank of each change, or null for the natural order, where
+    // base positions and keys are already in the same scan order
+    private final int[] insertRanks;
+
+    Scan(Change[] changes, int[] points, int[] insertRanks) {
+      this.changes = changes;
+      this.points = points;
+      this.insertRanks = insertRanks;
+    }
+
+    /**
+     * Get the point in the merged scan order of a base todo.
+     */
+    int merged(int basePoint) {
+      return insertRanks == null ? basePoint : basePoint + countBelow(insertRanks, basePoint + 1);
+    }
+  }
+
+  /**
+   * Merges the changed todos that match a query into a page of its results.
+   * The base todos are offered to it in their scan order, and it offers
+   * each of them to the page after the changed todos that come before it.
+   */
+  static final class Merge {
+    private final Scan scan;
+    private final Pagination.Page<Todo> page;
+    private final int baseStart;
+    // The indexes in the scan of the matching changes from the start on
+    private final int[] matches;
+    private final int matchCount;
+    private final int checked;
+    private int next;
+
+    /**
+     * Pass the base todos straight on to the page, when there are no
+     * changes.
+     *
+     * @param page the page of results
+     * @param start where in the scan order to start
+     */
+    Merge(Pagination.Page<Todo> page, int start) {
+      this.scan = Scan.NONE;
+      this.page = page;
+      this.baseStart = start;
+      this.matches = NO_POSITIONS;
+      this.matchCount = 0;
+      this.checked = 0;
+    }
+
+    private Merge(Scan scan, TodoQuery query, Pagination.Page<Todo> page) {
+      this.scan = scan;
+      this.page = page;
+      int start = query.getStart();
+      int first = countBelow(scan.points, start);
+      // Every point before the start is either a change before `first` or
+      // a base todo, so that's where the scan of the base starts
+      baseStart = scan.insertRanks == null ? start : start - first;
+      matches = new int[scan.changes.length - first];
+      int count = 0;
+      for (int i = first; i < scan.changes.length; i++) {
+        if (query.matches(scan.changes[i].todo)) {
+          matches[count++] = i;
+        }
+      }
+      matchCount = count;
+      checked = matches.length;
+    }
+
+    /**
+     * Where the scan of the base should start, in the base's scan order.
+     *
+     * @return the base's scan point to start at
+     */
+    int getBaseStart() {
+      return baseStart;
+    }
+
+    /**
+     * Offer the next matching base todo, and any changed ones before it.
+     *
+     * @param todo      the base todo
+     * @param basePoint its point in the base's scan order
+     */
+    void offer(Todo todo, int basePoint) {
+      int point = scan.merged(basePoint);
+      offerChangesBefore(point);
+      if (!page.isFull()) {
+        page.offer(todo, point);
+      }
+    }
+
+    /**
+     * Offer the changed todos after the last base todo.
+     */
+    void finish() {
+      offerChangesBefore(Integer.MAX_VALUE);
+    }
+
+    boolean isFull() {
+      return page.isFull();
+    }
+
+    private void offerChangesBefore(int point) {
+      while (next < matchCount && !page.isFull() && scan.points[matches[next]] < point) {
+        int i = matches[next++];
+        page.offer(copyOf(scan.changes[i].todo), scan.points[i]);
+      }
+    }
+
+    /** How many changed todos were checked against the query. */
+    int getRowsIn() {
+      return checked;
+    }
+
+    /** How many of them matched. */
+    int getRowsOut() {
+      return matchCount;
+    }
+  }
+}
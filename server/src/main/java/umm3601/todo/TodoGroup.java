@@ -0,0 +1,37 @@
+package umm3601.todo;
+
+/**
+ * The number of todos with one value of the attribute they're grouped by,
+ * and how many of them are complete.
+ */
+public final class TodoGroup {
+  private final String key;
+  private final int count;
+  private final int complete;
+
+  TodoGroup(String key, int count, int complete) {
+    this.key = key;
+    this.count = count;
+    this.complete = complete;
+  }
+
+  /** The value of the attribute the todos are grouped by. */
+  public String getKey() {
+    return key;
+  }
+
+  /** How many todos are in the group. */
+  public int getCount() {
+    return count;
+  }
+
+  /** How many of the todos in the group are complete. */
+  public int getComplete() {
+    return complete;
+  }
+
+  /** The fraction of the todos in the group that are complete. */
+  public double getCompletionRatio() {
+    return count == 0 ? 0 : (double) complete / count;
+  }
+}
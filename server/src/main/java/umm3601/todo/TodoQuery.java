@@ -0,0 +1,167 @@
+package umm3601.todo;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.javalin.http.BadRequestResponse;
+import umm3601.Pagination;
+
+/**
+ * The parsed and validated form of the query parameters accepted by
+ * `TodoDatabase.listTodos`.
+ * <p>
+ * Parsing everything up front means a bad parameter is reported before the
+ * database does any work, and lets the database plan the whole query (which
+ * indexes to use, what is left to check per todo, when it can stop) instead
+ * of applying each parameter in turn.
+ */
+public final class TodoQuery {
+  /** The attributes that todos can be sorted by with `orderBy` (see `TodoColumns.sortOrder`). */
+  static final Set<String> SORT_ATTRIBUTES = Set.of("category", "owner", "body", "status");
+
+  private String category;
+  private String owner;
+  private List<String> contains = Collections.emptyList();
+  private Boolean status;
+  private String orderBy;
+  private int limit;
+  private int offset;
+  private Pagination.Cursor cursor = Pagination.Cursor.NONE;
+
+  private TodoQuery() {
+  }
+
+  /**
+   * Parse the query parameters of a request for a list of todos.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the parsed query
+   * @throws BadRequestResponse if any of the parameters are invalid
+   */
+  public static TodoQuery fromParams(Map<String, List<String>> queryParams) {
+    TodoQuery query = new TodoQuery();
+
+    if (queryParams.containsKey("category")) {
+      query.category = queryParams.get("category").get(0);
+    }
+
+    if (queryParams.containsKey("owner")) {
+      query.owner = queryParams.get("owner").get(0);
+    }
+
+    if (queryParams.containsKey("contains")) {
+      query.contains = queryParams.get("contains");
+    }
+
+    if (queryParams.containsKey("status")) {
+      query.status = parseStatus(queryParams.get("status").get(0));
+    }
+
+    if (queryParams.containsKey("orderBy")) {
+      query.orderBy = queryParams.get("orderBy").get(0);
+      if (!SORT_ATTRIBUTES.contains(query.orderBy)) {
+        throw new BadRequestResponse("Cannot sort by attribute '" + query.orderBy + "'");
+      }
+    }
+
+    query.limit = Pagination.parseLimit(queryParams);
+    query.offset = Pagination.parseOffset(queryParams);
+    query.cursor = Pagination.parseCursor(queryParams, query.getScanOrder());
+
+    return query;
+  }
+
+  /**
+   * Parse the value of a `status` query parameter.
+   *
+   * @param status either "complete" or "incomplete"
+   * @return true for "complete" and false for "incomplete"
+   */
+  private static boolean parseStatus(String status) {
+    if (status.equals("complete")) {
+      return true;
+    } else if (status.equals("incomplete")) {
+      return false;
+    } else {
+      throw new BadRequestResponse("Specified status '" + status + "' is not 'complete' or 'incomplete'");
+    }
+  }
+
+  /** The requested category, or null if there isn't one. */
+  public String getCategory() {
+    return category;
+  }
+
+  /** The requested owner, or null if there isn't one. */
+  public String getOwner() {
+    return owner;
+  }
+
+  /** The strings that every todo body must contain (possibly none). */
+  public List<String> getContains() {
+    return contains;
+  }
+
+  /** The requested status, or null if there isn't one. */
+  public Boolean getStatus() {
+    return status;
+  }
+
+  /** The attribute to sort by, or null if the todos shouldn't be sorted. */
+  public String getOrderBy() {
+    return orderBy;
+  }
+
+  /** The maximum number of todos to return (`Integer.MAX_VALUE` if unlimited). */
+  public int getLimit() {
+    return limit;
+  }
+
+  /** The number of matching todos to skip before the first one returned. */
+  public int getOffset() {
+    return offset;
+  }
+
+  /** Where in the scan order to start, from the `cursor` (0 if there isn't one). */
+  public int getStart() {
+    return cursor.getStart();
+  }
+
+  /** The `cursor` the query resumes from, which must be for the version of the data it's run on. */
+  public Pagination.Cursor getCursor() {
+    return cursor;
+  }
+
+  /**
+   * Check a single todo against the filters (but not the paging), for todos
+   * that aren't in the indexes yet.
+   *
+   * @param todo the todo to check
+   * @return whether it matches
+   */
+  boolean matches(Todo todo) {
+    if (category != null && !category.equals(todo.category)
+      || owner != null && !owner.equals(todo.owner)
+      || status != null && status != todo.status) {
+      return false;
+    }
+    for (String contained : contains) {
+      if (todo.body == null || !todo.body.contains(contained)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The name of the order the todos are scanned in: the `orderBy` attribute
+   * if there is one, or else "natural" for the order they were loaded in.
+   *
+   * @return the name of the scan order, used to tie cursors to their query
+   */
+  public String getScanOrder() {
+    return orderBy == null ? "natural" : orderBy;
+  }
+}
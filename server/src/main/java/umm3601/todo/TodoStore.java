@@ -0,0 +1,568 @@
+package umm3601.todo;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.WriteAheadLog;
+
+/**
+ * The current todos, which (unlike a `TodoDatabase`) can change.
+ * <p>
+ * Every `TodoDatabase` is immutable, so the store changes todos
+ * copy-on-write: each change makes a new database and then swaps it in with
+ * a single volatile write. Readers just take the current database and use it
+ * for the whole request, so they never wait for a writer, and never see a
+ * change that's only been applied to some of the indexes. Each new database
+ * also has a new version, which is what invalidates cached query results
+ * and entity tags.
+ * <p>
+ * Rebuilding the columns and indexes for every change would make each write
+ * take time for all the todos, so a new database shares the old one's and
+ * keeps the changed todos in a small delta on top (see
+ * `TodoDatabase.withChanges`). Once the delta has grown to 1% of the todos
+ * (and at least 1000 changes), a new database with the changes built into
+ * its indexes is made in the background, and swapped in (with the changes
+ * committed meanwhile on top) when it's ready. Writers never wait for that.
+ * <p>
+ * Writers queue their changes, and whichever writer gets to commit next
+ * commits everything in the queue as one batch: one new database, and (for
+ * a store opened with `open`) one append to the write-ahead log. So the
+ * more writers there are, the bigger the batches get, rather than each
+ * writer waiting for its own fsync.
+ * <p>
+ * The log records the state of each changed todo after the change (or the
+ * ID of a deleted one), so replaying a record twice does no harm. When the
+ * log gets too big, the current database is written out as a new JSON base
+ * file in the background, and then the part of the log it covers is
+ * dropped. Commits carry on meanwhile, and their records stay in the log.
+ */
+public final class TodoStore implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoStore.class);
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  // How big the delta of changes gets before it's merged into new indexes:
+  // at least this many changes, and at least this fraction of the todos, so
+  // that the merging done per change doesn't grow with the number of todos
+  private static final int MERGE_CHANGES = 1_000;
+  private static final int MERGE_FRACTION = 100;
+
+  private volatile TodoDatabase current;
+  // Where changes are logged, or null if they aren't
+  private final WriteAheadLog log;
+  // Where to write the whole database when the log gets too big
+  private final Path compactedFile;
+  private final long compactionBytes;
+  // How long a committing writer waits for others to join its batch
+  private final long commitDelayNanos;
+  private final int mergeChanges;
+
+  // Changes waiting for the next commit
+  private final List<PendingWrite<?>> pending = new ArrayList<>();
+  // Held while committing, so only one batch is committed at a time
+  private final Object commitLock = new Object();
+  // The counter part of the next new `_id`, starting somewhere random so
+  // IDs from different runs of the server don't collide
+  private long nextIdCounter = new SecureRandom().nextLong();
+  // The merge in the background, if there is one, and the changes committed
+  // since it started, which it won't have; both guarded by `commitLock`
+  private CompletableFuture<Void> merge;
+  private final Map<String, Todo> changedSinceMerge = new LinkedHashMap<>();
+  // The compaction in the background, if there is one; guarded by `commitLock`
+  private CompletableFuture<Void> compaction;
+
+  /**
+   * Make a store whose todos start out as those in the given database, and
+   * whose changes aren't saved anywhere.
+   *
+   * @param database the initial todos
+   */
+  public TodoStore(TodoDatabase database) {
+    this(database, MERGE_CHANGES);
+  }
+
+  /**
+   * Make a store whose changes aren't saved anywhere, and which merges them
+   * into new indexes after the given number of changes.
+   *
+   * @param database     the initial todos
+   * @param mergeChanges how big the delta of changes gets before it's merged,
+   *                     at the least
+   */
+  TodoStore(TodoDatabase database, int mergeChanges) {
+    this(database, null, null, Long.MAX_VALUE, 0, mergeChanges);
+  }
+
+  private TodoStore(TodoDatabase database, WriteAheadLog log, Path compactedFile, long compactionBytes,
+    long commitDelayNanos, int mergeChanges) {
+    this.current = database;
+    this.log = log;
+    this.compactedFile = compactedFile;
+    this.compactionBytes = compactionBytes;
+    this.commitDelayNanos = commitDelayNanos;
+    this.mergeChanges = mergeChanges;
+  }
+
+  /**
+   * Make a store that logs every change, starting from the given todos with
+   * any changes already in the log replayed on top.
+   *
+   * @param database          the todos before any of the logged changes
+   * @param logFile           the write-ahead log
+   * @param sync              whether to fsync the log before a change is
+   *                          acknowledged
+   * @param commitDelayMillis how long a writer should wait for other writers
+   *                          to join its batch before committing it; a
+   *                          little delay can save a lot of fsyncs
+   * @param compactedFile     where to write the whole database (as JSON)
+   *                          when the log gets too big; load this instead
+   *                          of the original data next time
+   * @param compactionBytes   how big the log can get before it's compacted
+   * @return the store
+   * @throws IOException if the log can't be opened
+   */
+  public static TodoStore open(TodoDatabase database, Path logFile, boolean sync, long commitDelayMillis,
+    Path compactedFile, long compactionBytes) throws IOException {
+    WorkingCopy copy = new WorkingCopy(database);
+    WriteAheadLog log;
+    try {
+      log = WriteAheadLog.open(logFile, sync, copy::replay);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    // However many changes there were, this is the one time they're merged
+    // while everyone waits
+    TodoStore store = new TodoStore(copy.isChanged() ? copy.toDatabase().merged() : database, log, compactedFile,
+      compactionBytes, TimeUnit.MILLISECONDS.toNanos(commitDelayMillis), MERGE_CHANGES);
+    synchronized (store.commitLock) {
+      store.compactIfNeeded();
+    }
+    return store;
+  }
+
+  /**
+   * Get the current todos. The database returned never changes, so use the
+   * same one for everything that has to be consistent (e.g., a whole
+   * request).
+   *
+   * @return the current database
+   */
+  public TodoDatabase current() {
+    return current;
+  }
+
+  /**
+   * Add a new todo, giving it a new `_id`.
+   *
+   * @param changes the attributes of the new todo
+   * @return the new todo
+   */
+  public Todo add(TodoChanges changes) {
+    return write(copy -> {
+      Todo todo = new Todo();
+      changes.applyTo(todo);
+      todo._id = newId(copy);
+      copy.put(todo);
+      return copyOf(todo);
+    });
+  }
+
+  /**
+   * Add many new todos at once, as a single change: they're logged in one
+   * append, and readers see either none of them or all of them.
+   *
+   * @param changes the attributes of each new todo
+   * @return the new todos, in the same order
+   */
+  public List<Todo> addAll(List<TodoChanges> changes) {
+    return write(copy -> {
+      List<Todo> added = new ArrayList<>(changes.size());
+      for (TodoChanges change : changes) {
+        Todo todo = new Todo();
+        change.applyTo(todo);
+        todo._id = newId(copy);
+        copy.put(todo);
+        added.add(copyOf(todo));
+      }
+      return added;
+    });
+  }
+
+  /**
+   * Change the todo with the given `_id`.
+   *
+   * @param id      the ID of the todo to change
+   * @param changes the attributes to change
+   * @return the todo after the changes, or null if there is no todo with
+   *         that ID
+   */
+  public Todo update(String id, TodoChanges changes) {
+    return write(copy -> {
+      Todo todo = copy.get(id);
+      if (todo == null) {
+        return null;
+      }
+      todo = copyOf(todo);
+      changes.applyTo(todo);
+      copy.put(todo);
+      return copyOf(todo);
+    });
+  }
+
+  /**
+   * Delete the todo with the given `_id`.
+   *
+   * @param id the ID of the todo to delete
+   * @return true if it was deleted, or false if there is no todo with that ID
+   */
+  public boolean delete(String id) {
+    return write(copy -> copy.delete(id));
+  }
+
+  private static Todo copyOf(Todo todo) {
+    Todo copy = new Todo();
+    copy._id = todo._id;
+    copy.owner = todo.owner;
+    copy.status = todo.status;
+    copy.body = todo.body;
+    copy.category = todo.category;
+    return copy;
+  }
+
+  /**
+   * Make a new, unused ID, in the same 24 hex digit form as the IDs in the
+   * bundled data: the time in seconds, followed by a counter.
+   */
+  private String newId(WorkingCopy copy) {
+    String id;
+    do {
+      long seconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+      id = String.format("%08x%016x", (int) seconds, nextIdCounter++);
+    } while (copy.get(id) != null);
+    return id;
+  }
+
+  /**
+   * Make a change, committing it (along with any others waiting) unless
+   * another writer has already done so, and wait until it's committed.
+   */
+  private <R> R write(Function<WorkingCopy, R> change) {
+    PendingWrite<R> write = new PendingWrite<>(change);
+    synchronized (pending) {
+      pending.add(write);
+    }
+    synchronized (commitLock) {
+      if (!write.done) {
+        if (log != null && commitDelayNanos > 0) {
+          LockSupport.parkNanos(commitDelayNanos);
+        }
+        commitPending();
+      }
+    }
+    if (write.failure != null) {
+      throw write.failure;
+    }
+    return write.result;
+  }
+
+  private void commitPending() {
+    List<PendingWrite<?>> batch;
+    synchronized (pending) {
+      batch = new ArrayList<>(pending);
+      pending.clear();
+    }
+
+    WorkingCopy copy = new WorkingCopy(current);
+    for (PendingWrite<?> write : batch) {
+      write.apply(copy);
+    }
+    if (copy.isChanged()) {
+      try {
+        // Log the changes before anyone can see them, so nothing that's
+        // been seen can be lost
+        if (log != null) {
+          log.append(copy.records);
+        }
+        current = copy.toDatabase();
+        if (merge != null) {
+          changedSinceMerge.putAll(copy.changes);
+        } else if (current.deltaSize() >= Math.max(mergeChanges, current.size() / MERGE_FRACTION)) {
+          startMerge();
+        }
+      } catch (IOException e) {
+        UncheckedIOException failure = new UncheckedIOException("Couldn't log changes to todos", e);
+        for (PendingWrite<?> write : batch) {
+          write.failure = failure;
+        }
+      }
+      compactIfNeeded();
+    }
+    for (PendingWrite<?> write : batch) {
+      write.done = true;
+    }
+  }
+
+  /**
+   * Start building a database with the current delta merged into its
+   * indexes, off the commit lock. The commits made in the meantime carry on
+   * adding to the current delta, and are applied again on top of the merged
+   * database when it's swapped in.
+   */
+  private void startMerge() {
+    CompletableFuture<TodoDatabase> merged = new CompletableFuture<>();
+    // Only start once `merge` is set, so `finishMerge` can't run first
+    merge = merged.handle(this::finishMerge);
+    merged.completeAsync(current::merged);
+  }
+
+  /**
+   * Swap in a merged database, with the changes committed since the merge
+   * started on top.
+   */
+  private Void finishMerge(TodoDatabase merged, Throwable failure) {
+    synchronized (commitLock) {
+      if (failure == null) {
+        current = changedSinceMerge.isEmpty() ? merged : merged.withChanges(changedSinceMerge);
+      } else {
+        // Queries just carry on using the delta; try again after more changes
+        LOGGER.warn("Couldn't merge the changed todos into new indexes", failure);
+      }
+      changedSinceMerge.clear();
+      merge = null;
+    }
+    return null;
+  }
+
+  /**
+   * Wait for the merge in the background, if there is one, to be swapped
+   * in.
+   */
+  void awaitMerge() {
+    CompletableFuture<Void> running;
+    synchronized (commitLock) {
+      running = merge;
+    }
+    if (running != null) {
+      running.join();
+    }
+  }
+
+  /**
+   * If the log has got too big, start writing out the current database as
+   * the new base to replay the log on top of, off the commit lock. The
+   * database only has the changes logged so far, so once it's written only
+   * that much of the log is dropped.
+   */
+  private void compactIfNeeded() {
+    if (log == null || compaction != null || log.isEmpty() || log.size() < compactionBytes) {
+      return;
+    }
+    TodoDatabase snapshot = current;
+    long covered = log.size();
+    // This can't finish (and clear `compaction`) until the commit lock is free
+    compaction = CompletableFuture.runAsync(() -> compact(snapshot, covered));
+  }
+
+  private void compact(TodoDatabase snapshot, long covered) {
+    boolean compacted = false;
+    try {
+      writeJson(snapshot.allTodos(), compactedFile);
+      log.dropBefore(covered);
+      compacted = true;
+      LOGGER.info("Compacted the todo log into " + compactedFile);
+    } catch (IOException e) {
+      // The log still has everything, so just try again later
+      LOGGER.warn("Couldn't compact the todo log into " + compactedFile, e);
+    }
+    synchronized (commitLock) {
+      compaction = null;
+      // Commits made meanwhile may have made the log too big again
+      if (compacted) {
+        compactIfNeeded();
+      }
+    }
+  }
+
+  /**
+   * Wait for the compaction in the background, if there is one (and any
+   * that it sets off), to finish.
+   */
+  void awaitCompaction() {
+    while (true) {
+      CompletableFuture<Void> running;
+      synchronized (commitLock) {
+        running = compaction;
+      }
+      if (running == null) {
+        return;
+      }
+      running.join();
+    }
+  }
+
+  /**
+   * Write todos to a JSON file, in the same form as the bundled data. The
+   * file is written next to `path`, forced to the disk, and only then moved
+   * into place, so there's always a complete copy at `path`.
+   */
+  private static void writeJson(Todo[] todos, Path path) throws IOException {
+    path = path.toAbsolutePath();
+    Files.createDirectories(path.getParent());
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+      BufferedOutputStream output = new BufferedOutputStream(file);
+      JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(output);
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      OBJECT_MAPPER.writeValue(generator, todos);
+      output.flush();
+      file.getFD().sync();
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Close the log, if there is one, once any compaction has finished. The
+   * store can't be changed after this.
+   *
+   * @throws IOException if the log can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    awaitCompaction();
+    synchronized (commitLock) {
+      if (log != null) {
+        log.close();
+      }
+    }
+  }
+
+  long logBatches() {
+    return log == null ? 0 : log.batches();
+  }
+
+  /**
+   * A change waiting to be committed, and its outcome once it has been.
+   * The outcome is set while holding `commitLock`, and the writer only looks
+   * at it after taking `commitLock` itself, so it always sees it.
+   */
+  private static final class PendingWrite<R> {
+    private final Function<WorkingCopy, R> change;
+    private R result;
+    private RuntimeException failure;
+    private boolean done;
+
+    PendingWrite(Function<WorkingCopy, R> change) {
+      this.change = change;
+    }
+
+    void apply(WorkingCopy copy) {
+      try {
+        result = change.apply(copy);
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+    }
+  }
+
+  /**
+   * The changes a batch makes to a database, which also collects the log
+   * records for them. Reads see the batch's own changes first, and then
+   * the database's todos.
+   */
+  private static final class WorkingCopy {
+    private final TodoDatabase database;
+    // The new state of each changed todo by ID, or null if it was deleted
+    private final Map<String, Todo> changes = new LinkedHashMap<>();
+    private final List<byte[]> records = new ArrayList<>();
+
+    WorkingCopy(TodoDatabase database) {
+      this.database = database;
+    }
+
+    Todo get(String id) {
+      return changes.containsKey(id) ? changes.get(id) : database.getTodo(id);
+    }
+
+    /**
+     * Add a todo, or replace the one with the same ID.
+     */
+    void put(Todo todo) {
+      apply(todo);
+      log(Map.of("put", todo));
+    }
+
+    boolean delete(String id) {
+      if (!remove(id)) {
+        return false;
+      }
+      log(Map.of("delete", id));
+      return true;
+    }
+
+    private void apply(Todo todo) {
+      changes.put(todo._id, todo);
+    }
+
+    private boolean remove(String id) {
+      if (get(id) == null) {
+        return false;
+      }
+      changes.put(id, null);
+      return true;
+    }
+
+    private void log(Map<String, Object> record) {
+      try {
+        records.add(OBJECT_MAPPER.writeValueAsBytes(record));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Make the change recorded by a log record (without logging it again).
+     */
+    void replay(byte[] record) {
+      try {
+        JsonNode node = OBJECT_MAPPER.readTree(record);
+        if (node.has("put")) {
+          apply(OBJECT_MAPPER.treeToValue(node.get("put"), Todo.class));
+        } else if (node.has("delete")) {
+          remove(node.get("delete").textValue());
+        } else {
+          throw new IOException("Unknown todo log record " + node);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    boolean isChanged() {
+      return !changes.isEmpty();
+    }
+
+    TodoDatabase toDatabase() {
+      return database.withChanges(changes);
+    }
+  }
+}
@@ -0,0 +1,392 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import umm3601.PackedStrings;
+import umm3601.SnapshotReader;
+import umm3601.SnapshotWriter;
+
+/**
+ * An inverted index from every three-byte substring ("trigram") of the UTF-8
+ * todo bodies to the positions of the todos whose body contains it.
+ * <p>
+ * Any body containing a string of three or more bytes must contain all of
+ * that string's trigrams, so intersecting their posting lists gives a
+ * (usually small) superset of the todos containing the string. The caller
+ * still has to check each candidate for the whole string.
+ * <p>
+ * A trigram fits in the low 24 bits of an int, so the index is an
+ * open-addressing hash table of plain ints rather than a map of boxed keys,
+ * which makes building it a tight loop over the packed bodies.
+ * <p>
+ * Each posting list is stored as the gaps between its positions, in as few
+ * bytes as they fit in (seven bits per byte), which for the common trigrams
+ * is one byte per todo rather than four. The index also has a budget: if
+ * the lists would take more bytes than that, the trigrams in the most
+ * bodies (which narrow a query down the least) are left out, and strings
+ * made up only of those are answered by scanning the bodies instead.
+ */
+public final class TrigramIndex {
+  private static final int GRAM_LENGTH = 3;
+  private static final int BYTE_BITS = 8;
+  private static final int BYTE_MASK = 0xFF;
+  // For the posting lists: the bits of each byte that hold part of a gap,
+  // and the bit saying that the next byte holds more of it
+  private static final int GAP_BITS = 7;
+  private static final int GAP_MASK = 0x7F;
+  private static final int MORE_BIT = 0x80;
+  // Roughly what each array costs on top of its contents
+  private static final int ARRAY_OVERHEAD = 16;
+  private static final int EMPTY = -1;
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int HASH_MULTIPLIER = 0x9E3779B9;
+  private static final int[] NO_POSITIONS = new int[0];
+
+  // Hash table from each trigram to its slot; `keys` is EMPTY where unused
+  private int[] keys = new int[INITIAL_CAPACITY];
+  private int[] slots = new int[INITIAL_CAPACITY];
+  // How far to shift a hash to get an index into `keys`
+  private int shift = Integer.numberOfLeadingZeros(INITIAL_CAPACITY - 1);
+  private int distinct;
+  // The encoded posting list of each slot, or null for trigrams left out
+  // to keep to the budget, and how many positions each list has
+  private byte[][] postingLists;
+  private int[] counts;
+
+  /**
+   * Index the given todo bodies, with a budget of as many bytes as the text
+   * of the bodies takes up.
+   *
+   * @param bodies the bodies to index, by position
+   */
+  public TrigramIndex(PackedStrings bodies) {
+    this(bodies, bodies.byteCount());
+  }
+
+  /**
+   * Index the given todo bodies.
+   *
+   * @param bodies   the bodies to index, by position
+   * @param maxBytes about the most the posting lists can take up; 0 leaves
+   *                 every trigram out, so every `contains` scans the bodies
+   */
+  public TrigramIndex(PackedStrings bodies, long maxBytes) {
+    Arrays.fill(keys, EMPTY);
+
+    // First work out how many todos contain each trigram, and how many
+    // bytes its posting list takes, so that every list can be allocated at
+    // exactly the right size (or left out). We also remember the last
+    // position counted (plus one) for each slot, so a trigram that occurs
+    // more than once in a body is only counted once.
+    counts = new int[INITIAL_CAPACITY];
+    int[] sizes = new int[INITIAL_CAPACITY];
+    int[] lastSeen = new int[INITIAL_CAPACITY];
+    for (int i = 0; i < bodies.size(); i++) {
+      byte[] bytes = bodies.chunk(i);
+      int end = bodies.end(i);
+      for (int j = bodies.start(i); j + GRAM_LENGTH <= end; j++) {
+        int slot = insert(trigramAt(bytes, j));
+        if (slot == counts.length) {
+          counts = Arrays.copyOf(counts, counts.length * 2);
+          sizes = Arrays.copyOf(sizes, sizes.length * 2);
+          lastSeen = Arrays.copyOf(lastSeen, lastSeen.length * 2);
+        }
+        if (lastSeen[slot] != i + 1) {
+          counts[slot]++;
+          sizes[slot] += gapBytes(i - lastSeen[slot]);
+          lastSeen[slot] = i + 1;
+        }
+      }
+    }
+
+    counts = Arrays.copyOf(counts, distinct);
+    postingLists = new byte[distinct][];
+    for (int slot : withinBudget(sizes, maxBytes)) {
+      postingLists[slot] = new byte[sizes[slot]];
+    }
+    Arrays.fill(sizes, 0);
+    Arrays.fill(lastSeen, 0);
+    for (int i = 0; i < bodies.size(); i++) {
+      byte[] bytes = bodies.chunk(i);
+      int end = bodies.end(i);
+      for (int j = bodies.start(i); j + GRAM_LENGTH <= end; j++) {
+        int slot = find(trigramAt(bytes, j));
+        if (postingLists[slot] != null && lastSeen[slot] != i + 1) {
+          sizes[slot] = writeGap(postingLists[slot], sizes[slot], i - lastSeen[slot]);
+          lastSeen[slot] = i + 1;
+        }
+      }
+    }
+  }
+
+  /**
+   * Pick the slots to keep: the ones in the fewest bodies, until the next
+   * one would take the posting lists over the budget.
+   */
+  private int[] withinBudget(int[] sizes, long maxBytes) {
+    Integer[] bySelectivity = new Integer[distinct];
+    for (int slot = 0; slot < distinct; slot++) {
+      bySelectivity[slot] = slot;
+    }
+    Arrays.sort(bySelectivity, Comparator.comparingInt(slot -> counts[slot]));
+    long total = 0;
+    int kept = 0;
+    while (kept < distinct && total + sizes[bySelectivity[kept]] + ARRAY_OVERHEAD <= maxBytes) {
+      total += sizes[bySelectivity[kept++]] + ARRAY_OVERHEAD;
+    }
+    int[] slotsKept = new int[kept];
+    for (int i = 0; i < kept; i++) {
+      slotsKept[i] = bySelectivity[i];
+    }
+    return slotsKept;
+  }
+
+  /**
+   * How many bytes `writeGap` takes for a gap.
+   */
+  private static int gapBytes(int gap) {
+    int bytes = 1;
+    while (gap > GAP_MASK) {
+      gap >>>= GAP_BITS;
+      bytes++;
+    }
+    return bytes;
+  }
+
+  /**
+   * Write the gap between two positions (or the first position), seven
+   * bits at a time with the lowest first, and return where it ends.
+   */
+  private static int writeGap(byte[] list, int offset, int gap) {
+    while (gap > GAP_MASK) {
+      list[offset++] = (byte) (gap & GAP_MASK | MORE_BIT);
+      gap >>>= GAP_BITS;
+    }
+    list[offset++] = (byte) gap;
+    return offset;
+  }
+
+  private TrigramIndex() {
+    Arrays.fill(keys, EMPTY);
+  }
+
+  /**
+   * Pack the three bytes starting at `start` into a single key.
+   */
+  private static int trigramAt(byte[] bytes, int start) {
+    return (bytes[start] & BYTE_MASK) << (2 * BYTE_BITS)
+      | (bytes[start + 1] & BYTE_MASK) << BYTE_BITS
+      | bytes[start + 2] & BYTE_MASK;
+  }
+
+  /**
+   * Get the slot in the table to start looking for the key at. This takes
+   * the top bits of the product, which (unlike the bottom bits) depend on
+   * all the bytes of the trigram.
+   */
+  private int home(int key) {
+    return (key * HASH_MULTIPLIER) >>> shift;
+  }
+
+  /**
+   * Get the slot of the given trigram, or -1 if it isn't in the index.
+   */
+  private int find(int key) {
+    for (int i = home(key);; i = (i + 1) & (keys.length - 1)) {
+      if (keys[i] == key) {
+        return slots[i];
+      }
+      if (keys[i] == EMPTY) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Get the slot of the given trigram, giving it the next free slot if it
+   * isn't in the index yet.
+   */
+  private int insert(int key) {
+    int i = home(key);
+    while (keys[i] != EMPTY) {
+      if (keys[i] == key) {
+        return slots[i];
+      }
+      i = (i + 1) & (keys.length - 1);
+    }
+    keys[i] = key;
+    slots[i] = distinct;
+    if (++distinct * 2 > keys.length) {
+      grow();
+    }
+    return distinct - 1;
+  }
+
+  /**
+   * Double the size of the hash table, keeping it at most half full.
+   */
+  private void grow() {
+    int[] oldKeys = keys;
+    int[] oldSlots = slots;
+    keys = new int[oldKeys.length * 2];
+    slots = new int[oldSlots.length * 2];
+    shift--;
+    Arrays.fill(keys, EMPTY);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int j = home(oldKeys[i]);
+        while (keys[j] != EMPTY) {
+          j = (j + 1) & (keys.length - 1);
+        }
+        keys[j] = oldKeys[i];
+        slots[j] = oldSlots[i];
+      }
+    }
+  }
+
+  /**
+   * Write the index to a snapshot.
+   *
+   * @param output the snapshot to write to
+   * @throws IOException if the snapshot can't be written
+   */
+  public void write(SnapshotWriter output) throws IOException {
+    output.writeInt(distinct);
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY) {
+        output.writeInt(keys[i]);
+        output.writeInt(counts[slots[i]]);
+        byte[] postingList = postingLists[slots[i]];
+        output.writeBoolean(postingList != null);
+        if (postingList != null) {
+          output.writeByteArray(postingList);
+        }
+      }
+    }
+  }
+
+  /**
+   * Read an index written to a snapshot by `write`.
+   *
+   * @param input the snapshot to read from
+   * @return the index
+   * @throws IOException if the snapshot can't be read
+   */
+  public static TrigramIndex read(SnapshotReader input) throws IOException {
+    TrigramIndex index = new TrigramIndex();
+    int count = input.readInt();
+    if (count < 0) {
+      throw new IOException("Corrupt trigram count " + count + " in snapshot");
+    }
+    index.postingLists = new byte[count][];
+    index.counts = new int[count];
+    for (int i = 0; i < count; i++) {
+      int slot = index.insert(input.readInt());
+      index.counts[slot] = input.readInt();
+      if (input.readBoolean()) {
+        index.postingLists[slot] = input.readByteArray();
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Get the positions of the todos whose body might contain the given string.
+   *
+   * @param value the string the body must contain
+   * @return an ascending array of positions that includes every todo whose
+   *         body contains `value`, or null if `value` is too short for the
+   *         index to narrow anything down, or only has trigrams that were
+   *         left out
+   */
+  public int[] candidates(String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length < GRAM_LENGTH) {
+      return null;
+    }
+
+    Integer[] indexed = new Integer[bytes.length - GRAM_LENGTH + 1];
+    int count = 0;
+    for (int i = 0; i < indexed.length; i++) {
+      int slot = find(trigramAt(bytes, i));
+      if (slot < 0) {
+        // Nothing contains this trigram, so nothing contains `value`
+        return NO_POSITIONS;
+      }
+      if (postingLists[slot] != null) {
+        indexed[count++] = slot;
+      }
+    }
+    if (count == 0) {
+      return null;
+    }
+
+    // Smallest first, so the cost is bounded by the most selective list
+    Arrays.sort(indexed, 0, count, Comparator.comparingInt(slot -> counts[slot]));
+    int[] result = new int[counts[indexed[0]]];
+    Cursor first = new Cursor(postingLists[indexed[0]]);
+    for (int i = 0; i < result.length; i++) {
+      result[i] = first.next();
+    }
+    for (int i = 1; i < count && result.length > 0; i++) {
+      result = intersect(result, postingLists[indexed[i]]);
+    }
+    return result;
+  }
+
+  /**
+   * Get the positions in an ascending array that are also in an encoded
+   * posting list, only reading as much of the list as it takes.
+   */
+  private static int[] intersect(int[] positions, byte[] postingList) {
+    int[] result = new int[positions.length];
+    int count = 0;
+    Cursor cursor = new Cursor(postingList);
+    int listed = -1;
+    for (int position : positions) {
+      while (listed < position && cursor.hasNext()) {
+        listed = cursor.next();
+      }
+      if (listed == position) {
+        result[count++] = position;
+      } else if (listed < position) {
+        // The list has run out
+        break;
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Reads the positions in an encoded posting list in order.
+   */
+  private static final class Cursor {
+    private final byte[] postingList;
+    private int offset;
+    private int position = -1;
+
+    Cursor(byte[] postingList) {
+      this.postingList = postingList;
+    }
+
+    boolean hasNext() {
+      return offset < postingList.length;
+    }
+
+    int next() {
+      int gap = 0;
+      int shifted = 0;
+      byte b;
+      do {
+        b = postingList[offset++];
+        gap |= (b & GAP_MASK) << shifted;
+        shifted += GAP_BITS;
+      } while ((b & MORE_BIT) != 0);
+      position += gap + 1;
+      return position;
+    }
+  }
+}
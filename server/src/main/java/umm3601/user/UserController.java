@@ -1,8 +1,20 @@
 package umm3601.user;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import umm3601.ControllerOptions;
+import umm3601.ETags;
+import umm3601.JsonArrayStream;
+import umm3601.Pagination;
+import umm3601.QueryCache;
 
 /**
  * Controller that manages requests for info about users.
@@ -10,6 +22,9 @@ import io.javalin.http.NotFoundResponse;
 public class UserController {
 
   private UserDatabase database;
+  private boolean streaming;
+  private QueryCache<User> cache;
+  private boolean preserialized;
 
   /**
    * Construct a controller for users.
@@ -21,7 +36,21 @@ public class UserController {
    * @param database the `Database` containing user data
    */
   public UserController(UserDatabase database) {
+    this(database, new ControllerOptions<>());
+  }
+
+  /**
+   * Construct a controller for users that answers requests as the options
+   * say (streaming lists, caching them, and so on).
+   *
+   * @param database the `Database` containing user data
+   * @param options  how to answer requests
+   */
+  public UserController(UserDatabase database, ControllerOptions<User> options) {
     this.database = database;
+    this.streaming = options.isStreaming();
+    this.cache = options.getCache();
+    this.preserialized = options.isPreserialized();
   }
 
   /**
@@ -31,13 +60,30 @@ public class UserController {
    */
   public void getUser(Context ctx) {
     String id = ctx.pathParam("id");
-    User user = database.getUser(id);
-    if (user != null) {
-      ctx.json(user);
-      ctx.status(HttpStatus.OK);
+    String etag = ETags.forRecord(database.getVersion(), id);
+    if (ETags.notModified(ctx, etag, () -> database.getUser(id) != null)) {
+      return;
+    }
+    if (preserialized) {
+      // Just copy the bytes; there's no object to build or serialize
+      byte[] json = database.getUserJson(id);
+      if (json != null) {
+        ctx.contentType(ContentType.APPLICATION_JSON);
+        ctx.header(Header.ETAG, etag);
+        ctx.result(json);
+        ctx.status(HttpStatus.OK);
+        return;
+      }
     } else {
-      throw new NotFoundResponse("No user with id " + id + " was found.");
+      User user = database.getUser(id);
+      if (user != null) {
+        ctx.header(Header.ETAG, etag);
+        ctx.json(user);
+        ctx.status(HttpStatus.OK);
+        return;
+      }
     }
+    throw new NotFoundResponse("No user with id " + id + " was found.");
   }
 
   /**
@@ -46,8 +92,82 @@ public class UserController {
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
-    User[] users = database.listUsers(ctx.queryParamMap());
-    ctx.json(users);
+    Map<String, List<String>> queryParams = ctx.queryParamMap();
+    long version = database.getVersion();
+    // The response only depends on the data and the query, so if the client
+    // already has the response for this version there's nothing to do
+    String etag = ETags.forQuery(version, queryParams);
+    if (ETags.notModified(ctx, etag)) {
+      return;
+    }
+    QueryCache.Result<User> cached = cache == null ? null : cache.get(queryParams, version);
+    if (cached != null) {
+      respond(ctx, etag, cached.getRecords(), cached.getNextCursor());
+      return;
+    }
+
+    // Parse the limit first so that a bad one fails before we start
+    // writing the response
+    if (streaming && Pagination.parseLimit(queryParams) == Integer.MAX_VALUE) {
+      // Without a limit there's never a next page, so we can send the
+      // users as soon as they're found
+      JsonArrayStream<User> stream = new JsonArrayStream<>(ctx, User.class).withHeader(Header.ETAG, etag);
+      if (cache == null) {
+        database.forEachUser(queryParams, stream);
+        stream.finish();
+      } else {
+        QueryCache.Recorder<User> recorder = cache.recorder(stream);
+        database.forEachUser(queryParams, recorder);
+        stream.finish();
+        QueryCache.Result<User> result = recorder.result(null);
+        if (result != null) {
+          cache.put(queryParams, version, result);
+        }
+      }
+    } else {
+      // The next page cursor has to go in a header, before the body,
+      // so collect the page first
+      List<User> users = new ArrayList<>();
+      String nextCursor = database.forEachUser(queryParams, users::add);
+      if (cache != null) {
+        cache.put(queryParams, version, new QueryCache.Result<>(users, nextCursor));
+      }
+      respond(ctx, etag, users, nextCursor);
+    }
   }
 
+  private static void respond(Context ctx, String etag, List<User> users, String nextCursor) {
+    ctx.header(Header.ETAG, etag);
+    if (nextCursor != null) {
+      ctx.header(Pagination.NEXT_CURSOR_HEADER, nextCursor);
+    }
+    ctx.json(users.toArray(new User[0]));
+  }
+
+  /**
+   * Get the number of users at each company or in each range of ages, as
+   * given by the `by` parameter. The users can be filtered with the same
+   * parameters as for `getUsers`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUserGroups(Context ctx) {
+    Map<String, List<String>> queryParams = ctx.queryParamMap();
+    String etag = ETags.forQuery(database.getVersion(), queryParams);
+    if (ETags.notModified(ctx, etag)) {
+      return;
+    }
+    List<UserGroup> groups = database.groupUsers(groupBy(ctx), queryParams);
+    ctx.header(Header.ETAG, etag);
+    ctx.json(groups);
+    ctx.status(HttpStatus.OK);
+  }
+
+  private static String groupBy(Context ctx) {
+    String attribute = ctx.queryParam("by");
+    if (attribute == null) {
+      throw new BadRequestResponse("Specify what to group by with the 'by' parameter");
+    }
+    return attribute;
+  }
 }
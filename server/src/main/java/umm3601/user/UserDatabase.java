@@ -1,13 +1,28 @@
 package umm3601.user;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.BadRequestResponse;
+import umm3601.JsonArrayLoader;
+import umm3601.Pagination;
+import umm3601.PostingLists;
+import umm3601.SerializedRecords;
+import umm3601.SnapshotReader;
+import umm3601.SnapshotWriter;
 
 /**
  * A fake "database" of user info
@@ -18,13 +33,170 @@ import io.javalin.http.BadRequestResponse;
  * "query" the "database".
  */
 public class UserDatabase {
+  private static final String SCAN_ORDER = "natural";
+  private static final int[] NO_POSITIONS = new int[0];
+  // Where `version`s come from. Starting from the clock means versions
+  // aren't reused when the server restarts, either.
+  private static final AtomicLong VERSIONS = new AtomicLong(System.currentTimeMillis());
+  // Identifies the layout of user snapshots; change it whenever that changes
+  private static final int SNAPSHOT_FORMAT = 0x05E2_0002;
+  // How many years of ages go in each group by default
+  private static final int DEFAULT_AGE_BUCKET = 10;
+
+  /** The attributes that users can be grouped by with `groupUsers`. */
+  static final Set<String> GROUP_ATTRIBUTES = Set.of("company", "age");
 
   private User[] allUsers;
+  // Primary key index from each user's `_id` to their position in `allUsers`
+  private Map<String, Integer> positionsById;
+  // Secondary index from each company to the (ascending) positions in
+  // `allUsers` of the users at that company
+  private Map<String, int[]> companyIndex;
+  // Sorted index on age: the positions in `allUsers` sorted by age (and
+  // then by position), along with the age at each point in that order, so
+  // the users in any range of ages are a slice found by binary search
+  private int[] positionsByAge;
+  private int[] sortedAges;
+  // The JSON of each user, serialized when it's first asked for
+  private SerializedRecords<User> serializedUsers;
+  // Identifies this version of the data; see `getVersion`
+  private final long version = VERSIONS.incrementAndGet();
 
   public UserDatabase(String userDataFile) throws IOException {
-    InputStreamReader reader = new InputStreamReader(getClass().getResourceAsStream(userDataFile));
-    ObjectMapper objectMapper = new ObjectMapper();
-    allUsers = objectMapper.readValue(reader, User[].class);
+    this(loadUsers(userDataFile));
+  }
+
+  /**
+   * Construct a database directly from an array of users, e.g., for
+   * benchmarks that need synthetic data sets of various sizes.
+   *
+   * @param users the users that make up the "database"
+   */
+  public UserDatabase(User[] users) {
+    allUsers = users;
+    companyIndex = PostingLists.build(allUsers.length, i -> allUsers[i].company);
+
+    // Sort (age, position) pairs packed into longs, which is a fast
+    // primitive sort that also keeps users of the same age in order
+    long[] agesAndPositions = new long[allUsers.length];
+    for (int i = 0; i < allUsers.length; i++) {
+      agesAndPositions[i] = (long) allUsers[i].age << Integer.SIZE | i;
+    }
+    Arrays.sort(agesAndPositions);
+    positionsByAge = new int[allUsers.length];
+    sortedAges = new int[allUsers.length];
+    for (int i = 0; i < allUsers.length; i++) {
+      sortedAges[i] = (int) (agesAndPositions[i] >> Integer.SIZE);
+      positionsByAge[i] = (int) agesAndPositions[i];
+    }
+    buildDerivedIndexes();
+  }
+
+  /**
+   * Used by `readSnapshot`, which fills in the users and indexes itself.
+   */
+  private UserDatabase() {
+  }
+
+  /**
+   * Build the indexes that aren't stored in a snapshot: the ID index, which
+   * is a hash map that would have to be rebuilt from the IDs anyway, and the
+   * (initially empty) cache of serialized users.
+   */
+  private void buildDerivedIndexes() {
+    positionsById = new HashMap<>();
+    for (int i = 0; i < allUsers.length; i++) {
+      // Keep the first user with a given ID, as the old linear scan did
+      positionsById.putIfAbsent(allUsers[i]._id, i);
+    }
+    serializedUsers = new SerializedRecords<>(User.class, allUsers.length, i -> allUsers[i]);
+  }
+
+  /**
+   * Construct a database from a JSON file on disk, rather than one bundled
+   * with the server as a resource.
+   *
+   * @param userDataPath the path to the JSON file of users
+   * @throws IOException if the file can't be read
+   */
+  public UserDatabase(Path userDataPath) throws IOException {
+    this(new JsonArrayLoader<>(User.class).load(Files.newInputStream(userDataPath), userDataPath.toString()));
+  }
+
+  private static User[] loadUsers(String userDataFile) throws IOException {
+    InputStream input = UserDatabase.class.getResourceAsStream(userDataFile);
+    if (input == null) {
+      throw new FileNotFoundException("No resource named " + userDataFile);
+    }
+    return new JsonArrayLoader<>(User.class).load(input, userDataFile);
+  }
+
+  /**
+   * Write the users, along with their company and age indexes, to a binary
+   * snapshot that `readSnapshot` can load faster than parsing the JSON and
+   * rebuilding the indexes.
+   *
+   * @param snapshot where to write the snapshot
+   * @throws IOException if the snapshot can't be written
+   */
+  public void writeSnapshot(Path snapshot) throws IOException {
+    try (SnapshotWriter output = new SnapshotWriter(snapshot, SNAPSHOT_FORMAT)) {
+      output.writeInt(allUsers.length);
+      for (User user : allUsers) {
+        output.writeString(user._id);
+        output.writeString(user.name);
+        output.writeInt(user.age);
+        output.writeString(user.company);
+        output.writeString(user.email);
+      }
+      output.writePostingLists(companyIndex);
+      output.writeIntArray(positionsByAge);
+      output.writeIntArray(sortedAges);
+      output.commit();
+    }
+  }
+
+  /**
+   * Load a database from a snapshot written by `writeSnapshot`.
+   *
+   * @param snapshot the snapshot file
+   * @return the database
+   * @throws IOException if the snapshot can't be read, or was written in a
+   *                     different format
+   */
+  public static UserDatabase readSnapshot(Path snapshot) throws IOException {
+    try (SnapshotReader input = new SnapshotReader(snapshot, SNAPSHOT_FORMAT)) {
+      UserDatabase database = new UserDatabase();
+      User[] users = new User[input.readInt()];
+      for (int i = 0; i < users.length; i++) {
+        users[i] = new User();
+        users[i]._id = input.readString();
+        users[i].name = input.readString();
+        users[i].age = input.readInt();
+        users[i].company = input.readString();
+        users[i].email = input.readString();
+      }
+      database.allUsers = users;
+      database.companyIndex = input.readPostingLists();
+      database.positionsByAge = input.readIntArray();
+      database.sortedAges = input.readIntArray();
+      if (database.positionsByAge.length != users.length || database.sortedAges.length != users.length) {
+        throw new IOException("Snapshot " + snapshot + " has an age index of the wrong size");
+      }
+      database.buildDerivedIndexes();
+      return database;
+    }
+  }
+
+  /**
+   * Get the version of the data in this database. Every database gets its
+   * own version, so anything derived from the data (like cached query
+   * results) can check whether it still matches.
+   *
+   * @return the version
+   */
+  public long getVersion() {
+    return version;
   }
 
   public int size() {
@@ -39,7 +211,21 @@ public class UserDatabase {
    * @return the user with the given ID, or null if there is no user with that ID
    */
   public User getUser(String id) {
-    return Arrays.stream(allUsers).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+    Integer position = positionsById.get(id);
+    return position == null ? null : allUsers[position];
+  }
+
+  /**
+   * Get the JSON of the single user with the given ID, e.g., to send it
+   * without having to serialize it again.
+   *
+   * @param id the ID of the desired user
+   * @return the user as UTF-8 JSON (which mustn't be modified), or null if
+   *         there is no user with that ID
+   */
+  public byte[] getUserJson(String id) {
+    Integer position = positionsById.get(id);
+    return position == null ? null : serializedUsers.get(position);
   }
 
   /**
@@ -49,50 +235,217 @@ public class UserDatabase {
    * @return an array of all the users matching the given criteria
    */
   public User[] listUsers(Map<String, List<String>> queryParams) {
-    User[] filteredUsers = allUsers;
+    List<User> matches = new ArrayList<>();
+    forEachUser(queryParams, matches::add);
+    return matches.toArray(new User[0]);
+  }
 
-    // Filter age if defined
-    if (queryParams.containsKey("age")) {
-      String ageParam = queryParams.get("age").get(0);
-      try {
-        int targetAge = Integer.parseInt(ageParam);
-        filteredUsers = filterUsersByAge(filteredUsers, targetAge);
-      } catch (NumberFormatException e) {
-        throw new BadRequestResponse("Specified age '" + ageParam + "' can't be parsed to an integer");
+  /**
+   * Pass each of the users satisfying the queries in the params to `action`,
+   * in order, as they are found.
+   * <p>
+   * `age` picks out the users of exactly that age, and `minAge` and
+   * `maxAge` the users in that (inclusive) range of ages. These are answered
+   * by binary search on the sorted age index, and `company` by the company
+   * index; the matching positions from each are intersected, so only the
+   * matching users are ever looked at.
+   * <p>
+   * The params are all checked before any users are passed to `action`, so
+   * a bad request never produces a partial result. The `limit`, `offset`,
+   * and `cursor` params pick out a single page of the matching users.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param action      what to do with each matching user
+   * @return the cursor for the next page of results, or null if there are
+   *         no more results
+   * @throws io.javalin.http.GoneResponse if the cursor is from another
+   *                                      version of the data
+   */
+  public String forEachUser(Map<String, List<String>> queryParams, Consumer<User> action) {
+    int[] matches = matchingPositions(queryParams);
+
+    // Users are always scanned in the order they were loaded, so the
+    // cursor is just a position in `allUsers`
+    Pagination.Cursor cursor = Pagination.parseCursor(queryParams, SCAN_ORDER);
+    cursor.checkVersion(version);
+    int start = cursor.getStart();
+    Pagination.Page<User> page = new Pagination.Page<>(
+      Pagination.parseOffset(queryParams), Pagination.parseLimit(queryParams), start, action);
+    if (matches == null) {
+      for (int position = start; position < allUsers.length && !page.isFull(); position++) {
+        page.offer(allUsers[position], position);
+      }
+    } else {
+      int first = Arrays.binarySearch(matches, start);
+      for (int i = first >= 0 ? first : -first - 1; i < matches.length && !page.isFull(); i++) {
+        page.offer(allUsers[matches[i]], matches[i]);
       }
     }
+    return page.nextCursor(SCAN_ORDER, version);
+  }
+
+  /**
+   * Get the positions of the users that match the filters in the params,
+   * using the indexes.
+   *
+   * @return the ascending array of matching positions, or null if there are
+   *         no filters (so every user matches)
+   */
+  private int[] matchingPositions(Map<String, List<String>> queryParams) {
+    List<int[]> postingLists = new ArrayList<>();
+
+    // Filter age if defined, either exactly or by range
+    long minAge = Integer.MIN_VALUE;
+    long maxAge = Integer.MAX_VALUE;
+    if (queryParams.containsKey("age")) {
+      int targetAge = parseAge(queryParams, "age");
+      minAge = targetAge;
+      maxAge = targetAge;
+    }
+    if (queryParams.containsKey("minAge")) {
+      minAge = Math.max(minAge, parseAge(queryParams, "minAge"));
+    }
+    if (queryParams.containsKey("maxAge")) {
+      maxAge = Math.min(maxAge, parseAge(queryParams, "maxAge"));
+    }
+    if (minAge > Integer.MIN_VALUE || maxAge < Integer.MAX_VALUE) {
+      postingLists.add(usersWithAgesBetween(minAge, maxAge));
+    }
     // Filter company if defined
     if (queryParams.containsKey("company")) {
-      String targetCompany = queryParams.get("company").get(0);
-      filteredUsers = filterUsersByCompany(filteredUsers, targetCompany);
+      postingLists.add(companyIndex.getOrDefault(queryParams.get("company").get(0), NO_POSITIONS));
     }
     // Process other query parameters here...
 
-    return filteredUsers;
+    return postingLists.isEmpty() ? null : PostingLists.intersectAll(postingLists.toArray(new int[0][]));
   }
 
   /**
-   * Get an array of all the users having the target age.
+   * Count the users satisfying the queries in the params, grouped by
+   * company or by age.
+   * <p>
+   * The filters are the same as for `forEachUser` (paging is ignored).
+   * Without any filters, each company's count is just the length of its
+   * posting list in the company index, and ages are counted in buckets of
+   * `ageBucket` years (10 by default) with a binary search per bucket along
+   * the sorted age index. With filters, only the matching users are looked
+   * at, and counted by their company or age bucket.
    *
-   * @param users     the list of users to filter by age
-   * @param targetAge the target age to look for
-   * @return an array of all the users from the given list that have the target
-   *         age
+   * @param attribute   "company" or "age"
+   * @param queryParams map of key-value pairs for the query
+   * @return the groups with at least one matching user, in order of their
+   *         companies or ages
+   * @throws BadRequestResponse if the attribute or params are invalid
+   */
+  public List<UserGroup> groupUsers(String attribute, Map<String, List<String>> queryParams) {
+    if (!GROUP_ATTRIBUTES.contains(attribute)) {
+      throw new BadRequestResponse("Cannot group by attribute '" + attribute + "'");
+    }
+    int bucket = DEFAULT_AGE_BUCKET;
+    if (queryParams.containsKey("ageBucket")) {
+      bucket = parseAge(queryParams, "ageBucket");
+      if (bucket <= 0) {
+        throw new BadRequestResponse("Specified ageBucket '" + bucket + "' must be positive");
+      }
+    }
+    int[] matches = matchingPositions(queryParams);
+    if (matches != null) {
+      return groupMatching(attribute, bucket, matches);
+    }
+
+    List<UserGroup> groups = new ArrayList<>();
+    if (attribute.equals("company")) {
+      for (Map.Entry<String, int[]> entry : companyIndex.entrySet()) {
+        groups.add(new UserGroup(entry.getKey(), entry.getValue().length));
+      }
+      groups.sort(Comparator.comparing(UserGroup::getKey, Comparator.nullsFirst(Comparator.naturalOrder())));
+    } else {
+      for (int from = 0; from < sortedAges.length;) {
+        long bucketStart = ageBucketStart(sortedAges[from], bucket);
+        long bucketEnd = bucketStart + bucket - 1;
+        int to = bucketEnd >= Integer.MAX_VALUE ? sortedAges.length : firstAgeAtLeast(bucketEnd + 1);
+        groups.add(new UserGroup(ageBucketKey(bucketStart, bucket), to - from));
+        from = to;
+      }
+    }
+    return groups;
+  }
+
+  /**
+   * Count the users at some positions by company or by age bucket, looking
+   * at just those users, so it takes time for the users that matched rather
+   * than for all of them.
    */
-  public User[] filterUsersByAge(User[] users, int targetAge) {
-    return Arrays.stream(users).filter(x -> x.age == targetAge).toArray(User[]::new);
+  private List<UserGroup> groupMatching(String attribute, int bucket, int[] matches) {
+    List<UserGroup> groups = new ArrayList<>();
+    if (attribute.equals("company")) {
+      Map<String, Integer> counts = new TreeMap<>(Comparator.nullsFirst(Comparator.naturalOrder()));
+      for (int position : matches) {
+        counts.merge(allUsers[position].company, 1, Integer::sum);
+      }
+      counts.forEach((company, count) -> groups.add(new UserGroup(company, count)));
+    } else {
+      Map<Long, Integer> counts = new TreeMap<>();
+      for (int position : matches) {
+        counts.merge(ageBucketStart(allUsers[position].age, bucket), 1, Integer::sum);
+      }
+      counts.forEach((bucketStart, count) -> groups.add(new UserGroup(ageBucketKey(bucketStart, bucket), count)));
+    }
+    return groups;
+  }
+
+  private static long ageBucketStart(int age, int bucket) {
+    return Math.floorDiv((long) age, bucket) * bucket;
+  }
+
+  private static String ageBucketKey(long bucketStart, int bucket) {
+    return bucket == 1 ? Long.toString(bucketStart) : bucketStart + "-" + (bucketStart + bucket - 1);
+  }
+
+  private static int parseAge(Map<String, List<String>> queryParams, String name) {
+    String ageParam = queryParams.get(name).get(0);
+    try {
+      return Integer.parseInt(ageParam);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified " + name + " '" + ageParam + "' can't be parsed to an integer");
+    }
   }
 
   /**
-   * Get an array of all the users having the target company.
+   * Get the positions in `allUsers` of the users whose age is in the given
+   * (inclusive) range, using the sorted age index.
    *
-   * @param users         the list of users to filter by company
-   * @param targetCompany the target company to look for
-   * @return an array of all the users from the given list that have the target
-   *         company
+   * @return the ascending array of positions
    */
-  public User[] filterUsersByCompany(User[] users, String targetCompany) {
-    return Arrays.stream(users).filter(x -> x.company.equals(targetCompany)).toArray(User[]::new);
+  private int[] usersWithAgesBetween(long minAge, long maxAge) {
+    if (minAge > maxAge) {
+      return NO_POSITIONS;
+    }
+    int from = firstAgeAtLeast(minAge);
+    int to = maxAge == Integer.MAX_VALUE ? sortedAges.length : firstAgeAtLeast(maxAge + 1);
+    // Users with the same age are already in position order, so a slice
+    // with just one age is ready to use as is
+    int[] positions = Arrays.copyOfRange(positionsByAge, from, to);
+    if (from < to && sortedAges[from] != sortedAges[to - 1]) {
+      Arrays.sort(positions);
+    }
+    return positions;
   }
 
+  /**
+   * Get the first point in the sorted age index whose age is at least `age`.
+   */
+  private int firstAgeAtLeast(long age) {
+    int low = 0;
+    int high = sortedAges.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (sortedAges[middle] < age) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
 }
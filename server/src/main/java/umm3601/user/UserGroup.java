@@ -0,0 +1,25 @@
+package umm3601.user;
+
+/**
+ * The number of users with one value of the attribute they're grouped by
+ * (e.g., one company, or one range of ages).
+ */
+public final class UserGroup {
+  private final String key;
+  private final int count;
+
+  UserGroup(String key, int count) {
+    this.key = key;
+    this.count = count;
+  }
+
+  /** The value (or range of values) of the attribute the users are grouped by. */
+  public String getKey() {
+    return key;
+  }
+
+  /** How many users are in the group. */
+  public int getCount() {
+    return count;
+  }
+}
@@ -0,0 +1,49 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+/**
+ * A `ServletOutputStream` that just keeps everything written to it, so tests
+ * can check what a controller streamed to a (mock) response.
+ */
+public class ByteArrayServletOutputStream extends ServletOutputStream {
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  private final boolean failing;
+
+  public ByteArrayServletOutputStream() {
+    this(false);
+  }
+
+  /**
+   * @param failing whether every write should fail, like it would if the
+   *                client had gone away
+   */
+  public ByteArrayServletOutputStream(boolean failing) {
+    this.failing = failing;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (failing) {
+      throw new IOException("Connection reset");
+    }
+    bytes.write(b);
+  }
+
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  @Override
+  public void setWriteListener(WriteListener writeListener) {
+  }
+
+  public byte[] toByteArray() {
+    return bytes.toByteArray();
+  }
+}
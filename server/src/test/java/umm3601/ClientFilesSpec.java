@@ -0,0 +1,106 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests preparing the client's files for serving.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ClientFilesSpec {
+  private static final Pattern SCRIPT = Pattern.compile("/javascript/app\\.([0-9a-f]{10})\\.js");
+
+  private Path source;
+  private Path target;
+
+  @BeforeEach
+  public void setUp(@TempDir Path directory) throws IOException {
+    source = directory.resolve("client");
+    target = directory.resolve("build");
+    Files.createDirectories(source.resolve("javascript"));
+    Files.writeString(source.resolve("javascript/app.js"), "console.log('hello');\n".repeat(100));
+    Files.writeString(source.resolve("index.html"),
+      "<script src=\"/javascript/app.js\"></script>\n<p>" + "Hello ".repeat(100) + "</p>\n");
+  }
+
+  private static byte[] gunzip(Path file) throws IOException {
+    try (InputStream input = new GZIPInputStream(Files.newInputStream(file))) {
+      return input.readAllBytes();
+    }
+  }
+
+  @Test
+  public void namesFilesByTheirContentsAndRewritesThePages() throws IOException {
+    ClientFiles files = ClientFiles.prepare(source, target, false);
+
+    String page = Files.readString(target.resolve("index.html"));
+    Matcher script = SCRIPT.matcher(page);
+    assertTrue(script.find(), page);
+    assertFalse(page.contains("\"/javascript/app.js\""));
+    assertEquals(Set.of("/", "/index.html", script.group()), files.paths());
+    assertArrayEquals(Files.readAllBytes(source.resolve("javascript/app.js")),
+      Files.readAllBytes(target.resolve(script.group().substring(1))));
+
+    // New contents, new name
+    Files.writeString(source.resolve("javascript/app.js"), "console.log('goodbye');\n");
+    ClientFiles.prepare(source, target, false);
+    String newPage = Files.readString(target.resolve("index.html"));
+    Matcher newScript = SCRIPT.matcher(newPage);
+    assertTrue(newScript.find(), newPage);
+    assertFalse(newScript.group().equals(script.group()));
+    // and nothing left over from before
+    assertFalse(Files.exists(target.resolve(script.group().substring(1))));
+  }
+
+  @Test
+  public void writesCompressedCopiesThatAreSmaller() throws IOException {
+    ClientFiles.prepare(source, target, false);
+    Path page = target.resolve("index.html");
+    assertArrayEquals(Files.readAllBytes(page), gunzip(target.resolve("index.html.gz")));
+    assertTrue(Files.size(target.resolve("index.html.gz")) < Files.size(page));
+    // No brotli unless asked for
+    assertFalse(Files.exists(target.resolve("index.html.br")));
+
+    // A file too small to compress is only sent as it is
+    Files.writeString(source.resolve("tiny.css"), "p{}");
+    ClientFiles files = ClientFiles.prepare(source, target, false);
+    String tiny = files.paths().stream().filter(path -> path.startsWith("/tiny.")).findFirst().orElseThrow();
+    assertEquals("p{}", Files.readString(target.resolve(tiny.substring(1)), StandardCharsets.UTF_8));
+    assertFalse(Files.exists(target.resolve(tiny.substring(1) + ".gz")));
+  }
+
+  @Test
+  public void failsWithoutBrotliLibrary() {
+    // The library isn't on the classpath for the tests
+    assertThrows(IOException.class, () -> ClientFiles.prepare(source, target, true));
+  }
+
+  @Test
+  public void parsesAcceptEncoding() {
+    assertFalse(ClientFiles.accepts(null, "gzip"));
+    assertTrue(ClientFiles.accepts("gzip, deflate, br", "gzip"));
+    assertTrue(ClientFiles.accepts("gzip, deflate, br", "br"));
+    assertTrue(ClientFiles.accepts("GZIP;q=0.5", "gzip"));
+    assertTrue(ClientFiles.accepts("*", "br"));
+    assertFalse(ClientFiles.accepts("deflate", "gzip"));
+    assertFalse(ClientFiles.accepts("gzip;q=0, br", "gzip"));
+    assertFalse(ClientFiles.accepts("identity", "br"));
+  }
+}
@@ -0,0 +1,110 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests the entity tags used for conditional requests.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ETagsSpec {
+
+  @Test
+  public void queryTagsIgnoreParameterOrder() {
+    Map<String, List<String>> first = new LinkedHashMap<>();
+    first.put("owner", List.of("Blanche"));
+    first.put("limit", List.of("5"));
+    Map<String, List<String>> second = new LinkedHashMap<>();
+    second.put("limit", List.of("5"));
+    second.put("owner", List.of("Blanche"));
+
+    assertEquals(ETags.forQuery(1, first), ETags.forQuery(1, second));
+  }
+
+  @Test
+  public void queryTagsDependOnVersionAndQuery() {
+    Map<String, List<String>> query = Map.of("owner", List.of("Blanche"));
+    assertNotEquals(ETags.forQuery(1, query), ETags.forQuery(2, query));
+    assertNotEquals(ETags.forQuery(1, query), ETags.forQuery(1, Map.of("owner", List.of("Fry"))));
+    assertNotEquals(ETags.forQuery(1, query), ETags.forQuery(1, Map.of()));
+    // Values can't run together into a different query
+    assertNotEquals(
+      ETags.forQuery(1, Map.of("a", List.of("bc"))),
+      ETags.forQuery(1, Map.of("ab", List.of("c"))));
+    assertNotEquals(
+      ETags.forQuery(1, Map.of("a", List.of("b", "c"))),
+      ETags.forQuery(1, Map.of("a", List.of("bc"))));
+  }
+
+  @Test
+  public void recordTagsDependOnVersionAndId() {
+    assertEquals(ETags.forRecord(1, "abc"), ETags.forRecord(1, "abc"));
+    assertNotEquals(ETags.forRecord(1, "abc"), ETags.forRecord(2, "abc"));
+    assertNotEquals(ETags.forRecord(1, "abc"), ETags.forRecord(1, "abd"));
+    // Weak, since the same tag goes with every encoding of the response
+    assertTrue(ETags.forRecord(1, "abc").startsWith("W/\""));
+    assertTrue(ETags.forRecord(1, "abc").endsWith("\""));
+    assertTrue(ETags.forQuery(1, Map.of()).startsWith("W/\""));
+  }
+
+  @Test
+  public void matchesIfNoneMatchHeaders() {
+    String etag = "\"1-abc\"";
+    assertFalse(ETags.matches(null, etag));
+    assertTrue(ETags.matches(etag, etag));
+    assertTrue(ETags.matches("W/" + etag, etag));
+    assertTrue(ETags.matches(etag, "W/" + etag));
+    assertTrue(ETags.matches("W/" + etag, "W/" + etag));
+    assertTrue(ETags.matches("\"0-def\", " + etag, etag));
+    assertFalse(ETags.matches("\"1-abd\"", etag));
+    // `*` depends on whether the resource exists, so it's checked apart
+    assertFalse(ETags.matches("*", etag));
+    assertTrue(ETags.matchesAny(" * "));
+    assertFalse(ETags.matchesAny(etag));
+    assertFalse(ETags.matchesAny(null));
+  }
+
+  @Test
+  public void anyTagOnlyMatchesResourcesThatExist() {
+    Context ctx = mock(Context.class);
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn("*");
+
+    assertFalse(ETags.notModified(ctx, "\"1-abc\"", () -> false));
+    verify(ctx, never()).status(any(HttpStatus.class));
+
+    assertTrue(ETags.notModified(ctx, "\"1-abc\"", () -> true));
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  public void respondsNotModifiedOnlyIfTagMatches() {
+    Context ctx = mock(Context.class);
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn("\"1-abc\"");
+
+    assertFalse(ETags.notModified(ctx, "\"2-abc\""));
+    verify(ctx, never()).status(any(HttpStatus.class));
+    verify(ctx, never()).header(anyString(), anyString());
+
+    assertTrue(ETags.notModified(ctx, "\"1-abc\""));
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx).header(Header.ETAG, "\"1-abc\"");
+  }
+}
@@ -0,0 +1,87 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.todo.Todo;
+
+/**
+ * Tests the parallel JSON array loader.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class JsonArrayLoaderSpec {
+
+  private static InputStream stream(String json) {
+    return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void loadsTheSameTodosAsJackson() throws IOException {
+    Todo[] expected = new ObjectMapper().readValue(getClass().getResourceAsStream(Server.TODO_DATA_FILE), Todo[].class);
+
+    // Use tiny chunks so the file gets split up into lots of them
+    JsonArrayLoader<Todo> loader = new JsonArrayLoader<>(Todo.class, 1000, 4);
+    Todo[] loaded = loader.load(getClass().getResourceAsStream(Server.TODO_DATA_FILE), Server.TODO_DATA_FILE);
+
+    assertEquals(expected.length, loaded.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i]._id, loaded[i]._id);
+      assertEquals(expected[i].body, loaded[i].body);
+    }
+  }
+
+  @Test
+  public void loadsWithASingleThread() throws IOException {
+    JsonArrayLoader<Todo> loader = new JsonArrayLoader<>(Todo.class, 1000, 1);
+    Todo[] loaded = loader.load(getClass().getResourceAsStream(Server.TODO_DATA_FILE), Server.TODO_DATA_FILE);
+    assertEquals(300, loaded.length);
+  }
+
+  @Test
+  public void handlesTrickyStrings() throws IOException {
+    // Brackets, braces, commas, and escaped quotes inside strings
+    String json = "  [{\"a\": \"}],{[\\\"\", \"b\": [1, {\"c\": 2}]}, {\"a\": \"\\\\\", \"b\": []},"
+      + " {\"a\": \"é中, ok\", \"b\": null}]  ";
+    JsonArrayLoader<Tricky> loader = new JsonArrayLoader<>(Tricky.class, 1, 2);
+    Tricky[] loaded = loader.load(stream(json), "tricky");
+
+    String[] values = new String[loaded.length];
+    for (int i = 0; i < loaded.length; i++) {
+      values[i] = loaded[i].a;
+    }
+    assertArrayEquals(new String[] {"}],{[\"", "\\", "é中, ok"}, values);
+  }
+
+  @Test
+  public void loadsEmptyArray() throws IOException {
+    assertEquals(0, new JsonArrayLoader<>(Todo.class).load(stream(" [ ] "), "empty").length);
+  }
+
+  @Test
+  public void rejectsBadInput() {
+    JsonArrayLoader<Todo> loader = new JsonArrayLoader<>(Todo.class);
+    assertThrows(IOException.class, () -> loader.load(stream("{\"_id\": \"1\"}"), "object"));
+    assertThrows(IOException.class, () -> loader.load(stream(""), "empty"));
+    assertThrows(IOException.class, () -> loader.load(stream("[{\"_id\": \"1\"}"), "truncated"));
+    assertThrows(IOException.class, () -> loader.load(stream("[{\"nope\": 1}]"), "unknown field"));
+  }
+
+  /**
+   * A record with awkward fields for `handlesTrickyStrings`.
+   */
+  @SuppressWarnings({"VisibilityModifier"})
+  public static class Tricky {
+    public String a;
+    public Object b;
+  }
+}
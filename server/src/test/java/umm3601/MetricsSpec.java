@@ -0,0 +1,101 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the request metrics served at /metrics.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class MetricsSpec {
+
+  @Test
+  public void countsRequestsByRouteAndStatus() {
+    Metrics metrics = new Metrics();
+    metrics.recordRequest("GET", "/api/todos/{id}", List.of(), 200, 1, 50);
+    metrics.recordRequest("GET", "/api/todos/{id}", List.of(), 200, 1, 50);
+    metrics.recordRequest("GET", "/api/todos/{id}", List.of(), 404, 1, 50);
+    metrics.recordRequest("POST", "/api/todos", List.of(), 201, 1, 50);
+
+    String text = metrics.render();
+    assertTrue(text.contains("# TYPE http_requests_total counter\n"));
+    assertTrue(text.contains(
+      "http_requests_total{method=\"GET\",route=\"/api/todos/{id}\",status=\"200\"} 2\n"));
+    assertTrue(text.contains(
+      "http_requests_total{method=\"GET\",route=\"/api/todos/{id}\",status=\"404\"} 1\n"));
+    assertTrue(text.contains(
+      "http_requests_total{method=\"POST\",route=\"/api/todos\",status=\"201\"} 1\n"));
+  }
+
+  @Test
+  public void buildsCumulativeHistograms() {
+    Metrics metrics = new Metrics();
+    // 0.3 ms, 3 ms and 20 s
+    metrics.recordRequest("GET", "/api/users", List.of(), 200, 0.3, 50);
+    metrics.recordRequest("GET", "/api/users", List.of(), 200, 3, 5_000);
+    metrics.recordRequest("GET", "/api/users", List.of(), 200, 20_000, -1);
+
+    String text = metrics.render();
+    String labels = "method=\"GET\",route=\"/api/users\"";
+    assertTrue(text.contains("# TYPE http_request_duration_seconds histogram\n"));
+    assertTrue(text.contains("http_request_duration_seconds_bucket{" + labels + ",le=\"5.0E-4\"} 1\n"));
+    assertTrue(text.contains("http_request_duration_seconds_bucket{" + labels + ",le=\"0.001\"} 1\n"));
+    assertTrue(text.contains("http_request_duration_seconds_bucket{" + labels + ",le=\"0.005\"} 2\n"));
+    assertTrue(text.contains("http_request_duration_seconds_bucket{" + labels + ",le=\"10\"} 2\n"));
+    assertTrue(text.contains("http_request_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 3\n"));
+    assertTrue(text.contains("http_request_duration_seconds_count{" + labels + "} 3\n"));
+    assertTrue(text.contains("http_request_duration_seconds_sum{" + labels + "} 20.0033\n"));
+
+    // The response with an unknown size isn't counted
+    assertTrue(text.contains("http_response_size_bytes_bucket{" + labels + ",le=\"100\"} 1\n"));
+    assertTrue(text.contains("http_response_size_bytes_bucket{" + labels + ",le=\"10000\"} 2\n"));
+    assertTrue(text.contains("http_response_size_bytes_count{" + labels + "} 2\n"));
+    assertTrue(text.contains("http_response_size_bytes_sum{" + labels + "} 5050\n"));
+  }
+
+  @Test
+  public void countsQueryShapesOfTrackedRoutes() {
+    Metrics metrics = new Metrics();
+    metrics.trackQueryShapes("GET", "/api/todos", Set.of("owner", "status", "limit"));
+    metrics.recordRequest("GET", "/api/todos", List.of("status", "owner"), 200, 1, 50);
+    metrics.recordRequest("GET", "/api/todos", List.of("owner", "status", "unknown"), 200, 1, 50);
+    metrics.recordRequest("GET", "/api/todos", List.of(), 200, 1, 50);
+    metrics.recordRequest("GET", "/api/users", List.of("age"), 200, 1, 50);
+
+    String text = metrics.render();
+    String labels = "method=\"GET\",route=\"/api/todos\"";
+    assertTrue(text.contains("http_query_shapes_total{" + labels + ",parameters=\"owner,status\"} 2\n"));
+    assertTrue(text.contains("http_query_shapes_total{" + labels + ",parameters=\"none\"} 1\n"));
+    assertFalse(text.contains("route=\"/api/users\",parameters="));
+  }
+
+  @Test
+  public void readsGaugesAndCountersWhenRendered() {
+    Metrics metrics = new Metrics();
+    AtomicInteger size = new AtomicInteger(10);
+    metrics.gauge("umm3601_records", Metrics.label("dataset", "todos"), "Records", size::get);
+    metrics.gauge("umm3601_records", Metrics.label("dataset", "users"), "Records", () -> 5);
+    metrics.counter("umm3601_hits_total", "", "Hits", () -> 1.5);
+    size.set(11);
+
+    String text = metrics.render();
+    assertTrue(text.contains("# HELP umm3601_records Records\n# TYPE umm3601_records gauge\n"
+      + "umm3601_records{dataset=\"todos\"} 11\numm3601_records{dataset=\"users\"} 5\n"));
+    assertTrue(text.contains("# TYPE umm3601_hits_total counter\numm3601_hits_total 1.5\n"));
+    // The JVM gauges are always there
+    assertTrue(text.contains("# TYPE jvm_memory_heap_used_bytes gauge\n"));
+    assertTrue(text.contains("# TYPE jvm_gc_collections_total counter\n"));
+  }
+
+  @Test
+  public void escapesLabelValues() {
+    assertEquals("gc=\"a \\\"b\\\"\\\\c\\n\"", Metrics.label("gc", "a \"b\"\\c\n"));
+  }
+}
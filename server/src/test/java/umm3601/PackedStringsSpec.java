@@ -0,0 +1,137 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the packed string store used for the todo columns.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class PackedStringsSpec {
+  private final String[] values = {"lorem ipsum", null, "", "naïve café ☕", "lorem ipsum"};
+  private final PackedStrings packed = PackedStrings.of(values.length, i -> values[i]);
+
+  @Test
+  public void canGetStringsBack() {
+    assertEquals(values.length, packed.size());
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], packed.get(i));
+    }
+    assertNull(packed.get(1));
+    assertTrue(packed.isNull(1));
+  }
+
+  @Test
+  public void canCheckContainment() {
+    assertTrue(packed.contains(0, utf8("ipsum")));
+    assertTrue(packed.contains(0, utf8("lorem ipsum")));
+    assertFalse(packed.contains(0, utf8("lorem ipsum!")));
+    assertFalse(packed.contains(0, utf8("ipsun")));
+    assertTrue(packed.contains(2, utf8("")));
+    assertFalse(packed.contains(1, utf8("")));
+    assertTrue(packed.contains(3, utf8("é ☕")));
+    assertFalse(packed.contains(3, utf8("cafe")));
+  }
+
+  @Test
+  public void canCompareStrings() {
+    assertTrue(packed.equals(0, 4));
+    assertFalse(packed.equals(0, 3));
+    assertFalse(packed.equals(0, 1));
+    assertTrue(packed.equals(1, 1));
+    assertTrue(packed.equals(3, utf8("naïve café ☕")));
+    assertFalse(packed.equals(1, utf8("")));
+    assertFalse(packed.equals(2, utf8("x")));
+    assertEquals(PackedStrings.hash(utf8("lorem ipsum")), packed.hash(0));
+  }
+
+  @Test
+  public void findsTextAnywhereInLongStrings() {
+    // Long enough to be checked eight bytes at a time, with the match at
+    // every possible starting point
+    String text = "the quick brown fox jumps over the lazy dog, naïve café ☕";
+    PackedStrings one = PackedStrings.of(1, i -> text);
+    for (int start = 0; start < text.length(); start++) {
+      for (int end = start; end <= text.length(); end++) {
+        assertTrue(one.contains(0, utf8(text.substring(start, end))), text.substring(start, end));
+      }
+    }
+    assertFalse(one.contains(0, utf8("the lazy cat")));
+    assertFalse(one.contains(0, utf8("dog, naïve café ☕!")));
+    assertFalse(one.contains(0, utf8("xthe quick")));
+  }
+
+  @Test
+  public void agreesWithStringContains() {
+    // Few letters, so there are lots of near misses
+    Random random = new Random(3601);
+    String[] strings = new String[500];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = randomText(random, random.nextInt(40));
+    }
+    PackedStrings many = PackedStrings.of(strings.length, i -> strings[i], 64);
+    for (int query = 0; query < 200; query++) {
+      String value = randomText(random, 1 + random.nextInt(5));
+      for (int i = 0; i < strings.length; i++) {
+        assertEquals(strings[i].contains(value), many.contains(i, utf8(value)), strings[i] + " / " + value);
+      }
+    }
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      text.append("abé".charAt(random.nextInt(3)));
+    }
+    return text.toString();
+  }
+
+  @Test
+  public void splitsStringsBetweenChunks() {
+    // Chunks of 8 bytes, one string longer than that, and nulls and empty
+    // strings where chunks start and end
+    String[] chunked = {"abcde", null, "fghij", "", "a string longer than a chunk", null, "klm", "nop", "qrst", null};
+    PackedStrings packedInChunks = PackedStrings.of(chunked.length, i -> chunked[i], 8);
+    for (int i = 0; i < chunked.length; i++) {
+      assertEquals(chunked[i], packedInChunks.get(i));
+    }
+    assertEquals(5 + 5 + 28 + 3 + 3 + 4, packedInChunks.byteCount());
+    assertTrue(packedInChunks.contains(4, utf8("than a")));
+    assertFalse(packedInChunks.contains(6, utf8("klmn")));
+    assertTrue(packedInChunks.equals(7, utf8("nop")));
+    assertTrue(packedInChunks.equals(1, 9));
+    assertEquals(PackedStrings.hash(utf8("qrst")), packedInChunks.hash(8));
+  }
+
+  @Test
+  public void canReadBackChunksFromSnapshot(@TempDir Path directory) throws IOException {
+    String[] chunked = {"abcde", null, "fghij", "a string longer than a chunk", ""};
+    PackedStrings packedInChunks = PackedStrings.of(chunked.length, i -> chunked[i], 8);
+    Path path = directory.resolve("strings.snapshot");
+    try (SnapshotWriter output = new SnapshotWriter(path, 1)) {
+      packedInChunks.write(output);
+      output.commit();
+    }
+    try (SnapshotReader input = new SnapshotReader(path, 1)) {
+      PackedStrings read = PackedStrings.read(input);
+      assertEquals(chunked.length, read.size());
+      for (int i = 0; i < chunked.length; i++) {
+        assertEquals(chunked[i], read.get(i));
+      }
+    }
+  }
+
+  private static byte[] utf8(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,92 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that scanning in parallel finds the same records, in the same order,
+ * as scanning sequentially.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ParallelScanSpec {
+  private ParallelScan parallel;
+
+  @BeforeEach
+  public void setUp() {
+    parallel = new ParallelScan(4, 100, 37);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    parallel.close();
+  }
+
+  private static List<Integer> scan(ParallelScan scan, int from, int to, IntPredicate matches, int limit) {
+    List<Integer> found = new ArrayList<>();
+    scan.scan(from, to, matches, found::add, () -> found.size() >= limit);
+    return found;
+  }
+
+  @Test
+  public void findsTheSameRecordsInOrder() {
+    IntPredicate[] predicates = {
+      i -> true,
+      i -> false,
+      i -> i % 3 == 0,
+      i -> i > 9_000,
+      i -> Integer.bitCount(i) == 5,
+    };
+    int[][] ranges = {{0, 10_000}, {17, 5_003}, {0, 99}, {4_000, 4_000}};
+    int[] limits = {Integer.MAX_VALUE, 0, 1, 50, 500};
+    for (IntPredicate predicate : predicates) {
+      for (int[] range : ranges) {
+        for (int limit : limits) {
+          assertEquals(scan(ParallelScan.SEQUENTIAL, range[0], range[1], predicate, limit),
+            scan(parallel, range[0], range[1], predicate, limit));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void usesThePoolForBigRanges() {
+    Set<String> threads = ConcurrentHashMap.newKeySet();
+    scan(parallel, 0, 10_000, i -> threads.add(Thread.currentThread().getName()), Integer.MAX_VALUE);
+    assertTrue(threads.stream().allMatch(name -> name.startsWith("parallel-scan-")), threads.toString());
+    assertEquals(4, parallel.getThreads());
+    assertEquals(1, ParallelScan.SEQUENTIAL.getThreads());
+    assertTrue(ParallelScan.shared().getThreads() >= 1);
+  }
+
+  @Test
+  public void stopsSoonAfterItsDone() {
+    AtomicInteger checked = new AtomicInteger();
+    List<Integer> found = scan(parallel, 0, 1_000_000, i -> checked.incrementAndGet() > 0, 10);
+    assertEquals(10, found.size());
+    // No more than the chunks in flight should have been checked
+    assertTrue(checked.get() < 100_000, "Checked " + checked.get());
+  }
+
+  @Test
+  public void passesOnFailures() {
+    IllegalStateException e = assertThrows(IllegalStateException.class, () -> scan(parallel, 0, 10_000, i -> {
+      if (i == 5_000) {
+        throw new IllegalStateException("Bad record");
+      }
+      return true;
+    }, Integer.MAX_VALUE));
+    assertTrue(e.getMessage().contains("Bad record"), e.getMessage());
+  }
+}
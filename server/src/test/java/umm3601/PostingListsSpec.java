@@ -0,0 +1,67 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the posting list helpers used by the database indexes.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class PostingListsSpec {
+
+  @Test
+  public void canBuildPostingLists() {
+    String[] keys = {"a", "b", "a", "c", "a", "b"};
+    Map<String, int[]> lists = PostingLists.build(keys.length, i -> keys[i]);
+
+    assertEquals(3, lists.size());
+    assertArrayEquals(new int[] {0, 2, 4}, lists.get("a"));
+    assertArrayEquals(new int[] {1, 5}, lists.get("b"));
+    assertArrayEquals(new int[] {3}, lists.get("c"));
+  }
+
+  @Test
+  public void canIntersectListsOfSimilarSize() {
+    int[] first = {1, 3, 5, 7, 9};
+    int[] second = {2, 3, 4, 5, 6};
+    assertArrayEquals(new int[] {3, 5}, PostingLists.intersect(first, second));
+    assertArrayEquals(new int[] {3, 5}, PostingLists.intersect(second, first));
+  }
+
+  @Test
+  public void canIntersectListsOfVeryDifferentSizes() {
+    // Make sure both orders give the same answer as a simple filter,
+    // whichever list is the short one
+    Random random = new Random(3601);
+    for (int trial = 0; trial < 100; trial++) {
+      int[] shorter = randomList(random, 1 + random.nextInt(10), 10000);
+      int[] longer = randomList(random, 500 + random.nextInt(5000), 10000);
+      int[] expected = Arrays.stream(shorter).filter(x -> Arrays.binarySearch(longer, x) >= 0).toArray();
+
+      assertArrayEquals(expected, PostingLists.intersect(shorter, longer));
+      assertArrayEquals(expected, PostingLists.intersect(longer, shorter));
+    }
+  }
+
+  @Test
+  public void canIntersectAll() {
+    int[] first = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+    int[] second = {1, 3, 5, 7, 9};
+    int[] third = {3, 6, 9};
+    assertArrayEquals(new int[] {3, 9}, PostingLists.intersectAll(first, second, third));
+    assertArrayEquals(new int[] {}, PostingLists.intersectAll(first, new int[] {}, third));
+  }
+
+  /**
+   * Make an ascending list of distinct random positions below `bound`.
+   */
+  private static int[] randomList(Random random, int size, int bound) {
+    return random.ints(size, 0, bound).distinct().sorted().toArray();
+  }
+}
@@ -0,0 +1,150 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the cache of query results used by the list endpoints.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class QueryCacheSpec {
+
+  private static Map<String, List<String>> params(String... namesAndValues) {
+    Map<String, List<String>> params = new LinkedHashMap<>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      params.put(namesAndValues[i], List.of(namesAndValues[i + 1]));
+    }
+    return params;
+  }
+
+  private static QueryCache.Result<Integer> result(int size) {
+    List<Integer> records = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      records.add(i);
+    }
+    return new QueryCache.Result<>(records, null);
+  }
+
+  @Test
+  public void countsHitsAndMisses() {
+    QueryCache<Integer> cache = new QueryCache<>(100);
+    assertNull(cache.get(params("age", "25"), 1));
+    QueryCache.Result<Integer> result = result(3);
+    cache.put(params("age", "25"), 1, result);
+    assertSame(result, cache.get(params("age", "25"), 1));
+    assertNull(cache.get(params("age", "26"), 1));
+
+    QueryCache.Stats stats = cache.getStats();
+    assertEquals(1, stats.getHits());
+    assertEquals(2, stats.getMisses());
+    assertEquals(0, stats.getEvictions());
+    assertEquals(1, stats.getEntries());
+    assertEquals(4, stats.getWeight());
+    assertEquals(100, stats.getMaxWeight());
+  }
+
+  @Test
+  public void ignoresOrderOfParameters() {
+    QueryCache<Integer> cache = new QueryCache<>(100);
+    QueryCache.Result<Integer> result = result(1);
+    cache.put(params("age", "25", "company", "OHMNET"), 1, result);
+    assertSame(result, cache.get(new HashMap<>(params("company", "OHMNET", "age", "25")), 1));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedByWeight() {
+    QueryCache<Integer> cache = new QueryCache<>(10);
+    cache.put(params("q", "a"), 1, result(3));
+    cache.put(params("q", "b"), 1, result(3));
+    // Using "a" makes "b" the least recently used
+    assertNotNull(cache.get(params("q", "a"), 1));
+    cache.put(params("q", "c"), 1, result(3));
+
+    assertNull(cache.get(params("q", "b"), 1));
+    assertNotNull(cache.get(params("q", "a"), 1));
+    assertNotNull(cache.get(params("q", "c"), 1));
+    assertEquals(1, cache.getStats().getEvictions());
+    assertEquals(8, cache.getStats().getWeight());
+  }
+
+  @Test
+  public void replacingAnEntryUpdatesTheWeight() {
+    QueryCache<Integer> cache = new QueryCache<>(10);
+    cache.put(params("q", "a"), 1, result(5));
+    cache.put(params("q", "a"), 1, result(2));
+    assertEquals(3, cache.getStats().getWeight());
+    assertEquals(1, cache.getStats().getEntries());
+  }
+
+  @Test
+  public void doesNotCacheResultsHeavierThanTheCache() {
+    QueryCache<Integer> cache = new QueryCache<>(10);
+    cache.put(params("q", "a"), 1, result(3));
+    cache.put(params("q", "b"), 1, result(10));
+
+    assertNull(cache.get(params("q", "b"), 1));
+    assertNotNull(cache.get(params("q", "a"), 1));
+    assertEquals(0, cache.getStats().getEvictions());
+  }
+
+  @Test
+  public void newDataVersionInvalidatesEverything() {
+    QueryCache<Integer> cache = new QueryCache<>(100);
+    cache.put(params("q", "a"), 1, result(3));
+    assertNull(cache.get(params("q", "a"), 2));
+    assertEquals(0, cache.getStats().getEntries());
+    assertEquals(0, cache.getStats().getWeight());
+
+    // Results from an old version don't get added either
+    cache.put(params("q", "a"), 2, result(3));
+    cache.put(params("q", "b"), 1, result(3));
+    assertNull(cache.get(params("q", "b"), 2));
+    assertNotNull(cache.get(params("q", "a"), 2));
+  }
+
+  @Test
+  public void slowRequestsOnAnOldVersionDontEmptyTheCache() {
+    QueryCache<Integer> cache = new QueryCache<>(100);
+    QueryCache.Result<Integer> current = result(3);
+    cache.put(params("q", "a"), 2, current);
+
+    // A request that started before the write finishes after it
+    assertNull(cache.get(params("q", "a"), 1));
+    cache.put(params("q", "b"), 1, result(3));
+
+    // The results for the current version are all still there
+    assertSame(current, cache.get(params("q", "a"), 2));
+    assertNull(cache.get(params("q", "b"), 2));
+    assertEquals(1, cache.getStats().getEntries());
+    assertEquals(4, cache.getStats().getWeight());
+  }
+
+  @Test
+  public void recorderPassesRecordsOnAndStopsRecordingWhenTooHeavy() {
+    QueryCache<Integer> cache = new QueryCache<>(4);
+    List<Integer> passed = new ArrayList<>();
+
+    QueryCache.Recorder<Integer> small = cache.recorder(passed::add);
+    small.accept(1);
+    small.accept(2);
+    assertEquals(List.of(1, 2), small.result("next").getRecords());
+    assertEquals("next", small.result("next").getNextCursor());
+
+    QueryCache.Recorder<Integer> large = cache.recorder(passed::add);
+    for (int i = 0; i < 5; i++) {
+      large.accept(i);
+    }
+    assertNull(large.result(null));
+    assertEquals(7, passed.size());
+  }
+}
@@ -0,0 +1,253 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Tests the choice of threads for requests, and the limit on how many are
+ * handled at once.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class RequestExecutionSpec {
+  private final ExecutorService threads = Executors.newCachedThreadPool();
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch finish = new CountDownLatch(1);
+  // A handler that holds its turn until `finish` is counted down
+  private final Handler blocking = ctx -> {
+    started.countDown();
+    finish.await();
+  };
+
+  @AfterEach
+  public void tearDown() {
+    finish.countDown();
+    threads.shutdownNow();
+  }
+
+  @Test
+  public void rejectsUnknownModes() {
+    assertThrows(IllegalArgumentException.class, () -> new RequestExecution("green", 1, 1, 1));
+  }
+
+  @Test
+  public void sizesPlatformPoolForActiveAndQueuedRequests() {
+    ThreadPool pool = new RequestExecution(RequestExecution.PLATFORM, 8, 100, 1000).threadPool();
+    assertEquals(8 + 100 + 16, ((QueuedThreadPool) pool).getMaxThreads());
+  }
+
+  @Test
+  public void rejectsWorkOncePlatformPoolAndQueueAreFull() throws Exception {
+    QueuedThreadPool pool = (QueuedThreadPool) new RequestExecution(RequestExecution.PLATFORM, 1, 1, 1000)
+      .threadPool();
+    pool.start();
+    try {
+      // Occupy every thread, then fill the queue
+      CountDownLatch running = new CountDownLatch(pool.getMaxThreads());
+      for (int i = 0; i < pool.getMaxThreads(); i++) {
+        pool.execute(() -> {
+          running.countDown();
+          try {
+            finish.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+      }
+      assertTrue(running.await(10, TimeUnit.SECONDS));
+      for (int i = 0; i < 1 + 16; i++) {
+        pool.execute(() -> { });
+      }
+      assertThrows(RejectedExecutionException.class, () -> pool.execute(() -> { }));
+    } finally {
+      finish.countDown();
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void namesFallbackFromVirtualThreads() {
+    RequestExecution execution = new RequestExecution(RequestExecution.VIRTUAL, 8, 100, 1000);
+    ExecutorService virtual = RequestExecution.virtualThreadExecutor();
+    execution.threadPool();
+    if (virtual == null) {
+      assertTrue(execution.toString().startsWith("platform (falling back from virtual) threads"));
+    } else {
+      virtual.shutdown();
+      assertTrue(execution.toString().startsWith("virtual threads"));
+    }
+  }
+
+  @Test
+  public void fallsBackToPlatformThreadsWithoutVirtualThreads() throws Exception {
+    RequestExecution execution = new RequestExecution(RequestExecution.VIRTUAL, 1, 1, 1000, () -> null);
+    QueuedThreadPool pool = (QueuedThreadPool) execution.threadPool();
+    assertEquals(1 + 1 + 16, pool.getMaxThreads());
+    assertTrue(execution.toString().startsWith("platform (falling back from virtual) threads"));
+
+    pool.start();
+    try {
+      CountDownLatch ran = new CountDownLatch(1);
+      pool.execute(ran::countDown);
+      assertTrue(ran.await(10, TimeUnit.SECONDS));
+    } finally {
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void runsEachTaskOnTheVirtualThreadExecutor() throws Exception {
+    // Any executor will do in place of one for virtual threads
+    ExecutorService executor = Executors.newCachedThreadPool();
+    RequestExecution execution = new RequestExecution(RequestExecution.VIRTUAL, 1, 1, 1000, () -> executor);
+    ThreadPool pool = execution.threadPool();
+    assertTrue(execution.toString().startsWith("virtual threads"));
+    assertFalse(pool instanceof QueuedThreadPool);
+    assertFalse(pool.isLowOnThreads());
+
+    // Jetty starts and stops the pool along with the server
+    ((LifeCycle) pool).start();
+    CountDownLatch ran = new CountDownLatch(1);
+    pool.execute(ran::countDown);
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+    ((LifeCycle) pool).stop();
+    assertTrue(executor.isShutdown());
+  }
+
+  @Test
+  public void usesJavalinPoolForJetty() {
+    assertNull(new RequestExecution(RequestExecution.JETTY, 8, 100, 1000).threadPool());
+  }
+
+  @Test
+  public void usesVirtualThreadsOnlyWhenAvailable() throws Exception {
+    ThreadPool pool = new RequestExecution(RequestExecution.VIRTUAL, 8, 100, 1000).threadPool();
+    ExecutorService virtual = RequestExecution.virtualThreadExecutor();
+    if (virtual == null) {
+      assertTrue(pool instanceof QueuedThreadPool);
+    } else {
+      virtual.shutdown();
+      CountDownLatch ran = new CountDownLatch(1);
+      pool.execute(ran::countDown);
+      assertTrue(ran.await(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void doesNotWrapHandlersWithoutLimit() {
+    assertSame(blocking, new RequestExecution(RequestExecution.PLATFORM, 0, 0, 0).limit(blocking));
+  }
+
+  @Test
+  public void rejectsRequestsAtOnceWhenQueueIsFull() throws Exception {
+    Handler limited = new RequestExecution(RequestExecution.PLATFORM, 1, 0, 60_000).limit(blocking);
+    Future<?> first = threads.submit(() -> {
+      limited.handle(mock(Context.class));
+      return null;
+    });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    Context rejected = mock(Context.class);
+    assertThrows(ServiceUnavailableResponse.class, () -> limited.handle(rejected));
+    verify(rejected).header(Header.RETRY_AFTER, "1");
+
+    // Once the first request is done there's room again
+    finish.countDown();
+    first.get(10, TimeUnit.SECONDS);
+    limited.handle(mock(Context.class));
+  }
+
+  @Test
+  public void answersRequestsOverTheLimitWith503AndRetryAfter() throws Exception {
+    RequestExecution execution = new RequestExecution(RequestExecution.PLATFORM, 1, 0, 60_000);
+    ThreadPool pool = execution.threadPool();
+    Javalin server = Javalin.create(config -> config.jetty.server(() -> new org.eclipse.jetty.server.Server(pool)))
+      .get("/", execution.limit(blocking))
+      .start(0);
+    try {
+      HttpClient client = HttpClient.newHttpClient();
+      HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/")).build();
+      CompletableFuture<HttpResponse<String>> first = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      HttpResponse<String> rejected = client.send(request, HttpResponse.BodyHandlers.ofString());
+      assertEquals(503, rejected.statusCode());
+      assertEquals(Optional.of("1"), rejected.headers().firstValue(Header.RETRY_AFTER));
+
+      finish.countDown();
+      assertEquals(200, first.get(10, TimeUnit.SECONDS).statusCode());
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void rejectsQueuedRequestsAfterTimeout() throws Exception {
+    Handler limited = new RequestExecution(RequestExecution.PLATFORM, 1, 1, 50).limit(blocking);
+    threads.submit(() -> {
+      limited.handle(mock(Context.class));
+      return null;
+    });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    long start = System.nanoTime();
+    assertThrows(ServiceUnavailableResponse.class, () -> limited.handle(mock(Context.class)));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  @Test
+  public void runsQueuedRequestsWhenTurnComes() throws Exception {
+    Handler limited = new RequestExecution(RequestExecution.PLATFORM, 1, 1, 60_000).limit(blocking);
+    threads.submit(() -> {
+      limited.handle(mock(Context.class));
+      return null;
+    });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    Future<?> queued = threads.submit(() -> {
+      limited.handle(mock(Context.class));
+      return null;
+    });
+    finish.countDown();
+    queued.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void releasesTurnWhenHandlerThrows() throws Exception {
+    Handler failing = new RequestExecution(RequestExecution.PLATFORM, 1, 0, 0).limit(ctx -> {
+      throw new IllegalStateException("failed");
+    });
+    assertThrows(IllegalStateException.class, () -> failing.handle(mock(Context.class)));
+    assertThrows(IllegalStateException.class, () -> failing.handle(mock(Context.class)));
+  }
+}
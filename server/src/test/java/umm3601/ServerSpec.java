@@ -0,0 +1,114 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+import io.javalin.http.Header;
+import umm3601.todo.TodoController;
+import umm3601.todo.TodoDatabase;
+import umm3601.user.UserController;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests the headers the running server sends for caching and compression,
+ * which the controllers alone don't decide.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ServerSpec {
+  private final HttpClient client = HttpClient.newHttpClient();
+  private Javalin server;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    server = Server.startServer(0, new RequestExecution(RequestExecution.PLATFORM, 0, 0, 0),
+      new UserController(new UserDatabase(Server.USER_DATA_FILE)),
+      new TodoController(new TodoDatabase(Server.TODO_DATA_FILE)));
+  }
+
+  @AfterEach
+  public void tearDown() {
+    server.stop();
+  }
+
+  private HttpResponse<byte[]> get(String path, String... headers) throws IOException, InterruptedException {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + path));
+    if (headers.length > 0) {
+      request.headers(headers);
+    }
+    return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+  }
+
+  @Test
+  public void apiResponsesVaryByEncodingWithOneWeakTag() throws Exception {
+    HttpResponse<byte[]> gzipped = get("/api/todos", Header.ACCEPT_ENCODING, "gzip");
+    assertEquals(200, gzipped.statusCode());
+    assertEquals(Optional.of("gzip"), gzipped.headers().firstValue(Header.CONTENT_ENCODING));
+    assertEquals(Optional.of(Header.ACCEPT_ENCODING), gzipped.headers().firstValue(Header.VARY));
+    String etag = gzipped.headers().firstValue(Header.ETAG).orElseThrow();
+    assertTrue(etag.startsWith("W/\""), etag);
+
+    HttpResponse<byte[]> plain = get("/api/todos");
+    assertEquals(200, plain.statusCode());
+    assertEquals(Optional.empty(), plain.headers().firstValue(Header.CONTENT_ENCODING));
+    assertEquals(Optional.of(Header.ACCEPT_ENCODING), plain.headers().firstValue(Header.VARY));
+    assertEquals(Optional.of(etag), plain.headers().firstValue(Header.ETAG));
+
+    HttpResponse<byte[]> unchanged = get("/api/todos", Header.ACCEPT_ENCODING, "gzip", Header.IF_NONE_MATCH, etag);
+    assertEquals(304, unchanged.statusCode());
+    assertEquals(Optional.of(Header.ACCEPT_ENCODING), unchanged.headers().firstValue(Header.VARY));
+  }
+
+  @Test
+  public void staticFilesArePrecompressedAndScriptsCachedForGood() throws Exception {
+    HttpResponse<byte[]> page = get("/todos.html", Header.ACCEPT_ENCODING, "gzip");
+    assertEquals(200, page.statusCode());
+    assertEquals(Optional.of("gzip"), page.headers().firstValue(Header.CONTENT_ENCODING));
+    assertEquals(Optional.of("no-cache"), page.headers().firstValue(Header.CACHE_CONTROL));
+    assertTrue(page.headers().firstValue(Header.ETAG).isPresent());
+    String html;
+    try (InputStream body = new GZIPInputStream(new ByteArrayInputStream(page.body()))) {
+      html = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    Matcher script = Pattern.compile("/javascript/todos\\.[0-9a-f]{10}\\.js").matcher(html);
+    assertTrue(script.find(), html);
+
+    HttpResponse<byte[]> gzipped = get(script.group(), Header.ACCEPT_ENCODING, "gzip, deflate");
+    assertEquals(200, gzipped.statusCode());
+    assertEquals(Optional.of("gzip"), gzipped.headers().firstValue(Header.CONTENT_ENCODING));
+    assertEquals(Optional.of(Header.ACCEPT_ENCODING), gzipped.headers().firstValue(Header.VARY));
+    String cacheControl = gzipped.headers().firstValue(Header.CACHE_CONTROL).orElseThrow();
+    assertTrue(cacheControl.contains("immutable"), cacheControl);
+    String etag = gzipped.headers().firstValue(Header.ETAG).orElseThrow();
+    assertTrue(etag.endsWith("-gzip\""), etag);
+
+    HttpResponse<byte[]> unchanged = get(script.group(), Header.ACCEPT_ENCODING, "gzip", Header.IF_NONE_MATCH, etag);
+    assertEquals(304, unchanged.statusCode());
+
+    // Different bytes, so a different strong tag
+    HttpResponse<byte[]> plain = get(script.group());
+    assertEquals(200, plain.statusCode());
+    assertEquals(Optional.empty(), plain.headers().firstValue(Header.CONTENT_ENCODING));
+    String plainEtag = plain.headers().firstValue(Header.ETAG).orElseThrow();
+    assertNotEquals(etag, plainEtag);
+    assertEquals(200, get(script.group(), Header.IF_NONE_MATCH, etag).statusCode());
+  }
+}
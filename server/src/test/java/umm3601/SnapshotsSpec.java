@@ -0,0 +1,183 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.HashMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the binary snapshot format and deciding when to use a snapshot.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SnapshotsSpec {
+  private static final int FORMAT = 42;
+
+  @TempDir
+  private Path directory;
+
+  @Test
+  public void canReadBackWhatWasWritten() throws IOException {
+    Path path = directory.resolve("nested/test.snapshot");
+    int[] big = new int[1000];
+    for (int i = 0; i < big.length; i++) {
+      big[i] = i * 7;
+    }
+    Map<String, int[]> lists = new HashMap<>();
+    lists.put("a", new int[] {1, 2});
+    lists.put(null, new int[] {});
+    String text = "Ünïcödé ".repeat(20_000);
+
+    try (SnapshotWriter output = new SnapshotWriter(path, FORMAT)) {
+      output.writeInt(-5);
+      output.writeLong(1L << 40);
+      output.writeBoolean(true);
+      output.writeBoolean(false);
+      output.writeString(null);
+      output.writeString(text);
+      output.writeIntArray(big);
+      output.writePostingLists(lists);
+      output.commit();
+    }
+
+    // A tiny window makes almost every read cross from one window to the next
+    for (long windowBytes : new long[] {8, 13, 1 << 20}) {
+      try (SnapshotReader input = new SnapshotReader(path, FORMAT, windowBytes)) {
+        assertEquals(-5, input.readInt());
+        assertEquals(1L << 40, input.readLong());
+        assertTrue(input.readBoolean());
+        assertFalse(input.readBoolean());
+        assertNull(input.readString());
+        assertEquals(text, input.readString());
+        assertArrayEquals(big, input.readIntArray());
+        Map<String, int[]> readLists = input.readPostingLists();
+        assertEquals(2, readLists.size());
+        assertArrayEquals(new int[] {1, 2}, readLists.get("a"));
+        assertArrayEquals(new int[] {}, readLists.get(null));
+        assertThrows(IOException.class, input::readInt);
+      }
+    }
+  }
+
+  @Test
+  public void discardsUncommittedSnapshots() throws IOException {
+    Path path = directory.resolve("test.snapshot");
+    try (SnapshotWriter output = new SnapshotWriter(path, FORMAT)) {
+      output.writeInt(1);
+    }
+    assertFalse(Files.exists(path));
+    try (var files = Files.list(directory)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test
+  public void rejectsOtherFiles() throws IOException {
+    Path path = directory.resolve("test.snapshot");
+    try (SnapshotWriter output = new SnapshotWriter(path, FORMAT)) {
+      output.writeIntArray(new int[] {1, 2, 3});
+      output.commit();
+    }
+    assertThrows(IOException.class, () -> new SnapshotReader(path, FORMAT + 1));
+
+    Path json = directory.resolve("test.json");
+    Files.writeString(json, "[]");
+    assertThrows(IOException.class, () -> new SnapshotReader(json, FORMAT));
+
+    Path corrupt = directory.resolve("corrupt.snapshot");
+    try (SnapshotWriter output = new SnapshotWriter(corrupt, FORMAT)) {
+      output.writeInt(Integer.MAX_VALUE);
+      output.writeInt(Integer.MAX_VALUE);
+      output.commit();
+    }
+    try (SnapshotReader input = new SnapshotReader(corrupt, FORMAT)) {
+      assertThrows(IOException.class, input::readIntArray);
+      assertThrows(IOException.class, input::readString);
+    }
+  }
+
+  @Test
+  public void usesSnapshotOnlyWhenNewerThanSource() throws IOException {
+    Path snapshot = directory.resolve("test.snapshot");
+    int[] sourceLoads = new int[1];
+    Snapshots.Source<String> source = () -> {
+      sourceLoads[0]++;
+      return "from source";
+    };
+    Snapshots.Writer<String> writer = (value, path) -> {
+      try (SnapshotWriter output = new SnapshotWriter(path, FORMAT)) {
+        output.writeString(value.replace("source", "snapshot"));
+        output.commit();
+      }
+    };
+    Snapshots.Reader<String> reader = path -> {
+      try (SnapshotReader input = new SnapshotReader(path, FORMAT)) {
+        return input.readString();
+      }
+    };
+
+    // No snapshot yet, so load from the source and write one
+    assertEquals("from source", Snapshots.load(snapshot, 1000, source, reader, writer));
+    assertTrue(Files.exists(snapshot));
+    Files.setLastModifiedTime(snapshot, FileTime.fromMillis(2000));
+
+    // The snapshot is newer than the source, so use it
+    assertEquals("from snapshot", Snapshots.load(snapshot, 1000, source, reader, writer));
+    assertEquals(1, sourceLoads[0]);
+
+    // The source has changed since, so load it again
+    assertEquals("from source", Snapshots.load(snapshot, 3000, source, reader, writer));
+    assertEquals(2, sourceLoads[0]);
+  }
+
+  @Test
+  public void fallsBackToSourceWhenSnapshotIsUnusable() throws IOException {
+    Path snapshot = directory.resolve("test.snapshot");
+    Files.writeString(snapshot, "not a snapshot");
+    Snapshots.Reader<String> reader = path -> {
+      try (SnapshotReader input = new SnapshotReader(path, FORMAT)) {
+        return input.readString();
+      }
+    };
+    Snapshots.Writer<String> failingWriter = (value, path) -> {
+      throw new IOException("disk full");
+    };
+
+    assertEquals("from source", Snapshots.load(snapshot, 0, () -> "from source", reader, failingWriter));
+  }
+
+  @Test
+  public void canFindModificationTimes() throws IOException {
+    Path file = directory.resolve("data.json");
+    assertEquals(Long.MAX_VALUE, Snapshots.lastModified(file));
+    Files.writeString(file, "[]");
+    Files.setLastModifiedTime(file, FileTime.fromMillis(123_000));
+    assertEquals(123_000, Snapshots.lastModified(file));
+    assertEquals(123_000, Snapshots.lastModified(file.toUri().toURL()));
+
+    assertEquals(Long.MAX_VALUE, Snapshots.lastModified((URL) null));
+    assertEquals(Long.MAX_VALUE, Snapshots.lastModified(directory.resolve("missing.json").toUri().toURL()));
+  }
+
+  @Test
+  public void givesEachSourceItsOwnSnapshot() {
+    Path first = Snapshots.pathFor(directory, "todos", "/todos.json");
+    Path second = Snapshots.pathFor(directory, "todos", "/data/todos.json");
+    assertEquals(directory, first.getParent());
+    assertTrue(first.getFileName().toString().startsWith("todos-"));
+    assertNotEquals(first, second);
+  }
+}
@@ -0,0 +1,158 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the write-ahead log used to make changes durable.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class WriteAheadLogSpec {
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static List<String> replay(Path path) throws IOException {
+    List<String> records = new ArrayList<>();
+    WriteAheadLog.open(path, true, record -> records.add(new String(record, StandardCharsets.UTF_8))).close();
+    return records;
+  }
+
+  @Test
+  public void replaysAppendedRecordsInOrder(@TempDir Path directory) throws IOException {
+    Path path = directory.resolve("nested/test.wal");
+    try (WriteAheadLog log = WriteAheadLog.open(path, true, record -> { })) {
+      log.append(List.of(bytes("one"), bytes("two")));
+      log.append(List.of(bytes("three")));
+      log.append(List.of(new byte[0]));
+      assertEquals(3, log.batches());
+      assertEquals(Files.size(path), log.size());
+    }
+    assertEquals(List.of("one", "two", "three", ""), replay(path));
+
+    // Appending after a replay carries on where the log left off
+    try (WriteAheadLog log = WriteAheadLog.open(path, false, record -> { })) {
+      log.append(List.of(bytes("four")));
+    }
+    assertEquals(List.of("one", "two", "three", "", "four"), replay(path));
+  }
+
+  @Test
+  public void dropsTornRecordAtTheEnd(@TempDir Path directory) throws IOException {
+    Path path = directory.resolve("test.wal");
+    try (WriteAheadLog log = WriteAheadLog.open(path, true, record -> { })) {
+      log.append(List.of(bytes("one"), bytes("two")));
+    }
+    long complete = Files.size(path);
+    // Half a record, as if the server died part way through an append
+    Files.write(path, new byte[] {0, 0, 0, 100, 1, 2}, StandardOpenOption.APPEND);
+
+    assertEquals(List.of("one", "two"), replay(path));
+    assertEquals(complete, Files.size(path));
+  }
+
+  @Test
+  public void dropsBatchTornPartWayThrough(@TempDir Path directory) throws IOException {
+    Path path = directory.resolve("test.wal");
+    long firstBatch;
+    try (WriteAheadLog log = WriteAheadLog.open(path, true, record -> { })) {
+      log.append(List.of(bytes("one")));
+      firstBatch = log.size();
+      log.append(List.of(bytes("two"), bytes("three")));
+    }
+    // Cut the second batch off just after "two", which is a whole record,
+    // but not a whole batch
+    long afterTwo = firstBatch + 8 + 4 + (4 + 3);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(afterTwo);
+    }
+
+    assertEquals(List.of("one"), replay(path));
+    assertEquals(firstBatch, Files.size(path));
+  }
+
+  @Test
+  public void dropsCorruptBatchAndEverythingAfterIt(@TempDir Path directory) throws IOException {
+    Path path = directory.resolve("test.wal");
+    try (WriteAheadLog log = WriteAheadLog.open(path, true, record -> { })) {
+      log.append(List.of(bytes("one")));
+      log.append(List.of(bytes("two"), bytes("three")));
+      log.append(List.of(bytes("four")));
+    }
+    byte[] contents = Files.readAllBytes(path);
+    // Flip a byte of "two", which loses "three" along with it
+    int two = 4 + (8 + 4 + 4 + 3) + 8 + 4 + 4;
+    contents[two] ^= 1;
+    Files.write(path, contents);
+
+    assertEquals(List.of("one"), replay(path));
+  }
+
+  @Test
+  public void dropsBatchWhoseRecordsDontFitItsFrame(@TempDir Path directory) throws IOException {
+    Path path = directory.resolve("test.wal");
+    try (WriteAheadLog log = WriteAheadLog.open(path, true, record -> { })) {
+      log.append(List.of(bytes("one")));
+    }
+    // A frame with a good checksum whose contents claim two records but
+    // only hold one
+    ByteBuffer contents = ByteBuffer.allocate(4 + 4 + 3).putInt(2).putInt(3).put(bytes("two"));
+    CRC32 crc = new CRC32();
+    crc.update(contents.array());
+    ByteBuffer frame = ByteBuffer.allocate(8).putInt(contents.capacity()).putInt((int) crc.getValue());
+    Files.write(path, frame.array(), StandardOpenOption.APPEND);
+    Files.write(path, contents.array(), StandardOpenOption.APPEND);
+
+    assertEquals(List.of("one"), replay(path));
+  }
+
+  @Test
+  public void droppingTheStartKeepsLaterRecords(@TempDir Path directory) throws IOException {
+    Path path = directory.resolve("test.wal");
+    try (WriteAheadLog log = WriteAheadLog.open(path, true, record -> { })) {
+      log.append(List.of(bytes("one")));
+      long covered = log.size();
+      log.append(List.of(bytes("two"), bytes("three")));
+      log.dropBefore(covered);
+      assertFalse(log.isEmpty());
+      log.append(List.of(bytes("four")));
+    }
+    assertEquals(List.of("two", "three", "four"), replay(path));
+    assertFalse(Files.exists(directory.resolve("test.wal.tmp")));
+
+    try (WriteAheadLog log = WriteAheadLog.open(path, true, record -> { })) {
+      log.dropBefore(log.size());
+      assertTrue(log.isEmpty());
+      assertThrows(IllegalArgumentException.class, () -> log.dropBefore(log.size() + 1));
+      log.append(List.of(bytes("five")));
+    }
+    assertEquals(List.of("five"), replay(path));
+  }
+
+  @Test
+  public void rejectsFilesThatArentLogs(@TempDir Path directory) throws IOException {
+    Path path = directory.resolve("test.wal");
+    Files.write(path, bytes("[{\"not\": \"a log\"}]"));
+    IOException e = assertThrows(IOException.class, () -> replay(path));
+    assertTrue(e.getMessage().contains("isn't a write-ahead log"));
+    assertArrayEquals(bytes("[{\"not\": \"a log\"}]"), Files.readAllBytes(path));
+  }
+}
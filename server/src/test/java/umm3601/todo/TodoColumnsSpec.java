@@ -0,0 +1,105 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import umm3601.PackedStrings;
+
+/**
+ * Tests the column-oriented todo storage on awkward data that the bundled
+ * todos don't have: missing values, repeated IDs, and non-ASCII text.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoColumnsSpec {
+
+  private static Todo todo(String id, String owner, boolean status, String body, String category) {
+    Todo todo = new Todo();
+    todo._id = id;
+    todo.owner = owner;
+    todo.status = status;
+    todo.body = body;
+    todo.category = category;
+    return todo;
+  }
+
+  private final Todo[] todos = {
+    todo("a", "Fry", true, "über café", "homework"),
+    todo("b", null, false, null, "homework"),
+    todo("a", "Blanche", false, "a duplicate ID", null),
+    todo(null, "Fry", true, "Zebra", "groceries"),
+  };
+
+  @Test
+  public void storesEveryTodo() {
+    TodoColumns columns = new TodoColumns(todos);
+    assertEquals(todos.length, columns.size());
+    for (int i = 0; i < todos.length; i++) {
+      assertEquals(todos[i], columns.get(i));
+    }
+    // Each distinct owner is stored once and shared
+    assertSame(columns.get(0).owner, columns.get(3).owner);
+  }
+
+  @Test
+  public void findsFirstTodoWithId() {
+    TodoColumns columns = new TodoColumns(todos);
+    assertEquals(0, columns.positionOf("a"));
+    assertEquals(1, columns.positionOf("b"));
+    assertEquals(-1, columns.positionOf("c"));
+  }
+
+  @Test
+  public void sortsWithMissingValuesFirst() {
+    TodoColumns columns = new TodoColumns(todos);
+    assertArrayEquals(new int[] {1, 2, 0, 3}, columns.sortOrder("owner"));
+    assertArrayEquals(new int[] {2, 3, 0, 1}, columns.sortOrder("category"));
+    assertArrayEquals(new int[] {1, 3, 2, 0}, columns.sortOrder("body"));
+    assertArrayEquals(new int[] {1, 2, 0, 3}, columns.sortOrder("status"));
+  }
+
+  @Test
+  public void canQueryUnusualTodos() {
+    TodoDatabase db = new TodoDatabase(todos);
+    assertEquals(todos[0], db.getTodo("a"));
+    assertNull(db.getTodo("c"));
+    assertArrayEquals(new Todo[] {todos[0]}, db.listTodos(Map.of("contains", List.of("über"))));
+    assertArrayEquals(new Todo[] {todos[0]}, db.listTodos(Map.of("contains", List.of("é"))));
+    assertArrayEquals(new Todo[] {todos[0], todos[3]}, db.listTodos(Map.of("owner", List.of("Fry"))));
+    assertArrayEquals(new Todo[] {todos[1]},
+      db.listTodos(Map.of("category", List.of("homework"), "status", List.of("incomplete"))));
+  }
+
+  @Test
+  public void trigramIndexLeavesOutCommonTrigramsOverBudget() {
+    Todo[] bodies = {
+      todo("1", "Fry", true, "lorem", "homework"),
+      todo("2", "Fry", true, "lorem", "homework"),
+      todo("3", "Fry", true, "lorem amet", "homework"),
+    };
+    PackedStrings packed = new TodoColumns(bodies).getBodies();
+
+    TrigramIndex everything = new TrigramIndex(packed, Long.MAX_VALUE);
+    assertArrayEquals(new int[] {0, 1, 2}, everything.candidates("lorem"));
+    assertArrayEquals(new int[] {2}, everything.candidates("lorem amet"));
+    assertArrayEquals(new int[] {}, everything.candidates("zebra"));
+
+    // Room for the five trigrams only in the last body (each a byte plus
+    // the array), but not the ones in "lorem", which has to be scanned for
+    TrigramIndex bounded = new TrigramIndex(packed, 100);
+    assertNull(bounded.candidates("lorem"));
+    assertArrayEquals(new int[] {2}, bounded.candidates("amet"));
+    assertArrayEquals(new int[] {2}, bounded.candidates("lorem amet"));
+    assertArrayEquals(new int[] {}, bounded.candidates("zebra"));
+
+    TrigramIndex none = new TrigramIndex(packed, 0);
+    assertNull(none.candidates("amet"));
+    assertArrayEquals(new int[] {}, none.candidates("zebra"));
+  }
+}
@@ -1,30 +1,64 @@
 package umm3601.todo;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.GoneResponse;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 
+import umm3601.ByteArrayServletOutputStream;
+import umm3601.ControllerOptions;
+import umm3601.ETags;
+import umm3601.Pagination;
+import umm3601.ParallelScan;
+import umm3601.QueryCache;
+import umm3601.QueryTrace;
 import umm3601.Server;
+import umm3601.SlowQueryLog;
+import umm3601.user.UserDatabase;
 
 @SuppressWarnings({ "MagicNumber" })
 public class TodoControllerSpec {
@@ -86,6 +120,31 @@ public class TodoControllerSpec {
     assertEquals("No todo with id " + id + " was found.", exception.getMessage());
   }
 
+  @Test
+  public void canGetPreserializedTodo() throws IOException {
+    String id = "58895985c2fc014023fbc272";
+    when(ctx.pathParam("id")).thenReturn(id);
+
+    new TodoController(db, new ControllerOptions<Todo>().withPreserialized(true)).getTodo(ctx);
+
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    verify(ctx).contentType(ContentType.APPLICATION_JSON);
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(db.getTodo(id), new ObjectMapper().readValue(argument.getValue(), Todo.class));
+    // The JSON is only serialized once
+    assertSame(argument.getValue(), db.getTodoJson(id));
+  }
+
+  @Test
+  public void preserializedTodoWithNonexistentId() {
+    when(ctx.pathParam("id")).thenReturn("ThisIDWon'tExist");
+    Throwable exception = Assertions.assertThrows(NotFoundResponse.class, () -> {
+      new TodoController(db, new ControllerOptions<Todo>().withPreserialized(true)).getTodo(ctx);
+    });
+    assertEquals("No todo with id ThisIDWon'tExist was found.", exception.getMessage());
+  }
+
   @Test
   public void canLimitResponseLength() throws IOException {
     Integer testLimit = 7;
@@ -390,6 +449,1080 @@ public class TodoControllerSpec {
     // Ensure the limiting limited the number of responses to 12
     assertTrue(clonedTodos.length <= 12);
   }
-}
 
+  @Test
+  public void canFilterTodosByOwnerCategoryAndStatus() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("category", Arrays.asList(new String[] {"homework"}));
+    queryParams.put("status", Arrays.asList(new String[] {"incomplete"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+
+    // The indexed lookup should give exactly the same todos, in the same
+    // order, as filtering the full list of todos by hand
+    Todo[] expectedTodos = Arrays.stream(db.listTodos(new HashMap<>()))
+      .filter(todo -> todo.owner.equals("Fry"))
+      .filter(todo -> todo.category.equals("homework"))
+      .filter(todo -> !todo.status)
+      .toArray(Todo[]::new);
+    assertTrue(expectedTodos.length > 0);
+    assertArrayEquals(expectedTodos, argument.getValue());
+  }
+
+  @Test
+  public void canFilterTodosByNonexistentOwner() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Nobody"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+    assertEquals(0, argument.getValue().length);
+  }
+
+  @Test
+  public void limitReturnsFirstMatchingTodos() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("contains", Arrays.asList(new String[] {" et "}));
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+
+    // Stopping early should give the same todos as filtering
+    // everything and then taking the first five
+    Todo[] expectedTodos = Arrays.stream(db.listTodos(new HashMap<>()))
+      .filter(todo -> todo.body.contains(" et "))
+      .limit(5)
+      .toArray(Todo[]::new);
+    assertArrayEquals(expectedTodos, argument.getValue());
+  }
+
+  @Test
+  public void limitLargerThanResultDoesNotPad() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Blanche"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"body"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"1000"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+    assertEquals(43, argument.getValue().length);
+    for (Todo todo : argument.getValue()) {
+      assertEquals("Blanche", todo.owner);
+    }
+  }
+
+  @Test
+  public void respondsAppropriatelyToNegativeLimit() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"-3"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified limit '-3' can't be negative", exception.getMessage());
+  }
+
+  @Test
+  public void canSortAndLimitFilteredTodos() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"body"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"10"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+
+    // Only keeping the top ten should give the same todos as
+    // sorting all of Fry's todos and taking the first ten
+    Todo[] expectedTodos = Arrays.stream(db.listTodos(new HashMap<>()))
+      .filter(todo -> todo.owner.equals("Fry"))
+      .sorted(Comparator.comparing(Todo::getBody))
+      .limit(10)
+      .toArray(Todo[]::new);
+    assertArrayEquals(expectedTodos, argument.getValue());
+  }
+
+  @Test
+  public void canSortAndLimitUnindexedTodos() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("contains", Arrays.asList(new String[] {" et "}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"owner"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"20"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+
+    // Ties on owner should stay in their original order
+    Todo[] expectedTodos = Arrays.stream(db.listTodos(new HashMap<>()))
+      .filter(todo -> todo.body.contains(" et "))
+      .sorted(Comparator.comparing(Todo::getOwner))
+      .limit(20)
+      .toArray(Todo[]::new);
+    assertArrayEquals(expectedTodos, argument.getValue());
+  }
 
+  @Test
+  public void canSortWithZeroLimit() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"category"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"0"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+    assertEquals(0, argument.getValue().length);
+  }
+
+  @Test
+  public void containmentMatchesFullScan() {
+    // Include a string that is too short for the trigram index to help
+    String[] contained = {"Ipsum", "a", "illum"};
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("contains", Arrays.asList(contained));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+
+    Todo[] expectedTodos = Arrays.stream(db.listTodos(new HashMap<>()))
+      .filter(todo -> Arrays.stream(contained).allMatch(todo.body::contains))
+      .toArray(Todo[]::new);
+    assertTrue(expectedTodos.length > 0);
+    assertArrayEquals(expectedTodos, argument.getValue());
+  }
+
+  @Test
+  public void containmentOfUnknownTextIsEmpty() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("contains", Arrays.asList(new String[] {"xyzzy"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+    assertEquals(0, argument.getValue().length);
+  }
+
+  @Test
+  public void canStreamTodos() throws IOException {
+    ByteArrayServletOutputStream output = new ByteArrayServletOutputStream();
+    when(ctx.outputStream()).thenReturn(output);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("category", Arrays.asList(new String[] {"groceries"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"owner"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    new TodoController(db, new ControllerOptions<Todo>().withStreaming(true)).getTodos(ctx);
+
+    // The streamed array should hold the same todos, in the same order,
+    // as the non-streaming response
+    verify(ctx).contentType(ContentType.APPLICATION_JSON);
+    Todo[] streamedTodos = new ObjectMapper().readValue(output.toByteArray(), Todo[].class);
+    Todo[] expectedTodos = db.listTodos(queryParams);
+    assertEquals(expectedTodos.length, streamedTodos.length);
+    for (int i = 0; i < expectedTodos.length; i++) {
+      assertEquals(expectedTodos[i]._id, streamedTodos[i]._id);
+      assertEquals(expectedTodos[i].body, streamedTodos[i].body);
+    }
+  }
+
+  @Test
+  public void canStreamEmptyListOfTodos() throws IOException {
+    ByteArrayServletOutputStream output = new ByteArrayServletOutputStream();
+    when(ctx.outputStream()).thenReturn(output);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Nobody"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    new TodoController(db, new ControllerOptions<Todo>().withStreaming(true)).getTodos(ctx);
+
+    assertEquals("[]", new String(output.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void streamingRejectsBadRequestsBeforeWriting() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", Arrays.asList(new String[] {"hello"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Assertions.assertThrows(BadRequestResponse.class, () -> {
+      new TodoController(db, new ControllerOptions<Todo>().withStreaming(true)).getTodos(ctx);
+    });
+    verify(ctx, never()).outputStream();
+  }
+
+  @Test
+  public void streamingReportsWriteFailures() {
+    when(ctx.outputStream()).thenReturn(new ByteArrayServletOutputStream(true));
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+
+    // Everything fits in Jackson's buffer, so the failure shows up when
+    // the array is finished and flushed
+    Assertions.assertThrows(UncheckedIOException.class, () -> {
+      new TodoController(db, new ControllerOptions<Todo>().withStreaming(true)).getTodos(ctx);
+    });
+  }
+
+  /**
+   * Walk through all the pages of the given query, `pageSize` todos at a
+   * time, by following the next page cursors.
+   */
+  private List<Todo> walkPages(Map<String, List<String>> queryParams, int pageSize) {
+    List<Todo> allPages = new ArrayList<>();
+    Map<String, List<String>> pageParams = new HashMap<>(queryParams);
+    pageParams.put("limit", Arrays.asList(new String[] {Integer.toString(pageSize)}));
+    String cursor;
+    do {
+      List<Todo> page = new ArrayList<>();
+      cursor = db.forEachTodo(TodoQuery.fromParams(pageParams), page::add);
+      assertTrue(page.size() <= pageSize);
+      allPages.addAll(page);
+      pageParams.put("cursor", Arrays.asList(new String[] {cursor}));
+    } while (cursor != null);
+    return allPages;
+  }
+
+  @Test
+  public void canWalkPagesOfTodos() {
+    List<Map<String, List<String>>> queries = new ArrayList<>();
+    // Unsorted and sorted, with and without indexed filters
+    queries.add(Map.of());
+    queries.add(Map.of("owner", List.of("Dawn")));
+    queries.add(Map.of("orderBy", List.of("body"), "contains", List.of("a")));
+    queries.add(Map.of("orderBy", List.of("owner"), "category", List.of("homework")));
+
+    for (Map<String, List<String>> queryParams : queries) {
+      Todo[] expectedTodos = db.listTodos(queryParams);
+      assertArrayEquals(expectedTodos, walkPages(queryParams, 7).toArray(new Todo[0]));
+    }
+  }
+
+  @Test
+  public void canGetPageAtOffset() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"category"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    Todo[] allTodos = db.listTodos(queryParams);
+
+    queryParams.put("offset", Arrays.asList(new String[] {"10"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    assertArrayEquals(Arrays.copyOfRange(allTodos, 10, 15), db.listTodos(queryParams));
+
+    queryParams.remove("orderBy");
+    Todo[] unsortedTodos = db.listTodos(Map.of("status", List.of("complete")));
+    assertArrayEquals(Arrays.copyOfRange(unsortedTodos, 10, 15), db.listTodos(queryParams));
+  }
+
+  @Test
+  public void includesNextPageCursorInResponse() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"4"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    new TodoController(db, new ControllerOptions<Todo>().withStreaming(true)).getTodos(ctx);
+
+    ArgumentCaptor<String> cursor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(eq(Pagination.NEXT_CURSOR_HEADER), cursor.capture());
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+    assertEquals(4, argument.getValue().length);
+
+    // The cursor should pick up right after the first page
+    queryParams.put("cursor", Arrays.asList(new String[] {cursor.getValue()}));
+    Todo[] nextPage = db.listTodos(queryParams);
+    assertArrayEquals(Arrays.copyOfRange(db.listTodos(Map.of()), 4, 8), nextPage);
+  }
+
+  @Test
+  public void lastPageHasNoCursor() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Blanche"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"100"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx, never()).header(eq(Pagination.NEXT_CURSOR_HEADER), anyString());
+  }
+
+  @Test
+  public void exactlyFullLastPageHasNoCursor() {
+    List<Map<String, List<String>>> queries = new ArrayList<>();
+    queries.add(Map.of("owner", List.of("Blanche")));
+    queries.add(Map.of("owner", List.of("Blanche"), "orderBy", List.of("body")));
+    queries.add(Map.of("contains", List.of("a"), "orderBy", List.of("category")));
+
+    for (Map<String, List<String>> queryParams : queries) {
+      int matches = db.listTodos(queryParams).length;
+      Map<String, List<String>> pageParams = new HashMap<>(queryParams);
+      pageParams.put("limit", List.of(Integer.toString(matches)));
+      List<Todo> page = new ArrayList<>();
+      assertNull(db.forEachTodo(TodoQuery.fromParams(pageParams), page::add));
+      assertEquals(matches, page.size());
+
+      // One fewer does leave a next page, with just the last match on it
+      pageParams.put("limit", List.of(Integer.toString(matches - 1)));
+      String cursor = db.forEachTodo(TodoQuery.fromParams(pageParams), todo -> { });
+      assertNotNull(cursor);
+      pageParams.put("cursor", List.of(cursor));
+      List<Todo> lastPage = new ArrayList<>();
+      assertNull(db.forEachTodo(TodoQuery.fromParams(pageParams), lastPage::add));
+      assertEquals(List.of(page.get(matches - 1)), lastPage);
+    }
+  }
+
+  @Test
+  public void zeroLimitHasNoCursor() {
+    for (String orderBy : new String[] {"category", null}) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      queryParams.put("limit", List.of("0"));
+      if (orderBy != null) {
+        queryParams.put("orderBy", List.of(orderBy));
+      }
+      List<Todo> page = new ArrayList<>();
+      assertNull(db.forEachTodo(TodoQuery.fromParams(queryParams), page::add));
+      assertEquals(0, page.size());
+    }
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalCursor() {
+    String sortedCursor = Pagination.cursor("owner", db.getVersion(), 3);
+    String[] cursors = {
+      "not a cursor!", sortedCursor, Pagination.cursor("natural", db.getVersion(), -1), "MTI",
+      Pagination.cursor("natural:x", db.getVersion(), 3)
+    };
+    for (String cursor : cursors) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      queryParams.put("cursor", Arrays.asList(new String[] {cursor}));
+      when(ctx.queryParamMap()).thenReturn(queryParams);
+
+      // A cursor from a differently sorted query isn't valid either
+      Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+        todoController.getTodos(ctx);
+      });
+      assertEquals("Specified cursor '" + cursor + "' is not valid for this query", exception.getMessage());
+    }
+  }
+
+  @Test
+  public void rejectsCursorFromAnotherVersionOfTheData() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", List.of("4"));
+    String cursor = db.forEachTodo(TodoQuery.fromParams(queryParams), todo -> { });
+    queryParams.put("cursor", List.of(cursor));
+    // Still fine for the data it came from
+    assertEquals(4, db.listTodos(queryParams).length);
+
+    // But not once the data has changed, when it might skip or repeat todos
+    TodoDatabase changed = new TodoDatabase(Arrays.copyOf(db.listTodos(Map.of()), db.size() - 1));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    GoneResponse exception = Assertions.assertThrows(GoneResponse.class, () -> {
+      new TodoController(changed, new ControllerOptions<Todo>().withStreaming(true)).getTodos(ctx);
+    });
+    assertEquals("Specified cursor '" + cursor + "' is from an older version of the data; "
+      + "start again from the first page", exception.getMessage());
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalOffset() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("offset", Arrays.asList(new String[] {"ten"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified offset 'ten' can't be parsed to an integer", exception.getMessage());
+  }
+
+  @Test
+  public void servesRepeatedQueriesFromCache() {
+    QueryCache<Todo> cache = new QueryCache<>(1000);
+    TodoController cachingController = new TodoController(db, new ControllerOptions<Todo>().withCache(cache));
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Blanche"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    cachingController.getTodos(ctx);
+    cachingController.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx, times(2)).json(argument.capture());
+    assertArrayEquals(db.listTodos(queryParams), argument.getAllValues().get(0));
+    assertArrayEquals(argument.getAllValues().get(0), argument.getAllValues().get(1));
+    verify(ctx, times(2)).header(eq(Pagination.NEXT_CURSOR_HEADER), anyString());
+    assertEquals(1, cache.getStats().getHits());
+    assertEquals(1, cache.getStats().getMisses());
+  }
+
+  @Test
+  public void cachesStreamedTodos() throws IOException {
+    QueryCache<Todo> cache = new QueryCache<>(1000);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("category", Arrays.asList(new String[] {"homework"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.outputStream()).thenReturn(new ByteArrayServletOutputStream());
+
+    new TodoController(db, new ControllerOptions<Todo>().withStreaming(true).withCache(cache)).getTodos(ctx);
+    assertEquals(1, cache.getStats().getEntries());
+
+    // Served from the cache, without streaming
+    new TodoController(db, new ControllerOptions<Todo>().withStreaming(true).withCache(cache)).getTodos(ctx);
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx).json(argument.capture());
+    assertArrayEquals(db.listTodos(queryParams), argument.getValue());
+    assertEquals(1, cache.getStats().getHits());
+  }
+
+  @Test
+  public void cacheIsInvalidatedByNewData() throws IOException {
+    QueryCache<Todo> cache = new QueryCache<>(1000);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"2"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    new TodoController(db, new ControllerOptions<Todo>().withCache(cache)).getTodos(ctx);
+    TodoDatabase newDb = new TodoDatabase(new Todo[0]);
+    new TodoController(newDb, new ControllerOptions<Todo>().withCache(cache)).getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx, times(2)).json(argument.capture());
+    assertEquals(2, argument.getAllValues().get(0).length);
+    assertEquals(0, argument.getAllValues().get(1).length);
+    assertEquals(0, cache.getStats().getHits());
+  }
+
+  @Test
+  public void doesNotCacheBadRequests() {
+    QueryCache<Todo> cache = new QueryCache<>(1000);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", Arrays.asList(new String[] {"bad"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    for (int i = 0; i < 2; i++) {
+      Assertions.assertThrows(BadRequestResponse.class, () -> {
+        new TodoController(db, new ControllerOptions<Todo>().withCache(cache)).getTodos(ctx);
+      });
+    }
+    assertEquals(0, cache.getStats().getEntries());
+    assertEquals(2, cache.getStats().getMisses());
+  }
+
+  @Test
+  public void answersMatchingIfNoneMatchWithNotModified() {
+    QueryCache<Todo> cache = new QueryCache<>(1000);
+    TodoController cachingController =
+      new TodoController(db, new ControllerOptions<Todo>().withStreaming(true).withCache(cache));
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Blanche"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    cachingController.getTodos(ctx);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(eq(Header.ETAG), etag.capture());
+
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag.getValue());
+    cachingController.getTodos(ctx);
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    // Answered without running the query, or even looking in the cache
+    verify(ctx, times(1)).json(any());
+    assertEquals(1, cache.getStats().getMisses());
+    assertEquals(0, cache.getStats().getHits());
+  }
+
+  @Test
+  public void streamedTodosHaveETag() throws IOException {
+    when(ctx.outputStream()).thenReturn(new ByteArrayServletOutputStream());
+    new TodoController(db, new ControllerOptions<Todo>().withStreaming(true)).getTodos(ctx);
+    verify(ctx).header(Header.ETAG, ETags.forQuery(db.getVersion(), Map.of()));
+  }
+
+  @Test
+  public void badRequestsHaveNoETag() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", Arrays.asList(new String[] {"bad"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    Assertions.assertThrows(BadRequestResponse.class, () -> {
+      new TodoController(db, new ControllerOptions<Todo>().withStreaming(true)).getTodos(ctx);
+    });
+    verify(ctx, never()).header(eq(Header.ETAG), anyString());
+  }
+
+  @Test
+  public void answersMatchingIfNoneMatchForSingleTodo() {
+    String id = "58895985c2fc014023fbc272";
+    when(ctx.pathParam("id")).thenReturn(id);
+    String etag = ETags.forRecord(db.getVersion(), id);
+
+    new TodoController(db, new ControllerOptions<Todo>().withPreserialized(true)).getTodo(ctx);
+    verify(ctx).header(Header.ETAG, etag);
+
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag);
+    new TodoController(db, new ControllerOptions<Todo>().withPreserialized(true)).getTodo(ctx);
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx, times(1)).result(any(byte[].class));
+
+    // New data means a new tag
+    TodoDatabase newDb = new TodoDatabase(new Todo[0]);
+    Assertions.assertThrows(NotFoundResponse.class, () -> {
+      new TodoController(newDb, new ControllerOptions<Todo>().withPreserialized(true)).getTodo(ctx);
+    });
+  }
+
+  @Test
+  public void anyTagOnlyMatchesTodosThatExist() {
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn("*");
+    when(ctx.pathParam("id")).thenReturn("nonexistent");
+    Assertions.assertThrows(NotFoundResponse.class, () -> {
+      todoController.getTodo(ctx);
+    });
+    verify(ctx, never()).status(HttpStatus.NOT_MODIFIED);
+
+    when(ctx.pathParam("id")).thenReturn("58895985c2fc014023fbc272");
+    todoController.getTodo(ctx);
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  public void canAddTodo() {
+    TodoStore store = new TodoStore(db);
+    when(ctx.body()).thenReturn(
+      "{\"owner\": \"Zed\", \"status\": true, \"body\": \"Water the plants\", \"category\": \"chores\"}");
+
+    new TodoController(store, new ControllerOptions<Todo>()).addTodo(ctx);
+
+    verify(ctx).status(HttpStatus.CREATED);
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Map<String, String>> argument = ArgumentCaptor.forClass(Map.class);
+    verify(ctx).json(argument.capture());
+    Todo added = store.current().getTodo(argument.getValue().get("id"));
+    assertEquals("Zed", added.owner);
+    assertTrue(added.status);
+    assertEquals("Water the plants", added.body);
+    assertEquals("chores", added.category);
+  }
+
+  @Test
+  public void rejectsInvalidTodos() {
+    TodoStore store = new TodoStore(db);
+    TodoController controller = new TodoController(store, new ControllerOptions<Todo>());
+    String[] bodies = {
+      null,
+      "not json",
+      "[1, 2]",
+      "{\"owner\": \"Zed\", \"status\": true, \"body\": \"Water the plants\"}",
+      "{\"owner\": \"\", \"status\": true, \"body\": \"Water\", \"category\": \"chores\"}",
+      "{\"owner\": 12, \"status\": true, \"body\": \"Water\", \"category\": \"chores\"}",
+      "{\"owner\": \"Zed\", \"status\": \"yes\", \"body\": \"Water\", \"category\": \"chores\"}",
+      "{\"owner\": \"Zed\", \"status\": true, \"body\": \"Water\", \"category\": \"chores\", \"due\": 1}",
+      "{\"_id\": \"x\", \"owner\": \"Zed\", \"status\": true, \"body\": \"Water\", \"category\": \"c\"}",
+    };
+    for (String body : bodies) {
+      when(ctx.body()).thenReturn(body);
+      Assertions.assertThrows(BadRequestResponse.class, () -> controller.addTodo(ctx), body);
+    }
+    assertEquals(db.size(), store.current().size());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void canGroupTodos() {
+    TodoController controller = new TodoController(db);
+    String[][] filters = {
+      {},
+      {"status", "complete"},
+      {"category", "homework", "orderBy", "owner", "limit", "3"},
+      {"contains", "Nisi"},
+      {"contains", "in"},
+      {"owner", "Nobody"},
+    };
+    for (String by : new String[] {"owner", "category", "status"}) {
+      for (String[] filter : filters) {
+        Map<String, List<String>> queryParams = new HashMap<>();
+        for (int i = 0; i < filter.length; i += 2) {
+          queryParams.put(filter[i], List.of(filter[i + 1]));
+        }
+        // The groups should count the todos the same filters list
+        Map<String, List<String>> listParams = new HashMap<>(queryParams);
+        listParams.remove("limit");
+        Map<String, int[]> expected = new TreeMap<>();
+        for (Todo todo : db.listTodos(listParams)) {
+          String key = by.equals("owner") ? todo.owner
+            : by.equals("category") ? todo.category : todo.status ? "complete" : "incomplete";
+          int[] counts = expected.computeIfAbsent(key, k -> new int[2]);
+          counts[0]++;
+          counts[1] += todo.status ? 1 : 0;
+        }
+
+        queryParams.put("by", List.of(by));
+        Context groupCtx = mock(Context.class);
+        when(groupCtx.queryParamMap()).thenReturn(queryParams);
+        when(groupCtx.queryParam("by")).thenReturn(by);
+        controller.getTodoGroups(groupCtx);
+
+        verify(groupCtx).status(HttpStatus.OK);
+        verify(groupCtx).header(Header.ETAG, ETags.forQuery(db.getVersion(), queryParams));
+        ArgumentCaptor<List<TodoGroup>> argument = ArgumentCaptor.forClass(List.class);
+        verify(groupCtx).json(argument.capture());
+        List<TodoGroup> groups = argument.getValue();
+        String description = by + " " + queryParams;
+        assertEquals(new ArrayList<>(expected.keySet()),
+          groups.stream().map(TodoGroup::getKey).collect(Collectors.toList()), description);
+        for (TodoGroup group : groups) {
+          assertEquals(expected.get(group.getKey())[0], group.getCount(), description);
+          assertEquals(expected.get(group.getKey())[1], group.getComplete(), description);
+          assertEquals((double) group.getComplete() / group.getCount(), group.getCompletionRatio(), description);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void rejectsBadTodoGroups() {
+    TodoController controller = new TodoController(db);
+    when(ctx.queryParamMap()).thenReturn(Map.of());
+    Assertions.assertThrows(BadRequestResponse.class, () -> controller.getTodoGroups(ctx));
+
+    when(ctx.queryParamMap()).thenReturn(Map.of("by", List.of("body")));
+    when(ctx.queryParam("by")).thenReturn("body");
+    Assertions.assertThrows(BadRequestResponse.class, () -> controller.getTodoGroups(ctx));
+
+    when(ctx.queryParamMap()).thenReturn(Map.of("by", List.of("owner"), "status", List.of("done")));
+    when(ctx.queryParam("by")).thenReturn("owner");
+    Assertions.assertThrows(BadRequestResponse.class, () -> controller.getTodoGroups(ctx));
+  }
+
+  @Test
+  public void answersTodoGroupsWithNotModified() {
+    Map<String, List<String>> queryParams = Map.of("by", List.of("owner"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("by")).thenReturn("owner");
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(ETags.forQuery(db.getVersion(), queryParams));
+
+    new TodoController(db).getTodoGroups(ctx);
+
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx, never()).json(any());
+  }
+
+  private static final String VALID_TODO =
+    "{\"owner\": \"Zed\", \"status\": true, \"body\": \"Water the plants\", \"category\": \"chores\"}";
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> addTodosFrom(TodoStore store, String body) throws IOException {
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    new TodoController(store, new ControllerOptions<Todo>()).addTodos(ctx);
+    verify(ctx).status(HttpStatus.OK);
+    ArgumentCaptor<Map<String, Object>> argument = ArgumentCaptor.forClass(Map.class);
+    verify(ctx).json(argument.capture());
+    return argument.getValue();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void canAddTodosFromArray() throws IOException {
+    TodoStore store = new TodoStore(db);
+    Map<String, Object> response = addTodosFrom(store,
+      "  [" + VALID_TODO + ", {\"owner\": \"Zed\"}, 12, " + VALID_TODO + "]");
+
+    assertEquals(2, response.get("added"));
+    assertEquals(2, response.get("failed"));
+    List<Map<String, String>> results = (List<Map<String, String>>) response.get("results");
+    assertEquals(4, results.size());
+    assertEquals("Zed", store.current().getTodo(results.get(0).get("id")).owner);
+    assertEquals("A todo needs an owner, status, body, and category", results.get(1).get("error"));
+    assertEquals("The request body must be a JSON object", results.get(2).get("error"));
+    assertEquals("Water the plants", store.current().getTodo(results.get(3).get("id")).body);
+    assertEquals(db.size() + 2, store.current().size());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void canAddTodosFromNewlineDelimitedJson() throws IOException {
+    TodoStore store = new TodoStore(db);
+    Map<String, Object> response = addTodosFrom(store, VALID_TODO + "\n\n{not json\n" + VALID_TODO + "\n");
+
+    assertEquals(2, response.get("added"));
+    List<Map<String, String>> results = (List<Map<String, String>>) response.get("results");
+    assertEquals(3, results.size());
+    assertEquals("The record isn't valid JSON", results.get(1).get("error"));
+    assertEquals(db.size() + 2, store.current().size());
+  }
+
+  @Test
+  public void addsLargeImportsInOneChange() throws IOException {
+    TodoStore store = new TodoStore(db);
+    int count = 12_000;
+    StringBuilder body = new StringBuilder("[");
+    for (int i = 0; i < count; i++) {
+      body.append(i == 0 ? "" : ",").append(VALID_TODO.replace("Zed", "Zed" + (i % 7)));
+    }
+    long version = store.current().getVersion();
+    Map<String, Object> response = addTodosFrom(store, body.append("]").toString());
+
+    assertEquals(count, response.get("added"));
+    TodoDatabase after = store.current();
+    assertEquals(db.size() + count, after.size());
+    assertEquals(count / 7 + 1, after.listTodos(Map.of("owner", List.of("Zed0"))).length);
+    assertEquals(count, after.listTodos(Map.of("contains", List.of("the plants"))).length);
+    assertEquals(count, after.listTodos(Map.of("category", List.of("chores"))).length);
+    // Sorted queries use the sort orders built for the new database
+    Todo[] byOwner = after.listTodos(Map.of("orderBy", List.of("owner")));
+    for (int i = 1; i < byOwner.length; i++) {
+      assertTrue(byOwner[i - 1].owner.compareTo(byOwner[i].owner) <= 0);
+    }
+    assertTrue(after.getVersion() > version);
+  }
+
+  @Test
+  public void rejectsBrokenArrayImports() {
+    TodoStore store = new TodoStore(db);
+    String[] bodies = {"[" + VALID_TODO + ", {\"owner\"", "[" + VALID_TODO + ", nope]"};
+    for (String body : bodies) {
+      when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+      Assertions.assertThrows(BadRequestResponse.class,
+        () -> new TodoController(store, new ControllerOptions<Todo>()).addTodos(ctx), body);
+    }
+    assertEquals(db.size(), store.current().size());
+  }
+
+  @Test
+  public void canReplaceTodo() {
+    TodoStore store = new TodoStore(db);
+    String id = "58895985c2fc014023fbc272";
+    when(ctx.pathParam("id")).thenReturn(id);
+    when(ctx.body()).thenReturn(
+      "{\"owner\": \"Zed\", \"status\": true, \"body\": \"Water the plants\", \"category\": \"chores\"}");
+
+    new TodoController(store, new ControllerOptions<Todo>()).replaceTodo(ctx);
+
+    Todo replaced = store.current().getTodo(id);
+    verify(ctx).json(replaced);
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals("Zed", replaced.owner);
+    assertEquals("Water the plants", replaced.body);
+
+    // Replacing needs the whole todo
+    when(ctx.body()).thenReturn("{\"owner\": \"Zed\"}");
+    Assertions.assertThrows(BadRequestResponse.class, () -> {
+      new TodoController(store, new ControllerOptions<Todo>()).replaceTodo(ctx);
+    });
+  }
+
+  @Test
+  public void canUpdateTodo() {
+    TodoStore store = new TodoStore(db);
+    String id = "58895985c2fc014023fbc272";
+    Todo before = db.getTodo(id);
+    when(ctx.pathParam("id")).thenReturn(id);
+    when(ctx.body()).thenReturn("{\"status\": true}");
+
+    new TodoController(store, new ControllerOptions<Todo>()).updateTodo(ctx);
+
+    Todo updated = store.current().getTodo(id);
+    verify(ctx).json(updated);
+    assertTrue(updated.status);
+    assertEquals(before.owner, updated.owner);
+    assertEquals(before.body, updated.body);
+  }
+
+  @Test
+  public void changingNonexistentTodoIsNotFound() {
+    TodoController controller = new TodoController(new TodoStore(db), new ControllerOptions<Todo>());
+    when(ctx.pathParam("id")).thenReturn("ThisIDWon'tExist");
+    when(ctx.body()).thenReturn("{\"status\": true}");
+
+    Assertions.assertThrows(NotFoundResponse.class, () -> controller.updateTodo(ctx));
+    Assertions.assertThrows(NotFoundResponse.class, () -> controller.deleteTodo(ctx));
+  }
+
+  @Test
+  public void canDeleteTodo() {
+    TodoStore store = new TodoStore(db);
+    String id = "58895985c2fc014023fbc272";
+    when(ctx.pathParam("id")).thenReturn(id);
+
+    new TodoController(store, new ControllerOptions<Todo>()).deleteTodo(ctx);
+
+    verify(ctx).status(HttpStatus.NO_CONTENT);
+    assertEquals(null, store.current().getTodo(id));
+    assertEquals(db.size() - 1, store.current().size());
+  }
+
+  @Test
+  public void changesInvalidateCachedLists() {
+    TodoStore store = new TodoStore(db);
+    QueryCache<Todo> cache = new QueryCache<>(1000);
+    TodoController controller = new TodoController(store, new ControllerOptions<Todo>().withCache(cache));
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Zed"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.body()).thenReturn(
+      "{\"owner\": \"Zed\", \"status\": true, \"body\": \"Water the plants\", \"category\": \"chores\"}");
+
+    controller.getTodos(ctx);
+    controller.addTodo(ctx);
+    controller.getTodos(ctx);
+
+    ArgumentCaptor<Todo[]> argument = ArgumentCaptor.forClass(Todo[].class);
+    verify(ctx, times(2)).json(argument.capture());
+    assertEquals(0, argument.getAllValues().get(0).length);
+    assertEquals(1, argument.getAllValues().get(1).length);
+    assertEquals(0, cache.getStats().getHits());
+  }
+
+  @Test
+  public void canLoadTodosFromFile(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("todos.json");
+    Files.copy(getClass().getResourceAsStream(Server.TODO_DATA_FILE), file);
+
+    TodoDatabase fileDb = new TodoDatabase(file);
+    assertEquals(db.size(), fileDb.size());
+  }
+
+  @Test
+  public void scansInParallelWithSameResults() throws IOException {
+    TodoDatabase parallelDb = new TodoDatabase(Server.TODO_DATA_FILE);
+    // Scan even tiny ranges in parallel, in small chunks
+    try (ParallelScan scan = new ParallelScan(3, 1, 7)) {
+      parallelDb.setParallelScan(scan);
+      ObjectMapper mapper = new ObjectMapper();
+      String[][] queries = {
+        {"contains", "in"},
+        {"contains", "in", "limit", "5"},
+        {"contains", "sit", "owner", "Fry"},
+        {"contains", "a", "orderBy", "owner", "limit", "12"},
+        {"contains", "a", "orderBy", "body"},
+        {"contains", "zzzz"},
+      };
+      for (String[] query : queries) {
+        Map<String, List<String>> queryParams = new HashMap<>();
+        for (int i = 0; i < query.length; i += 2) {
+          queryParams.put(query[i], Arrays.asList(query[i + 1]));
+        }
+        List<Todo> expected = new ArrayList<>();
+        String expectedCursor = db.forEachTodo(TodoQuery.fromParams(queryParams), expected::add);
+        List<Todo> actual = new ArrayList<>();
+        String actualCursor = parallelDb.forEachTodo(TodoQuery.fromParams(queryParams), actual::add);
+        assertEquals(mapper.writeValueAsString(expected), mapper.writeValueAsString(actual), queryParams.toString());
+        // The databases are different versions, so only where the cursors
+        // resume can be the same
+        assertEquals(expectedCursor == null, actualCursor == null, queryParams.toString());
+        if (expectedCursor != null) {
+          assertEquals(cursorStart(queryParams, expectedCursor), cursorStart(queryParams, actualCursor));
+        }
+      }
+    }
+  }
+
+  private static int cursorStart(Map<String, List<String>> queryParams, String cursor) {
+    Map<String, List<String>> withCursor = new HashMap<>(queryParams);
+    withCursor.put("cursor", List.of(cursor));
+    return TodoQuery.fromParams(withCursor).getStart();
+  }
+
+  @Test
+  public void canRoundTripTodosThroughSnapshot(@TempDir Path directory) throws IOException {
+    Path snapshot = directory.resolve("todos.snapshot");
+    db.writeSnapshot(snapshot);
+    TodoDatabase snapshotDb = TodoDatabase.readSnapshot(snapshot);
+
+    // Every todo, and the answer to every kind of query, should be the same
+    ObjectMapper mapper = new ObjectMapper();
+    String[][] queries = {
+      {},
+      {"owner", "Blanche"},
+      {"category", "homework", "status", "incomplete"},
+      {"contains", "Nisi"},
+      {"contains", "sit", "orderBy", "body", "limit", "12"},
+      {"orderBy", "owner", "offset", "7", "limit", "20"},
+    };
+    for (String[] query : queries) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      for (int i = 0; i < query.length; i += 2) {
+        queryParams.put(query[i], Arrays.asList(query[i + 1]));
+      }
+      assertEquals(
+        mapper.writeValueAsString(db.listTodos(queryParams)),
+        mapper.writeValueAsString(snapshotDb.listTodos(queryParams)));
+    }
+    assertEquals(db.size(), snapshotDb.size());
+    assertEquals("Blanche", snapshotDb.getTodo("58895985a22c04e761776d54").owner);
+  }
+
+  @Test
+  public void rejectsSnapshotOfUsers(@TempDir Path directory) throws IOException {
+    Path snapshot = directory.resolve("users.snapshot");
+    new UserDatabase(Server.USER_DATA_FILE).writeSnapshot(snapshot);
+    Assertions.assertThrows(IOException.class, () -> TodoDatabase.readSnapshot(snapshot));
+  }
+
+  @Test
+  public void reportsMissingTodoResource() {
+    Assertions.assertThrows(FileNotFoundException.class, () -> new TodoDatabase("/no-such-file.json"));
+  }
+
+  @Test
+  public void tracingDoesNotChangeResults() throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    String[][] queries = {
+      {},
+      {"owner", "Fry", "limit", "3", "offset", "2"},
+      {"contains", "sit", "status", "complete"},
+      {"category", "homework", "orderBy", "body", "limit", "4"},
+      {"contains", "a", "orderBy", "owner", "limit", "12"},
+    };
+    for (String[] query : queries) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      for (int i = 0; i < query.length; i += 2) {
+        queryParams.put(query[i], Arrays.asList(query[i + 1]));
+      }
+      List<Todo> expected = new ArrayList<>();
+      String expectedCursor = db.forEachTodo(TodoQuery.fromParams(queryParams), expected::add);
+      List<Todo> actual = new ArrayList<>();
+      QueryTrace trace = new QueryTrace();
+      String actualCursor = db.forEachTodo(TodoQuery.fromParams(queryParams), actual::add, trace);
+      assertEquals(mapper.writeValueAsString(expected), mapper.writeValueAsString(actual), queryParams.toString());
+      assertEquals(expectedCursor, actualCursor, queryParams.toString());
+      QueryTrace.Stage limit = trace.getStages().get(trace.getStages().size() - 1);
+      assertEquals("limit", limit.getName());
+      assertEquals(expected.size(), limit.getRowsOut(), queryParams.toString());
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void explainsEachStageOfQuery() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("explain", Arrays.asList("true"));
+    queryParams.put("owner", Arrays.asList("Blanche"));
+    queryParams.put("contains", Arrays.asList("ipsum"));
+    queryParams.put("orderBy", Arrays.asList("body"));
+    queryParams.put("limit", Arrays.asList("2"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("explain")).thenReturn("true");
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Map<String, Object>> argument = ArgumentCaptor.forClass(Map.class);
+    verify(ctx).json(argument.capture());
+    Map<String, Object> explanation = argument.getValue();
+    List<QueryTrace.Stage> stages = (List<QueryTrace.Stage>) explanation.get("stages");
+    assertEquals(List.of("owner", "contains index", "intersect", "contains", "sort", "limit"),
+      stages.stream().map(QueryTrace.Stage::getName).collect(Collectors.toList()));
+
+    long owned = Arrays.stream(db.listTodos(new HashMap<>())).filter(todo -> todo.owner.equals("Blanche")).count();
+    long matching = Arrays.stream(db.listTodos(new HashMap<>()))
+      .filter(todo -> todo.owner.equals("Blanche") && todo.body.contains("ipsum")).count();
+    assertEquals(db.size(), stages.get(0).getRowsIn());
+    assertEquals(owned, stages.get(0).getRowsOut());
+    assertEquals(matching, stages.get(3).getRowsOut());
+    assertEquals(matching, stages.get(4).getRowsIn());
+    // The sort keeps one more than the page, to see whether there's a next page
+    assertEquals(3, stages.get(4).getRowsOut());
+    assertEquals(2L, explanation.get("rows"));
+    assertEquals(db.getVersion(), explanation.get("version"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void explainsScanWithoutFilters() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of("explain", List.of("true")));
+    when(ctx.queryParam("explain")).thenReturn("true");
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<Map<String, Object>> argument = ArgumentCaptor.forClass(Map.class);
+    verify(ctx).json(argument.capture());
+    List<QueryTrace.Stage> stages = (List<QueryTrace.Stage>) argument.getValue().get("stages");
+    assertEquals(2, stages.size());
+    assertEquals("scan", stages.get(0).getName());
+    assertEquals(db.size(), stages.get(0).getRowsIn());
+    assertEquals(db.size(), stages.get(1).getRowsOut());
+    assertEquals((long) db.size(), argument.getValue().get("rows"));
+  }
+
+  @Test
+  public void logsSlowQueriesWithTracesOfSampledOnes() throws IOException {
+    Map<String, List<String>> queryParams = Map.of("owner", List.of("Fry"), "limit", List.of("3"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    List<String> lines = new ArrayList<>();
+    ObjectMapper mapper = new ObjectMapper();
+
+    // Everything is slow, and traced
+    todoController.setSlowQueryLog(new SlowQueryLog(0, 1, lines::add));
+    todoController.getTodos(ctx);
+    assertEquals(1, lines.size());
+    JsonNode entry = mapper.readTree(lines.get(0));
+    assertEquals("/api/todos", entry.get("route").asText());
+    assertEquals("Fry", entry.get("query").get("owner").get(0).asText());
+    assertEquals(3, entry.get("rows").asInt());
+    assertEquals("owner", entry.get("stages").get(0).get("name").asText());
+    assertTrue(entry.get("stages").get(0).has("nanos"));
+
+    // Nothing is traced
+    todoController.setSlowQueryLog(new SlowQueryLog(0, 0, lines::add));
+    todoController.getTodos(ctx);
+    assertEquals(2, lines.size());
+    assertFalse(mapper.readTree(lines.get(1)).has("stages"));
+
+    // Nothing is slow
+    todoController.setSlowQueryLog(new SlowQueryLog(60_000, 1, lines::add));
+    todoController.getTodos(ctx);
+    assertEquals(2, lines.size());
+  }
+
+  @Test
+  public void logsSlowStreamedAndCachedQueries() throws IOException {
+    TodoController controller =
+      new TodoController(db, new ControllerOptions<Todo>().withStreaming(true).withCache(new QueryCache<>(100_000)));
+    List<String> lines = new ArrayList<>();
+    controller.setSlowQueryLog(new SlowQueryLog(0, 1, lines::add));
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry")));
+    when(ctx.outputStream()).thenReturn(new ByteArrayServletOutputStream());
+    long fry = Arrays.stream(db.listTodos(new HashMap<>())).filter(todo -> todo.owner.equals("Fry")).count();
+
+    controller.getTodos(ctx);
+    controller.getTodos(ctx);
+
+    ObjectMapper mapper = new ObjectMapper();
+    assertEquals(2, lines.size());
+    assertEquals(fry, mapper.readTree(lines.get(0)).get("rows").asLong());
+    assertTrue(mapper.readTree(lines.get(0)).has("stages"));
+    // The second came from the cache, so there was no query to trace
+    assertEquals(fry, mapper.readTree(lines.get(1)).get("rows").asLong());
+    assertFalse(mapper.readTree(lines.get(1)).has("stages"));
+  }
+}
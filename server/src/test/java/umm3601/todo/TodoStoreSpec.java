@@ -0,0 +1,388 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import umm3601.Server;
+
+/**
+ * Tests the copy-on-write store behind the todo write endpoints.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoStoreSpec {
+  private TodoDatabase db;
+  private TodoStore store;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    db = new TodoDatabase(Server.TODO_DATA_FILE);
+    store = new TodoStore(db);
+  }
+
+  private static TodoChanges todo(String owner, String category) {
+    return TodoChanges.fromTodoJson(
+      "{\"owner\": \"" + owner + "\", \"status\": false, \"body\": \"Some text\", \"category\": \"" + category + "\"}");
+  }
+
+  @Test
+  public void addsTodosWithNewIds() {
+    Todo added = store.add(todo("Zed", "chores"));
+
+    assertEquals(24, added._id.length());
+    assertNull(db.getTodo(added._id));
+    assertEquals(added, store.current().getTodo(added._id));
+    assertEquals(db.size() + 1, store.current().size());
+    // The indexes include the new todo
+    Todo[] owned = store.current().listTodos(Map.of("owner", List.of("Zed")));
+    assertEquals(1, owned.length);
+    assertEquals(added, owned[0]);
+    assertEquals(1, store.current().listTodos(Map.of("contains", List.of("Some text"))).length);
+
+    Todo another = store.add(todo("Zed", "chores"));
+    assertNotEquals(added._id, another._id);
+  }
+
+  @Test
+  public void updatesTodos() {
+    String id = "58895985c2fc014023fbc272";
+    Todo before = db.getTodo(id);
+    Todo updated = store.update(id, TodoChanges.fromJson("{\"status\": true, \"owner\": \"Zed\"}"));
+
+    assertTrue(updated.status);
+    assertEquals("Zed", updated.owner);
+    assertEquals(before.body, updated.body);
+    assertEquals(updated, store.current().getTodo(id));
+    assertEquals(db.size(), store.current().size());
+    assertEquals(updated, store.current().listTodos(Map.of("owner", List.of("Zed")))[0]);
+    // The old database is untouched
+    assertEquals(before, db.getTodo(id));
+
+    assertNull(store.update("nonexistent", TodoChanges.fromJson("{}")));
+  }
+
+  @Test
+  public void deletesTodos() {
+    String id = "58895985c2fc014023fbc272";
+    assertTrue(store.delete(id));
+    assertNull(store.current().getTodo(id));
+    assertEquals(db.size() - 1, store.current().size());
+    assertFalse(store.delete(id));
+  }
+
+  @Test
+  public void eachChangeMakesANewVersion() {
+    TodoDatabase first = store.current();
+    assertSame(first, store.current());
+    store.add(todo("Zed", "chores"));
+    assertNotEquals(first.getVersion(), store.current().getVersion());
+  }
+
+  @Test
+  public void readersSeeConsistentSnapshotsWhileWriting() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    AtomicBoolean writing = new AtomicBoolean(true);
+    try {
+      // Each writer adds todos in a category of its own
+      Future<?>[] writers = new Future<?>[2];
+      for (int w = 0; w < writers.length; w++) {
+        String category = "writer" + w;
+        writers[w] = executor.submit(() -> {
+          for (int i = 0; i < 25; i++) {
+            store.add(todo("Zed", category));
+          }
+        });
+      }
+      Future<Integer> reader = executor.submit(() -> {
+        int reads = 0;
+        while (writing.get()) {
+          // Every index of a snapshot must agree about the new todos
+          TodoDatabase snapshot = store.current();
+          int byOwner = snapshot.listTodos(Map.of("owner", List.of("Zed"))).length;
+          int byCategory = snapshot.listTodos(Map.of("category", List.of("writer0"))).length
+            + snapshot.listTodos(Map.of("category", List.of("writer1"))).length;
+          int byBody = snapshot.listTodos(Map.of("contains", List.of("Some text"))).length;
+          assertEquals(byOwner, byCategory);
+          assertEquals(byOwner, byBody);
+          assertEquals(db.size() + byOwner, snapshot.size());
+          reads++;
+        }
+        return reads;
+      });
+      for (Future<?> writer : writers) {
+        writer.get(1, TimeUnit.MINUTES);
+      }
+      writing.set(false);
+      reader.get(1, TimeUnit.MINUTES);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // No change was lost, and no ID was used twice
+    Todo[] added = store.current().listTodos(Map.of("owner", List.of("Zed")));
+    assertEquals(50, added.length);
+    Set<String> ids = new HashSet<>();
+    for (Todo todo : added) {
+      ids.add(todo._id);
+    }
+    assertEquals(50, ids.size());
+  }
+
+  @Test
+  public void replaysLoggedChanges(@TempDir Path directory) throws IOException {
+    Path logFile = directory.resolve("todos.wal");
+    Path compacted = directory.resolve("todos.json");
+    String id = "58895985c2fc014023fbc272";
+    Todo added;
+    Todo updated;
+    try (TodoStore logged = TodoStore.open(db, logFile, true, 0, compacted, Long.MAX_VALUE)) {
+      added = logged.add(todo("Zed", "chores"));
+      updated = logged.update(id, TodoChanges.fromJson("{\"body\": \"Changed\"}"));
+      assertTrue(logged.delete("58895985a22c04e761776d54"));
+      assertNull(logged.update("nonexistent", TodoChanges.fromJson("{}")));
+    }
+
+    try (TodoStore reopened = TodoStore.open(db, logFile, true, 0, compacted, Long.MAX_VALUE)) {
+      TodoDatabase replayed = reopened.current();
+      assertEquals(db.size(), replayed.size());
+      assertEquals(added, replayed.getTodo(added._id));
+      assertEquals(updated, replayed.getTodo(id));
+      assertNull(replayed.getTodo("58895985a22c04e761776d54"));
+      // The replayed changes are built into the indexes straight away
+      assertEquals(0, replayed.deltaSize());
+    }
+    assertFalse(Files.exists(compacted));
+  }
+
+  @Test
+  public void compactsTheLogIntoNewBaseFile(@TempDir Path directory) throws IOException {
+    Path logFile = directory.resolve("todos.wal");
+    Path compacted = directory.resolve("todos.json");
+    Todo added;
+    try (TodoStore logged = TodoStore.open(db, logFile, false, 0, compacted, 1)) {
+      added = logged.add(todo("Zed", "chores"));
+    }
+    assertEquals(Integer.BYTES, Files.size(logFile));
+
+    // The compacted file is a complete copy of the todos, in the same form
+    // as the original data
+    TodoDatabase base = new TodoDatabase(compacted);
+    assertEquals(db.size() + 1, base.size());
+    assertEquals(added, base.getTodo(added._id));
+    try (TodoStore reopened = TodoStore.open(base, logFile, false, 0, compacted, Long.MAX_VALUE)) {
+      assertEquals(db.size() + 1, reopened.current().size());
+    }
+  }
+
+  @Test
+  public void keepsChangesCommittedWhileCompacting(@TempDir Path directory) throws IOException {
+    Path logFile = directory.resolve("todos.wal");
+    Path compacted = directory.resolve("todos.json");
+    List<Todo> added = new ArrayList<>();
+    try (TodoStore logged = TodoStore.open(db, logFile, false, 0, compacted, 1)) {
+      // Each of these may land before, during or after the compaction the
+      // first one sets off
+      for (int i = 0; i < 20; i++) {
+        added.add(logged.add(todo("Zed", "chores")));
+      }
+      logged.awaitCompaction();
+      assertEquals(Integer.BYTES, Files.size(logFile));
+      added.add(logged.add(todo("Zed", "errands")));
+    }
+
+    try (TodoStore reopened = TodoStore.open(new TodoDatabase(compacted), logFile, false, 0, compacted,
+      Long.MAX_VALUE)) {
+      assertEquals(db.size() + added.size(), reopened.current().size());
+      for (Todo todo : added) {
+        assertEquals(todo, reopened.current().getTodo(todo._id));
+      }
+    }
+  }
+
+  @Test
+  public void groupsConcurrentWritesIntoBatches(@TempDir Path directory) throws Exception {
+    int writes = 40;
+    try (TodoStore logged = TodoStore.open(db, directory.resolve("todos.wal"), true, 5,
+      directory.resolve("todos.json"), Long.MAX_VALUE)) {
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+        List<Future<Todo>> futures = new ArrayList<>();
+        for (int i = 0; i < writes; i++) {
+          futures.add(executor.submit(() -> logged.add(todo("Zed", "chores"))));
+        }
+        for (Future<Todo> future : futures) {
+          assertEquals("Zed", future.get(1, TimeUnit.MINUTES).owner);
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+      assertEquals(db.size() + writes, logged.current().size());
+      assertTrue(logged.logBatches() < writes, "Expected fewer than " + writes + " batches");
+    }
+  }
+
+  /**
+   * Make a mix of updates, deletes and adds with the given store, keeping
+   * track of what the todos should be after them, in order.
+   */
+  private static void makeChanges(TodoStore changing, Map<String, Todo> expected, int count) {
+    Random random = new Random(3601);
+    String[] owners = {"Fry", "Zed", "Blanche"};
+    String[] categories = {"homework", "groceries", "chores"};
+    String[] bodies = {"Aardvark comes first", "zzz comes last", "Some text"};
+    for (int i = 0; i < count; i++) {
+      List<String> ids = new ArrayList<>(expected.keySet());
+      String id = ids.get(random.nextInt(ids.size()));
+      String changes = "{\"owner\": \"" + owners[random.nextInt(owners.length)]
+        + "\", \"status\": " + random.nextBoolean()
+        + ", \"body\": \"" + bodies[random.nextInt(bodies.length)]
+        + "\", \"category\": \"" + categories[random.nextInt(categories.length)] + "\"}";
+      switch (i % 3) {
+        case 0:
+          expected.put(id, changing.update(id, TodoChanges.fromJson(changes)));
+          break;
+        case 1:
+          assertTrue(changing.delete(id));
+          expected.remove(id);
+          break;
+        default:
+          Todo added = changing.add(TodoChanges.fromTodoJson(changes));
+          expected.put(added._id, added);
+          break;
+      }
+    }
+  }
+
+  private static Map<String, Todo> todosOf(TodoDatabase database) {
+    Map<String, Todo> todos = new LinkedHashMap<>();
+    for (Todo todo : database.allTodos()) {
+      todos.put(todo._id, todo);
+    }
+    return todos;
+  }
+
+  /**
+   * Walk through all the pages of the given query by following the next
+   * page cursors.
+   */
+  private static List<Todo> walkPages(TodoDatabase database, Map<String, List<String>> queryParams) {
+    List<Todo> allPages = new ArrayList<>();
+    Map<String, List<String>> pageParams = new HashMap<>(queryParams);
+    pageParams.put("limit", List.of("7"));
+    String cursor;
+    do {
+      cursor = database.forEachTodo(TodoQuery.fromParams(pageParams), allPages::add);
+      pageParams.put("cursor", List.of(String.valueOf(cursor)));
+    } while (cursor != null);
+    return allPages;
+  }
+
+  private static String describe(List<TodoGroup> groups) {
+    StringBuilder description = new StringBuilder();
+    for (TodoGroup group : groups) {
+      description.append(group.getKey()).append(':').append(group.getCount()).append('/')
+        .append(group.getComplete()).append(' ');
+    }
+    return description.toString();
+  }
+
+  /**
+   * Check that a database with changes in its delta has the expected todos,
+   * and answers every kind of query just as a database built from scratch
+   * with those todos does.
+   */
+  private static void assertSameAsRebuilt(Map<String, Todo> expected, TodoDatabase changed) {
+    Todo[] todos = expected.values().toArray(new Todo[0]);
+    assertArrayEquals(todos, changed.allTodos());
+    assertEquals(todos.length, changed.size());
+    TodoDatabase rebuilt = new TodoDatabase(todos);
+
+    List<Map<String, List<String>>> queries = new ArrayList<>();
+    queries.add(Map.of());
+    queries.add(Map.of("owner", List.of("Zed")));
+    queries.add(Map.of("owner", List.of("Fry"), "status", List.of("complete")));
+    queries.add(Map.of("category", List.of("homework"), "contains", List.of("comes")));
+    queries.add(Map.of("contains", List.of("a")));
+    for (String attribute : TodoQuery.SORT_ATTRIBUTES) {
+      queries.add(Map.of("orderBy", List.of(attribute)));
+      queries.add(Map.of("orderBy", List.of(attribute), "category", List.of("groceries")));
+      queries.add(Map.of("orderBy", List.of(attribute), "contains", List.of("e"), "offset", List.of("3")));
+    }
+    for (Map<String, List<String>> query : queries) {
+      Todo[] all = rebuilt.listTodos(query);
+      assertArrayEquals(all, changed.listTodos(query), query.toString());
+      if (!query.containsKey("offset")) {
+        // The offset would skip todos on every page
+        assertEquals(Arrays.asList(all), walkPages(changed, query), query.toString());
+      }
+      for (String attribute : TodoDatabase.GROUP_ATTRIBUTES) {
+        assertEquals(describe(rebuilt.groupTodos(attribute, TodoQuery.fromParams(query))),
+          describe(changed.groupTodos(attribute, TodoQuery.fromParams(query))), attribute + " " + query);
+      }
+    }
+  }
+
+  @Test
+  public void answersQueriesFromTheChangesAndTheIndexesTogether() {
+    TodoStore changing = new TodoStore(db, Integer.MAX_VALUE);
+    Map<String, Todo> expected = todosOf(db);
+    makeChanges(changing, expected, 90);
+
+    TodoDatabase changed = changing.current();
+    assertTrue(changed.deltaSize() > 0);
+    assertSameAsRebuilt(expected, changed);
+    // Changed, deleted and untouched todos, one at a time
+    for (Todo todo : db.allTodos()) {
+      Todo now = expected.get(todo._id);
+      assertEquals(now, changed.getTodo(todo._id));
+      assertEquals(now == null, changed.getTodoJson(todo._id) == null);
+    }
+  }
+
+  @Test
+  public void mergesChangesIntoNewIndexesInTheBackground() {
+    // Few enough todos that any change sets off a merge, unless one is
+    // already running
+    TodoDatabase small = new TodoDatabase(Arrays.copyOf(db.allTodos(), 100));
+    TodoStore merging = new TodoStore(small, 1);
+    Map<String, Todo> expected = todosOf(small);
+    makeChanges(merging, expected, 90);
+    merging.awaitMerge();
+    // However the merges and commits interleaved, the changes committed
+    // while a merge ran are kept on top of it
+    assertSameAsRebuilt(expected, merging.current());
+
+    // With no merge running, the next change sets one off, and with nothing
+    // committed meanwhile, it leaves no delta
+    makeChanges(merging, expected, 1);
+    merging.awaitMerge();
+    assertEquals(0, merging.current().deltaSize());
+    assertSameAsRebuilt(expected, merging.current());
+  }
+}
@@ -1,26 +1,49 @@
 package umm3601.user;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.GoneResponse;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 
+import umm3601.ByteArrayServletOutputStream;
+import umm3601.ControllerOptions;
+import umm3601.ETags;
+import umm3601.Pagination;
+import umm3601.QueryCache;
 import umm3601.Server;
 
 /**
@@ -161,6 +184,30 @@ public class UserControllerSpec {
     assertEquals("Cervantes Morin", user.name);
   }
 
+  @Test
+  public void canGetPreserializedUser() throws IOException {
+    String id = "588935f5c668650dc77df581";
+    when(ctx.pathParam("id")).thenReturn(id);
+
+    new UserController(db, new ControllerOptions<User>().withPreserialized(true)).getUser(ctx);
+
+    ArgumentCaptor<byte[]> argument = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(argument.capture());
+    verify(ctx).status(HttpStatus.OK);
+    User user = new ObjectMapper().readValue(argument.getValue(), User.class);
+    assertEquals(db.getUser(id)._id, user._id);
+    assertEquals("Cervantes Morin", user.name);
+    assertSame(argument.getValue(), db.getUserJson(id));
+  }
+
+  @Test
+  public void preserializedUserWithNonexistentId() {
+    when(ctx.pathParam("id")).thenReturn("nobody");
+    Assertions.assertThrows(NotFoundResponse.class, () -> {
+      new UserController(db, new ControllerOptions<User>().withPreserialized(true)).getUser(ctx);
+    });
+  }
+
   @Test
   public void respondsAppropriatelyToRequestForNonexistentId() throws IOException {
     when(ctx.pathParam("id")).thenReturn(null);
@@ -169,4 +216,386 @@ public class UserControllerSpec {
     });
     assertEquals("No user with id " + null + " was found.", exception.getMessage());
   }
+
+  @Test
+  public void canStreamUsers() throws IOException {
+    ByteArrayServletOutputStream output = new ByteArrayServletOutputStream();
+    when(ctx.outputStream()).thenReturn(output);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    new UserController(db, new ControllerOptions<User>().withStreaming(true)).getUsers(ctx);
+
+    User[] streamedUsers = new ObjectMapper().readValue(output.toByteArray(), User[].class);
+    User[] expectedUsers = db.listUsers(queryParams);
+    assertEquals(expectedUsers.length, streamedUsers.length);
+    for (int i = 0; i < expectedUsers.length; i++) {
+      assertEquals(expectedUsers[i]._id, streamedUsers[i]._id);
+      assertEquals(expectedUsers[i].email, streamedUsers[i].email);
+    }
+  }
+
+  @Test
+  public void streamsUsersWhenTheLimitIsUnbounded() throws IOException {
+    ByteArrayServletOutputStream output = new ByteArrayServletOutputStream();
+    when(ctx.outputStream()).thenReturn(output);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {Integer.toString(Integer.MAX_VALUE)}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    new UserController(db, new ControllerOptions<User>().withStreaming(true)).getUsers(ctx);
+
+    verify(ctx, never()).json(any());
+    User[] streamedUsers = new ObjectMapper().readValue(output.toByteArray(), User[].class);
+    User[] expectedUsers = db.listUsers(new HashMap<>());
+    assertEquals(expectedUsers.length, streamedUsers.length);
+    for (int i = 0; i < expectedUsers.length; i++) {
+      assertEquals(expectedUsers[i]._id, streamedUsers[i]._id);
+    }
+  }
+
+  @Test
+  public void streamingRejectsIllegalLimitBeforeWriting() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"-1"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Assertions.assertThrows(BadRequestResponse.class, () -> {
+      new UserController(db, new ControllerOptions<User>().withStreaming(true)).getUsers(ctx);
+    });
+    verify(ctx, never()).outputStream();
+  }
+
+  @Test
+  public void streamingRejectsIllegalAgeBeforeWriting() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("age", Arrays.asList(new String[] {"abc"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Assertions.assertThrows(BadRequestResponse.class, () -> {
+      new UserController(db, new ControllerOptions<User>().withStreaming(true)).getUsers(ctx);
+    });
+    verify(ctx, never()).outputStream();
+  }
+
+  @Test
+  public void canWalkPagesOfUsers() {
+    User[] allUsers = db.listUsers(new HashMap<>());
+    List<User> allPages = new ArrayList<>();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"3"}));
+    String cursor;
+    do {
+      cursor = db.forEachUser(queryParams, allPages::add);
+      queryParams.put("cursor", Arrays.asList(new String[] {cursor}));
+    } while (cursor != null);
+
+    assertArrayEquals(allUsers, allPages.toArray(new User[0]));
+  }
+
+  @Test
+  public void exactlyFullOrEmptyPagesOfUsersHaveNoCursor() {
+    int userCount = db.listUsers(new HashMap<>()).length;
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {Integer.toString(userCount)}));
+    assertNull(db.forEachUser(queryParams, user -> { }));
+
+    queryParams.put("limit", Arrays.asList(new String[] {"0"}));
+    List<User> page = new ArrayList<>();
+    assertNull(db.forEachUser(queryParams, page::add));
+    assertEquals(0, page.size());
+  }
+
+  @Test
+  public void rejectsUserCursorFromAnotherVersionOfTheData() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"2"}));
+    String cursor = db.forEachUser(queryParams, user -> { });
+    queryParams.put("cursor", Arrays.asList(new String[] {cursor}));
+
+    // Even the same users, loaded again, are another version
+    UserDatabase reloaded = new UserDatabase(Server.USER_DATA_FILE);
+    Assertions.assertThrows(GoneResponse.class, () -> reloaded.forEachUser(queryParams, user -> { }));
+  }
+
+  @Test
+  public void canGetPageOfUsersAtOffset() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("offset", Arrays.asList(new String[] {"2"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"2"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    new UserController(db, new ControllerOptions<User>().withStreaming(true)).getUsers(ctx);
+
+    ArgumentCaptor<User[]> argument = ArgumentCaptor.forClass(User[].class);
+    verify(ctx).json(argument.capture());
+    assertArrayEquals(Arrays.copyOfRange(db.listUsers(new HashMap<>()), 2, 4), argument.getValue());
+    verify(ctx).header(eq(Pagination.NEXT_CURSOR_HEADER), anyString());
+  }
+
+  @Test
+  public void servesRepeatedQueriesFromCache() throws IOException {
+    QueryCache<User> cache = new QueryCache<>(1000);
+    UserController cachingController =
+      new UserController(db, new ControllerOptions<User>().withStreaming(true).withCache(cache));
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    ByteArrayServletOutputStream output = new ByteArrayServletOutputStream();
+    when(ctx.outputStream()).thenReturn(output);
+
+    cachingController.getUsers(ctx);
+    cachingController.getUsers(ctx);
+
+    User[] streamedUsers = new ObjectMapper().readValue(output.toByteArray(), User[].class);
+    ArgumentCaptor<User[]> argument = ArgumentCaptor.forClass(User[].class);
+    verify(ctx).json(argument.capture());
+    assertEquals(streamedUsers.length, argument.getValue().length);
+    assertArrayEquals(db.listUsers(queryParams), argument.getValue());
+    assertEquals(1, cache.getStats().getHits());
+    assertEquals(1, cache.getStats().getMisses());
+  }
+
+  @Test
+  public void cachesPagesWithTheirCursors() {
+    QueryCache<User> cache = new QueryCache<>(1000);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"2"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    new UserController(db, new ControllerOptions<User>().withStreaming(true).withCache(cache)).getUsers(ctx);
+    new UserController(db, new ControllerOptions<User>().withStreaming(true).withCache(cache)).getUsers(ctx);
+
+    verify(ctx, times(2)).header(eq(Pagination.NEXT_CURSOR_HEADER), anyString());
+    assertEquals(1, cache.getStats().getHits());
+  }
+
+  @Test
+  public void answersMatchingIfNoneMatchWithNotModified() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("age", Arrays.asList(new String[] {"25"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    String etag = ETags.forQuery(db.getVersion(), queryParams);
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag);
+
+    userController.getUsers(ctx);
+
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx).header(Header.ETAG, etag);
+    verify(ctx, never()).json(any());
+  }
+
+  @Test
+  public void singleUserHasETag() {
+    String id = "588935f5c668650dc77df581";
+    when(ctx.pathParam("id")).thenReturn(id);
+    userController.getUser(ctx);
+    verify(ctx).header(Header.ETAG, ETags.forRecord(db.getVersion(), id));
+
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(ETags.forRecord(db.getVersion(), id));
+    userController.getUser(ctx);
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  public void anyTagOnlyMatchesUsersThatExist() {
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn("*");
+    when(ctx.pathParam("id")).thenReturn("nonexistent");
+    Assertions.assertThrows(NotFoundResponse.class, () -> {
+      userController.getUser(ctx);
+    });
+    verify(ctx, never()).status(HttpStatus.NOT_MODIFIED);
+
+    when(ctx.pathParam("id")).thenReturn("588935f5c668650dc77df581");
+    userController.getUser(ctx);
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  public void canLoadUsersFromFile(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("users.json");
+    Files.copy(getClass().getResourceAsStream(Server.USER_DATA_FILE), file);
+
+    UserDatabase fileDb = new UserDatabase(file);
+    assertEquals(db.size(), fileDb.size());
+  }
+
+  @Test
+  public void canGetUsersInAgeRange() {
+    User[] allUsers = db.listUsers(new HashMap<>());
+    int[][] ranges = {{25, 30}, {0, 24}, {30, 30}, {40, 200}, {31, 29}};
+    for (int[] range : ranges) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      queryParams.put("minAge", Arrays.asList(Integer.toString(range[0])));
+      queryParams.put("maxAge", Arrays.asList(Integer.toString(range[1])));
+      User[] expected = Arrays.stream(allUsers)
+        .filter(user -> user.age >= range[0] && user.age <= range[1])
+        .toArray(User[]::new);
+      assertArrayEquals(expected, db.listUsers(queryParams));
+    }
+  }
+
+  @Test
+  public void canCombineAgeRangeWithOtherFilters() {
+    User[] allUsers = db.listUsers(new HashMap<>());
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("minAge", Arrays.asList("30"));
+    queryParams.put("company", Arrays.asList("OHMNET"));
+    assertArrayEquals(Arrays.stream(allUsers)
+      .filter(user -> user.age >= 30 && user.company.equals("OHMNET"))
+      .toArray(User[]::new), db.listUsers(queryParams));
+
+    // An exact age outside the range matches nothing
+    queryParams.put("age", Arrays.asList("25"));
+    assertEquals(0, db.listUsers(queryParams).length);
+
+    // Paging through a range gives the same users as getting it all at once
+    queryParams.clear();
+    queryParams.put("maxAge", Arrays.asList("30"));
+    User[] expected = db.listUsers(queryParams);
+    List<User> allPages = new ArrayList<>();
+    queryParams.put("limit", Arrays.asList("3"));
+    String cursor = null;
+    do {
+      if (cursor != null) {
+        queryParams.put("cursor", Arrays.asList(cursor));
+      }
+      cursor = db.forEachUser(queryParams, allPages::add);
+    } while (cursor != null);
+    assertArrayEquals(expected, allPages.toArray(new User[0]));
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalAgeRange() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("maxAge", Arrays.asList(new String[] {"old"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+    assertEquals("Specified maxAge 'old' can't be parsed to an integer", exception.getMessage());
+  }
+
+  @Test
+  public void canGetUsersAtNonexistentCompany() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList("NO SUCH COMPANY"));
+    assertEquals(0, db.listUsers(queryParams).length);
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<UserGroup> getUserGroups(Map<String, List<String>> queryParams) {
+    Context groupCtx = mock(Context.class);
+    when(groupCtx.queryParamMap()).thenReturn(queryParams);
+    when(groupCtx.queryParam("by")).thenReturn(queryParams.get("by").get(0));
+    userController.getUserGroups(groupCtx);
+    verify(groupCtx).status(HttpStatus.OK);
+    verify(groupCtx).header(Header.ETAG, ETags.forQuery(db.getVersion(), queryParams));
+    ArgumentCaptor<List<UserGroup>> argument = ArgumentCaptor.forClass(List.class);
+    verify(groupCtx).json(argument.capture());
+    return argument.getValue();
+  }
+
+  @Test
+  public void canGroupUsers() {
+    String[][] queries = {
+      {"by", "company"},
+      {"by", "company", "minAge", "30"},
+      {"by", "company", "company", "OHMNET"},
+      {"by", "age"},
+      {"by", "age", "ageBucket", "1"},
+      {"by", "age", "ageBucket", "7", "company", "OHMNET"},
+      {"by", "age", "maxAge", "30", "limit", "2"},
+      {"by", "age", "ageBucket", "2147483647"},
+    };
+    for (String[] query : queries) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      for (int i = 0; i < query.length; i += 2) {
+        queryParams.put(query[i], List.of(query[i + 1]));
+      }
+      // The groups should count the users the same filters list
+      Map<String, List<String>> listParams = new HashMap<>(queryParams);
+      listParams.remove("limit");
+      int bucket = queryParams.containsKey("ageBucket") ? Integer.parseInt(query[3]) : 10;
+      Map<String, Integer> expected = new TreeMap<>();
+      Map<Long, String> ageKeys = new TreeMap<>();
+      for (User user : db.listUsers(listParams)) {
+        String key = user.company;
+        if (query[1].equals("age")) {
+          long start = Math.floorDiv((long) user.age, bucket) * bucket;
+          key = bucket == 1 ? Long.toString(start) : start + "-" + (start + bucket - 1);
+          ageKeys.put(start, key);
+        }
+        expected.merge(key, 1, Integer::sum);
+      }
+      List<String> keys = new ArrayList<>(query[1].equals("age") ? ageKeys.values() : expected.keySet());
+
+      List<UserGroup> groups = getUserGroups(queryParams);
+      List<String> actualKeys = new ArrayList<>();
+      for (UserGroup group : groups) {
+        actualKeys.add(group.getKey());
+        assertEquals(expected.get(group.getKey()), group.getCount(), group.getKey() + " in " + queryParams);
+      }
+      assertEquals(keys, actualKeys, queryParams.toString());
+    }
+  }
+
+  @Test
+  public void rejectsBadUserGroups() {
+    String[][] queries = {
+      {},
+      {"by", "name"},
+      {"by", "age", "ageBucket", "0"},
+      {"by", "age", "ageBucket", "ten"},
+      {"by", "company", "age", "old"},
+    };
+    for (String[] query : queries) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      for (int i = 0; i < query.length; i += 2) {
+        queryParams.put(query[i], List.of(query[i + 1]));
+      }
+      when(ctx.queryParamMap()).thenReturn(queryParams);
+      when(ctx.queryParam("by")).thenReturn(query.length == 0 ? null : query[1]);
+      Assertions.assertThrows(BadRequestResponse.class, () -> userController.getUserGroups(ctx),
+        queryParams.toString());
+    }
+  }
+
+  @Test
+  public void canRoundTripUsersThroughSnapshot(@TempDir Path directory) throws IOException {
+    Path snapshot = directory.resolve("users.snapshot");
+    db.writeSnapshot(snapshot);
+    UserDatabase snapshotDb = UserDatabase.readSnapshot(snapshot);
+
+    ObjectMapper mapper = new ObjectMapper();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    assertEquals(
+      mapper.writeValueAsString(db.listUsers(queryParams)),
+      mapper.writeValueAsString(snapshotDb.listUsers(queryParams)));
+    queryParams.put("company", Arrays.asList("OHMNET"));
+    assertEquals(
+      mapper.writeValueAsString(db.listUsers(queryParams)),
+      mapper.writeValueAsString(snapshotDb.listUsers(queryParams)));
+    assertEquals("Connie Stewart", snapshotDb.getUser("588935f57546a2daea44de7c").name);
+
+    // The age and company indexes are loaded, rather than rebuilt
+    queryParams.clear();
+    queryParams.put("minAge", Arrays.asList("25"));
+    queryParams.put("maxAge", Arrays.asList("40"));
+    assertEquals(
+      mapper.writeValueAsString(db.listUsers(queryParams)),
+      mapper.writeValueAsString(snapshotDb.listUsers(queryParams)));
+    for (String attribute : new String[] {"age", "company"}) {
+      assertEquals(
+        mapper.writeValueAsString(db.groupUsers(attribute, Map.of())),
+        mapper.writeValueAsString(snapshotDb.groupUsers(attribute, Map.of())));
+    }
+  }
+
+  @Test
+  public void reportsMissingUserResource() {
+    Assertions.assertThrows(FileNotFoundException.class, () -> new UserDatabase("/no-such-file.json"));
+  }
 }